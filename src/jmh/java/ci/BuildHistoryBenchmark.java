@@ -0,0 +1,109 @@
+package ci;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The build history with 10k and 100k records: creating a record, listing all builds, reading a
+ * record, querying the first page of {@code /builds} and rendering it.
+ * <p>
+ * The history is created once per fork (which takes a while for 100k records), so
+ * {@link #createBuild()} makes it grow a little during the run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildHistoryBenchmark {
+    private static final String[] REPOSITORIES = {"octocat/Hello-World", "octocat/Spoon-Knife", "group17/ci"};
+    private static final String[] BRANCHES = {"main", "dev", "feature/payload", "feature/history"};
+
+    @Param({"10000", "100000"})
+    public int records;
+
+    private Path dir;
+    private BuildHistory history;
+    private String[] buildIds;
+    private String compileLog;
+    private String testLog;
+    private int next;
+
+    @Setup
+    public void createHistory() throws IOException {
+        dir = Files.createTempDirectory("ci-history-bench");
+        history = new BuildHistory(dir);
+        compileLog = "[INFO] Compiling 42 source files to target/classes\n".repeat(40);
+        testLog = "[INFO] Tests run: 12, Failures: 0, Errors: 0, Skipped: 0\n".repeat(80);
+        buildIds = new String[records];
+        for (int i = 0; i < records; i++) {
+            buildIds[i] = addBuild(i);
+        }
+    }
+
+    @TearDown
+    public void deleteHistory() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private String addBuild(int n) throws IOException {
+        String sha = String.format("%07x%033x", n, n);
+        return history.createBuild(history.newBuildId(sha), sha, n % 5 == 0 ? "failure" : "success",
+                compileLog, testLog, Map.of(
+                        BuildHistory.REPOSITORY, REPOSITORIES[n % REPOSITORIES.length],
+                        BuildHistory.BRANCH, BRANCHES[n % BRANCHES.length]));
+    }
+
+    @Benchmark
+    public String createBuild() throws IOException {
+        return addBuild(records + next++);
+    }
+
+    @Benchmark
+    public List<String> listBuilds() throws IOException {
+        return history.listBuilds();
+    }
+
+    @Benchmark
+    public String getBuild() throws IOException {
+        next = (next + 7919) % buildIds.length;
+        return history.getBuild(buildIds[next]);
+    }
+
+    @Benchmark
+    public BuildIndex.Page queryFilteredPage() {
+        return history.queryBuilds(new BuildIndex.Filter("octocat/Hello-World", "main", "failure", null), -1, 50);
+    }
+
+    @Benchmark
+    public void renderBuildList() {
+        BuildIndex.Page page = history.queryBuilds(BuildIndex.Filter.ALL, -1, 50);
+        BuildListPage.render(new PrintWriter(Writer.nullWriter()), page, BuildIndex.Filter.ALL, 50);
+    }
+}
@@ -0,0 +1,41 @@
+package ci;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of recording metrics from several workers at once: a kept histogram, and a counter looked
+ * up by its labels like the exit code and build state counters of the pipeline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CiMetricsBenchmark {
+    private final CiMetrics metrics = new CiMetrics();
+    private final CiMetrics.Histogram histogram = metrics.histogram("ci_stage_duration_seconds", "Durations",
+            CiMetrics.DURATION_BUCKETS, "stage", "test");
+
+    @Benchmark
+    public void observeHistogram() {
+        histogram.observe(0.42);
+    }
+
+    @Benchmark
+    public void incrementLabelledCounter() {
+        metrics.counter("ci_stage_exit_total", "Exit codes", "stage", "test", "code", "0").inc();
+    }
+}
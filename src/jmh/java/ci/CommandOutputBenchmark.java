@@ -0,0 +1,67 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Capturing the output of a command that prints a lot, in memory with ProcessCommandExecutor
+ * and to a log file with StreamingCommandExecutor. The command itself is cheap, so the time is
+ * mostly spent pumping and storing the output.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandOutputBenchmark {
+
+    /** Output size in MB. */
+    @Param({"1", "16", "128"})
+    public int outputMb;
+
+    private Path dir;
+    private List<String> command;
+
+    @Setup
+    public void createCommand() throws IOException {
+        dir = Files.createTempDirectory("ci-output-bench");
+        // Lines like a verbose build log
+        command = List.of("sh", "-c", "yes '[INFO] Downloaded from central: org/apache/maven/plugins' | head -c "
+                + outputMb * 1024L * 1024L);
+    }
+
+    @TearDown
+    public void deleteDirectory() throws IOException {
+        Files.deleteIfExists(dir.resolve("output.log"));
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public ExecResult inMemory() throws IOException, InterruptedException {
+        return new ProcessCommandExecutor().execute(command, dir);
+    }
+
+    @Benchmark
+    public ExecResult streamingToLog() throws IOException, InterruptedException {
+        Path log = dir.resolve("output.log");
+        Files.deleteIfExists(log);
+        return new StreamingCommandExecutor(log, 64 * 1024, ProcessCommandExecutor.DEFAULT_TIMEOUT).execute(command, dir);
+    }
+}
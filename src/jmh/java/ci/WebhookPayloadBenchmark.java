@@ -0,0 +1,97 @@
+package ci;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the streaming payload parser with the previous path: the body read into a String,
+ * URL-decoded into another String for form posts and parsed into a full JSONObject tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebhookPayloadBenchmark {
+
+    /** Number of commits in the push, GitHub sends up to 20 with full details. */
+    @Param({"1", "20", "2000"})
+    public int commits;
+
+    @Param({"json", "form"})
+    public String encoding;
+
+    private byte[] body;
+
+    @Setup
+    public void createBody() {
+        String json = pushPayload(commits);
+        body = (encoding.equals("form") ? "payload=" + URLEncoder.encode(json, StandardCharsets.UTF_8) : json)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public GitHubWebhookPayload streaming() throws IOException {
+        return GitHubWebhookPayload.parse(new ByteArrayInputStream(body), encoding.equals("form"));
+    }
+
+    @Benchmark
+    public GitHubWebhookPayload jsonObject() {
+        String payload = new String(body, StandardCharsets.UTF_8);
+        if (encoding.equals("form")) {
+            payload = URLDecoder.decode(payload.substring("payload=".length()), StandardCharsets.UTF_8);
+        }
+        return new GitHubWebhookPayload(payload);
+    }
+
+    /**
+     * A push event shaped like the ones GitHub sends, with the repository before the commits.
+     *
+     * @param commits number of commits in the push
+     * @return the JSON payload
+     */
+    static String pushPayload(int commits) {
+        StringBuilder json = new StringBuilder()
+                .append("{\"ref\":\"refs/heads/main\",")
+                .append("\"before\":\"0000000000000000000000000000000000000000\",")
+                .append("\"after\":\"abc123def456789012345678901234567890abcd\",")
+                .append("\"repository\":{\"id\":1296269,\"name\":\"Hello-World\",")
+                .append("\"full_name\":\"octocat/Hello-World\",\"private\":false,")
+                .append("\"owner\":{\"name\":\"octocat\",\"login\":\"octocat\",\"id\":1,")
+                .append("\"avatar_url\":\"https://github.com/images/error/octocat_happy.gif\"},")
+                .append("\"description\":\"This your first repo!\",\"fork\":false,")
+                .append("\"clone_url\":\"https://github.com/octocat/Hello-World.git\",")
+                .append("\"topics\":[\"ci\",\"java\"],\"size\":108,\"stargazers_count\":80},")
+                .append("\"pusher\":{\"name\":\"octocat\",\"email\":\"octocat@github.com\"},")
+                .append("\"commits\":[");
+        for (int i = 0; i < commits; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"").append(String.format("%040x", i)).append("\",")
+                    .append("\"message\":\"Fix \\\"issue\\\" #").append(i).append("\\n\\nLonger description of the change\",")
+                    .append("\"timestamp\":\"2024-01-01T00:00:00Z\",")
+                    .append("\"author\":{\"name\":\"Octo Cat\",\"email\":\"octocat@github.com\"},")
+                    .append("\"added\":[\"src/main/java/ci/File").append(i).append(".java\"],")
+                    .append("\"removed\":[],\"modified\":[\"README.md\",\"pom.xml\"]}");
+        }
+        return json.append("],\"head_commit\":null}").toString();
+    }
+}
@@ -0,0 +1,113 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Local bare repositories the server clones from (file:// URLs), with the pushes of a load test
+ * created ahead of time so the run only sends webhooks.
+ * <p>
+ * Pushes go round robin over the branches of all repositories. A commit whose message contains
+ * {@value #FAIL_MARKER} makes the fake Maven fail its tests.
+ */
+final class FakeRemotes {
+    /** Marker in the commit message of the pushes whose tests fail. */
+    static final String FAIL_MARKER = "[fail]";
+    /** Owner of the fake repositories. */
+    static final String OWNER = "load";
+
+    private final Path dir;
+
+    /**
+     * A push to send as a webhook.
+     *
+     * @param repository repository name
+     * @param branch     branch name
+     * @param sha        the pushed commit
+     * @param cloneUrl   file:// URL of the bare repository
+     */
+    record Push(String repository, String branch, String sha, String cloneUrl) {
+    }
+
+    /**
+     * @param dir directory the repositories are created in
+     */
+    FakeRemotes(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Creates the repositories and commits.
+     *
+     * @param repositories   number of repositories
+     * @param branches       number of branches per repository
+     * @param pushes         total number of pushes
+     * @param failurePercent share of the pushes whose tests fail
+     * @param seed           seed of the choice of failing pushes, for reproducible runs
+     * @return the pushes in the order they should be sent
+     * @throws IOException if a git command fails
+     */
+    List<Push> create(int repositories, int branches, int pushes, int failurePercent, long seed) throws IOException {
+        Random random = new Random(seed);
+        int streams = repositories * branches;
+        // Commits of each repository and branch, in push order
+        List<List<String>> shas = new ArrayList<>();
+        for (int r = 0; r < repositories; r++) {
+            String name = "repo-" + r;
+            Path bare = dir.resolve(name + ".git");
+            Path work = dir.resolve(name);
+            git(dir, "init", "-q", "--bare", bare.toString());
+            git(dir, "init", "-q", work.toString());
+            Files.writeString(work.resolve("README.md"), "Load test repository " + name + "\n");
+            git(work, "add", "README.md");
+            git(work, "commit", "-q", "-m", "Initial commit");
+            for (int b = 0; b < branches; b++) {
+                git(work, "checkout", "-q", "-B", branchName(b), "master");
+                List<String> branchShas = new ArrayList<>();
+                int count = pushes / streams + (r * branches + b < pushes % streams ? 1 : 0);
+                for (int i = 0; i < count; i++) {
+                    String message = "Change " + i + (random.nextInt(100) < failurePercent ? " " + FAIL_MARKER : "");
+                    git(work, "commit", "-q", "--allow-empty", "-m", message);
+                    branchShas.add(git(work, "rev-parse", "HEAD").trim());
+                }
+                shas.add(branchShas);
+            }
+            git(work, "push", "-q", bare.toUri().toString(), "--all");
+        }
+
+        List<Push> order = new ArrayList<>();
+        for (int i = 0; i < pushes; i++) {
+            int stream = i % streams;
+            int r = stream / branches;
+            order.add(new Push("repo-" + r, branchName(stream % branches), shas.get(stream).get(i / streams),
+                    dir.resolve("repo-" + r + ".git").toUri().toString()));
+        }
+        return order;
+    }
+
+    private static String branchName(int branch) {
+        return branch == 0 ? "main" : "feature-" + branch;
+    }
+
+    private static String git(Path workDir, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of("git", "-c", "user.name=Load Test",
+                "-c", "user.email=load@example.com", "-c", "init.defaultBranch=master"));
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).directory(workDir.toFile()).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException(String.join(" ", command) + " failed:\n" + output);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running git", e);
+        }
+        return output;
+    }
+}
@@ -0,0 +1,430 @@
+package ci;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * End-to-end load test of the CI server.
+ * <p>
+ * Starts the server in its own JVM with a fake {@code mvn} on its PATH, local bare repositories
+ * to clone from and a stub of the GitHub API, fires push webhooks at a fixed rate (open loop, a
+ * slow server does not slow the load down) and reports:
+ * <ul>
+ * <li>webhook latency percentiles and how many pushes were accepted or rejected (429),</li>
+ * <li>queue wait (webhook sent until the "pending" status) and build time percentiles,</li>
+ * <li>builds per minute and the resident memory of the server.</li>
+ * </ul>
+ * The server's own {@code /metrics} at the end of the run are saved to {@code <dir>/metrics.txt}.
+ * Settings are {@code key=value} arguments or {@code -Dload.<key>} system properties:
+ * {@code rate} (webhooks per second, default 1), {@code duration.seconds} (60),
+ * {@code repositories} (3), {@code branches} (2), {@code compile.ms} (500), {@code test.ms} (2000),
+ * {@code output.kb} (256, per Maven run), {@code failure.percent} (10), {@code workers} (2),
+ * {@code queue.depth} (50), {@code server.jvm.args}, {@code drain.seconds} (300), {@code dir}
+ * (a new temporary directory), {@code report} (JSON report file, default {@code <dir>/load-report.json}),
+ * {@code seed} (1) and {@code min.builds.per.minute} (exit with status 1 below it, default 0).
+ */
+public final class LoadTest {
+    private final CiConfig settings;
+    private final Path dir;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private final AtomicLong peakRssKb = new AtomicLong(-1);
+    private volatile long lastRssKb = -1;
+
+    /**
+     * Outcome of one webhook.
+     */
+    private static final class Sent {
+        final FakeRemotes.Push push;
+        volatile long sentAt;
+        volatile long latency = -1;
+        volatile int status;
+
+        Sent(FakeRemotes.Push push) {
+            this.push = push;
+        }
+    }
+
+    private LoadTest(CiConfig settings, Path dir) {
+        this.settings = settings;
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("load.")) {
+                properties.setProperty(name.substring("load.".length()), System.getProperty(name));
+            }
+        }
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 1) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            properties.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        CiConfig settings = new CiConfig(properties);
+        String dir = settings.getString("dir", null);
+        Path workDir = dir == null ? Files.createTempDirectory("ci-load") : Files.createDirectories(Path.of(dir));
+        JSONObject report = new LoadTest(settings, workDir.toAbsolutePath()).run();
+
+        Path reportFile = Path.of(settings.getString("report", workDir.resolve("load-report.json").toString()));
+        Files.writeString(reportFile, report.toString(2) + "\n", StandardCharsets.UTF_8);
+        System.out.println("Report written to " + reportFile);
+        double minimum = Double.parseDouble(settings.getString("min.builds.per.minute", "0"));
+        if (report.getDouble("buildsPerMinute") < minimum) {
+            System.err.println("Throughput below " + minimum + " builds per minute");
+            System.exit(1);
+        }
+    }
+
+    private JSONObject run() throws Exception {
+        double rate = Double.parseDouble(settings.getString("rate", "1"));
+        long durationSeconds = settings.getLong("duration.seconds", 60);
+        int pushCount = (int) Math.max(1, Math.round(rate * durationSeconds));
+
+        System.out.println("Creating " + pushCount + " pushes in " + dir);
+        List<FakeRemotes.Push> pushes = new FakeRemotes(Files.createDirectories(dir.resolve("remotes"))).create(
+                settings.getInt("repositories", 3), settings.getInt("branches", 2), pushCount,
+                settings.getInt("failure.percent", 10), settings.getLong("seed", 1));
+        writeFakeMaven();
+
+        StubGitHubApi github = new StubGitHubApi();
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Process server = startServer(port, github.url());
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            awaitServer(port, server);
+            scheduler.scheduleAtFixedRate(() -> sampleMemory(server.pid()), 0, 500, TimeUnit.MILLISECONDS);
+
+            System.out.println("Sending " + pushCount + " webhooks at " + rate + "/s");
+            List<Sent> sent = sendWebhooks(pushes, rate, port);
+            long lastSent = sent.stream().mapToLong(s -> s.sentAt).max().orElse(System.nanoTime());
+            long finished = drain(sent, github, Duration.ofSeconds(settings.getLong("drain.seconds", 300)));
+            saveServerMetrics(port);
+            return report(sent, github, sent.get(0).sentAt, lastSent, finished);
+        } finally {
+            scheduler.shutdownNow();
+            server.destroy();
+            if (!server.waitFor(10, TimeUnit.SECONDS)) {
+                server.destroyForcibly();
+            }
+            github.stop();
+        }
+    }
+
+    /**
+     * Writes the stand-in for Maven: prints {@code output.kb} of log, takes {@code compile.ms} or
+     * {@code test.ms} and fails the tests of commits marked as failing.
+     */
+    private void writeFakeMaven() throws IOException {
+        Path bin = Files.createDirectories(dir.resolve("bin"));
+        Path mvn = bin.resolve("mvn");
+        Files.writeString(mvn, """
+                #!/bin/sh
+                # Stand-in for Maven used by the load test
+                case "$1" in
+                  compile) seconds=$LOAD_COMPILE_SECONDS ;;
+                  *) seconds=$LOAD_TEST_SECONDS ;;
+                esac
+                yes "[INFO] Running $1 of $(basename "$PWD")" | head -c $((LOAD_OUTPUT_KB * 1024))
+                sleep "$seconds"
+                if [ "$1" = test ] && git log -1 --format=%s | grep -qF "$LOAD_FAIL_MARKER"; then
+                  echo "[ERROR] Tests run: 10, Failures: 1"
+                  exit 1
+                fi
+                exit 0
+                """, StandardCharsets.UTF_8);
+        Files.setPosixFilePermissions(mvn, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    private Process startServer(int port, URI githubUrl) throws IOException {
+        Path serverDir = Files.createDirectories(dir.resolve("server"));
+        Path tmp = Files.createDirectories(dir.resolve("tmp"));
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        String jvmArgs = settings.getString("server.jvm.args", "");
+        if (!jvmArgs.isEmpty()) {
+            command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+        }
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                "-Djava.io.tmpdir=" + tmp,
+                "-Dci.port=" + port,
+                "-Dci.workers=" + settings.getInt("workers", 2),
+                "-Dci.queue.depth=" + settings.getInt("queue.depth", 50),
+                "-Dci.github.api.url=" + githubUrl,
+                "ContinuousIntegrationServer"));
+        ProcessBuilder builder = new ProcessBuilder(command).directory(serverDir.toFile())
+                .redirectErrorStream(true).redirectOutput(dir.resolve("server.log").toFile());
+        builder.environment().put("PATH", dir.resolve("bin") + ":" + System.getenv("PATH"));
+        builder.environment().put("GITHUB_TOKEN", "load-test");
+        builder.environment().put("LOAD_COMPILE_SECONDS", seconds(settings.getLong("compile.ms", 500)));
+        builder.environment().put("LOAD_TEST_SECONDS", seconds(settings.getLong("test.ms", 2000)));
+        builder.environment().put("LOAD_OUTPUT_KB", String.valueOf(settings.getInt("output.kb", 256)));
+        builder.environment().put("LOAD_FAIL_MARKER", FakeRemotes.FAIL_MARKER);
+        System.out.println("Starting the server on port " + port + ", output in " + dir.resolve("server.log"));
+        return builder.start();
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+
+    private void awaitServer(int port, Process server) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/builds")).build();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            if (!server.isAlive()) {
+                throw new IOException("Server exited with status " + server.exitValue() + ", see server.log");
+            }
+            try {
+                client.send(request, HttpResponse.BodyHandlers.discarding());
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start within 30 s");
+    }
+
+    private List<Sent> sendWebhooks(List<FakeRemotes.Push> pushes, double rate, int port)
+            throws InterruptedException {
+        URI uri = URI.create("http://127.0.0.1:" + port + "/");
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        List<Sent> sent = new ArrayList<>();
+        List<CompletableFuture<?>> responses = new ArrayList<>();
+        for (int i = 0; i < pushes.size(); i++) {
+            Sent webhook = new Sent(pushes.get(i));
+            sent.add(webhook);
+            long wait = start + i * interval - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .header("X-GitHub-Event", "push")
+                    .POST(HttpRequest.BodyPublishers.ofString(payload(webhook.push)))
+                    .build();
+            webhook.sentAt = System.nanoTime();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> {
+                        webhook.latency = System.nanoTime() - webhook.sentAt;
+                        webhook.status = error == null ? response.statusCode() : -1;
+                    }));
+        }
+        try {
+            CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).join();
+        } catch (RuntimeException e) {
+            // Counted as failed webhooks
+        }
+        return sent;
+    }
+
+    private static String payload(FakeRemotes.Push push) {
+        return new JSONObject()
+                .put("ref", "refs/heads/" + push.branch())
+                .put("before", "0000000000000000000000000000000000000000")
+                .put("after", push.sha())
+                .put("repository", new JSONObject()
+                        .put("name", push.repository())
+                        .put("full_name", FakeRemotes.OWNER + "/" + push.repository())
+                        .put("clone_url", push.cloneUrl())
+                        .put("owner", new JSONObject().put("login", FakeRemotes.OWNER)))
+                .put("pusher", new JSONObject().put("name", "load").put("email", "load@example.com"))
+                .toString();
+    }
+
+    /**
+     * Waits until every accepted push has its final status.
+     *
+     * @return when the last build finished
+     */
+    private long drain(List<Sent> sent, StubGitHubApi github, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            long last = 0;
+            int running = 0;
+            for (Sent webhook : sent) {
+                if (webhook.status != 202) {
+                    continue;
+                }
+                StubGitHubApi.Timeline timeline = github.timeline(webhook.push.sha());
+                if (timeline == null || timeline.finishedAt() < 0) {
+                    running++;
+                } else {
+                    last = Math.max(last, timeline.finishedAt());
+                }
+            }
+            if (running == 0 || System.nanoTime() > deadline) {
+                if (running > 0) {
+                    System.err.println(running + " builds still running after " + timeout.toSeconds() + " s");
+                }
+                return last;
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    /**
+     * Keeps what the server measured itself (stage durations, exit codes) next to the report.
+     */
+    private void saveServerMetrics(int port) {
+        try {
+            client.send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/metrics")).build(),
+                    HttpResponse.BodyHandlers.ofFile(dir.resolve("metrics.txt")));
+        } catch (IOException e) {
+            System.err.println("Could not read /metrics: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sampleMemory(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    long kb = Long.parseLong(line.replaceAll("\\D", ""));
+                    lastRssKb = kb;
+                    peakRssKb.accumulateAndGet(kb, Math::max);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux or the server has exited, memory is reported as unknown
+        }
+    }
+
+    private JSONObject report(List<Sent> sent, StubGitHubApi github, long firstSent, long lastSent, long finished) {
+        List<Long> latencies = new ArrayList<>();
+        List<Long> queueWaits = new ArrayList<>();
+        List<Long> buildTimes = new ArrayList<>();
+        int accepted = 0;
+        int rejected = 0;
+        int failed = 0;
+        int succeeded = 0;
+        int failures = 0;
+        int superseded = 0;
+        for (Sent webhook : sent) {
+            if (webhook.latency >= 0) {
+                latencies.add(webhook.latency);
+            }
+            if (webhook.status == 429) {
+                rejected++;
+                continue;
+            }
+            if (webhook.status != 202) {
+                failed++;
+                continue;
+            }
+            accepted++;
+            StubGitHubApi.Timeline timeline = github.timeline(webhook.push.sha());
+            if (timeline == null || timeline.finishedAt() < 0) {
+                continue;
+            }
+            if (timeline.description() != null && timeline.description().startsWith("Superseded")) {
+                superseded++;
+                continue;
+            }
+            if (timeline.state().equals("success")) {
+                succeeded++;
+            } else {
+                failures++;
+            }
+            if (timeline.pendingAt() >= 0) {
+                queueWaits.add(timeline.pendingAt() - webhook.sentAt);
+                buildTimes.add(timeline.finishedAt() - timeline.pendingAt());
+            }
+        }
+        double minutes = Math.max(finished, lastSent) > firstSent
+                ? (Math.max(finished, lastSent) - firstSent) / 60e9 : 0;
+        double buildsPerMinute = minutes == 0 ? 0 : (succeeded + failures) / minutes;
+
+        JSONObject report = new JSONObject()
+                .put("webhooks", sent.size())
+                .put("accepted", accepted)
+                .put("rejected", rejected)
+                .put("failed", failed)
+                .put("builds", new JSONObject().put("success", succeeded).put("failure", failures)
+                        .put("superseded", superseded))
+                .put("buildsPerMinute", buildsPerMinute)
+                .put("webhookLatencyMs", percentiles(latencies))
+                .put("queueWaitMs", percentiles(queueWaits))
+                .put("buildTimeMs", percentiles(buildTimes))
+                .put("serverRssMb", new JSONObject().put("peak", peakRssKb.get() / 1024.0).put("last", lastRssKb / 1024.0))
+                .put("settings", settingsJson());
+
+        System.out.printf(Locale.ROOT, "%nWebhooks: %d sent, %d accepted, %d rejected (429), %d failed%n",
+                sent.size(), accepted, rejected, failed);
+        System.out.printf(Locale.ROOT, "Builds: %d success, %d failure, %d superseded, %.1f builds/min%n",
+                succeeded, failures, superseded, buildsPerMinute);
+        printPercentiles("Webhook latency", report.getJSONObject("webhookLatencyMs"));
+        printPercentiles("Queue wait", report.getJSONObject("queueWaitMs"));
+        printPercentiles("Build time", report.getJSONObject("buildTimeMs"));
+        System.out.printf(Locale.ROOT, "Server RSS: peak %.0f MB, last %.0f MB%n",
+                peakRssKb.get() / 1024.0, lastRssKb / 1024.0);
+        return report;
+    }
+
+    private JSONObject settingsJson() {
+        JSONObject json = new JSONObject();
+        for (String key : List.of("rate", "duration.seconds", "repositories", "branches", "compile.ms", "test.ms",
+                "output.kb", "failure.percent", "workers", "queue.depth", "server.jvm.args", "seed")) {
+            String value = settings.getString(key, null);
+            if (value != null) {
+                json.put(key, value);
+            }
+        }
+        return json;
+    }
+
+    /**
+     * @param nanos durations in nanoseconds
+     * @return p50, p90, p95, p99 and max in milliseconds (nearest rank)
+     */
+    private static JSONObject percentiles(List<Long> nanos) {
+        JSONObject json = new JSONObject().put("count", nanos.size());
+        if (nanos.isEmpty()) {
+            return json;
+        }
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        for (int p : new int[] {50, 90, 95, 99}) {
+            int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+            json.put("p" + p, sorted[Math.max(0, rank - 1)] / 1e6);
+        }
+        return json.put("max", sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static void printPercentiles(String name, JSONObject json) {
+        if (json.getInt("count") == 0) {
+            System.out.println(name + ": no samples");
+            return;
+        }
+        System.out.printf(Locale.ROOT, "%s: p50 %.1f ms, p90 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms%n", name,
+                json.getDouble("p50"), json.getDouble("p90"), json.getDouble("p95"), json.getDouble("p99"),
+                json.getDouble("max"));
+    }
+}
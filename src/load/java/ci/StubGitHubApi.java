@@ -0,0 +1,117 @@
+package ci;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stands in for api.github.com: accepts every commit status and records when the first
+ * "pending" and the final status of each commit arrived.
+ */
+final class StubGitHubApi {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Timeline> timelines = new ConcurrentHashMap<>();
+
+    /**
+     * When the statuses of a commit arrived, in {@link System#nanoTime()}.
+     */
+    static final class Timeline {
+        private volatile long pendingAt = -1;
+        private volatile long finishedAt = -1;
+        private volatile String state;
+        private volatile String description;
+
+        /** @return when the build started, -1 if it has not */
+        long pendingAt() {
+            return pendingAt;
+        }
+
+        /** @return when the build finished, -1 if it has not */
+        long finishedAt() {
+            return finishedAt;
+        }
+
+        /** @return the final state, null while the build has not finished */
+        String state() {
+            return state;
+        }
+
+        /** @return the description of the final status */
+        String description() {
+            return description;
+        }
+    }
+
+    /**
+     * Starts the stub on a free local port.
+     *
+     * @throws IOException if the server cannot be started
+     */
+    StubGitHubApi() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/repos/", exchange -> {
+            long now = System.nanoTime();
+            // /repos/{owner}/{repo}/statuses/{sha}
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            JSONObject status;
+            try (InputStream body = exchange.getRequestBody()) {
+                status = new JSONObject(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            if (path.length == 6 && path[4].equals("statuses")) {
+                record(path[5], status.getString("state"), status.optString("description"), now);
+            }
+            byte[] reply = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(201, reply.length);
+            exchange.getResponseBody().write(reply);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    private void record(String sha, String state, String description, long now) {
+        Timeline timeline = timelines.computeIfAbsent(sha, s -> new Timeline());
+        synchronized (timeline) {
+            if (state.equals("pending")) {
+                if (timeline.pendingAt < 0) {
+                    timeline.pendingAt = now;
+                }
+            } else if (timeline.finishedAt < 0) {
+                timeline.description = description;
+                timeline.state = state;
+                timeline.finishedAt = now;
+            }
+        }
+    }
+
+    /**
+     * @return base URL to configure as {@code github.api.url}
+     */
+    URI url() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /**
+     * @param sha commit SHA
+     * @return the statuses received for the commit, null if there are none
+     */
+    Timeline timeline(String sha) {
+        return timelines.get(sha);
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -1,45 +1,144 @@
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import java.io.BufferedReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.json.JSONException;
 
-// For parsing payload and adjust by content type
-import java.net.URLDecoder;
+// For writing the log pages
 import java.nio.charset.StandardCharsets;
 
 import ci.BuildHistory;
+import ci.BuildIndex;
+import ci.BuildJob;
+import ci.BuildListPage;
+import ci.BuildDaemonPool;
+import ci.BuildPipeline;
+import ci.BuildQueue;
+import ci.BuildStats;
 import ci.CiClone;
-import ci.CiCompile;
-import ci.CiTest;
+import ci.CiConfig;
+import ci.CiMetrics;
 import ci.DefaultCommandExecutorFactory;
-import ci.Notifier;
 import ci.NotifierFactory;
+import ci.RetentionPolicy;
+import ci.TestTrends;
+import ci.WorkspacePool;
 import ci.GitHubWebhookPayload;
+import ci.HistoryCompactor;
+import ci.LogTailer;
+import ci.MavenRepoCache;
+import ci.MirrorCache;
 
 /**
  * The main code for the Continuous Integration Server.
  * This class sets up a Jetty HTTP server to listen for GitHub webhooks.
- * It handles the CI pipeline receiving the request, cloning the repository,
- * compiling the code, running tests, and notifying GitHub of the results.
+ * Webhooks are answered right away, the builds are put in a bounded queue and
+ * worker threads run the pipeline: cloning the repository, compiling the code,
+ * running tests, and notifying GitHub of the results.
  */
 public class ContinuousIntegrationServer extends AbstractHandler {
+    // Upper bound of the page size of /builds
+    private static final int MAX_PAGE_SIZE = 500;
+
     // Initialize build history at "ci-build-history" directory
     private final BuildHistory history;
+    private final BuildQueue queue;
+    private final LogTailer logTailer;
+    private final CiMetrics metrics = new CiMetrics();
+    // Null when no retention limit is configured
+    private final HistoryCompactor compactor;
+    // Default window of /builds/stats
+    private final int statsWindowDays;
+
     public ContinuousIntegrationServer() throws IOException {
-        history = new BuildHistory(Path.of("ci-build-history"));
+        this(CiConfig.load());
+    }
+
+    /**
+     * Creates the server from a configuration.
+     * Uses the settings {@code workers} (default 2), {@code queue.depth} (default 50),
+     * {@code mirror.enabled} (default true), {@code mirror.dir}, {@code mirror.budget.mb} (default 10240)
+     * {@code log.tail.kb} (default 64), {@code log.follow.max} (default 16), {@code timeout.clone.seconds} (default 300),
+     * {@code maven.cache.enabled} (default false), {@code maven.cache.dir}, {@code maven.offline} (default true),
+     * the {@code daemon.*} settings of the warm Maven daemons and the {@code workspace.pool.*} settings of the
+     * workspaces kept for {@code clone.mode=pooled}.
+     *
+     * @param config the server configuration
+     * @throws IOException if the build history directory cannot be created
+     */
+    public ContinuousIntegrationServer(CiConfig config) throws IOException {
+        Path historyDirectory = Path.of("ci-build-history");
+        history = new BuildHistory(historyDirectory);
+        // Used for git, compile and test get their own timeouts from the pipeline
+        DefaultCommandExecutorFactory executorFactory = new DefaultCommandExecutorFactory(
+                config.getInt("log.tail.kb", 64) * 1024,
+                Duration.ofSeconds(config.getLong("timeout.clone.seconds", 300)));
+        Path tempDir = Path.of(System.getProperty("java.io.tmpdir"));
+        MirrorCache mirrorCache = null;
+        if (config.getBoolean("mirror.enabled", true)) {
+            mirrorCache = new MirrorCache(executorFactory,
+                    Path.of(config.getString("mirror.dir", tempDir.resolve("ci-mirrors").toString())),
+                    config.getLong("mirror.budget.mb", 10_240) * 1024 * 1024);
+        }
+        WorkspacePool workspacePool = null;
+        if (config.getBoolean("workspace.pool.enabled", true)) {
+            workspacePool = new WorkspacePool(executorFactory,
+                    Path.of(config.getString("workspace.pool.dir", tempDir.resolve("ci-workspaces").toString())),
+                    config.getInt("workspace.pool.max", 20),
+                    config.getLong("workspace.pool.budget.mb", 20_480) * 1024 * 1024);
+        }
+        CiClone ciClone = new CiClone(executorFactory, tempDir.resolve("ci-builds"), mirrorCache, workspacePool);
+        MavenRepoCache mavenCache = null;
+        if (config.getBoolean("maven.cache.enabled", false)) {
+            mavenCache = new MavenRepoCache(
+                    Path.of(config.getString("maven.cache.dir", tempDir.resolve("ci-maven-cache").toString())),
+                    config.getBoolean("maven.offline", true));
+        }
+        BuildDaemonPool daemonPool = null;
+        if (config.getBoolean("daemon.enabled", false)) {
+            daemonPool = new BuildDaemonPool(executorFactory,
+                    Path.of(config.getString("daemon.dir", tempDir.resolve("ci-daemons").toString())),
+                    config.getString("daemon.client", "mvnd"), config.getInt("daemon.max.builds", 50),
+                    Duration.ofMinutes(config.getLong("daemon.idle.minutes", 60)));
+        }
+        BuildPipeline pipeline = new BuildPipeline(history, NotifierFactory.create(config, historyDirectory),
+                executorFactory, ciClone, config, metrics, mavenCache, daemonPool);
+        queue = new BuildQueue(pipeline, config.getInt("workers", 2), config.getInt("queue.depth", 50));
+        metrics.gauge("ci_queue_depth", "Builds waiting for a worker", queue::getQueuedCount);
+        metrics.gauge("ci_workers_active", "Workers running a build", queue::getActiveCount);
+        logTailer = new LogTailer(history, 500, config.getInt("log.follow.max", LogTailer.DEFAULT_MAX_FOLLOWERS));
+        statsWindowDays = config.getInt("stats.window.days", 7);
+        RetentionPolicy retention = RetentionPolicy.fromConfig(config);
+        if (retention.isEnabled()) {
+            compactor = new HistoryCompactor(history, retention,
+                    Path.of(config.getString("retention.archive.dir", "ci-build-history-archive")));
+            compactor.start(Duration.ofMinutes(config.getLong("retention.interval.minutes", 60)));
+            metrics.gauge("ci_retention_builds_removed", "Builds removed from the history by retention",
+                    compactor::getBuildsRemoved);
+            metrics.gauge("ci_retention_builds_archived", "Removed builds that were archived",
+                    compactor::getBuildsArchived);
+            metrics.gauge("ci_retention_bytes_reclaimed", "Bytes freed by retention, less the archives written",
+                    compactor::getBytesReclaimed);
+        } else {
+            compactor = null;
+        }
     }
 		
     /**
      * Handle HTTP requests from GitHub
-     * This method parses the JSON payload to extract commit information, triggers the
-     * clone-compile-test pipeline, and reports the status back to GitHub via the Notifier.
+     * This method parses the JSON payload to extract commit information and queues the
+     * clone-compile-test pipeline. The response is sent as soon as the build is queued:
+     * 202 with the build id, or 429 if the queue is full.
      * @param target      The request (URI).
      * @param baseRequest The original base request object.
      * @param request     The request object (HttpServletRequest).
@@ -55,147 +154,271 @@ public class ContinuousIntegrationServer extends AbstractHandler {
         response.setStatus(HttpServletResponse.SC_OK);
         baseRequest.setHandled(true);
 
-        System.out.println(target);
-        
         //display build list or single build based on the target URL
-        if (target.equals("/builds")) {
-            showBuildList(response);
+        if (target.equals("/metrics")) {
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            metrics.writeTo(response.getWriter());
+            return;
+        } else if (target.startsWith("/builds/") && target.endsWith("/log")) {
+            streamBuildLog(target, request, response);
+            return;
+        } else if (target.equals("/builds")) {
+            showBuildList(request, response);
+            return;
+        } else if (target.equals("/builds/stats")) {
+            showBuildStats(request, response);
+            return;
+        } else if (target.equals("/builds/tests")) {
+            showTestTrends(request, response);
             return;
         } else if (target.startsWith("/builds/")) {
-            showSingleBuild(target, response);
+            showSingleBuild(target, request, response);
             return;
             }
       
-        // Read the webhook payload
-        StringBuilder payloadBuilder = new StringBuilder();
-        BufferedReader bufferedReader = request.getReader();
-        String line = bufferedReader.readLine();
-        while (line != null) {
-            payloadBuilder.append(line);
-            line = bufferedReader.readLine();
+        // Parse the webhook payload while it is read, only the fields needed for the build are kept
+        // If not json assume it's url-encoded form data with a "payload" field containing the JSON,
+        // unless the body itself is JSON; a form without a payload field is rejected
+        String contentType = request.getContentType();
+        boolean formEncoded = contentType == null || !contentType.contains("application/json");
+        GitHubWebhookPayload webhook;
+        try {
+            webhook = GitHubWebhookPayload.parse(request.getInputStream(), formEncoded);
+        } catch (JSONException e) {
+            countWebhook("invalid");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid push payload: " + e.getMessage());
+            return;
         }
-        String payload = payloadBuilder.toString();
-
-        if (payload.isEmpty()) {
+        if (webhook == null) {
             return;
         }
 
-        System.out.println("Payload: " + payload.substring(0, Math.min(200, payload.length())));
-
+        System.out.println("Push to " + webhook.getLogin() + "/" + webhook.getRepositoryName() + " "
+                + webhook.getRef() + " at " + webhook.getAfter());
 
-        // Adjust payload handling depending on content type
-        String contentType = request.getContentType();
-        String jsonBody;
-        if (contentType != null && contentType.contains("application/json")) {
-            jsonBody = payload;
-        } else {
-            // If not json assume it's url-encoded form data with a "payload" field containing the JSON
-            // E.g.
-            // payload=%XX%XXref%XX%XX%XXrefs%2Fheads%2Fmain%XX%XX%XX%XX%XXafter%XX%XX%XX%XX%XX%XXrepository%XX%XX%XX
-            String encoded = payload.startsWith("payload=") ? payload.substring("payload=".length()) : payload;
-            jsonBody = URLDecoder.decode(encoded, StandardCharsets.UTF_8);
+        // Queue the build, the workers run the pipeline
+        String buildId = history.newBuildId(webhook.getAfter());
+        if (!queue.offer(new BuildJob(buildId, webhook))) {
+            countWebhook("rejected");
+            response.setStatus(429);
+            response.setHeader("Retry-After", "30");
+            response.getWriter().println("Build queue is full, try again later");
+            return;
         }
+        countWebhook("accepted");
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.getWriter().println("Build queued: <a href=\"/builds/" + buildId + "\">" + buildId + "</a>"
+                + " (<a href=\"/builds/" + buildId + "/log\">live log</a>)");
+    }
 
-        // Parse webhook payload
-        GitHubWebhookPayload webhook = new GitHubWebhookPayload(jsonBody);
+    private void countWebhook(String result) {
+        metrics.counter("ci_webhooks_total", "Push webhooks received", "result", result).inc();
+    }
 
-        String owner = webhook.getLogin();
-        String repo = webhook.getRepositoryName();
-        String sha = webhook.getAfter();
-        String branch = webhook.getBranch();
-        String cloneUrl = webhook.getCloneUrl();
+    private void showBuildList(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        BuildIndex.Filter filter = new BuildIndex.Filter(request.getParameter("repo"), request.getParameter("branch"),
+                request.getParameter("state"), request.getParameter("sha"));
+        int before;
+        int size;
+        try {
+            before = request.getParameter("before") == null ? -1 : Integer.parseInt(request.getParameter("before"));
+            size = request.getParameter("size") == null ? 50 : Integer.parseInt(request.getParameter("size"));
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid page: " + e.getMessage());
+            return;
+        }
+        size = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        BuildIndex.Page page = history.queryBuilds(filter, before, size);
 
-        Notifier notifier = NotifierFactory.create();
-        CiClone ciClone = new CiClone();
-        Path cloneLocation = null;
+        PrintWriter out = response.getWriter();
+        BuildListPage.render(out, page, filter, size);
+        if (compactor != null) {
+            out.println("<p>Retention: " + compactor.getBuildsRemoved() + " builds removed ("
+                    + compactor.getBuildsArchived() + " archived), " + compactor.getBytesReclaimed()
+                    + " bytes reclaimed</p>");
+        }
+    }
 
+    /**
+     * Shows the p50 and p95 build and stage times per repository and branch of the builds that
+     * finished in the last {@code days} days.
+     */
+    private void showBuildStats(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        int days;
         try {
-            // Set status to pending
-            notifier.setStatus(owner, repo, sha, "pending", "Build started");
-
-            // Clone repository
-            CiClone.CloneResult cloneResult = ciClone.gitCloneAndCheckout(cloneUrl, branch, sha);
-            if (!cloneResult.isSuccess()) {
-                notifier.setStatus(owner, repo, sha, "failure", "Clone failed");
-                response.getWriter().println("Clone failed: " + cloneResult.getOutput());
-                return;
-            }
-            cloneLocation = cloneResult.getClonedDirectory();
-
-            // Compile
-            List<String> compileCommands = List.of("mvn", "compile", "-q");
-            CiCompile ciCompile = new CiCompile(new DefaultCommandExecutorFactory(), compileCommands, cloneLocation);
-            CiCompile.CompileResult compileResult = ciCompile.compile();
-
-            if (!compileResult.isSuccess()) {
-                notifier.setStatus(owner, repo, sha, "failure", "Compilation failed");
-                //create build entry
-                history.createBuild(sha, "failure", compileResult.getOutput(), "Tests not run, compilation failed");
-                response.getWriter().println("Compilation failed: " + compileResult.getOutput());
-                return;
-            }
+            days = request.getParameter("days") == null ? statsWindowDays : Integer.parseInt(request.getParameter("days"));
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid window: " + e.getMessage());
+            return;
+        }
+        Duration window = Duration.ofDays(Math.max(1, days));
+        long since = System.currentTimeMillis() - window.toMillis();
+        BuildStats.render(response.getWriter(), BuildStats.compute(history.indexedBuilds(), since), window);
+    }
 
-            // Run tests
-            List<String> testCommands = List.of("mvn", "test", "-q");
-            CiTest ciTest = new CiTest(new DefaultCommandExecutorFactory(), testCommands, cloneLocation);
-            CiTest.TestResult testResult = ciTest.runTests();
+    /**
+     * Shows the slowest and the flaky tests of the newest {@code builds} builds, optionally of one
+     * {@code repo} and {@code branch}.
+     */
+    private void showTestTrends(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        int builds;
+        try {
+            builds = request.getParameter("builds") == null ? 50 : Integer.parseInt(request.getParameter("builds"));
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid number of builds: " + e.getMessage());
+            return;
+        }
+        BuildIndex.Filter filter = new BuildIndex.Filter(request.getParameter("repo"), request.getParameter("branch"),
+                null, null);
+        List<TestTrends.Run> runs = TestTrends.load(history, filter, Math.max(1, Math.min(builds, MAX_PAGE_SIZE)));
+        TestTrends.render(response.getWriter(), TestTrends.compute(runs, 50));
+    }
 
-            if (!testResult.isSuccess()) {
-                notifier.setStatus(owner, repo, sha, "failure", "Tests failed");
-                //create build entry
-                history.createBuild(sha, "failure", compileResult.getOutput(), testResult.getOutput());
-                response.getWriter().println("Tests failed: " + testResult.getOutput());
-                return;
-            }
+    /**
+     * Streams the log of a build while it runs, as chunked plain text or as Server-Sent Events
+     * when the client accepts text/event-stream. Resumes from the {@code offset} parameter
+     * (or the Last-Event-ID header of a reconnecting EventSource).
+     */
+    private void streamBuildLog(String target, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        String buildId = target.substring("/builds/".length(), target.length() - "/log".length());
+        if (!logTailer.exists(buildId)) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("Unknown build or build not started yet: " + buildId);
+            return;
+        }
+        boolean eventStream = request.getHeader("Accept") != null
+                && request.getHeader("Accept").contains("text/event-stream");
+        String resumeFrom = eventStream && request.getHeader("Last-Event-ID") != null
+                ? request.getHeader("Last-Event-ID") : request.getParameter("offset");
+        long offset;
+        try {
+            offset = resumeFrom == null ? 0 : Math.max(0, Long.parseLong(resumeFrom));
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid offset: " + resumeFrom);
+            return;
+        }
 
-            // Set success status
-            notifier.setStatus(owner, repo, sha, "success", "Build and tests passed");
-            response.getWriter().println("Build successful, all tests passed :D");
-            //create build entry
-            if(request.getMethod().equalsIgnoreCase("POST")) {
-                history.createBuild(sha, "success", compileResult.getOutput(), testResult.getOutput());
+        response.setContentType(eventStream ? "text/event-stream;charset=utf-8" : "text/plain;charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // No content length, so the response is sent chunked as the build runs
+        OutputStream out = response.getOutputStream();
+        try {
+            logTailer.follow(buildId, offset, (data, length, nextOffset) -> {
+                if (eventStream) {
+                    StringBuilder event = new StringBuilder("id: ").append(nextOffset).append('\n');
+                    for (String line : new String(data, 0, length, StandardCharsets.UTF_8).split("\n", -1)) {
+                        event.append("data: ").append(line).append('\n');
+                    }
+                    out.write(event.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+                } else {
+                    out.write(data, 0, length);
+                }
+                response.flushBuffer();
+            });
+            if (eventStream) {
+                out.write("event: end\ndata: build finished\n\n".getBytes(StandardCharsets.UTF_8));
             }
+        } catch (LogTailer.TooManyFollowersException e) {
+            // Nothing was sent yet; the viewers must not take the threads that answer the webhooks
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setContentType("text/plain;charset=utf-8");
+            response.setHeader("Retry-After", "10");
+            out.write((e.getMessage() + ", try again later\n").getBytes(StandardCharsets.UTF_8));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-
-        } catch (Exception e) {
-            System.err.println("Failed to send GitHub status");
-            e.printStackTrace();
+    private void showSingleBuild(String target, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        String buildId = target.substring("/builds/".length());
+        if (!history.hasBuild(buildId)) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("Unknown build: " + buildId);
+            return;
+        }
+        String offsetParameter = request.getParameter("offset");
+        String lengthParameter = request.getParameter("length");
+        if (offsetParameter != null || lengthParameter != null) {
+            // A byte range of the record as plain text, e.g. to page through a large log
+            long offset;
+            long length;
             try {
-                notifier.setStatus(owner, repo, sha, "error", "CI error: " + e.getMessage());
-            } catch (Exception notifyError) {
-                System.err.println("Failed to send error status: " + notifyError.getMessage());
+                offset = offsetParameter == null ? 0 : Long.parseLong(offsetParameter);
+                length = lengthParameter == null ? -1 : Long.parseLong(lengthParameter);
+            } catch (NumberFormatException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().println("Invalid range: " + e.getMessage());
+                return;
             }
-            response.getWriter().println("CI error: " + e.getMessage());
-        } finally {
-            // Always cleanup
-            if (cloneLocation != null) {
-                ciClone.cleanup(cloneLocation);
+            if (offset < 0 || length < -1) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().println("Invalid range: offset " + offset + ", length " + length);
+                return;
             }
+            response.setContentType("text/plain;charset=utf-8");
+            response.setHeader("X-Record-Length", String.valueOf(history.getBuildLength(buildId)));
+            history.readBuild(buildId, offset, length, response.getOutputStream());
+            return;
         }
+        OutputStream out = response.getOutputStream();
+        BuildIndex.Entry entry = history.getBuildInfo(buildId);
+        if (entry != null) {
+            out.write(BuildStats.timingTable(entry).getBytes(StandardCharsets.UTF_8));
+        }
+        out.write("<pre>\n".getBytes(StandardCharsets.UTF_8));
+        // Streamed from the record, never loaded as a whole
+        history.readBuild(buildId, 0, -1, new HtmlEscapingStream(out));
+        out.write("</pre>\n".getBytes(StandardCharsets.UTF_8));
     }
 
-    private void showBuildList(HttpServletResponse response) throws IOException {
-        response.getWriter().println("<h1>Builds</h1>");
-        for (String build : history.listBuilds()) {
-            response.getWriter().println(
-                "<a href=\"/builds/" + build + "\">" + build + "</a><br>");
+    /**
+     * Escapes the HTML special characters of the bytes written to it. UTF-8 multi-byte characters
+     * never contain these ASCII bytes, so they pass through unchanged.
+     */
+    private static final class HtmlEscapingStream extends FilterOutputStream {
+        HtmlEscapingStream(OutputStream out) {
+            super(out);
         }
-    }
 
-    private void showSingleBuild(String target, HttpServletResponse response) throws IOException {
-            String buildId = target.substring("/builds/".length());
-            response.getWriter().println("<pre>");
-            response.getWriter().println(history.getBuild(buildId));
-            response.getWriter().println("</pre>");
+        @Override
+        public void write(int b) throws IOException {
+            switch (b) {
+                case '<' -> out.write("&lt;".getBytes(StandardCharsets.US_ASCII));
+                case '>' -> out.write("&gt;".getBytes(StandardCharsets.US_ASCII));
+                case '&' -> out.write("&amp;".getBytes(StandardCharsets.US_ASCII));
+                default -> out.write(b);
+            }
         }
 
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '<' || b[i] == '>' || b[i] == '&') {
+                    out.write(b, start, i - start);
+                    write(b[i]);
+                    start = i + 1;
+                }
+            }
+            out.write(b, start, off + len - start);
+        }
+    }
+
     /**
      * Begin the JEtty server on port 8080.
      * @throws Exception If the server fails to start.
      */
     public static void main(String[] args) throws Exception {
-        Server server = new Server(8080);
-        server.setHandler(new ContinuousIntegrationServer());
+        CiConfig config = CiConfig.load();
+        Server server = new Server(config.getInt("port", 8080));
+        server.setHandler(new ContinuousIntegrationServer(config));
         server.start();
         server.join();
     }
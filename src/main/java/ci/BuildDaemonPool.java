@@ -0,0 +1,245 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Warm Maven daemons, one pool per repository, so builds skip JVM startup and JIT warm-up.
+ * <p>
+ * Maven commands of a build are run with the Maven daemon client ({@code mvnd}) instead of
+ * {@code mvn}. Each repository gets its own daemon registry ({@code -Dmvnd.daemonStorage}), so its
+ * daemons only ever load the plugins and classes of that repository; concurrent builds of the
+ * same repository get more daemons from the same registry. The daemons of a repository are stopped
+ * and started fresh when no build uses them and either they served {@code maxBuilds} builds,
+ * {@code mvnd --status} fails, or a build lost its daemon.
+ */
+public class BuildDaemonPool {
+    // Output of the client when its daemon died or could not be reached
+    private static final List<String> DAEMON_FAILURES = List.of(
+            "terminated unexpectedly", "Could not connect to daemon", "Daemon could not be started",
+            "Timeout waiting to connect to the Maven daemon");
+
+    private final CommandExecutorFactory factory;
+    private final Path baseDirectory;
+    private final String client;
+    private final int maxBuilds;
+    private final Duration idleTimeout;
+    // Daemons by repository, guarded by this
+    private final Map<String, Daemons> pools = new HashMap<>();
+
+    /**
+     * Creates the pool. Registries left in the directory by a previous run are stopped on first use.
+     *
+     * @param factory       the factory to create command executors for the health checks
+     * @param baseDirectory the directory holding a daemon registry per repository
+     * @param client        the daemon client, e.g. {@code mvnd}
+     * @param maxBuilds     number of builds after which the daemons of a repository are recycled
+     * @param idleTimeout   daemons not used for this long exit by themselves
+     * @throws IOException if the directory cannot be created
+     */
+    public BuildDaemonPool(CommandExecutorFactory factory, Path baseDirectory, String client, int maxBuilds,
+            Duration idleTimeout) throws IOException {
+        this.factory = factory;
+        this.baseDirectory = baseDirectory;
+        this.client = client;
+        this.maxBuilds = maxBuilds;
+        this.idleTimeout = idleTimeout;
+        Files.createDirectories(baseDirectory);
+    }
+
+    /**
+     * The daemons of one repository.
+     */
+    private static final class Daemons {
+        private final Path storage;
+        private int users;
+        private int builds;
+        // Set while the first user checks or recycles the daemons, others wait for it
+        private boolean checking;
+        // Recycle before the next build, e.g. because one of the daemons died
+        private boolean stale = true;
+
+        Daemons(Path storage) {
+            this.storage = storage;
+        }
+    }
+
+    /**
+     * The daemons of a repository, used by one build until {@link BuildDaemonPool#release(Lease)}.
+     */
+    public final class Lease {
+        private final Daemons daemons;
+
+        private Lease(Daemons daemons) {
+            this.daemons = daemons;
+        }
+
+        /**
+         * Wraps an executor so its Maven commands run on the daemons of this lease.
+         * A command that loses its daemon marks the daemons for recycling. A command that times out
+         * or is interrupted only ends the client, so its build is stopped with the daemons.
+         *
+         * @param executor the executor running the commands
+         * @return the wrapping executor
+         */
+        public CommandExecutor wrap(CommandExecutor executor) {
+            return (command, workDir) -> {
+                ExecResult result;
+                try {
+                    result = executor.execute(toDaemonCommand(command, daemons), workDir);
+                } catch (InterruptedException e) {
+                    abandon(daemons);
+                    throw e;
+                }
+                if (result.isTimedOut()) {
+                    abandon(daemons);
+                } else if (result.getExitCode() != 0 && lostDaemon(result.getOutput())) {
+                    synchronized (BuildDaemonPool.this) {
+                        daemons.stale = true;
+                    }
+                }
+                return result;
+            };
+        }
+    }
+
+    /**
+     * Takes the daemons of a repository for a build. When no other build uses them, they are first
+     * recycled if they are due or fail their health check.
+     *
+     * @param repository the repository, e.g. "owner/name"
+     * @return the lease, to give back with {@link #release(Lease)}
+     * @throws IOException          if the daemon client cannot be started
+     * @throws InterruptedException if interrupted while checking or stopping the daemons
+     */
+    public Lease acquire(String repository) throws IOException, InterruptedException {
+        Daemons daemons;
+        synchronized (this) {
+            daemons = pools.computeIfAbsent(repository, r -> new Daemons(baseDirectory.resolve(storageName(r))));
+            while (daemons.checking) {
+                wait();
+            }
+            daemons.users++;
+            if (daemons.users > 1) {
+                // Already in use and checked, recycled once they are idle
+                return new Lease(daemons);
+            }
+            daemons.checking = true;
+        }
+        Lease lease = new Lease(daemons);
+        try {
+            boolean recycle;
+            synchronized (this) {
+                recycle = daemons.stale || daemons.builds >= maxBuilds;
+            }
+            if (recycle || !healthy(daemons)) {
+                stop(daemons);
+            }
+            return lease;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            release(lease);
+            throw e;
+        } finally {
+            synchronized (this) {
+                daemons.checking = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gives the daemons back after a build.
+     *
+     * @param lease the lease from {@link #acquire(String)}
+     */
+    public synchronized void release(Lease lease) {
+        lease.daemons.users--;
+        lease.daemons.builds++;
+    }
+
+    /**
+     * Stops daemons still running a build nobody waits for. Daemons shared with other builds are
+     * only marked for recycling, stopping them would fail those builds too.
+     */
+    private void abandon(Daemons daemons) {
+        synchronized (this) {
+            daemons.stale = true;
+            if (daemons.users > 1 || daemons.checking) {
+                return;
+            }
+            daemons.checking = true;
+        }
+        try {
+            stop(daemons);
+        } catch (IOException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            System.err.println("Warning: Failed to stop daemons in " + daemons.storage + ": " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                daemons.checking = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private static String storageName(String repository) {
+        String name = MirrorCache.directoryName(repository);
+        return name.substring(0, name.length() - ".git".length());
+    }
+
+    private List<String> toDaemonCommand(List<String> command, Daemons daemons) {
+        if (command.isEmpty() || !Path.of(command.get(0)).getFileName().toString().equals("mvn")) {
+            return command;
+        }
+        List<String> daemonCommand = new ArrayList<>(command.size() + 3);
+        daemonCommand.add(client);
+        daemonCommand.add("-Dmvnd.daemonStorage=" + daemons.storage);
+        daemonCommand.add("-Dmvnd.idleTimeout=" + idleTimeout.toSeconds() + "s");
+        daemonCommand.addAll(command.subList(1, command.size()));
+        return daemonCommand;
+    }
+
+    static boolean lostDaemon(String output) {
+        return output != null && DAEMON_FAILURES.stream().anyMatch(output::contains);
+    }
+
+    private boolean healthy(Daemons daemons) throws IOException, InterruptedException {
+        ExecResult status = factory.create().execute(
+                List.of(client, "-Dmvnd.daemonStorage=" + daemons.storage, "--status"), baseDirectory);
+        return status.getExitCode() == 0;
+    }
+
+    /**
+     * Stops the daemons and deletes their registry, the next build starts a fresh one.
+     */
+    private void stop(Daemons daemons) throws IOException, InterruptedException {
+        if (Files.exists(daemons.storage)) {
+            ExecResult stopped = factory.create().execute(
+                    List.of(client, "-Dmvnd.daemonStorage=" + daemons.storage, "--stop"), baseDirectory);
+            if (stopped.getExitCode() != 0) {
+                System.err.println("Warning: Failed to stop daemons in " + daemons.storage + ": "
+                        + stopped.getOutput());
+            }
+            try (Stream<Path> paths = Files.walk(daemons.storage)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        Files.createDirectories(daemons.storage);
+        synchronized (this) {
+            daemons.builds = 0;
+            daemons.stale = false;
+        }
+    }
+}
@@ -1,24 +1,91 @@
 package ci;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.Comparator;
 import java.time.Instant;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 
 public class BuildHistory {
+    /** Detail holding "owner/name" of the built repository, stored in the index. */
+    public static final String REPOSITORY = "Repository";
+    /** Detail holding the built branch, stored in the index. */
+    public static final String BRANCH = "Branch";
+    /** Detail holding the ISO-8601 time the build started, stored in the index. */
+    public static final String STARTED = "Started";
+    /** Detail with the time the build waited in the queue, in milliseconds. */
+    public static final String QUEUE_TIME = "Queue time ms";
+    /** Detail with the time of the clone, in milliseconds. */
+    public static final String CLONE_TIME = "Clone time ms";
+    /** Detail with the time of the compile commands, in milliseconds. */
+    public static final String COMPILE_TIME = "Compile time ms";
+    /** Detail with the time of the test commands, in milliseconds. */
+    public static final String TEST_TIME = "Test time ms";
+    /** Detail with the time until GitHub accepted the pending status, in milliseconds. */
+    public static final String NOTIFY_TIME = "Notify time ms";
+    /** Detail with the time spent deleting the workspace, in milliseconds. */
+    public static final String CLEANUP_TIME = "Cleanup time ms";
+
+    private static final String RUNNING_DIR = "running";
+    private static final String INDEX_FILE = "index.tsv";
+    // Durations of the test classes of each repository, one "class<TAB>millis" line per class
+    private static final String TEST_DURATIONS_DIR = "test-durations";
+    // Test runs of each repository that ran only affected tests, one "branch<TAB>runs" line per branch
+    private static final String TEST_SELECTION_DIR = "test-selection";
+    // Size and duration of the last full clone of each repository, "bytes" and "millis" lines
+    private static final String CLONE_BASELINE_DIR = "clone-baselines";
+    // Outcome and duration of each test of a build, see TestReport; gzipped, deleted with the build
+    private static final String TEST_RESULTS_DIR = "test-results";
+    private static final String TEST_RESULTS_SUFFIX = ".tsv.gz";
+    // The successful build of each result key (tree and commands), one file per key holding the build id
+    private static final String RESULT_CACHE_DIR = "result-cache";
+    // Records are compressed, see CompressedLog; older records are plain text files named by their id
+    private static final String RECORD_SUFFIX = ".log";
+    private static final String LEGACY_SUFFIX = ".txt";
+    private static final String PARTIAL_SUFFIX = ".tmp";
+    private static final String COMPILE_MARKER = "-----Compile Log-----:\n";
+    // The header of a record is expected to fit in this, it is only read when the index is rebuilt
+    private static final int HEADER_LIMIT = 64 * 1024;
+
     private final Path baseDir;
+    private final BuildIndex index;
 
     /**
      * Stores build results on disk.
-     * Each build is stored as a text file and persists across server restarts.
+     * Each build is stored as a compressed file (see {@link CompressedLog}) and persists across server restarts.
+     * Records can be read a range at a time, so large logs never have to be loaded as a whole.
+     * An index of the builds (see {@link BuildIndex}) is kept next to them; it is rebuilt
+     * from the records when it is missing, e.g. for a history created by an older version.
      */
     public BuildHistory(Path baseDir) throws IOException {
         this.baseDir = baseDir;
         Files.createDirectories(baseDir);
+        boolean indexExists = Files.exists(baseDir.resolve(INDEX_FILE));
+        this.index = new BuildIndex(baseDir.resolve(INDEX_FILE));
+        if (!indexExists) {
+            rebuildIndex();
+        }
     }
 
     /**
@@ -34,42 +101,629 @@ public class BuildHistory {
     
     public String createBuild(String commitSha,String state,String compileLog,String testLog) throws IOException 
     {
+        return createBuild(newBuildId(commitSha), commitSha, state, compileLog, testLog);
+    }
+
+    /**
+     * Reserves the id of a build before it runs, so it can be handed out when the build is queued.
+     *
+     * @param commitSha commit identifier
+     * @return unique build id (file name) to pass to {@link #createBuild(String, String, String, String, String)}
+     */
+    public String newBuildId(String commitSha) {
         String timestamp = Instant.now().toString().replace(":", "-");
-        String buildName = commitSha.substring(0, 7) + "-" + timestamp + ".txt";
-        Path buildDir = baseDir.resolve(buildName);
-        String buildInfo = 
-                "Commit SHA: " + commitSha + "\n" +
-                "Date: " + Instant.now() + "\n" +
-                "State: " + state + "\n" +
-                "-----Compile Log-----:\n" + 
-                compileLog + "\n" +
-                "-----Test Log-----:\n" + 
-                testLog + "\n";
-                
-        Files.writeString(buildDir, buildInfo);
+        return commitSha.substring(0, 7) + "-" + timestamp;
+    }
+
+    /**
+     * Creates the build record for a previously reserved build id.
+     *
+     * @param buildName build id from {@link #newBuildId(String)}
+     * @param commitSha commit identifier
+     * @param state build state (success/failure)
+     * @param compileLog compilation output
+     * @param testLog test output
+     * @return the build id
+     */
+    public String createBuild(String buildName, String commitSha, String state, String compileLog, String testLog)
+            throws IOException {
+        return createBuild(buildName, commitSha, state, compileLog, testLog, Map.of());
+    }
+
+    /**
+     * Creates the build record for a previously reserved build id, with extra details
+     * (e.g. how the repository was cloned) stored as "Key: value" lines after the state.
+     *
+     * @param buildName build id from {@link #newBuildId(String)}
+     * @param commitSha commit identifier
+     * @param state build state (success/failure)
+     * @param compileLog compilation output
+     * @param testLog test output
+     * @param details extra details in the order they should be stored
+     * @return the build id
+     */
+    public String createBuild(String buildName, String commitSha, String state, String compileLog, String testLog,
+            Map<String, String> details) throws IOException {
+        return writeRecord(buildName, commitSha, state, details,
+                new ByteArrayInputStream(compileLog.getBytes(StandardCharsets.UTF_8)),
+                new ByteArrayInputStream(testLog.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Creates the build record from log files, copying them in chunks so the logs
+     * never have to fit in memory. Same format as the records created from strings.
+     *
+     * @param buildName build id from {@link #newBuildId(String)}
+     * @param commitSha commit identifier
+     * @param state build state (success/failure)
+     * @param compileLog file with the compilation output
+     * @param testLog file with the test output
+     * @param details extra details in the order they should be stored
+     * @return the build id
+     */
+    public String createBuild(String buildName, String commitSha, String state, Path compileLog, Path testLog,
+            Map<String, String> details) throws IOException {
+        try (InputStream compile = openLog(compileLog); InputStream test = openLog(testLog)) {
+            return writeRecord(buildName, commitSha, state, details, compile, test);
+        }
+    }
+
+    /**
+     * Writes a record and adds it to the index, with the position of both logs in the record.
+     */
+    private String writeRecord(String buildName, String commitSha, String state, Map<String, String> details,
+            InputStream compileLog, InputStream testLog) throws IOException {
+        Instant finishedAt = Instant.now();
+        byte[] header = (header(commitSha, finishedAt, state, details) + "-----Compile Log-----:\n")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] separator = "\n-----Test Log-----:\n".getBytes(StandardCharsets.UTF_8);
+        long compileLength;
+        long testLength;
+        // Written next to the record and moved in place when complete, so readers never see a partial record
+        Path partial = baseDir.resolve(buildName + RECORD_SUFFIX + PARTIAL_SUFFIX);
+        try (OutputStream out = CompressedLog.create(partial, CompressedLog.DEFAULT_FRAME_SIZE)) {
+            out.write(header);
+            compileLength = compileLog.transferTo(out);
+            out.write(separator);
+            testLength = testLog.transferTo(out);
+            out.write('\n');
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, baseDir.resolve(buildName + RECORD_SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        long testOffset = header.length + compileLength + separator.length;
+        index.append(List.of(new BuildIndex.Entry(buildName, commitSha, details.getOrDefault(REPOSITORY, ""),
+                details.getOrDefault(BRANCH, ""), state, parseTime(details.get(STARTED)), finishedAt.toEpochMilli(),
+                header.length, compileLength, testOffset, testLength, timings(details))));
         return buildName;
     }
 
     /**
-     * Lists all builds
+     * Lists the newest builds matching a filter, a page at a time.
+     *
+     * @param filter the builds to list
+     * @param before cursor from a previous page, or -1 for the first page
+     * @param size   maximum number of builds on the page
+     * @return the builds of the page, newest first, and the cursor of the next page
+     */
+    public BuildIndex.Page queryBuilds(BuildIndex.Filter filter, int before, int size) {
+        return index.query(filter, before, size);
+    }
+
+    /**
+     * @param buildName the build id
+     * @return the index entry of the build, or null if there is no such build
+     */
+    public BuildIndex.Entry getBuildInfo(String buildName) {
+        return index.get(buildName);
+    }
+
+    /**
+     * Creates the directory where the logs of a running build are written.
+     * The directory is removed with {@link #deleteLogDirectory(String)} once the record is created.
+     *
+     * @param buildName build id from {@link #newBuildId(String)}
+     * @return the log directory of the build
+     */
+    public Path createLogDirectory(String buildName) throws IOException {
+        return Files.createDirectories(logDirectory(buildName));
+    }
+
+    /**
+     * @param buildName build id from {@link #newBuildId(String)}
+     * @return the directory where the logs of the running build are written
+     */
+    public Path logDirectory(String buildName) {
+        return baseDir.resolve(RUNNING_DIR).resolve(buildName);
+    }
+
+    /**
+     * Deletes the log directory of a build, logs a warning on failure.
+     *
+     * @param buildName build id from {@link #newBuildId(String)}
+     */
+    public void deleteLogDirectory(String buildName) {
+        Path dir = logDirectory(buildName);
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (var paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to delete logs of " + buildName + ": " + e.getMessage());
+        }
+    }
+
+    private static String header(String commitSha, Instant date, String state, Map<String, String> details) {
+        StringBuilder header = new StringBuilder()
+                .append("Commit SHA: ").append(commitSha).append("\n")
+                .append("Date: ").append(date).append("\n")
+                .append("State: ").append(state).append("\n");
+        for (Map.Entry<String, String> detail : details.entrySet()) {
+            header.append(detail.getKey()).append(": ").append(detail.getValue()).append("\n");
+        }
+        return header.toString();
+    }
+
+    private static InputStream openLog(Path log) throws IOException {
+        if (log != null && Files.exists(log)) {
+            return Files.newInputStream(log);
+        }
+        return InputStream.nullInputStream();
+    }
+
+    private static BuildIndex.Timings timings(Map<String, String> details) {
+        return new BuildIndex.Timings(millis(details, QUEUE_TIME), millis(details, CLONE_TIME),
+                millis(details, COMPILE_TIME), millis(details, TEST_TIME), millis(details, NOTIFY_TIME),
+                millis(details, CLEANUP_TIME));
+    }
+
+    private static long millis(Map<String, String> details, String key) {
+        try {
+            return details.containsKey(key) ? Long.parseLong(details.get(key)) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long parseTime(String isoTime) {
+        try {
+            return isoTime == null ? -1 : Instant.parse(isoTime).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Indexes the records found in the history directory, oldest first.
+     * Only the header of each record is read.
+     */
+    private void rebuildIndex() throws IOException {
+        List<BuildIndex.Entry> found = new ArrayList<>();
+        try (var paths = Files.list(baseDir)) {
+            for (Path path : paths.filter(Files::isRegularFile).toList()) {
+                String name = path.getFileName().toString();
+                if (name.equals(INDEX_FILE) || name.endsWith(PARTIAL_SUFFIX)) {
+                    continue;
+                }
+                String buildName = name.endsWith(RECORD_SUFFIX)
+                        ? name.substring(0, name.length() - RECORD_SUFFIX.length()) : name;
+                try {
+                    BuildIndex.Entry entry = readEntry(buildName, path);
+                    if (entry != null) {
+                        found.add(entry);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Warning: Skipping unreadable build record " + name + ": " + e.getMessage());
+                }
+            }
+        }
+        // Ids end with the time they were created at full precision, which orders builds of the same millisecond
+        found.sort(Comparator.comparingLong(BuildIndex.Entry::finishedAt)
+                .thenComparing(entry -> entry.buildId().substring(entry.buildId().indexOf('-') + 1)));
+        index.append(found);
+    }
+
+    private BuildIndex.Entry readEntry(String buildName, Path record) throws IOException {
+        ByteArrayOutputStream start = new ByteArrayOutputStream();
+        readBuild(buildName, 0, HEADER_LIMIT, start);
+        byte[] marker = COMPILE_MARKER.getBytes(StandardCharsets.UTF_8);
+        int markerAt = indexOf(start.toByteArray(), start.size(), marker);
+        if (markerAt < 0) {
+            return null;
+        }
+        Map<String, String> fields = new HashMap<>();
+        for (String line : new String(start.toByteArray(), 0, markerAt, StandardCharsets.UTF_8).split("\n")) {
+            int colon = line.indexOf(": ");
+            if (colon > 0) {
+                fields.put(line.substring(0, colon), line.substring(colon + 2));
+            }
+        }
+        if (!fields.containsKey("Commit SHA") || !fields.containsKey("State")) {
+            return null;
+        }
+        long finishedAt = parseTime(fields.get("Date"));
+        if (finishedAt < 0) {
+            finishedAt = Files.getLastModifiedTime(record).toMillis();
+        }
+        // Log positions are not known for old records, they are recovered from the markers when read
+        return new BuildIndex.Entry(buildName, fields.get("Commit SHA"),
+                fields.getOrDefault(REPOSITORY, ""), fields.getOrDefault(BRANCH, ""), fields.get("State"),
+                parseTime(fields.get(STARTED)), finishedAt, markerAt + marker.length, -1, -1, -1, timings(fields));
+    }
+
+    private static int indexOf(byte[] bytes, int length, byte[] value) {
+        for (int i = 0; i + value.length <= length; i++) {
+            if (Arrays.equals(bytes, i, i + value.length, value, 0, value.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Lists all builds, newest first.
+     * Use {@link #queryBuilds(BuildIndex.Filter, int, int)} to list them a page at a time.
      */
     public List<String> listBuilds() throws IOException {
-    List<String> builds = new java.util.ArrayList<>();
+        List<String> builds = new ArrayList<>();
+        for (BuildIndex.Entry entry : index.query(BuildIndex.Filter.ALL, -1, Integer.MAX_VALUE).entries()) {
+            builds.add(entry.buildId());
+        }
+        return builds;
+    }
+
+    /**
+     * @param buildName build id from {@link #newBuildId(String)}
+     * @return true if the record of the build has been created
+     */
+    public boolean hasBuild(String buildName) {
+        return isValidBuildId(buildName) && recordFile(buildName) != null;
+    }
 
-    try (var paths = Files.list(baseDir)) {
-        for (Path path : paths.toList()) {
-            builds.add(path.getFileName().toString());
+    /**
+     * @return all builds in the index, oldest first
+     */
+    public List<BuildIndex.Entry> indexedBuilds() {
+        return index.entries();
+    }
+
+    /**
+     * Removes builds from the index and deletes their records. The builds disappear from the
+     * build list before their records are deleted; readers that already opened a record can finish.
+     *
+     * @param buildNames the builds to delete
+     * @return the number of bytes freed on disk
+     * @throws IOException if the index cannot be updated
+     */
+    public long deleteBuilds(Collection<String> buildNames) throws IOException {
+        index.remove(buildNames);
+        long freed = 0;
+        for (String buildName : buildNames) {
+            Path record = recordFile(buildName);
+            if (record == null) {
+                continue;
+            }
+            try {
+                long size = Files.size(record);
+                Files.delete(record);
+                freed += size;
+                Path testResults = testResultsFile(buildName);
+                if (Files.exists(testResults)) {
+                    freed += Files.size(testResults);
+                    Files.delete(testResults);
+                }
+            } catch (IOException e) {
+                System.err.println("Warning: Failed to delete build " + buildName + ": " + e.getMessage());
+            }
         }
+        return freed;
+    }
+
+    /**
+     * @return the record of a build, or null if it has not been created
+     */
+    Path recordFile(String buildName) {
+        Path record = baseDir.resolve(buildName + RECORD_SUFFIX);
+        if (Files.isRegularFile(record)) {
+            return record;
+        }
+        // Plain text record from before records were compressed, always named "<id>.txt"; other files
+        // in the history, e.g. the index, are no builds
+        Path legacy = baseDir.resolve(buildName);
+        if (buildName.endsWith(LEGACY_SUFFIX) && Files.isRegularFile(legacy)) {
+            return legacy;
+        }
+        return null;
+    }
+
+    /**
+     * Checks that a build id taken from a URL is a plain file name inside the history.
+     *
+     * @param buildName the build id to check
+     * @return false for ids that could point outside the history directory
+     */
+    public boolean isValidBuildId(String buildName) {
+        return buildName != null && !buildName.isEmpty() && !buildName.contains("/")
+                && !buildName.contains("\\") && !buildName.startsWith(".");
     }
-    return builds;
-}
 
     /**
-     * Reads a specific build file.
+     * Reads a specific build record as a whole.
+     * Use {@link #readBuild(String, long, long, OutputStream)} for records that can be large.
      */
     public String getBuild(String buildName) throws IOException {
-        Path file = baseDir.resolve(buildName);
-        return Files.readString(file);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        readBuild(buildName, 0, -1, record);
+        return record.toString(StandardCharsets.UTF_8);
     }
-    
-}
\ No newline at end of file
+
+    /**
+     * @param buildName the build id
+     * @return the length of the record in bytes
+     * @throws NoSuchFileException if the build has no record
+     */
+    public long getBuildLength(String buildName) throws IOException {
+        Path record = existingRecord(buildName);
+        return record.getFileName().toString().endsWith(RECORD_SUFFIX) ? CompressedLog.length(record)
+                : Files.size(record);
+    }
+
+    /**
+     * Copies a byte range of a build record, only the part of the record covering the range is read.
+     *
+     * @param buildName the build id
+     * @param offset    first byte to copy
+     * @param length    maximum number of bytes to copy, -1 for the rest of the record
+     * @param out       where the bytes are written
+     * @return the number of bytes copied, less than length at the end of the record
+     * @throws NoSuchFileException if the build has no record
+     */
+    public long readBuild(String buildName, long offset, long length, OutputStream out) throws IOException {
+        Path record = existingRecord(buildName);
+        if (record.getFileName().toString().endsWith(RECORD_SUFFIX)) {
+            return CompressedLog.read(record, offset, length, out);
+        }
+        try (FileChannel channel = FileChannel.open(record, StandardOpenOption.READ)) {
+            long end = length < 0 ? channel.size() : Math.min(channel.size(), offset + length);
+            if (offset >= end) {
+                return 0;
+            }
+            byte[] chunk = new byte[8192];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long position = offset;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(chunk.length, end - position));
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                out.write(chunk, 0, read);
+                position += read;
+            }
+            return position - offset;
+        }
+    }
+
+    /**
+     * Reads the last known duration of each test class of a repository, used to balance test shards.
+     *
+     * @param repository "owner/name"
+     * @return duration in milliseconds by test class name, empty if none were stored
+     * @throws IOException if the durations cannot be read
+     */
+    public synchronized Map<String, Long> getTestDurations(String repository) throws IOException {
+        return readCounts(repositoryFile(TEST_DURATIONS_DIR, repository));
+    }
+
+    /**
+     * Stores the durations of test classes of a repository, replacing the stored duration of each
+     * of these classes and keeping the others.
+     *
+     * @param repository "owner/name"
+     * @param durations  duration in milliseconds by test class name
+     * @throws IOException if the durations cannot be written
+     */
+    public synchronized void updateTestDurations(String repository, Map<String, Long> durations) throws IOException {
+        if (durations.isEmpty()) {
+            return;
+        }
+        Map<String, Long> merged = getTestDurations(repository);
+        merged.putAll(durations);
+        writeCounts(repositoryFile(TEST_DURATIONS_DIR, repository), merged);
+    }
+
+    /**
+     * Reads how many test runs of a branch ran only the affected tests since all tests last ran.
+     *
+     * @param repository "owner/name"
+     * @param branch     the branch
+     * @return the number of runs, 0 if all tests ran last time or none ran yet
+     * @throws IOException if the counts cannot be read
+     */
+    public synchronized int getSelectiveTestRuns(String repository, String branch) throws IOException {
+        return readCounts(repositoryFile(TEST_SELECTION_DIR, repository)).getOrDefault(branch, 0L).intValue();
+    }
+
+    /**
+     * Counts a test run of a branch: one that ran all tests resets the count, one that ran only the
+     * affected tests increments it.
+     *
+     * @param repository "owner/name"
+     * @param branch     the branch
+     * @param allTests   true if all tests ran
+     * @throws IOException if the counts cannot be written
+     */
+    public synchronized void countTestRun(String repository, String branch, boolean allTests) throws IOException {
+        Path file = repositoryFile(TEST_SELECTION_DIR, repository);
+        Map<String, Long> runs = readCounts(file);
+        if (allTests) {
+            runs.remove(branch);
+        } else {
+            runs.merge(branch, 1L, Long::sum);
+        }
+        writeCounts(file, runs);
+    }
+
+    /**
+     * Reads the cost of the last full clone of a repository, the reference for the savings of the other
+     * clone modes.
+     *
+     * @param repository "owner/name"
+     * @return "bytes" (size of the git data, absent if unknown) and "millis" (duration), empty if no full
+     *         clone was stored
+     * @throws IOException if the baseline cannot be read
+     */
+    public synchronized Map<String, Long> getCloneBaseline(String repository) throws IOException {
+        return readCounts(repositoryFile(CLONE_BASELINE_DIR, repository));
+    }
+
+    /**
+     * Stores the cost of a full clone of a repository, replacing the previous one.
+     *
+     * @param repository "owner/name"
+     * @param bytes      size of the git data, -1 if unknown
+     * @param millis     duration of the clone
+     * @throws IOException if the baseline cannot be written
+     */
+    public synchronized void storeCloneBaseline(String repository, long bytes, long millis) throws IOException {
+        Map<String, Long> baseline = new HashMap<>();
+        if (bytes >= 0) {
+            baseline.put("bytes", bytes);
+        }
+        baseline.put("millis", millis);
+        writeCounts(repositoryFile(CLONE_BASELINE_DIR, repository), baseline);
+    }
+
+    /**
+     * Stores the test results of a build, read with {@link #getTestResults(String)}.
+     *
+     * @param buildName build id from {@link #newBuildId(String)}
+     * @param cases     the tests of the build, nothing is stored if there are none
+     * @throws IOException if the results cannot be written
+     */
+    public void storeTestResults(String buildName, List<TestReport.TestCase> cases) throws IOException {
+        if (cases.isEmpty() || !isValidBuildId(buildName)) {
+            return;
+        }
+        Path file = testResultsFile(buildName);
+        Files.createDirectories(file.getParent());
+        Path partial = file.resolveSibling(file.getFileName() + PARTIAL_SUFFIX);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(partial))) {
+            TestReport.write(cases, out);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param buildName the build id
+     * @return the test results of the build, empty if none were stored
+     * @throws IOException if the results cannot be read
+     */
+    public List<TestReport.TestCase> getTestResults(String buildName) throws IOException {
+        Path file = isValidBuildId(buildName) ? testResultsFile(buildName) : null;
+        if (file == null || !Files.exists(file)) {
+            return List.of();
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            return TestReport.read(in);
+        }
+    }
+
+    /**
+     * Finds the successful build cached for a result key with {@link #cacheResult(String, String)}.
+     * Keys of builds deleted meanwhile, e.g. by retention, are forgotten.
+     *
+     * @param key the result key, a hex hash
+     * @return the index entry of the build, or null if there is none
+     * @throws IOException if the cache cannot be read
+     */
+    public BuildIndex.Entry findCachedResult(String key) throws IOException {
+        Path file = resultCacheFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        BuildIndex.Entry entry = index.get(Files.readString(file, StandardCharsets.UTF_8).trim());
+        if (entry == null || !entry.state().equals("success")) {
+            Files.deleteIfExists(file);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Remembers the successful build of a result key, replacing the build cached before.
+     *
+     * @param key       the result key, a hex hash
+     * @param buildName the build id
+     * @throws IOException if the cache cannot be written
+     */
+    public void cacheResult(String key, String buildName) throws IOException {
+        Path file = resultCacheFile(key);
+        Files.createDirectories(file.getParent());
+        Path partial = file.resolveSibling(file.getFileName() + "." + buildName + PARTIAL_SUFFIX);
+        Files.writeString(partial, buildName, StandardCharsets.UTF_8);
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path resultCacheFile(String key) {
+        if (!key.matches("[0-9a-f]+")) {
+            throw new IllegalArgumentException("Invalid result key " + key);
+        }
+        return baseDir.resolve(RESULT_CACHE_DIR).resolve(key);
+    }
+
+    private Path testResultsFile(String buildName) {
+        return baseDir.resolve(TEST_RESULTS_DIR).resolve(buildName + TEST_RESULTS_SUFFIX);
+    }
+
+    /**
+     * Reads a "key<TAB>number" file, empty if it does not exist.
+     */
+    private static Map<String, Long> readCounts(Path file) throws IOException {
+        Map<String, Long> counts = new HashMap<>();
+        if (!Files.exists(file)) {
+            return counts;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0) {
+                try {
+                    counts.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+                } catch (NumberFormatException e) {
+                    // Skip damaged lines, the value is written again by the next build
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Replaces a "key<TAB>number" file atomically, readers see the old or the new content.
+     */
+    private static void writeCounts(Path file, Map<String, Long> counts) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        counts.entrySet().stream().sorted(Map.Entry.comparingByKey())
+                .forEach(e -> lines.append(e.getKey()).append('\t').append(e.getValue()).append('\n'));
+        Files.createDirectories(file.getParent());
+        Path partial = file.resolveSibling(file.getFileName() + PARTIAL_SUFFIX);
+        Files.writeString(partial, lines, StandardCharsets.UTF_8);
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path repositoryFile(String directory, String repository) {
+        return baseDir.resolve(directory).resolve(repository.replaceAll("[^A-Za-z0-9._-]", "_") + ".tsv");
+    }
+
+    private Path existingRecord(String buildName) throws IOException {
+        Path record = isValidBuildId(buildName) ? recordFile(buildName) : null;
+        if (record == null) {
+            throw new NoSuchFileException(buildName);
+        }
+        return record;
+    }
+}
@@ -0,0 +1,407 @@
+package ci;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only index of the build records, kept next to them in the history directory.
+ * One tab separated line per build, in the order the builds finished. The index is loaded
+ * into memory at startup together with posting lists per repository, branch, state and commit,
+ * so the newest builds matching a filter are found without touching the records.
+ * Removed builds are recorded as tombstone lines; once most lines are tombstones the file is
+ * rewritten with the remaining builds.
+ */
+public class BuildIndex {
+    // Marks a filter field that is not set, as opposed to a value without builds
+    private static final List<Integer> NO_FILTER = List.of();
+    private static final String TOMBSTONE = "-\t";
+
+    private final Path file;
+    private final List<Entry> entries = new ArrayList<>();
+    // Positions in entries, in increasing order, per filter value
+    private final Map<String, List<Integer>> byRepository = new HashMap<>();
+    private final Map<String, List<Integer>> byBranch = new HashMap<>();
+    private final Map<String, List<Integer>> byState = new HashMap<>();
+    private final Map<String, List<Integer>> byShortSha = new HashMap<>();
+    private final Map<String, Integer> byBuildId = new HashMap<>();
+    private final BitSet removed = new BitSet();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * One build in the index.
+     *
+     * @param buildId       the build id (record file name)
+     * @param commitSha     the built commit
+     * @param repository    "owner/name", empty if unknown
+     * @param branch        the built branch, empty if unknown
+     * @param state         the build state (success/failure/...)
+     * @param startedAt     epoch millis when the build started, -1 if unknown
+     * @param finishedAt    epoch millis when the record was created
+     * @param compileOffset byte offset of the compile log in the record
+     * @param compileLength byte length of the compile log
+     * @param testOffset    byte offset of the test log in the record
+     * @param testLength    byte length of the test log
+     * @param timings       time spent in each stage of the build
+     */
+    public record Entry(String buildId, String commitSha, String repository, String branch, String state,
+            long startedAt, long finishedAt, long compileOffset, long compileLength, long testOffset,
+            long testLength, Timings timings) {
+
+        /**
+         * An entry without stage timings.
+         */
+        public Entry(String buildId, String commitSha, String repository, String branch, String state,
+                long startedAt, long finishedAt, long compileOffset, long compileLength, long testOffset,
+                long testLength) {
+            this(buildId, commitSha, repository, branch, state, startedAt, finishedAt, compileOffset, compileLength,
+                    testOffset, testLength, Timings.UNKNOWN);
+        }
+
+        /** @return the build duration in milliseconds, -1 if the start is unknown */
+        public long durationMillis() {
+            return startedAt < 0 ? -1 : finishedAt - startedAt;
+        }
+
+        String toLine() {
+            return String.join("\t", clean(buildId), clean(commitSha), clean(repository), clean(branch),
+                    clean(state), String.valueOf(startedAt), String.valueOf(finishedAt),
+                    String.valueOf(compileOffset), String.valueOf(compileLength),
+                    String.valueOf(testOffset), String.valueOf(testLength),
+                    String.valueOf(timings.queueMillis()), String.valueOf(timings.cloneMillis()),
+                    String.valueOf(timings.compileMillis()), String.valueOf(timings.testMillis()),
+                    String.valueOf(timings.notifyMillis()), String.valueOf(timings.cleanupMillis()));
+        }
+
+        /**
+         * Parses a line, ignoring columns added by later versions.
+         *
+         * @return the entry, or null if the line is damaged (e.g. cut by a crash)
+         */
+        static Entry fromLine(String line) {
+            String[] columns = line.split("\t", -1);
+            if (columns.length < 11) {
+                return null;
+            }
+            try {
+                // Lines written before the timings were indexed have none
+                Timings timings = columns.length < 17 ? Timings.UNKNOWN : new Timings(Long.parseLong(columns[11]),
+                        Long.parseLong(columns[12]), Long.parseLong(columns[13]), Long.parseLong(columns[14]),
+                        Long.parseLong(columns[15]), Long.parseLong(columns[16]));
+                return new Entry(columns[0], columns[1], columns[2], columns[3], columns[4],
+                        Long.parseLong(columns[5]), Long.parseLong(columns[6]), Long.parseLong(columns[7]),
+                        Long.parseLong(columns[8]), Long.parseLong(columns[9]), Long.parseLong(columns[10]), timings);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static String clean(String value) {
+            return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ');
+        }
+    }
+
+    /**
+     * Wall-clock time of the stages of a build in milliseconds, -1 for a stage that did not run
+     * or was not measured.
+     *
+     * @param queueMillis   waiting for a worker
+     * @param cloneMillis   getting the commit
+     * @param compileMillis the compile commands
+     * @param testMillis    the test commands
+     * @param notifyMillis  until GitHub accepted the "pending" status
+     * @param cleanupMillis deleting the workspace
+     */
+    public record Timings(long queueMillis, long cloneMillis, long compileMillis, long testMillis,
+            long notifyMillis, long cleanupMillis) {
+        /** Timings of a build whose stages were not measured. */
+        public static final Timings UNKNOWN = new Timings(-1, -1, -1, -1, -1, -1);
+    }
+
+    /**
+     * Filter of a build list query, null fields match everything.
+     *
+     * @param repository "owner/name"
+     * @param branch     branch name
+     * @param state      build state
+     * @param sha        full commit SHA or a prefix of it
+     */
+    public record Filter(String repository, String branch, String state, String sha) {
+        /** A filter matching all builds. */
+        public static final Filter ALL = new Filter(null, null, null, null);
+
+        /** Empty values, e.g. from an empty form field, do not filter. */
+        public Filter {
+            repository = emptyToNull(repository);
+            branch = emptyToNull(branch);
+            state = emptyToNull(state);
+            sha = emptyToNull(sha);
+        }
+
+        private static String emptyToNull(String value) {
+            return value == null || value.isEmpty() ? null : value;
+        }
+
+        boolean matches(Entry entry) {
+            return (repository == null || repository.equals(entry.repository()))
+                    && (branch == null || branch.equals(entry.branch()))
+                    && (state == null || state.equals(entry.state()))
+                    && (sha == null || entry.commitSha().startsWith(sha));
+        }
+    }
+
+    /**
+     * A page of builds, newest first.
+     *
+     * @param entries the builds of the page
+     * @param next    cursor for the next (older) page, -1 if this is the last page
+     */
+    public record Page(List<Entry> entries, int next) {
+    }
+
+    /**
+     * Opens the index file, or creates an empty index if it does not exist.
+     *
+     * @param file the index file
+     * @throws IOException if the file cannot be read
+     */
+    public BuildIndex(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.startsWith(TOMBSTONE)) {
+                    removeFromMemory(line.substring(TOMBSTONE.length()));
+                    continue;
+                }
+                Entry entry = Entry.fromLine(line);
+                if (entry != null) {
+                    addToMemory(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends builds to the index file and the in-memory index.
+     *
+     * @param newEntries the builds, in the order they finished
+     * @throws IOException if the index file cannot be written
+     */
+    public void append(List<Entry> newEntries) throws IOException {
+        lock.writeLock().lock();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Entry entry : newEntries) {
+                writer.write(entry.toLine());
+                writer.write('\n');
+            }
+            writer.flush();
+            newEntries.forEach(this::addToMemory);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes builds from the index. Their ids are appended as tombstones; when more than half
+     * of the index is removed builds, the index file is rewritten, which invalidates the cursors
+     * of pages handed out before.
+     *
+     * @param buildIds the builds to remove, unknown ids are ignored
+     * @throws IOException if the index file cannot be written
+     */
+    public void remove(Collection<String> buildIds) throws IOException {
+        lock.writeLock().lock();
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (String buildId : buildIds) {
+                    if (byBuildId.containsKey(buildId)) {
+                        writer.write(TOMBSTONE + buildId);
+                        writer.write('\n');
+                    }
+                }
+            }
+            buildIds.forEach(this::removeFromMemory);
+            if (removed.cardinality() > entries.size() / 2) {
+                rewrite();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the remaining builds to a new index file and reloads them, called with the write lock held.
+     */
+    private void rewrite() throws IOException {
+        List<Entry> remaining = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            if (!removed.get(i)) {
+                remaining.add(entries.get(i));
+            }
+        }
+        Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(rewritten, StandardCharsets.UTF_8)) {
+            for (Entry entry : remaining) {
+                writer.write(entry.toLine());
+                writer.write('\n');
+            }
+        }
+        Files.move(rewritten, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        entries.clear();
+        byRepository.clear();
+        byBranch.clear();
+        byState.clear();
+        byShortSha.clear();
+        byBuildId.clear();
+        removed.clear();
+        remaining.forEach(this::addToMemory);
+    }
+
+    /**
+     * Finds the newest builds matching a filter, older than a cursor.
+     * Walks the shortest posting list of the filter backwards, so the cost depends on the page size
+     * rather than on the number of builds (for filters on a single field exactly the page size).
+     *
+     * @param filter the builds to list
+     * @param before cursor from a previous page, or -1 to start with the newest build
+     * @param size   maximum number of builds on the page
+     * @return the page
+     */
+    public Page query(Filter filter, int before, int size) {
+        lock.readLock().lock();
+        try {
+            List<Integer> candidates = candidates(filter);
+            // Position of the first candidate older than the cursor
+            int position;
+            if (before < 0 || before > entries.size()) {
+                position = candidates == null ? entries.size() - 1 : candidates.size() - 1;
+            } else if (candidates == null) {
+                position = before - 1;
+            } else {
+                int found = Collections.binarySearch(candidates, before);
+                position = (found >= 0 ? found : -found - 1) - 1;
+            }
+
+            List<Entry> page = new ArrayList<>();
+            int next = -1;
+            for (; position >= 0; position--) {
+                int index = candidates == null ? position : candidates.get(position);
+                Entry entry = entries.get(index);
+                if (removed.get(index) || !filter.matches(entry)) {
+                    continue;
+                }
+                if (page.size() == size) {
+                    next = index + 1;
+                    break;
+                }
+                page.add(entry);
+            }
+            return new Page(page, next);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param buildId the build id
+     * @return the index entry of the build, or null if it is not indexed
+     */
+    public Entry get(String buildId) {
+        lock.readLock().lock();
+        try {
+            Integer position = byBuildId.get(buildId);
+            return position == null ? null : entries.get(position);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return all indexed builds, oldest first
+     */
+    public List<Entry> entries() {
+        lock.readLock().lock();
+        try {
+            List<Entry> all = new ArrayList<>(entries.size() - removed.cardinality());
+            for (int i = 0; i < entries.size(); i++) {
+                if (!removed.get(i)) {
+                    all.add(entries.get(i));
+                }
+            }
+            return all;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return number of indexed builds */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size() - removed.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Integer> candidates(Filter filter) {
+        List<Integer> shortest = null;
+        for (List<Integer> postings : List.of(
+                postings(byRepository, filter.repository()),
+                postings(byBranch, filter.branch()),
+                postings(byState, filter.state()),
+                // Prefixes shorter than the indexed short SHA are only checked by the filter
+                postings(byShortSha, filter.sha() == null || filter.sha().length() < 7
+                        ? null : shortSha(filter.sha())))) {
+            if (postings != NO_FILTER && (shortest == null || postings.size() < shortest.size())) {
+                shortest = postings;
+            }
+        }
+        return shortest;
+    }
+
+    private static List<Integer> postings(Map<String, List<Integer>> index, String value) {
+        if (value == null) {
+            return NO_FILTER;
+        }
+        return index.getOrDefault(value, new ArrayList<>());
+    }
+
+    private void addToMemory(Entry entry) {
+        // A build indexed again, e.g. a record that was rewritten, replaces its old entry
+        removeFromMemory(entry.buildId());
+        int position = entries.size();
+        entries.add(entry);
+        byBuildId.put(entry.buildId(), position);
+        byRepository.computeIfAbsent(entry.repository(), k -> new ArrayList<>()).add(position);
+        byBranch.computeIfAbsent(entry.branch(), k -> new ArrayList<>()).add(position);
+        byState.computeIfAbsent(entry.state(), k -> new ArrayList<>()).add(position);
+        byShortSha.computeIfAbsent(shortSha(entry.commitSha()), k -> new ArrayList<>()).add(position);
+    }
+
+    private void removeFromMemory(String buildId) {
+        Integer position = byBuildId.remove(buildId);
+        if (position != null) {
+            removed.set(position);
+        }
+    }
+
+    private static String shortSha(String sha) {
+        return sha.length() > 7 ? sha.substring(0, 7) : sha;
+    }
+}
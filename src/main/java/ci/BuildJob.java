@@ -0,0 +1,131 @@
+package ci;
+
+import java.time.Instant;
+
+/**
+ * A build waiting in (or taken from) the build queue.
+ * Holds everything the pipeline needs from the webhook so the request can be answered right away.
+ */
+public final class BuildJob {
+    private final String buildId;
+    private final String owner;
+    private final String repo;
+    private final String branch;
+    private final String sha;
+    private final String cloneUrl;
+    private final Instant enqueuedAt;
+    private volatile String supersededBy;
+    // Thread running the job while a newer push may still interrupt it, guarded by this
+    private Thread worker;
+    private boolean finishing;
+
+    /**
+     * Creates a job for a push webhook.
+     *
+     * @param buildId the id under which the build will be stored in the build history
+     * @param webhook the parsed push payload
+     */
+    public BuildJob(String buildId, GitHubWebhookPayload webhook) {
+        this(buildId, webhook.getLogin(), webhook.getRepositoryName(), webhook.getBranch(),
+                webhook.getAfter(), webhook.getCloneUrl());
+    }
+
+    /**
+     * Creates a job.
+     *
+     * @param buildId  the id under which the build will be stored in the build history
+     * @param owner    the repository owner
+     * @param repo     the repository name
+     * @param branch   the pushed branch
+     * @param sha      the commit to build
+     * @param cloneUrl the URL to clone the repository from
+     */
+    public BuildJob(String buildId, String owner, String repo, String branch, String sha, String cloneUrl) {
+        this.buildId = buildId;
+        this.owner = owner;
+        this.repo = repo;
+        this.branch = branch;
+        this.sha = sha;
+        this.cloneUrl = cloneUrl;
+        this.enqueuedAt = Instant.now();
+    }
+
+    public String getBuildId() {
+        return buildId;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public String getSha() {
+        return sha;
+    }
+
+    public String getCloneUrl() {
+        return cloneUrl;
+    }
+
+    /** @return when the job was created, i.e. when the webhook was received */
+    public Instant getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    /**
+     * Key of the branch the job builds. Only the newest job per key is worth building.
+     *
+     * @return "owner/repo:branch"
+     */
+    public String getBranchKey() {
+        return owner + "/" + repo + ":" + branch;
+    }
+
+    /**
+     * Marks the job as superseded by a newer push to the same branch and interrupts the thread
+     * running it, unless the job is already finishing.
+     *
+     * @param newerSha the commit that replaces this one
+     */
+    public synchronized void supersede(String newerSha) {
+        this.supersededBy = newerSha;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Records the current thread as the one running the job, interrupted if the job is superseded.
+     */
+    synchronized void start() {
+        if (!finishing) {
+            worker = Thread.currentThread();
+        }
+    }
+
+    /**
+     * Stops interrupting the thread running the job, e.g. once its final status is sent and its record
+     * is being written.
+     */
+    synchronized void finish() {
+        finishing = true;
+        worker = null;
+    }
+
+    /** @return true if a newer push to the same branch replaced this job */
+    public boolean isSuperseded() {
+        return supersededBy != null;
+    }
+
+    /** @return the commit that replaced this job, or null if it was not superseded */
+    public String getSupersededBy() {
+        return supersededBy;
+    }
+}
@@ -0,0 +1,92 @@
+package ci;
+
+import java.io.PrintWriter;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Renders a page of the build history as the HTML table served at {@code /builds}.
+ */
+public final class BuildListPage {
+
+    private BuildListPage() {
+    }
+
+    /**
+     * Writes the table of builds and, when there are older builds, the link to the next page.
+     *
+     * @param out    where the HTML is written
+     * @param page   the builds to show
+     * @param filter the filter the page was queried with, kept in the link to the next page
+     * @param size   the page size, kept in the link to the next page
+     */
+    public static void render(PrintWriter out, BuildIndex.Page page, BuildIndex.Filter filter, int size) {
+        out.println("<h1>Builds</h1>");
+        out.println("<table><tr><th>Build</th><th>Repository</th><th>Branch</th><th>State</th>"
+                + "<th>Finished</th><th>Duration</th></tr>");
+        for (BuildIndex.Entry entry : page.entries()) {
+            long duration = entry.durationMillis();
+            String buildId = escapeHtml(entry.buildId());
+            out.print("<tr><td><a href=\"/builds/");
+            out.print(buildId);
+            out.print("\">");
+            out.print(buildId);
+            out.print("</a></td><td>");
+            out.print(escapeHtml(entry.repository()));
+            out.print("</td><td>");
+            out.print(escapeHtml(entry.branch()));
+            out.print("</td><td>");
+            out.print(escapeHtml(entry.state()));
+            out.print("</td><td>");
+            out.print(Instant.ofEpochMilli(entry.finishedAt()));
+            out.print("</td><td>");
+            if (duration >= 0) {
+                out.print(duration / 1000);
+                out.print(" s");
+            }
+            out.println("</td></tr>");
+        }
+        out.println("</table>");
+        if (page.next() >= 0) {
+            StringBuilder older = new StringBuilder("/builds?before=").append(page.next()).append("&size=").append(size);
+            appendParameter(older, "repo", filter.repository());
+            appendParameter(older, "branch", filter.branch());
+            appendParameter(older, "state", filter.state());
+            appendParameter(older, "sha", filter.sha());
+            out.println("<a href=\"" + escapeHtml(older.toString()) + "\">Older</a>");
+        }
+    }
+
+    private static void appendParameter(StringBuilder url, String name, String value) {
+        if (value != null && !value.isEmpty()) {
+            url.append('&').append(name).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @param text any text
+     * @return the text with the HTML special characters escaped, the same instance if there are none
+     */
+    static String escapeHtml(String text) {
+        int i = 0;
+        while (i < text.length() && "&<>\"".indexOf(text.charAt(i)) < 0) {
+            i++;
+        }
+        if (i == text.length()) {
+            return text;
+        }
+        StringBuilder escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+        for (; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&' -> escaped.append("&amp;");
+                case '<' -> escaped.append("&lt;");
+                case '>' -> escaped.append("&gt;");
+                case '"' -> escaped.append("&quot;");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
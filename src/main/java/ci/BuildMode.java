@@ -0,0 +1,22 @@
+package ci;
+
+/**
+ * How {@link BuildPipeline} compiles and tests a commit.
+ */
+public enum BuildMode {
+    /** Run the compile commands, then the test commands, each in a JVM of its own. */
+    SEPARATE,
+    /** Compile and test in one invocation, see {@link CiBuild}. */
+    SINGLE;
+
+    /**
+     * Parses a mode name as used in the configuration, ignoring case.
+     *
+     * @param name the mode name, e.g. "single"
+     * @return the build mode
+     * @throws IllegalArgumentException if the name is not a build mode
+     */
+    public static BuildMode parse(String name) {
+        return valueOf(name.trim().toUpperCase(java.util.Locale.ROOT));
+    }
+}
@@ -0,0 +1,744 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * The clone-compile-test pipeline run by the build workers.
+ * Reports the progress to GitHub through the Notifier, without waiting for GitHub to answer,
+ * and stores the result in the build history.
+ * Compile and test output is streamed to log files of the build, so a large log never has to fit in memory.
+ * The compile and test commands are set per repository; with {@code build.mode=single} one command
+ * compiles and tests ({@link CiBuild}) and the failed phase is read from its output.
+ * With {@code test.impact.enabled} only the tests affected by the changes since the last successful
+ * build of the branch run ({@link TestImpact}), and all of them every {@code test.impact.full.every} runs.
+ * A commit whose tree already passed with the same commands is not built again, its status and record
+ * refer to the earlier build ({@code result.cache.enabled}).
+ * A job superseded by a newer push to its branch is stopped at the next stage boundary
+ * (or when its worker is interrupted) and reported as "error" with a "Superseded" description.
+ * The time spent waiting and in each stage, the output sizes and exit codes are recorded in {@link CiMetrics}.
+ */
+public class BuildPipeline implements BuildRunner {
+    // Compile log of build.mode=single unless compilation failed, the output is in the test log
+    static final String SINGLE_COMPILE_LOG = "Compiled in the same invocation as the tests, see the test log\n";
+
+    private final BuildHistory history;
+    private final Notifier notifier;
+    private final CommandExecutorFactory factory;
+    private final CiClone ciClone;
+    private final CiConfig config;
+    private final CiMetrics metrics;
+    // Null when Maven uses the local repository of the server user
+    private final MavenRepoCache mavenCache;
+    // Null when every Maven command starts a new JVM
+    private final BuildDaemonPool daemonPool;
+    private final CiMetrics.Histogram queueWait;
+    private final CiMetrics.Histogram cloneTime;
+    private final CiMetrics.Histogram compileTime;
+    private final CiMetrics.Histogram testTime;
+    private final CiMetrics.Histogram notifyTime;
+    private final CiMetrics.Histogram historyWriteTime;
+    private final CiMetrics.Histogram compileOutput;
+    private final CiMetrics.Histogram testOutput;
+    private final CiMetrics.Histogram buildTime;
+    private final CiMetrics.Histogram buildOutput;
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param history  where finished builds are stored
+     * @param notifier used to report commit statuses
+     * @param factory  the factory to create command executors for compile and test
+     * @param ciClone  used to clone the repository
+     * @param config   repository specific settings, e.g. {@code clone.mode} and {@code build.mode}
+     */
+    public BuildPipeline(BuildHistory history, Notifier notifier, CommandExecutorFactory factory, CiClone ciClone,
+            CiConfig config) {
+        this(history, notifier, factory, ciClone, config, new CiMetrics());
+    }
+
+    /**
+     * Creates a pipeline that records its metrics.
+     *
+     * @param history  where finished builds are stored
+     * @param notifier used to report commit statuses
+     * @param factory  the factory to create command executors for compile and test
+     * @param ciClone  used to clone the repository
+     * @param config   repository specific settings, e.g. {@code clone.mode} and {@code build.mode}
+     * @param metrics  where stage durations, output sizes, exit codes and build counts are recorded
+     */
+    public BuildPipeline(BuildHistory history, Notifier notifier, CommandExecutorFactory factory, CiClone ciClone,
+            CiConfig config, CiMetrics metrics) {
+        this(history, notifier, factory, ciClone, config, metrics, null, null);
+    }
+
+    /**
+     * Creates a pipeline whose Maven commands share a local repository and may run on warm daemons.
+     *
+     * @param history    where finished builds are stored
+     * @param notifier   used to report commit statuses
+     * @param factory    the factory to create command executors for compile and test
+     * @param ciClone    used to clone the repository
+     * @param config     repository specific settings, e.g. {@code clone.mode} and {@code build.mode}
+     * @param metrics    where stage durations, output sizes, exit codes and build counts are recorded
+     * @param mavenCache the shared local Maven repository, or null to use the one of the server user
+     * @param daemonPool warm Maven daemons for repositories with {@code daemon.enabled}, or null
+     */
+    public BuildPipeline(BuildHistory history, Notifier notifier, CommandExecutorFactory factory, CiClone ciClone,
+            CiConfig config, CiMetrics metrics, MavenRepoCache mavenCache, BuildDaemonPool daemonPool) {
+        this.history = history;
+        this.notifier = notifier;
+        this.factory = factory;
+        this.ciClone = ciClone;
+        this.config = config;
+        this.metrics = metrics;
+        this.mavenCache = mavenCache;
+        this.daemonPool = daemonPool;
+        queueWait = metrics.histogram("ci_queue_wait_seconds", "Time builds waited in the queue",
+                CiMetrics.DURATION_BUCKETS);
+        cloneTime = stageTime("clone");
+        compileTime = stageTime("compile");
+        testTime = stageTime("test");
+        notifyTime = stageTime("notify");
+        historyWriteTime = stageTime("history");
+        compileOutput = outputSize("compile");
+        testOutput = outputSize("test");
+        buildTime = stageTime("build");
+        buildOutput = outputSize("build");
+    }
+
+    private CiMetrics.Histogram stageTime(String stage) {
+        return metrics.histogram("ci_stage_duration_seconds",
+                "Duration of the pipeline stages (notify: until GitHub answered, history: storing the record)",
+                CiMetrics.DURATION_BUCKETS, "stage", stage);
+    }
+
+    private CiMetrics.Histogram outputSize(String stage) {
+        return metrics.histogram("ci_stage_output_bytes", "Size of the output of the compile and test commands",
+                CiMetrics.BYTES_BUCKETS, "stage", stage);
+    }
+
+    private void countExit(String stage, int exitCode) {
+        metrics.counter("ci_stage_exit_total", "Exit codes of the clone, compile and test commands",
+                "stage", stage, "code", String.valueOf(exitCode)).inc();
+    }
+
+    /**
+     * Clones, compiles and tests the commit of the job.
+     * Never throws, failures are reported to GitHub and stored in the build history.
+     * The record holds the time of each stage, the workspace is deleted before it is written.
+     *
+     * @param job the build to run
+     */
+    @Override
+    public void run(BuildJob job) {
+        String owner = job.getOwner();
+        String repo = job.getRepo();
+        String sha = job.getSha();
+        Path cloneLocation = null;
+        Map<String, String> details = new LinkedHashMap<>();
+        // Stored in the build index, used to filter the build list
+        details.put(BuildHistory.REPOSITORY, owner + "/" + repo);
+        details.put(BuildHistory.BRANCH, job.getBranch());
+        Instant started = Instant.now();
+        details.put(BuildHistory.STARTED, started.toString());
+        long queuedMillis = Duration.between(job.getEnqueuedAt(), started).toMillis();
+        details.put(BuildHistory.QUEUE_TIME, String.valueOf(queuedMillis));
+
+        if (job.isSuperseded()) {
+            // Dropped from the queue before it started
+            reportSuperseded(job, details);
+            return;
+        }
+
+        queueWait.observeMillis(queuedMillis);
+        // Set when the build has a result to store once the workspace is deleted
+        String state = null;
+        Path compileLog = null;
+        Path testLog = null;
+        MavenRepoCache.Overlay overlay = null;
+        BuildDaemonPool.Lease daemons = null;
+        // Set when the result of the build can be reused for the same tree and commands
+        String resultKey = null;
+        AtomicLong pendingNotifiedMillis = new AtomicLong(-1);
+        try {
+            // Set status to pending
+            long pendingStart = System.nanoTime();
+            sendStatus(owner, repo, sha, "pending", "Build started")
+                    .thenRun(() -> pendingNotifiedMillis.set(millisSince(pendingStart)));
+
+            // Compile and test output is streamed to these files and copied into the build record at the end
+            Path logDirectory = history.createLogDirectory(job.getBuildId());
+            compileLog = logDirectory.resolve("compile.log");
+            testLog = logDirectory.resolve("test.log");
+
+            // Clone repository into a directory of its own, the same commit may be built concurrently
+            CloneMode mode = CloneMode.parse(config.getForRepo(owner, repo, "clone.mode", "mirror"));
+            long cloneStart = System.nanoTime();
+            CiClone.CloneResult cloneResult = ciClone.gitCloneAndCheckout(
+                    job.getCloneUrl(), job.getBranch(), sha, workspaceName(job), mode, sparsePaths(owner, repo));
+            cloneTime.observe((System.nanoTime() - cloneStart) / 1e9);
+            countExit("clone", cloneResult.getExitCode());
+            cloneLocation = cloneResult.getClonedDirectory();
+            addCloneDetails(details, owner + "/" + repo, cloneResult);
+            if (!cloneResult.isSuccess()) {
+                sendStatus(owner, repo, sha, "failure", "Clone failed");
+                Files.writeString(compileLog, "Clone failed:\n" + cloneResult.getOutput());
+                Files.writeString(testLog, "Tests not run, clone failed");
+                state = "failure";
+                return;
+            }
+
+            if (job.isSuperseded()) {
+                reportSuperseded(job, details);
+                return;
+            }
+
+            List<String> compileCommand = commands(owner, repo, "compile.command", "mvn compile -q");
+            List<String> testCommand = commands(owner, repo, "test.command", "mvn test -q");
+            List<String> buildCommand = commands(owner, repo, "build.command", "mvn test -q");
+            List<String> testCompileCommand = commands(owner, repo, "test.compile.command", "mvn test-compile -q");
+            List<String> shardCommand = commands(owner, repo, "test.shard.command",
+                    "mvn surefire:test -q -Dsurefire.failIfNoSpecifiedTests=false");
+            BuildMode buildMode = BuildMode.parse(config.getForRepo(owner, repo, "build.mode", "separate"));
+            if (cloneResult.getTreeHash() != null
+                    && Boolean.parseBoolean(config.getForRepo(owner, repo, "result.cache.enabled", "true"))) {
+                resultKey = resultKey(owner + "/" + repo, cloneResult.getTreeHash(), buildMode,
+                        List.of(compileCommand, testCommand, buildCommand, testCompileCommand, shardCommand));
+                BuildIndex.Entry cached = history.findCachedResult(resultKey);
+                countResultCache(cached != null ? "hit" : "miss");
+                if (cached != null) {
+                    // Already cached, and this build did not validate anything itself
+                    resultKey = null;
+                    details.put("Cached result of", cached.buildId());
+                    Files.writeString(compileLog, "Not compiled, the same tree passed with the same commands in build "
+                            + cached.buildId());
+                    Files.writeString(testLog, "Tests not run, the same tree passed with the same commands in build "
+                            + cached.buildId());
+                    sendStatus(owner, repo, sha, "success", "Same tree passed in build " + cached.buildId());
+                    state = "success";
+                    return;
+                }
+                if ((cloneResult.getMode() == CloneMode.SHALLOW || cloneResult.getMode() == CloneMode.PARTIAL)
+                        && !sparsePaths(owner, repo).isEmpty()) {
+                    // Only part of the tree is checked out, passing it says nothing about the whole tree
+                    resultKey = null;
+                }
+            }
+            if (mavenCache != null) {
+                // Maven downloads into an overlay of the shared repository, merged into it when the build is done
+                overlay = mavenCache.open(workspaceName(job), cloneLocation,
+                        List.of(compileCommand, testCommand, buildCommand, testCompileCommand, shardCommand));
+                compileCommand = mavenCache.apply(compileCommand, overlay);
+                testCommand = mavenCache.apply(testCommand, overlay);
+                buildCommand = mavenCache.apply(buildCommand, overlay);
+                testCompileCommand = mavenCache.apply(testCompileCommand, overlay);
+                details.put("Maven offline", String.valueOf(overlay.isOffline()));
+            }
+            if (daemonPool != null && Boolean.parseBoolean(config.getForRepo(owner, repo, "daemon.enabled", "true"))) {
+                daemons = daemonPool.acquire(owner + "/" + repo);
+                details.put("Maven daemon", "true");
+            }
+            BuildDaemonPool.Lease onDaemons = daemons;
+
+            if (buildMode == BuildMode.SINGLE) {
+                state = buildAndTest(job, cloneLocation, buildCommand, onDaemons, compileLog, testLog, details);
+                return;
+            }
+
+            // Compile
+            Duration compileTimeout = stageTimeout(owner, repo, "compile", 600);
+            Path compileTo = compileLog;
+            CiCompile ciCompile = new CiCompile(() -> executor(compileTo, compileTimeout, onDaemons),
+                    compileCommand, cloneLocation);
+            long compileStart = System.nanoTime();
+            CiCompile.CompileResult compileResult = ciCompile.compile();
+            compileTime.observe((System.nanoTime() - compileStart) / 1e9);
+            countExit("compile", compileResult.getExitCode());
+            observeSize(compileOutput, compileResult.getOutputBytes());
+            keepLog(compileLog, compileResult.getLogFile(), compileResult.getOutput());
+            addTimes(details, "Compile", wallTime(compileResult.getWallTimeMillis(), compileStart),
+                    compileResult.getCpuTimeMillis());
+
+            if (!compileResult.isSuccess()) {
+                sendStatus(owner, repo, sha, "failure",
+                        compileResult.isTimedOut() ? "Compilation timed out" : "Compilation failed");
+                Files.writeString(testLog, "Tests not run, compilation failed");
+                state = "failure";
+                return;
+            }
+
+            if (job.isSuperseded()) {
+                reportSuperseded(job, details);
+                return;
+            }
+
+            // Run tests
+            TestImpact.Selection selection = selectTests(job, cloneLocation, details);
+            if (selection != null && !selection.full()) {
+                // Only the affected tests run, the tree has not passed the whole suite
+                resultKey = null;
+            }
+            Duration testTimeout = stageTimeout(owner, repo, "test", 1800);
+            int shards = testShards(owner, repo);
+            List<List<String>> shardCommands = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++) {
+                // Shards run at the same time, each downloads into an overlay of its own
+                shardCommands.add(overlay == null ? shardCommand : mavenCache.apply(shardCommand, overlay.shard(i)));
+            }
+            CiTest.Sharding sharding = shards < 2 ? null : new CiTest.Sharding(shards, testCompileCommand,
+                    shardCommands, history.getTestDurations(owner + "/" + repo), testLog);
+            CiTest ciTest = new CiTest(executors(testLog, testTimeout, onDaemons), testCommand, cloneLocation,
+                    sharding, selection == null || selection.full() ? null : selection.testClasses());
+            long testStart = System.nanoTime();
+            CiTest.TestResult testResult = ciTest.runTests();
+            testTime.observe((System.nanoTime() - testStart) / 1e9);
+            countExit("test", testResult.getExitCode());
+            observeSize(testOutput, testResult.getOutputBytes());
+            keepLog(testLog, testResult.getLogFile(), testResult.getOutput());
+            addTimes(details, "Test", wallTime(testResult.getWallTimeMillis(), testStart),
+                    testResult.getCpuTimeMillis());
+            if (!testResult.getShardExitCodes().isEmpty()) {
+                details.put("Test shard exit codes", testResult.getShardExitCodes().stream().map(String::valueOf)
+                        .collect(Collectors.joining(" ")));
+                storeTestDurations(owner + "/" + repo, testResult.getTestDurations());
+            }
+            if (selection != null) {
+                countTestRun(owner + "/" + repo, job.getBranch(), selection.full());
+            }
+            storeTestResults(job, testResult.getTestCases(), details);
+
+            if (job.isSuperseded()) {
+                reportSuperseded(job, details);
+                return;
+            }
+
+            if (!testResult.isSuccess()) {
+                sendStatus(owner, repo, sha, "failure",
+                        testResult.isTimedOut() ? "Tests timed out" : "Tests failed");
+                state = "failure";
+                return;
+            }
+
+            // Set success status
+            sendStatus(owner, repo, sha, "success", "Build and tests passed");
+            state = "success";
+        } catch (Exception e) {
+            state = null;
+            if (job.isSuperseded()) {
+                // The queue interrupted the build because a newer push arrived
+                reportSuperseded(job, details);
+                return;
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            System.err.println("Build " + job.getBuildId() + " failed with an error");
+            e.printStackTrace();
+            sendStatus(owner, repo, sha, "error", "CI error: " + e.getMessage());
+            countBuild("error");
+        } finally {
+            // The final status is sent, a newer push must not interrupt the cleanup or lose the record;
+            // an interrupt that arrived meanwhile is kept for the caller
+            job.finish();
+            boolean interrupted = Thread.interrupted();
+            // Always cleanup
+            if (daemons != null) {
+                daemonPool.release(daemons);
+            }
+            if (overlay != null) {
+                mavenCache.close(overlay, "success".equals(state));
+            }
+            if (cloneLocation != null) {
+                long cleanupStart = System.nanoTime();
+                ciClone.cleanup(cloneLocation);
+                details.put(BuildHistory.CLEANUP_TIME, String.valueOf(millisSince(cleanupStart)));
+            }
+            if (state != null) {
+                if (pendingNotifiedMillis.get() >= 0) {
+                    details.put(BuildHistory.NOTIFY_TIME, String.valueOf(pendingNotifiedMillis.get()));
+                }
+                if (storeBuild(job, state, compileLog, testLog, details) && state.equals("success")
+                        && resultKey != null) {
+                    cacheResult(resultKey, job.getBuildId());
+                }
+            }
+            history.deleteLogDirectory(job.getBuildId());
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stores the record of a finished build and counts it. Its status is already sent,
+     * a failure to store it is only logged.
+     *
+     * @return true if the record was stored
+     */
+    private boolean storeBuild(BuildJob job, String state, Path compileLog, Path testLog, Map<String, String> details) {
+        long start = System.nanoTime();
+        try {
+            history.createBuild(job.getBuildId(), job.getSha(), state, compileLog, testLog, details);
+        } catch (IOException e) {
+            System.err.println("Failed to store build " + job.getBuildId() + ": " + e.getMessage());
+            return false;
+        }
+        historyWriteTime.observe((System.nanoTime() - start) / 1e9);
+        countBuild(state);
+        return true;
+    }
+
+    /**
+     * Hashes what decides the result of a build: the repository, the tree and the commands.
+     */
+    static String resultKey(String repository, String treeHash, BuildMode buildMode, List<List<String>> commands) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        digest.update((repository + "\n" + treeHash + "\n" + buildMode + "\n").getBytes(StandardCharsets.UTF_8));
+        for (List<String> command : commands) {
+            digest.update((String.join(" ", command) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Remembers a successful build for its tree and commands, a failure is only logged.
+     */
+    private void cacheResult(String resultKey, String buildId) {
+        try {
+            history.cacheResult(resultKey, buildId);
+        } catch (IOException e) {
+            System.err.println("Failed to cache the result of build " + buildId + ": " + e.getMessage());
+        }
+    }
+
+    private void countResultCache(String result) {
+        metrics.counter("ci_result_cache_total", "Builds looked up by tree and commands", "result", result).inc();
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    /**
+     * @return the wall time reported by the executor, or the time measured around it if it reports none
+     */
+    private static long wallTime(long reportedMillis, long startNanos) {
+        return reportedMillis >= 0 ? reportedMillis : millisSince(startNanos);
+    }
+
+    private void countBuild(String state) {
+        metrics.counter("ci_builds_total", "Finished builds by state", "state", state).inc();
+    }
+
+    private static void observeSize(CiMetrics.Histogram histogram, long bytes) {
+        if (bytes >= 0) {
+            histogram.observe(bytes);
+        }
+    }
+
+    /**
+     * Makes sure the output of a step is in its log file. Executors that do not stream
+     * to the log file (e.g. mocks) only return the output, which is then written here.
+     */
+    private static void keepLog(Path log, Path streamedTo, String output) throws IOException {
+        if (!log.equals(streamedTo)) {
+            Files.writeString(log, output == null ? "" : output);
+        }
+    }
+
+    /**
+     * Compiles and tests with the single {@code build.command}. Its output is the test log, or the
+     * compile log if compilation failed.
+     *
+     * @return the state of the build, null if it was superseded meanwhile
+     */
+    private String buildAndTest(BuildJob job, Path cloneLocation, List<String> buildCommand,
+            BuildDaemonPool.Lease daemons, Path compileLog, Path testLog, Map<String, String> details)
+            throws IOException, InterruptedException {
+        String owner = job.getOwner();
+        String repo = job.getRepo();
+        details.put("Build mode", "single");
+        Duration timeout = stageTimeout(owner, repo, "build", 2400);
+        CiBuild ciBuild = new CiBuild(() -> executor(testLog, timeout, daemons), buildCommand, cloneLocation);
+        // Same margin as CiTest for modification times in whole seconds
+        long reportsSince = System.currentTimeMillis() - 1000;
+        // Written before the build, the live log follows the test log only once the compile log exists
+        Files.writeString(compileLog, SINGLE_COMPILE_LOG);
+        long start = System.nanoTime();
+        CiBuild.BuildResult result = ciBuild.build();
+        buildTime.observe((System.nanoTime() - start) / 1e9);
+        countExit("build", result.getExitCode());
+        observeSize(buildOutput, result.getOutputBytes());
+        keepLog(testLog, result.getLogFile(), result.getOutput());
+        // Compilation is not timed on its own, the test time covers the whole invocation
+        addTimes(details, "Test", wallTime(result.getWallTimeMillis(), start), result.getCpuTimeMillis());
+        storeTestResults(job, TestReport.parseReports(cloneLocation, reportsSince), details);
+
+        if (job.isSuperseded()) {
+            reportSuperseded(job, details);
+            return null;
+        }
+        if (result.isSuccess()) {
+            sendStatus(owner, repo, job.getSha(), "success", "Build and tests passed");
+            return "success";
+        }
+        details.put("Failed phase", result.getFailedPhase().name().toLowerCase(Locale.ROOT));
+        if (result.getFailedPhase() == CiBuild.Phase.COMPILE) {
+            Files.move(testLog, compileLog, StandardCopyOption.REPLACE_EXISTING);
+            Files.writeString(testLog, "Tests not run, compilation failed");
+            sendStatus(owner, repo, job.getSha(), "failure",
+                    result.isTimedOut() ? "Compilation timed out" : "Compilation failed");
+        } else {
+            sendStatus(owner, repo, job.getSha(), "failure",
+                    result.isTimedOut() ? "Tests timed out" : "Tests failed");
+        }
+        return "failure";
+    }
+
+    /**
+     * Reports a build that was dropped or cancelled because a newer commit was pushed to its branch.
+     */
+    private void reportSuperseded(BuildJob job, Map<String, String> details) {
+        // Clear the interrupt used to cancel the build, otherwise the report itself would be interrupted
+        job.finish();
+        Thread.interrupted();
+        String newer = job.getSupersededBy();
+        String description = "Superseded by " + newer.substring(0, Math.min(7, newer.length()));
+        sendStatus(job.getOwner(), job.getRepo(), job.getSha(), "error", description);
+        countBuild("superseded");
+        try {
+            history.createBuild(job.getBuildId(), job.getSha(), "superseded", description,
+                    "Tests not run, build superseded", details);
+        } catch (IOException e) {
+            System.err.println("Failed to store superseded build " + job.getBuildId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a status without waiting for GitHub, a failure to deliver it is only logged.
+     *
+     * @return completes when GitHub accepted the status, exceptionally if it was not delivered
+     */
+    private CompletableFuture<Void> sendStatus(String owner, String repo, String sha, String state,
+            String description) {
+        long start = System.nanoTime();
+        try {
+            return notifier.setStatusAsync(owner, repo, sha, state, description).whenComplete((result, error) -> {
+                notifyTime.observe((System.nanoTime() - start) / 1e9);
+                countStatus(error == null ? "sent" : "failed");
+                if (error != null) {
+                    System.err.println("Failed to send " + state + " status of " + sha + ": " + error.getMessage());
+                }
+            });
+        } catch (RuntimeException e) {
+            countStatus("failed");
+            System.err.println("Failed to send " + state + " status of " + sha + ": " + e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void countStatus(String result) {
+        metrics.counter("ci_status_updates_total", "Commit status updates sent to GitHub", "result", result).inc();
+    }
+
+    private List<String> sparsePaths(String owner, String repo) {
+        String paths = config.getForRepo(owner, repo, "clone.sparse.paths", "");
+        return Arrays.stream(paths.split(",")).map(String::trim).filter(p -> !p.isEmpty()).toList();
+    }
+
+    /**
+     * Creates the executor of a compile or test command, running Maven on the daemons if there are any.
+     */
+    private CommandExecutor executor(Path logFile, Duration timeout, BuildDaemonPool.Lease daemons) {
+        CommandExecutor executor = factory.create(logFile, timeout);
+        return daemons == null ? executor : daemons.wrap(executor);
+    }
+
+    /**
+     * Creates the executors of the test shards, each streaming to the log file it is created with.
+     */
+    private CommandExecutorFactory executors(Path logFile, Duration timeout, BuildDaemonPool.Lease daemons) {
+        return new CommandExecutorFactory() {
+            @Override
+            public CommandExecutor create() {
+                return executor(logFile, timeout, daemons);
+            }
+
+            @Override
+            public CommandExecutor create(Path shardLog) {
+                return executor(shardLog, timeout, daemons);
+            }
+        };
+    }
+
+    /**
+     * Reads {@code test.shards} of a repository, 0 means one shard per available processor.
+     */
+    private int testShards(String owner, String repo) {
+        int shards = Integer.parseInt(config.getForRepo(owner, repo, "test.shards", "1").trim());
+        return shards == 0 ? Runtime.getRuntime().availableProcessors() : shards;
+    }
+
+    /**
+     * Decides which tests run when {@code test.impact.enabled} is set for the repository and notes the
+     * selection in the details. All tests run every {@code test.impact.full.every} runs of the branch,
+     * and when there is no successful build of the branch to compare with.
+     *
+     * @return the selection, or null if impact selection is off and all tests run
+     */
+    private TestImpact.Selection selectTests(BuildJob job, Path cloneLocation, Map<String, String> details)
+            throws IOException, InterruptedException {
+        String owner = job.getOwner();
+        String repo = job.getRepo();
+        if (!Boolean.parseBoolean(config.getForRepo(owner, repo, "test.impact.enabled", "false"))) {
+            return null;
+        }
+        String repository = owner + "/" + repo;
+        int fullEvery = Integer.parseInt(config.getForRepo(owner, repo, "test.impact.full.every", "10").trim());
+        List<BuildIndex.Entry> lastSuccess = history.queryBuilds(
+                new BuildIndex.Filter(repository, job.getBranch(), "success", null), -1, 1).entries();
+        TestImpact.Selection selection;
+        if (history.getSelectiveTestRuns(repository, job.getBranch()) + 1 >= fullEvery) {
+            selection = TestImpact.Selection.all("periodic full run");
+        } else if (lastSuccess.isEmpty()) {
+            selection = TestImpact.Selection.all("no successful build of the branch");
+        } else if (lastSuccess.get(0).commitSha().equals(job.getSha())) {
+            selection = TestImpact.Selection.all("commit built before");
+        } else {
+            String base = lastSuccess.get(0).commitSha();
+            details.put("Test selection base", base);
+            List<String> changed = TestImpact.changedFiles(factory.create(), cloneLocation, base, job.getSha());
+            selection = changed == null ? TestImpact.Selection.all("cannot compare with " + base)
+                    : TestImpact.select(cloneLocation, changed);
+        }
+        details.put("Test selection", selection.describe());
+        return selection;
+    }
+
+    /**
+     * Counts the run for the periodic full run of impact selection, a failure is only logged.
+     */
+    private void countTestRun(String repository, String branch, boolean allTests) {
+        try {
+            history.countTestRun(repository, branch, allTests);
+        } catch (IOException e) {
+            System.err.println("Failed to count test run of " + repository + " " + branch + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Keeps the outcome of each test for the test views and notes their counts in the details,
+     * a failure to store them is only logged.
+     */
+    private void storeTestResults(BuildJob job, List<TestReport.TestCase> cases, Map<String, String> details) {
+        if (cases.isEmpty()) {
+            return;
+        }
+        details.put("Tests", TestReport.summary(cases));
+        try {
+            history.storeTestResults(job.getBuildId(), cases);
+        } catch (IOException e) {
+            System.err.println("Failed to store test results of " + job.getBuildId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Keeps the test class durations to balance the shards of the next build, a failure is only logged.
+     */
+    private void storeTestDurations(String repository, Map<String, Long> durations) {
+        try {
+            history.updateTestDurations(repository, durations);
+        } catch (IOException e) {
+            System.err.println("Failed to store test durations of " + repository + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a command of a repository, e.g. {@code test.command}, split at whitespace.
+     */
+    private List<String> commands(String owner, String repo, String key, String defaultCommand) {
+        return Arrays.stream(config.getForRepo(owner, repo, key, defaultCommand).trim().split("\\s+")).toList();
+    }
+
+    /**
+     * Reads the timeout of a stage, {@code timeout.<stage>.seconds}, which can be set per repository.
+     */
+    private Duration stageTimeout(String owner, String repo, String stage, long defaultSeconds) {
+        String seconds = config.getForRepo(owner, repo, "timeout." + stage + ".seconds", String.valueOf(defaultSeconds));
+        return Duration.ofSeconds(Long.parseLong(seconds));
+    }
+
+    private static void addTimes(Map<String, String> details, String stage, long wallTimeMillis, long cpuTimeMillis) {
+        if (wallTimeMillis >= 0) {
+            details.put(stage + " time ms", String.valueOf(wallTimeMillis));
+        }
+        if (cpuTimeMillis >= 0) {
+            details.put(stage + " CPU ms", String.valueOf(cpuTimeMillis));
+        }
+    }
+
+    private void addCloneDetails(Map<String, String> details, String repository, CiClone.CloneResult cloneResult) {
+        details.put("Clone mode", cloneResult.getMode().name().toLowerCase(Locale.ROOT));
+        details.put(BuildHistory.CLONE_TIME, String.valueOf(cloneResult.getDurationMillis()));
+        if (cloneResult.getTreeHash() != null) {
+            details.put("Tree", cloneResult.getTreeHash());
+        }
+        if (cloneResult.getBytes() >= 0) {
+            details.put("Clone bytes", String.valueOf(cloneResult.getBytes()));
+        }
+        if (!cloneResult.isSuccess()) {
+            return;
+        }
+        // Savings are measured against the last full clone of the repository, kept in the history so
+        // they survive restarts; without one the size of the mirror stands in for the size of a full clone
+        try {
+            if (cloneResult.getMode() == CloneMode.FULL) {
+                history.storeCloneBaseline(repository, cloneResult.getBytes(), cloneResult.getDurationMillis());
+                return;
+            }
+            Map<String, Long> baseline = history.getCloneBaseline(repository);
+            long referenceBytes = baseline.getOrDefault("bytes", cloneResult.getReferenceBytes());
+            long bytesSaved = referenceBytes - cloneResult.getBytes();
+            if (referenceBytes >= 0 && cloneResult.getBytes() >= 0 && bytesSaved >= 0) {
+                details.put("Clone bytes saved", String.valueOf(bytesSaved));
+            }
+            Long referenceMillis = baseline.get("millis");
+            if (referenceMillis != null && referenceMillis >= cloneResult.getDurationMillis()) {
+                details.put("Clone time saved ms", String.valueOf(referenceMillis - cloneResult.getDurationMillis()));
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to update the clone baseline of " + repository + ": " + e.getMessage());
+        }
+    }
+
+    private static String workspaceName(BuildJob job) {
+        String id = job.getBuildId();
+        return id.endsWith(".txt") ? id.substring(0, id.length() - ".txt".length()) : id;
+    }
+}
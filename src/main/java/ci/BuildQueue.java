@@ -0,0 +1,158 @@
+package ci;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue of builds served by a fixed pool of worker threads.
+ * The webhook handler only enqueues jobs, the workers run them through a {@link BuildRunner}.
+ * When all workers are busy and the queue is full new jobs are rejected so the caller
+ * can apply back-pressure (HTTP 429).
+ *
+ * Pushes are coalesced per branch: a new job for (owner, repo, branch) supersedes the
+ * previous one. A superseded job that is still queued is removed from the queue, one that
+ * is running is interrupted. Either way the runner is called with the superseded job so it
+ * can report it (on a separate thread for dropped jobs, so no worker is used). A job a worker
+ * already took but did not start yet is run as well, the runner sees it is superseded.
+ */
+public class BuildQueue {
+    private final BuildRunner runner;
+    private final ThreadPoolExecutor executor;
+    private final ExecutorService reporter;
+    // Newest unfinished job per branch, guarded by this
+    private final Map<String, QueuedBuild> latest = new HashMap<>();
+
+    /**
+     * Creates a build queue and starts its workers.
+     *
+     * @param runner     runs the builds
+     * @param workers    number of builds that may run at the same time
+     * @param queueDepth number of builds that may wait for a worker
+     * @throws IllegalArgumentException if workers or queueDepth is less than 1
+     */
+    public BuildQueue(BuildRunner runner, int workers, int queueDepth) {
+        if (workers < 1 || queueDepth < 1) {
+            throw new IllegalArgumentException("workers and queue depth must be at least 1");
+        }
+        this.runner = runner;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth), new NamedThreadFactory("ci-build-worker-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.prestartAllCoreThreads();
+        this.reporter = Executors.newSingleThreadExecutor(new NamedThreadFactory("ci-build-reporter-"));
+    }
+
+    /**
+     * Adds a job to the queue, superseding the previous job of the same branch if there is one.
+     *
+     * @param job the build to run
+     * @return true if the job was queued, false if the queue is full
+     */
+    public synchronized boolean offer(BuildJob job) {
+        QueuedBuild previous = latest.get(job.getBranchKey());
+        // Drop a queued predecessor first so its slot can be reused
+        boolean previousDropped = previous != null && executor.remove(previous.task);
+
+        QueuedBuild build = new QueuedBuild(job);
+        try {
+            executor.execute(build.task);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        latest.put(job.getBranchKey(), build);
+
+        if (previous != null) {
+            // Interrupts it if it is running, the runner reports it when it stops
+            previous.job.supersede(job.getSha());
+            if (previousDropped) {
+                reporter.execute(() -> runJob(previous.job));
+            }
+        }
+        return true;
+    }
+
+    private void runJob(BuildJob job) {
+        job.start();
+        try {
+            runner.run(job);
+        } catch (RuntimeException e) {
+            // Keep the worker alive, a single broken build must not shrink the pool
+            System.err.println("Build " + job.getBuildId() + " crashed: " + e);
+            e.printStackTrace();
+        } finally {
+            // A later push must not interrupt the next job of this thread
+            job.finish();
+        }
+    }
+
+    private synchronized void finished(QueuedBuild build) {
+        latest.remove(build.job.getBranchKey(), build);
+    }
+
+    /** @return number of jobs waiting for a worker */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /** @return number of workers currently running a build */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Stops accepting jobs and waits for running and queued builds to finish.
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout
+     * @return true if all builds finished within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        boolean finished = executor.awaitTermination(timeout, unit);
+        reporter.shutdown();
+        return reporter.awaitTermination(timeout, unit) && finished;
+    }
+
+    /**
+     * A job together with the task that runs it on the executor. The task is never cancelled,
+     * a superseded job still runs so that it is reported.
+     */
+    private final class QueuedBuild {
+        private final BuildJob job;
+        private final Runnable task;
+
+        QueuedBuild(BuildJob job) {
+            this.job = job;
+            this.task = () -> {
+                try {
+                    runJob(job);
+                } finally {
+                    finished(this);
+                }
+            };
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, prefix + counter.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package ci;
+
+/**
+ * Runs a queued build. Implemented by {@link BuildPipeline}, mocked in tests.
+ */
+public interface BuildRunner {
+
+    void run(BuildJob job);
+}
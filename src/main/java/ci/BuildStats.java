@@ -0,0 +1,162 @@
+package ci;
+
+import java.io.PrintWriter;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Percentiles of the build and stage durations per repository and branch, computed from the
+ * build index and served at {@code /builds/stats}.
+ */
+public final class BuildStats {
+    /** Stage names, in the order of the columns. */
+    public static final List<String> STAGES = List.of("Total", "Queue", "Clone", "Compile", "Test", "Notify",
+            "Cleanup");
+
+    private static final List<ToLongFunction<BuildIndex.Entry>> STAGE_MILLIS = List.of(
+            BuildIndex.Entry::durationMillis,
+            entry -> entry.timings().queueMillis(),
+            entry -> entry.timings().cloneMillis(),
+            entry -> entry.timings().compileMillis(),
+            entry -> entry.timings().testMillis(),
+            entry -> entry.timings().notifyMillis(),
+            entry -> entry.timings().cleanupMillis());
+
+    private BuildStats() {
+    }
+
+    /**
+     * Median and 95th percentile of a stage, in milliseconds.
+     *
+     * @param samples number of builds the stage was timed in, the percentiles are -1 if there are none
+     */
+    public record Percentiles(int samples, long p50, long p95) {
+    }
+
+    /**
+     * The percentiles of the builds of one branch.
+     *
+     * @param builds number of builds in the window
+     * @param stages percentiles of each stage, in the order of {@link #STAGES}
+     */
+    public record Summary(String repository, String branch, int builds, List<Percentiles> stages) {
+    }
+
+    /**
+     * Computes the percentiles of the builds that finished in the window. Superseded builds are
+     * left out, they were stopped early. Stages that were not timed, e.g. in records written before
+     * timings were stored, are not counted.
+     *
+     * @param entries the indexed builds
+     * @param since   epoch milliseconds, builds that finished earlier are left out
+     * @return one summary per repository and branch, sorted by repository and branch
+     */
+    public static List<Summary> compute(List<BuildIndex.Entry> entries, long since) {
+        Map<String, List<BuildIndex.Entry>> byBranch = new TreeMap<>();
+        for (BuildIndex.Entry entry : entries) {
+            if (entry.finishedAt() < since || entry.state().equals("superseded")) {
+                continue;
+            }
+            // Tab never occurs in the indexed columns, so the key sorts by repository and then branch
+            byBranch.computeIfAbsent(entry.repository() + "\t" + entry.branch(), k -> new ArrayList<>()).add(entry);
+        }
+        List<Summary> summaries = new ArrayList<>(byBranch.size());
+        for (List<BuildIndex.Entry> builds : byBranch.values()) {
+            List<Percentiles> stages = new ArrayList<>(STAGE_MILLIS.size());
+            for (ToLongFunction<BuildIndex.Entry> millis : STAGE_MILLIS) {
+                stages.add(percentiles(builds, millis));
+            }
+            BuildIndex.Entry first = builds.get(0);
+            summaries.add(new Summary(first.repository(), first.branch(), builds.size(), stages));
+        }
+        return summaries;
+    }
+
+    private static Percentiles percentiles(List<BuildIndex.Entry> builds, ToLongFunction<BuildIndex.Entry> millis) {
+        long[] values = new long[builds.size()];
+        int count = 0;
+        for (BuildIndex.Entry build : builds) {
+            long value = millis.applyAsLong(build);
+            if (value >= 0) {
+                values[count++] = value;
+            }
+        }
+        if (count == 0) {
+            return new Percentiles(0, -1, -1);
+        }
+        Arrays.sort(values, 0, count);
+        return new Percentiles(count, percentile(values, count, 0.5), percentile(values, count, 0.95));
+    }
+
+    /**
+     * @return the nearest-rank percentile of the first {@code count} sorted values
+     */
+    static long percentile(long[] sorted, int count, double fraction) {
+        int rank = (int) Math.ceil(fraction * count);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * Writes the summaries as an HTML table, with the p50 and p95 of each stage in seconds.
+     *
+     * @param out       where the HTML is written
+     * @param summaries the summaries to show
+     * @param window    the window the summaries were computed over, shown in the heading
+     */
+    public static void render(PrintWriter out, List<Summary> summaries, Duration window) {
+        out.println("<h1>Build times of the last " + window.toDays() + " days</h1>");
+        out.print("<table><tr><th>Repository</th><th>Branch</th><th>Builds</th>");
+        for (String stage : STAGES) {
+            out.print("<th>" + stage + " p50</th><th>" + stage + " p95</th>");
+        }
+        out.println("</tr>");
+        for (Summary summary : summaries) {
+            out.print("<tr><td>");
+            out.print(BuildListPage.escapeHtml(summary.repository()));
+            out.print("</td><td>");
+            out.print(BuildListPage.escapeHtml(summary.branch()));
+            out.print("</td><td>");
+            out.print(summary.builds());
+            out.print("</td>");
+            for (Percentiles stage : summary.stages()) {
+                out.print("<td>" + seconds(stage.p50()) + "</td><td>" + seconds(stage.p95()) + "</td>");
+            }
+            out.println("</tr>");
+        }
+        out.println("</table>");
+    }
+
+    /**
+     * @param entry a build
+     * @return an HTML table of the stage times and log sizes of the build, unknown times are left empty
+     */
+    public static String timingTable(BuildIndex.Entry entry) {
+        StringBuilder html = new StringBuilder("<table><tr>");
+        for (String stage : STAGES) {
+            html.append("<th>").append(stage).append("</th>");
+        }
+        html.append("<th>Compile output</th><th>Test output</th></tr>\n<tr>");
+        for (ToLongFunction<BuildIndex.Entry> millis : STAGE_MILLIS) {
+            html.append("<td>").append(seconds(millis.applyAsLong(entry))).append("</td>");
+        }
+        html.append("<td>").append(entry.compileLength()).append(" bytes</td><td>")
+                .append(entry.testLength()).append(" bytes</td></tr></table>\n");
+        return html.toString();
+    }
+
+    /**
+     * @param millis a duration in milliseconds, -1 if unknown
+     * @return the duration in seconds with one decimal, empty if unknown
+     */
+    static String seconds(long millis) {
+        if (millis < 0) {
+            return "";
+        }
+        return (millis / 1000) + "." + (millis % 1000) / 100 + " s";
+    }
+}
@@ -0,0 +1,157 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Compiles and tests a workspace with one command, e.g. {@code mvn test -q}, so the build tool
+ * starts and resolves the project once instead of once per phase.
+ * When the command fails, the phase that failed is read from its output: Maven names the plugin
+ * of the failed goal, e.g. {@code Failed to execute goal org.apache.maven.plugins:maven-compiler-plugin...}.
+ * If the output does not name it, the tests failed if surefire wrote any report, else compilation failed.
+ */
+public class CiBuild {
+    private final CommandExecutorFactory factory;
+    private final List<String> buildCommands;
+    private final Path sourceDir;
+
+    /**
+     * Phase of the build that failed.
+     */
+    public enum Phase {
+        COMPILE, TEST
+    }
+
+    /**
+     * Creates a new CiBuild instance.
+     * @param factory the factory to create command executors
+     * @param buildCommands the command that compiles and tests
+     * @param sourceDir the workspace the command runs in
+     */
+    public CiBuild(CommandExecutorFactory factory, List<String> buildCommands, Path sourceDir) {
+        this.factory = factory;
+        this.buildCommands = buildCommands;
+        this.sourceDir = sourceDir;
+    }
+
+    /**
+     * Result of a build, with the phase that failed.
+     */
+    public static final class BuildResult {
+        private final int exitCode;
+        private final String output;
+        private final Path logFile;
+        private final long wallTimeMillis;
+        private final long cpuTimeMillis;
+        private final long outputBytes;
+        private final boolean timedOut;
+        private final Phase failedPhase;
+
+        public BuildResult(ExecResult result, Phase failedPhase) {
+            this.exitCode = result.getExitCode();
+            this.output = result.getOutput();
+            this.logFile = result.getLogFile();
+            this.wallTimeMillis = result.getWallTimeMillis();
+            this.cpuTimeMillis = result.getCpuTimeMillis();
+            this.outputBytes = result.getOutputBytes();
+            this.timedOut = result.isTimedOut();
+            this.failedPhase = failedPhase;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+
+        /** @return the phase that failed, null if the build succeeded */
+        public Phase getFailedPhase() {
+            return failedPhase;
+        }
+
+        /** @return the file holding the full output, or null if the output was not streamed to a file */
+        public Path getLogFile() {
+            return logFile;
+        }
+
+        /** @return wall-clock time of the command in milliseconds, -1 if unknown */
+        public long getWallTimeMillis() {
+            return wallTimeMillis;
+        }
+
+        /** @return CPU time of the command and its child processes in milliseconds, -1 if unknown */
+        public long getCpuTimeMillis() {
+            return cpuTimeMillis;
+        }
+
+        /** @return size of the full output in bytes, -1 if unknown */
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+
+        /** @return true if the command was killed because it ran longer than its timeout */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+    }
+
+    /**
+     * Runs the build command in the workspace.
+     * @return the result, with the phase that failed
+     * @throws IOException if the command cannot be run
+     * @throws InterruptedException if interrupted while waiting for the command
+     */
+    public BuildResult build() throws IOException, InterruptedException {
+        CommandExecutor executor = factory.create();
+        ExecResult result = executor.execute(buildCommands, sourceDir);
+        if (result.getExitCode() == 0) {
+            return new BuildResult(result, null);
+        }
+        Phase phase = failedPhase(result.getOutput());
+        if (phase == null) {
+            phase = hasTestReports(sourceDir) ? Phase.TEST : Phase.COMPILE;
+        }
+        return new BuildResult(result, phase);
+    }
+
+    /**
+     * Finds the phase of the last failed Maven goal in the output.
+     *
+     * @param output output of the build, or its end
+     * @return the failed phase, null if the output does not name it
+     */
+    static Phase failedPhase(String output) {
+        int goal = output.lastIndexOf("Failed to execute goal ");
+        if (goal < 0) {
+            return output.contains("COMPILATION ERROR") ? Phase.COMPILE : null;
+        }
+        int end = output.indexOf('\n', goal);
+        String line = output.substring(goal, end < 0 ? output.length() : end);
+        if (line.contains("maven-compiler-plugin")) {
+            return Phase.COMPILE;
+        }
+        if (line.contains("maven-surefire-plugin") || line.contains("maven-failsafe-plugin")) {
+            return Phase.TEST;
+        }
+        return null;
+    }
+
+    private static boolean hasTestReports(Path sourceDir) throws IOException {
+        Path reports = sourceDir.resolve("target").resolve("surefire-reports");
+        if (!Files.isDirectory(reports)) {
+            return false;
+        }
+        try (Stream<Path> files = Files.list(reports)) {
+            return files.anyMatch(file -> file.getFileName().toString().endsWith(".xml"));
+        }
+    }
+}
@@ -3,17 +3,23 @@ package ci;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Service for cloning Git repositories and checking out specific commits.
  *
  */
 public class CiClone {
+    // SHA-1 or SHA-256 object names
+    private static final Pattern TREE_HASH = Pattern.compile("[0-9a-f]{40}|[0-9a-f]{64}");
 
     private final CommandExecutorFactory factory;
     private final Path baseDirectory;
+    private final MirrorCache mirrorCache;
+    private final WorkspacePool workspacePool;
 
     /**
      * Creates a CiClone with default settings.
@@ -22,6 +28,8 @@ public class CiClone {
     public CiClone() {
         this.factory = new DefaultCommandExecutorFactory();
         this.baseDirectory = Path.of(System.getProperty("java.io.tmpdir"), "ci-builds");
+        this.mirrorCache = null;
+        this.workspacePool = null;
     }
 
     /**
@@ -32,8 +40,34 @@ public class CiClone {
      * @param testDir the directory where repositories will be cloned
      */
     public CiClone(CommandExecutorFactory factory, Path testDir) {
+        this(factory, testDir, null);
+    }
+
+    /**
+     * Creates a CiClone that creates workspaces from a local mirror cache instead of cloning.
+     *
+     * @param factory       the factory to create command executors
+     * @param baseDirectory the directory where workspaces are created
+     * @param mirrorCache   the mirror cache, or null to do a full clone for every build
+     */
+    public CiClone(CommandExecutorFactory factory, Path baseDirectory, MirrorCache mirrorCache) {
+        this(factory, baseDirectory, mirrorCache, null);
+    }
+
+    /**
+     * Creates a CiClone that can also reuse the workspace of a branch between builds.
+     *
+     * @param factory       the factory to create command executors
+     * @param baseDirectory the directory where workspaces are created
+     * @param mirrorCache   the mirror cache, or null to do a full clone for every build
+     * @param workspacePool the kept workspaces for {@link CloneMode#POOLED}, or null to do a full clone instead
+     */
+    public CiClone(CommandExecutorFactory factory, Path baseDirectory, MirrorCache mirrorCache,
+            WorkspacePool workspacePool) {
         this.factory = factory;
-        this.baseDirectory = testDir;
+        this.baseDirectory = baseDirectory;
+        this.mirrorCache = mirrorCache;
+        this.workspacePool = workspacePool;
     }
 
     /**
@@ -44,6 +78,11 @@ public class CiClone {
         private final String output;
         private final boolean success;
         private final Path clonedDirectory;
+        private final CloneMode mode;
+        private final long bytes;
+        private final long durationMillis;
+        private final long referenceBytes;
+        private final String treeHash;
 
         /**
          * Creates a CloneResult from an ExecResult.
@@ -52,10 +91,31 @@ public class CiClone {
          * @param clonedDirectory the path where the repo was cloned
          */
         public CloneResult(ExecResult result, Path clonedDirectory) {
+            this(result, clonedDirectory, CloneMode.FULL, -1, -1, -1, null);
+        }
+
+        /**
+         * Creates a CloneResult with the cost of the clone and the tree that was checked out.
+         *
+         * @param result          the execution result from git command
+         * @param clonedDirectory the path where the repo was cloned
+         * @param mode            how the repository was cloned
+         * @param bytes           size of the git data downloaded for the workspace, -1 if unknown
+         * @param durationMillis  time spent cloning
+         * @param referenceBytes  estimated size of a full clone, -1 if unknown
+         * @param treeHash        hash of the tree of the checked out commit, null if unknown
+         */
+        public CloneResult(ExecResult result, Path clonedDirectory, CloneMode mode, long bytes,
+                long durationMillis, long referenceBytes, String treeHash) {
             this.exitCode = result.getExitCode();
             this.output = result.getOutput();
             this.success = (this.exitCode == 0);
             this.clonedDirectory = clonedDirectory;
+            this.mode = mode;
+            this.bytes = bytes;
+            this.durationMillis = durationMillis;
+            this.referenceBytes = referenceBytes;
+            this.treeHash = treeHash;
         }
 
         /** @return the exit code of the git command (0 = success) */
@@ -77,6 +137,37 @@ public class CiClone {
         public Path getClonedDirectory() {
             return clonedDirectory;
         }
+
+        /** @return how the repository was cloned */
+        public CloneMode getMode() {
+            return mode;
+        }
+
+        /** @return size of the git data downloaded for the workspace in bytes, -1 if unknown */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** @return time spent cloning in milliseconds, -1 if unknown */
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @return estimated size in bytes of the git data of a full clone, e.g. the size of the mirror,
+         *         -1 if unknown
+         */
+        public long getReferenceBytes() {
+            return referenceBytes;
+        }
+
+        /**
+         * @return hash of the tree of the checked out commit, equal for commits with the same content,
+         *         null if unknown
+         */
+        public String getTreeHash() {
+            return treeHash;
+        }
     }
 
     /**
@@ -90,47 +181,224 @@ public class CiClone {
      * @throws InterruptedException if the git process is interrupted
      */
     public CloneResult gitCloneAndCheckout(String url, String branch, String sha) throws IOException, InterruptedException {
-        Path clonedDirectory = baseDirectory.resolve(sha);
-
-        Files.createDirectories(baseDirectory);
-
-        // If directory exists, it was probably corrupted, delete it
-        if (Files.exists(clonedDirectory)) {
-            try (var paths = Files.walk(clonedDirectory)) {
-                paths.sorted(Comparator.reverseOrder())
-                        .forEach(path -> {
-                            try {
-                                Files.delete(path);
-                            } catch (IOException e) {
-                                throw new RuntimeException("Failed to delete " + path, e);
-                            }
-                        });
+        return gitCloneAndCheckout(url, branch, sha, sha);
+    }
+
+    /**
+     * Clones a repository into a named directory and checks out a specific commit.
+     * Used when the same commit may be cloned by several builds at once.
+     *
+     * @param url           the clone URL of the repository
+     * @param branch        the branch to clone
+     * @param sha           the commit SHA to checkout
+     * @param directoryName name of the directory (inside the base directory) to clone into
+     * @return CloneResult containing success status, output, and cloned directory path
+     * @throws IOException          if directory operations fail
+     * @throws InterruptedException if the git process is interrupted
+     */
+    public CloneResult gitCloneAndCheckout(String url, String branch, String sha, String directoryName)
+            throws IOException, InterruptedException {
+        CloneMode mode = mirrorCache != null ? CloneMode.MIRROR : CloneMode.FULL;
+        return gitCloneAndCheckout(url, branch, sha, directoryName, mode, List.of());
+    }
+
+    /**
+     * Gets the tree of a commit into a named directory using the given clone mode.
+     * The shallow and partial modes can restrict the checkout to some paths (sparse checkout).
+     *
+     * @param url           the clone URL of the repository
+     * @param branch        the branch to clone
+     * @param sha           the commit SHA to checkout
+     * @param directoryName name of the directory (inside the base directory) to clone into
+     * @param mode          how to clone, MIRROR falls back to FULL if there is no mirror cache
+     * @param sparsePaths   paths to check out for the shallow and partial modes, empty for all
+     * @return CloneResult containing success status, output, cloned directory path and clone cost
+     * @throws IOException          if directory operations fail
+     * @throws InterruptedException if the git process is interrupted
+     */
+    public CloneResult gitCloneAndCheckout(String url, String branch, String sha, String directoryName,
+            CloneMode mode, List<String> sparsePaths) throws IOException, InterruptedException {
+        Path clonedDirectory = baseDirectory.resolve(directoryName);
+        if (mode == CloneMode.POOLED) {
+            Path pooled = workspacePool == null ? null : workspacePool.acquire(url, branch);
+            if (pooled == null) {
+                // No pool, or another build of the branch uses its workspace
+                mode = CloneMode.FULL;
+            } else {
+                clonedDirectory = pooled;
+            }
+        }
+
+        try {
+            Files.createDirectories(baseDirectory);
+
+            // If directory exists, it was probably corrupted, delete it
+            if (mode != CloneMode.POOLED && Files.exists(clonedDirectory)) {
+                try (var paths = Files.walk(clonedDirectory)) {
+                    paths.sorted(Comparator.reverseOrder())
+                            .forEach(path -> {
+                                try {
+                                    Files.delete(path);
+                                } catch (IOException e) {
+                                    throw new RuntimeException("Failed to delete " + path, e);
+                                }
+                            });
+                }
+            }
+
+            if (mode == CloneMode.MIRROR && mirrorCache == null) {
+                mode = CloneMode.FULL;
             }
+            long start = System.nanoTime();
+            ExecResult result = switch (mode) {
+                // Fetch into the mirror and add a worktree, no full clone needed
+                case MIRROR -> mirrorCache.checkout(url, sha, clonedDirectory.toAbsolutePath());
+                case SHALLOW -> shallowClone(url, sha, directoryName, clonedDirectory, sparsePaths);
+                case PARTIAL -> partialClone(url, branch, sha, directoryName, clonedDirectory, sparsePaths);
+                case FULL -> fullClone(url, branch, sha, directoryName, clonedDirectory);
+                case POOLED -> workspacePool.checkout(url, branch, sha, clonedDirectory);
+            };
+            long durationMillis = (System.nanoTime() - start) / 1_000_000;
+            if (result.getExitCode() != 0) {
+                return new CloneResult(result, clonedDirectory, mode, -1, durationMillis, -1, null);
+            }
+
+            long bytes = -1;
+            long referenceBytes = -1;
+            if (mode == CloneMode.MIRROR) {
+                // A worktree has a .git file pointing to the mirror, the build only fetched into the mirror
+                MirrorCache.Fetch fetch = mirrorCache.getFetch(clonedDirectory.toAbsolutePath());
+                if (fetch != null) {
+                    bytes = fetch.bytes();
+                    referenceBytes = fetch.mirrorBytes();
+                }
+            } else if (mode != CloneMode.POOLED && Files.isDirectory(clonedDirectory.resolve(".git"))) {
+                // A pooled workspace only fetched what is new, unknown
+                bytes = sizeOf(clonedDirectory.resolve(".git"));
+            }
+            return new CloneResult(result, clonedDirectory, mode, bytes, durationMillis, referenceBytes,
+                    treeHash(clonedDirectory));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // The caller gets no workspace to clean up, e.g. when a superseded build is interrupted;
+            // a pooled workspace or a mirror would stay taken until a restart
+            cleanup(clonedDirectory);
+            throw e;
         }
+    }
+
+    /**
+     * Reads the hash of the checked out tree. Sparse checkouts still have the full tree in the commit.
+     *
+     * @return the hash, or null if git cannot tell
+     */
+    private String treeHash(Path clonedDirectory) throws IOException, InterruptedException {
+        ExecResult tree = factory.create().execute(List.of("git", "rev-parse", "HEAD^{tree}"), clonedDirectory);
+        String hash = tree.getOutput() == null ? "" : tree.getOutput().trim();
+        return tree.getExitCode() == 0 && TREE_HASH.matcher(hash).matches() ? hash : null;
+    }
 
+    private ExecResult fullClone(String url, String branch, String sha, String directoryName, Path clonedDirectory)
+            throws IOException, InterruptedException {
         CommandExecutor executor = factory.create();
 
-        // git clone --branch <branch> --single-branch <url> <sha>
-        List<String> cloneCommand = List.of("git", "clone", "--branch", branch, "--single-branch", url, sha);
+        // git clone --branch <branch> --single-branch <url> <directoryName>
+        List<String> cloneCommand = List.of("git", "clone", "--branch", branch, "--single-branch", url, directoryName);
         ExecResult cloneResult = executor.execute(cloneCommand, baseDirectory);
         if (cloneResult.getExitCode() != 0) {
-            return new CloneResult(cloneResult, clonedDirectory);
+            return cloneResult;
         }
 
         // git checkout <sha>
         List<String> checkoutCommand = List.of("git", "checkout", sha);
-        ExecResult checkoutResult = executor.execute(checkoutCommand, clonedDirectory);
+        return executor.execute(checkoutCommand, clonedDirectory);
+    }
 
-        return new CloneResult(checkoutResult, clonedDirectory);
+    private ExecResult shallowClone(String url, String sha, String directoryName, Path clonedDirectory,
+            List<String> sparsePaths) throws IOException, InterruptedException {
+        CommandExecutor executor = factory.create();
+        List<List<String>> commands = new ArrayList<>();
+        commands.add(List.of("git", "remote", "add", "origin", url));
+        if (!sparsePaths.isEmpty()) {
+            commands.add(sparseCheckoutCommand(sparsePaths));
+        }
+        // Only the commit itself, without any history
+        commands.add(List.of("git", "fetch", "--depth", "1", "origin", sha));
+        commands.add(List.of("git", "checkout", "--detach", "FETCH_HEAD"));
+
+        ExecResult init = executor.execute(List.of("git", "init", "-q", directoryName), baseDirectory);
+        if (init.getExitCode() != 0) {
+            return init;
+        }
+        return runAll(executor, commands, clonedDirectory, init.getOutput());
+    }
+
+    private ExecResult partialClone(String url, String branch, String sha, String directoryName,
+            Path clonedDirectory, List<String> sparsePaths) throws IOException, InterruptedException {
+        CommandExecutor executor = factory.create();
+        // History without file contents, blobs are fetched lazily by the checkout
+        ExecResult clone = executor.execute(List.of("git", "clone", "--filter=blob:none", "--no-checkout",
+                "--branch", branch, "--single-branch", url, directoryName), baseDirectory);
+        if (clone.getExitCode() != 0) {
+            return clone;
+        }
+        List<List<String>> commands = new ArrayList<>();
+        if (!sparsePaths.isEmpty()) {
+            commands.add(sparseCheckoutCommand(sparsePaths));
+        }
+        commands.add(List.of("git", "checkout", sha));
+        return runAll(executor, commands, clonedDirectory, clone.getOutput());
+    }
+
+    private static List<String> sparseCheckoutCommand(List<String> sparsePaths) {
+        List<String> command = new ArrayList<>(List.of("git", "sparse-checkout", "set", "--no-cone"));
+        command.addAll(sparsePaths);
+        return command;
+    }
+
+    /**
+     * Runs commands one after the other until one fails.
+     *
+     * @return the result of the last command run, with the output of all of them
+     */
+    private static ExecResult runAll(CommandExecutor executor, List<List<String>> commands, Path workDir,
+            String previousOutput) throws IOException, InterruptedException {
+        StringBuilder output = new StringBuilder(previousOutput);
+        ExecResult result = new ExecResult(0, "");
+        for (List<String> command : commands) {
+            result = executor.execute(command, workDir);
+            output.append(result.getOutput());
+            if (result.getExitCode() != 0) {
+                break;
+            }
+        }
+        return new ExecResult(result.getExitCode(), output.toString());
+    }
+
+    private static long sizeOf(Path dir) {
+        try (var paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> {
+                try {
+                    return Files.size(path);
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        } catch (IOException e) {
+            return -1;
+        }
     }
 
     /**
      * Recursively deletes a directory.
+     * Workspaces created from the mirror cache are given back to it, pooled workspaces are kept.
      * Logs a warning on failure but does not throw.
      *
      * @param dir the directory to delete
      */
     public void cleanup(Path dir) {
+        if (workspacePool != null && workspacePool.release(dir)) {
+            return;
+        }
         try {
             if (Files.exists(dir)) {
                 try (var paths = Files.walk(dir)) {
@@ -147,5 +415,8 @@ public class CiClone {
         } catch (IOException e) {
             System.err.println("Warning: Failed to clean up " + dir + ": " + e.getMessage());
         }
+        if (mirrorCache != null) {
+            mirrorCache.release(dir.toAbsolutePath());
+        }
     }
 }
@@ -36,11 +36,21 @@ public class CiCompile {
     private final int exitCode;
     private final String output;
     private final boolean success;
+    private final Path logFile;
+    private final long wallTimeMillis;
+    private final long cpuTimeMillis;
+    private final long outputBytes;
+    private final boolean timedOut;
 
     public CompileResult(ExecResult result) {
       this.exitCode = result.getExitCode();
       this.output = result.getOutput();
       this.success = (this.exitCode == 0);
+      this.logFile = result.getLogFile();
+      this.wallTimeMillis = result.getWallTimeMillis();
+      this.cpuTimeMillis = result.getCpuTimeMillis();
+      this.outputBytes = result.getOutputBytes();
+      this.timedOut = result.isTimedOut();
     }
 
     public int getExitCode() {
@@ -54,6 +64,33 @@ public class CiCompile {
     public boolean isSuccess() {
       return success;
     }
+
+    /**
+     * @return the file holding the full output, or null if the output was not streamed to a file
+     */
+    public Path getLogFile() {
+      return logFile;
+    }
+
+    /** @return wall-clock time of the commands in milliseconds, -1 if unknown */
+    public long getWallTimeMillis() {
+      return wallTimeMillis;
+    }
+
+    /** @return CPU time of the commands and their child processes in milliseconds, -1 if unknown */
+    public long getCpuTimeMillis() {
+      return cpuTimeMillis;
+    }
+
+    /** @return size of the full output in bytes, -1 if unknown */
+    public long getOutputBytes() {
+      return outputBytes;
+    }
+
+    /** @return true if the commands were killed because they ran longer than their timeout */
+    public boolean isTimedOut() {
+      return timedOut;
+    }
   }
 
   /**
@@ -0,0 +1,106 @@
+package ci;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Configuration of the CI server.
+ * Settings are read from an optional {@code ci.properties} file in the working directory
+ * and can be overridden with system properties prefixed with {@code ci.}
+ * (e.g. {@code -Dci.workers=4} overrides {@code workers}).
+ * Repository specific settings use keys of the form {@code repo.<owner>/<name>.<key>}
+ * and fall back to the global {@code <key>}.
+ */
+public class CiConfig {
+    private final Properties properties;
+
+    /**
+     * Creates a configuration from the given properties.
+     *
+     * @param properties the settings, keys without the {@code ci.} prefix
+     */
+    public CiConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Loads the configuration from {@code ci.properties} (if present) and system properties.
+     *
+     * @return the loaded configuration
+     * @throws IOException if the properties file exists but cannot be read
+     */
+    public static CiConfig load() throws IOException {
+        Properties properties = new Properties();
+        Path file = Path.of("ci.properties");
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("ci.")) {
+                properties.setProperty(name.substring("ci.".length()), System.getProperty(name));
+            }
+        }
+        return new CiConfig(properties);
+    }
+
+    /**
+     * @param key          the setting name
+     * @param defaultValue the value used when the setting is missing
+     * @return the trimmed value of the setting or the default
+     */
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    /**
+     * @param key          the setting name
+     * @param defaultValue the value used when the setting is missing
+     * @return the setting parsed as an int
+     * @throws NumberFormatException if the setting is not a number
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * @param key          the setting name
+     * @param defaultValue the value used when the setting is missing
+     * @return the setting parsed as a long
+     * @throws NumberFormatException if the setting is not a number
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * @param key          the setting name
+     * @param defaultValue the value used when the setting is missing
+     * @return true if the setting is "true" (ignoring case)
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Looks up a repository specific setting, falling back to the global one.
+     *
+     * @param owner        the repository owner
+     * @param repo         the repository name
+     * @param key          the setting name
+     * @param defaultValue the value used when neither setting is present
+     * @return the repository setting, the global setting or the default
+     */
+    public String getForRepo(String owner, String repo, String key, String defaultValue) {
+        return getString("repo." + owner + "/" + repo + "." + key, getString(key, defaultValue));
+    }
+}
@@ -0,0 +1,219 @@
+package ci;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, histograms and gauges of the server, written in the Prometheus text format
+ * at {@code /metrics}.
+ * <p>
+ * Recording only adds to {@link LongAdder}s, so it does not lock or contend between
+ * workers. Looking a series up by name and labels is a concurrent map read; callers on hot paths
+ * keep the returned {@link Counter} or {@link Histogram} instead.
+ */
+public class CiMetrics {
+    /** Bucket upper bounds for durations, in seconds. */
+    public static final double[] DURATION_BUCKETS = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800};
+    /** Bucket upper bounds for sizes, in bytes. */
+    public static final double[] BYTES_BUCKETS = {
+            1024, 16 * 1024, 128 * 1024, 1024 * 1024, 8 * 1024 * 1024, 64 * 1024 * 1024, 512 * 1024 * 1024};
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * A count that only goes up.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Distribution of observed values in fixed buckets.
+     */
+    public static final class Histogram {
+        private final double[] bounds;
+        // One more than bounds, the last one counts values above the highest bound
+        private final LongAdder[] buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+        private final LongAdder count = new LongAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int bucket = Arrays.binarySearch(bounds, value);
+            buckets[bucket >= 0 ? bucket : -bucket - 1].increment();
+            sum.add(value);
+            count.increment();
+        }
+
+        /**
+         * @param millis a duration in milliseconds, observed in seconds
+         */
+        public void observeMillis(long millis) {
+            observe(millis / 1000.0);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getSum() {
+            return sum.sum();
+        }
+    }
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    /**
+     * The series of one metric name, by label set.
+     */
+    private record Family(String name, String help, Type type, Map<String, Object> series) {
+    }
+
+    /**
+     * Returns the counter of a name and label set, created on first use.
+     *
+     * @param name   metric name, e.g. {@code ci_builds_total}
+     * @param help   description of the metric
+     * @param labels label names and values, alternating
+     * @return the counter
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).series.computeIfAbsent(labels(labels), l -> new Counter());
+    }
+
+    /**
+     * Returns the histogram of a name and label set, created on first use.
+     *
+     * @param name    metric name, e.g. {@code ci_stage_duration_seconds}
+     * @param help    description of the metric
+     * @param buckets bucket upper bounds in increasing order, e.g. {@link #DURATION_BUCKETS}
+     * @param labels  label names and values, alternating
+     * @return the histogram
+     */
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).series.computeIfAbsent(labels(labels),
+                l -> new Histogram(buckets));
+    }
+
+    /**
+     * Registers a gauge, read when the metrics are written.
+     *
+     * @param name   metric name, e.g. {@code ci_queue_depth}
+     * @param help   description of the metric
+     * @param value  supplies the current value
+     * @param labels label names and values, alternating
+     */
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).series.put(labels(labels), value);
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type, new ConcurrentHashMap<>()));
+        if (family.type != type) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                switch (c) {
+                    case '\\' -> text.append("\\\\");
+                    case '"' -> text.append("\\\"");
+                    case '\n' -> text.append("\\n");
+                    default -> text.append(c);
+                }
+            }
+            text.append('"');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format, sorted by name and labels.
+     *
+     * @param out where the metrics are written
+     * @throws IOException if writing fails
+     */
+    public void writeTo(Appendable out) throws IOException {
+        for (Family family : new TreeMap<>(families).values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ')
+                    .append(family.type.name().toLowerCase(Locale.ROOT)).append('\n');
+            for (Map.Entry<String, Object> series : new TreeMap<>(family.series).entrySet()) {
+                String labels = series.getKey();
+                switch (family.type) {
+                    case COUNTER -> sample(out, family.name, labels, ((Counter) series.getValue()).get());
+                    case GAUGE -> sample(out, family.name, labels, ((LongSupplier) series.getValue()).getAsLong());
+                    case HISTOGRAM -> writeHistogram(out, family.name, labels, (Histogram) series.getValue());
+                }
+            }
+        }
+    }
+
+    private static void writeHistogram(Appendable out, String name, String labels, Histogram histogram)
+            throws IOException {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets.length; i++) {
+            cumulative += histogram.buckets[i].sum();
+            String bound = i < histogram.bounds.length ? number(histogram.bounds[i]) : "+Inf";
+            out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"").append(bound)
+                    .append("\"} ").append(String.valueOf(cumulative)).append('\n');
+        }
+        sample(out, name + "_sum", labels, histogram.getSum());
+        sample(out, name + "_count", labels, histogram.getCount());
+    }
+
+    private static void sample(Appendable out, String name, String labels, Object value) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value instanceof Double d ? number(d) : String.valueOf(value)).append('\n');
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value);
+    }
+}
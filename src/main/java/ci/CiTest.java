@@ -1,17 +1,38 @@
 package ci;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Executes a test command in a workspace and captures the result.
  * Anything else than a non zero exit code is considered as failure.
+ * With {@link Sharding} the tests are compiled once, split into shards of about equal duration and
+ * the shards run as parallel processes; their results and logs are merged into one result.
+ * With a selection of test classes only these run, e.g. the ones affected by a change ({@link TestImpact}).
+ * The outcome of each test is read from the Surefire reports the run wrote ({@link TestReport}).
  */
 public class CiTest {
+    // How often the logs of running shards are copied into the test log
+    private static final long SHARD_LOG_POLL_MILLIS = 200;
+
     private final CommandExecutorFactory factory;
     private final List<String> testCommands;
     private final Path sourceDir;
+    private final Sharding sharding;
+    private final List<String> testClasses;
 
     /**
      * Creates a new CiTest instance.
@@ -20,9 +41,50 @@ public class CiTest {
      * @param sourceDir the target dir
      */
     public CiTest(CommandExecutorFactory factory, List<String> testCommands, Path sourceDir) {
+        this(factory, testCommands, sourceDir, null);
+    }
+
+    /**
+     * Creates a CiTest that runs the tests in shards.
+     * @param factory the factory to create command executors, {@code create(Path)} is used for each shard
+     * @param testCommands the commands to run tests when there are too few test classes to shard
+     * @param sourceDir the target dir
+     * @param sharding how to split the tests, or null to run the test commands as one process
+     */
+    public CiTest(CommandExecutorFactory factory, List<String> testCommands, Path sourceDir, Sharding sharding) {
+        this(factory, testCommands, sourceDir, sharding, null);
+    }
+
+    /**
+     * Creates a CiTest that runs only some of the test classes.
+     * @param factory the factory to create command executors, {@code create(Path)} is used for each shard
+     * @param testCommands the commands to run tests, {@code -Dtest=<classes>} is appended when not sharded
+     * @param sourceDir the target dir
+     * @param sharding how to split the tests, or null to run the test commands as one process
+     * @param testClasses the fully qualified test classes to run, or null to run all;
+     *                    if empty nothing runs and the result is a success
+     */
+    public CiTest(CommandExecutorFactory factory, List<String> testCommands, Path sourceDir, Sharding sharding,
+            List<String> testClasses) {
         this.factory = factory;
         this.testCommands = testCommands;
         this.sourceDir = sourceDir;
+        this.sharding = sharding;
+        this.testClasses = testClasses;
+    }
+
+    /**
+     * How to split the tests into shards that run in parallel.
+     *
+     * @param shards         maximum number of shards
+     * @param compileCommand compiles the tests once before the shards run, e.g. {@code mvn test-compile -q}
+     * @param shardCommands  the command of each shard, runs compiled tests, {@code -Dtest=<classes of the shard>}
+     *                       is appended; shards running at the same time must not share a local Maven repository
+     * @param durations      known durations of the test classes in milliseconds, to balance the shards
+     * @param logFile        the log the output of the shards is merged into
+     */
+    public record Sharding(int shards, List<String> compileCommand, List<List<String>> shardCommands,
+            Map<String, Long> durations, Path logFile) {
     }
 
     /**
@@ -32,11 +94,42 @@ public class CiTest {
         private final int exitCode;
         private final String output;
         private final boolean success;
+        private final Path logFile;
+        private final long wallTimeMillis;
+        private final long cpuTimeMillis;
+        private final long outputBytes;
+        private final boolean timedOut;
+        private final List<Integer> shardExitCodes;
+        private final Map<String, Long> testDurations;
+        private final List<TestReport.TestCase> testCases;
 
         public TestResult(ExecResult result) {
+            this(result, List.of(), Map.of());
+        }
+
+        public TestResult(ExecResult result, List<Integer> shardExitCodes, Map<String, Long> testDurations) {
+            this(result, shardExitCodes, testDurations, List.of());
+        }
+
+        /**
+         * @param result         the result of the test run, merged over all shards
+         * @param shardExitCodes the exit code of each shard
+         * @param testDurations  duration in milliseconds of each test class that ran
+         * @param testCases      the tests that ran, from the Surefire reports
+         */
+        public TestResult(ExecResult result, List<Integer> shardExitCodes, Map<String, Long> testDurations,
+                List<TestReport.TestCase> testCases) {
             this.exitCode = result.getExitCode();
             this.output = result.getOutput();
             this.success = (this.exitCode == 0);
+            this.logFile = result.getLogFile();
+            this.wallTimeMillis = result.getWallTimeMillis();
+            this.cpuTimeMillis = result.getCpuTimeMillis();
+            this.outputBytes = result.getOutputBytes();
+            this.timedOut = result.isTimedOut();
+            this.shardExitCodes = shardExitCodes;
+            this.testDurations = testDurations;
+            this.testCases = testCases;
         }
 
         public int getExitCode() {
@@ -50,6 +143,48 @@ public class CiTest {
         public boolean isSuccess() {
             return success;
         }
+
+        /**
+         * @return the file holding the full output, or null if the output was not streamed to a file
+         */
+        public Path getLogFile() {
+            return logFile;
+        }
+
+        /** @return wall-clock time of the commands in milliseconds, -1 if unknown */
+        public long getWallTimeMillis() {
+            return wallTimeMillis;
+        }
+
+        /** @return CPU time of the commands and their child processes in milliseconds, -1 if unknown */
+        public long getCpuTimeMillis() {
+            return cpuTimeMillis;
+        }
+
+        /** @return size of the full output in bytes, -1 if unknown */
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+
+        /** @return true if the commands were killed because they ran longer than their timeout */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /** @return the exit code of each shard, empty if the tests were not sharded */
+        public List<Integer> getShardExitCodes() {
+            return shardExitCodes;
+        }
+
+        /** @return duration in milliseconds of each test class, empty if the tests were not sharded */
+        public Map<String, Long> getTestDurations() {
+            return testDurations;
+        }
+
+        /** @return the outcome and duration of each test, empty if no Surefire reports were written */
+        public List<TestReport.TestCase> getTestCases() {
+            return testCases;
+        }
     }
 
     /**
@@ -60,8 +195,216 @@ public class CiTest {
      * @throws InterruptedException if the process is interrupted
      */
     public TestResult runTests() throws IOException, InterruptedException {
-        CommandExecutor executor = factory.create();
-        ExecResult result = executor.execute(testCommands, sourceDir);
-        return new TestResult(result);
+        if (testClasses != null && testClasses.isEmpty()) {
+            return new TestResult(new ExecResult(0, "No test classes selected, no tests run\n"));
+        }
+        // Reports written before the run, e.g. by an earlier build, are not read; the margin allows
+        // for file systems that keep modification times in whole seconds
+        long reportsSince = System.currentTimeMillis() - 1000;
+        if (sharding == null || sharding.shards() < 2) {
+            CommandExecutor executor = factory.create();
+            ExecResult result = executor.execute(selected(testCommands), sourceDir);
+            return new TestResult(result, List.of(), Map.of(), TestReport.parseReports(sourceDir, reportsSince));
+        }
+        long start = System.nanoTime();
+        ExecResult compiled = factory.create(sharding.logFile()).execute(sharding.compileCommand(), sourceDir);
+        if (compiled.getExitCode() != 0) {
+            return new TestResult(compiled);
+        }
+        List<String> classes = testClasses != null ? testClasses : TestShards.discover(sourceDir);
+        if (classes.size() < 2) {
+            ExecResult result = factory.create(sharding.logFile()).execute(selected(testCommands), sourceDir);
+            return new TestResult(result, List.of(), Map.of(), TestReport.parseReports(sourceDir, reportsSince));
+        }
+        List<List<String>> shards = TestShards.balance(classes, sharding.durations(), sharding.shards());
+        List<ExecResult> results;
+        long logStart = Files.exists(sharding.logFile()) ? Files.size(sharding.logFile()) : 0;
+        try (OutputStream log = Files.newOutputStream(sharding.logFile(), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+            results = runShards(shards, log);
+        }
+
+        // Merged in shard order, the first failing shard decides the exit code
+        int exitCode = 0;
+        long cpuTimeMillis = Math.max(0, compiled.getCpuTimeMillis());
+        boolean timedOut = false;
+        List<Integer> exitCodes = new ArrayList<>(results.size());
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < results.size(); i++) {
+            ExecResult result = results.get(i);
+            exitCodes.add(result.getExitCode());
+            if (exitCode == 0) {
+                exitCode = result.getExitCode();
+            }
+            timedOut |= result.isTimedOut();
+            cpuTimeMillis += Math.max(0, result.getCpuTimeMillis());
+            output.append(shardHeader(i, results.size(), shards.get(i).size(), result.getExitCode()))
+                    .append(result.getOutput());
+        }
+        long outputBytes = Math.max(0, compiled.getOutputBytes()) + Files.size(sharding.logFile()) - logStart;
+        ExecResult merged = new ExecResult(exitCode, output.toString(), sharding.logFile(), outputBytes,
+                (System.nanoTime() - start) / 1_000_000, cpuTimeMillis, timedOut);
+        return new TestResult(merged, exitCodes, TestShards.readDurations(sourceDir, reportsSince),
+                TestReport.parseReports(sourceDir, reportsSince));
+    }
+
+    private static String shardHeader(int shard, int shards, int classes, int exitCode) {
+        return "\n----- Shard " + (shard + 1) + "/" + shards + ": " + classes + " test classes, exit code " + exitCode
+                + " -----\n";
+    }
+
+    /**
+     * Restricts a test command to the selected classes. Modules without any of them must not fail.
+     */
+    private List<String> selected(List<String> command) {
+        if (testClasses == null) {
+            return command;
+        }
+        List<String> selected = new ArrayList<>(command);
+        selected.add("-Dtest=" + String.join(",", testClasses));
+        selected.add("-Dsurefire.failIfNoSpecifiedTests=false");
+        return selected;
+    }
+
+    /**
+     * Runs each shard as a process of its own, all at the same time, each with its own log file.
+     * While they run, the complete lines of the shard logs are copied into the merged log as they
+     * arrive, prefixed with the shard number, so the test log can be followed live.
+     * Interrupting the calling thread stops all shards.
+     */
+    private List<ExecResult> runShards(List<List<String>> shards, OutputStream log)
+            throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(shards.size(), runnable -> {
+            Thread thread = new Thread(runnable, "ci-test-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<ShardLog> shardLogs = new ArrayList<>(shards.size());
+        try {
+            List<Future<ExecResult>> futures = new ArrayList<>(shards.size());
+            for (int i = 0; i < shards.size(); i++) {
+                List<String> command = new ArrayList<>(sharding.shardCommands().get(i));
+                command.add("-Dtest=" + String.join(",", shards.get(i)));
+                Path shardLog = sharding.logFile().resolveSibling(sharding.logFile().getFileName() + ".shard-" + (i + 1));
+                shardLogs.add(new ShardLog(shardLog, "[shard " + (i + 1) + "] "));
+                futures.add(pool.submit(() -> factory.create(shardLog).execute(command, sourceDir)));
+            }
+            ExecResult[] results = new ExecResult[shards.size()];
+            int running = shards.size();
+            while (running > 0) {
+                for (int i = 0; i < shards.size(); i++) {
+                    if (results[i] != null) {
+                        continue;
+                    }
+                    if (!futures.get(i).isDone()) {
+                        shardLogs.get(i).copyLines(log);
+                        continue;
+                    }
+                    results[i] = result(futures.get(i));
+                    shardLogs.get(i).copyRest(log, results[i]);
+                    log.write(shardHeader(i, shards.size(), shards.get(i).size(), results[i].getExitCode())
+                            .getBytes(StandardCharsets.UTF_8));
+                    running--;
+                }
+                log.flush();
+                if (running > 0) {
+                    Thread.sleep(SHARD_LOG_POLL_MILLIS);
+                }
+            }
+            return List.of(results);
+        } finally {
+            // Interrupts shards still running, which destroys their processes
+            pool.shutdownNow();
+            for (ShardLog shardLog : shardLogs) {
+                shardLog.delete();
+            }
+        }
+    }
+
+    private static ExecResult result(Future<ExecResult> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Test shard failed", e.getCause());
+        }
+    }
+
+    /**
+     * The log file of a running shard and how much of it was copied into the merged log.
+     */
+    private static final class ShardLog {
+        private final Path file;
+        private final byte[] prefix;
+        private long copied;
+        // Start of a line not yet complete at the last copy
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+
+        ShardLog(Path file, String prefix) {
+            this.file = file;
+            this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Copies the complete lines written since the last copy.
+         */
+        void copyLines(OutputStream log) throws IOException {
+            if (!Files.exists(file)) {
+                return;
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                in.skipNBytes(copied);
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    copied += read;
+                    int lineStart = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            partial.write(buffer, lineStart, i + 1 - lineStart);
+                            writeLine(log);
+                            lineStart = i + 1;
+                        }
+                    }
+                    partial.write(buffer, lineStart, read - lineStart);
+                }
+            }
+        }
+
+        /**
+         * Copies the rest of the log of a finished shard, or its output if it was not streamed to the log.
+         */
+        void copyRest(OutputStream log, ExecResult result) throws IOException {
+            if (result.getLogFile() != null && Files.exists(file)) {
+                copyLines(log);
+            } else if (result.getOutput() != null) {
+                for (String line : result.getOutput().split("(?<=\n)")) {
+                    partial.write(line.getBytes(StandardCharsets.UTF_8));
+                    if (line.endsWith("\n")) {
+                        writeLine(log);
+                    }
+                }
+            }
+            if (partial.size() > 0) {
+                partial.write('\n');
+                writeLine(log);
+            }
+        }
+
+        private void writeLine(OutputStream log) throws IOException {
+            log.write(prefix);
+            partial.writeTo(log);
+            partial.reset();
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Left next to the logs, deleted with the log directory
+            }
+        }
     }
 }
@@ -0,0 +1,28 @@
+package ci;
+
+/**
+ * How {@link CiClone} gets the tree of the commit to build.
+ */
+public enum CloneMode {
+    /** Clone the full history of the branch, then check out the commit. */
+    FULL,
+    /** Fetch into a cached bare mirror and add a worktree for the commit, see {@link MirrorCache}. */
+    MIRROR,
+    /** Fetch only the commit itself ({@code --depth 1}), no history. */
+    SHALLOW,
+    /** Clone the history without file contents ({@code --filter=blob:none}), blobs are fetched on checkout. */
+    PARTIAL,
+    /** Move the kept workspace of the branch to the commit, build output included, see {@link WorkspacePool}. */
+    POOLED;
+
+    /**
+     * Parses a mode name as used in the configuration, ignoring case.
+     *
+     * @param name the mode name, e.g. "shallow"
+     * @return the clone mode
+     * @throws IllegalArgumentException if the name is not a clone mode
+     */
+    public static CloneMode parse(String name) {
+        return valueOf(name.trim().toUpperCase(java.util.Locale.ROOT));
+    }
+}
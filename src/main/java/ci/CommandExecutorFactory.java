@@ -1,6 +1,32 @@
 package ci;
 
+import java.nio.file.Path;
+import java.time.Duration;
+
 // ci/CommandExecutorFactory.java
 public interface CommandExecutorFactory {
   CommandExecutor create();
+
+  /**
+   * Creates an executor whose output should end up in a log file.
+   * Executors that cannot stream their output just return it in the ExecResult
+   * and the caller writes it to the log file.
+   *
+   * @param logFile the file to append the output to
+   * @return an executor, by default the one from {@link #create()}
+   */
+  default CommandExecutor create(Path logFile) {
+    return create();
+  }
+
+  /**
+   * Creates an executor writing to a log file that kills commands running longer than the timeout.
+   *
+   * @param logFile the file to append the output to
+   * @param timeout maximum wall-clock time of a command
+   * @return an executor, by default the one from {@link #create(Path)}
+   */
+  default CommandExecutor create(Path logFile, Duration timeout) {
+    return create(logFile);
+  }
 }
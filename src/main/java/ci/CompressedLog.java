@@ -0,0 +1,233 @@
+package ci;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed file made of independently deflated frames, so any byte range can be read
+ * by inflating only the frames it covers.
+ * <p>
+ * Layout: a magic header, the frames (each holding {@code frameSize} bytes of content, except the
+ * last one), a table with the file position of every frame and a fixed size trailer
+ * (table position, content length, frame size, frame count, magic). Reads memory-map the
+ * table and the frames they need, nothing is loaded beyond one frame at a time.
+ */
+public final class CompressedLog {
+    /** Content bytes per frame. */
+    public static final int DEFAULT_FRAME_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = {'C', 'I', 'L', 'O', 'G', '1', '\r', '\n'};
+    private static final int TRAILER_MAGIC = 0x43494c5a; // "CILZ"
+    private static final int TRAILER_SIZE = Long.BYTES * 2 + Integer.BYTES * 3;
+
+    private CompressedLog() {
+    }
+
+    /**
+     * Creates a compressed file. The content is complete once the returned stream is closed.
+     *
+     * @param file      the file to create, replaced if it exists
+     * @param frameSize content bytes per frame
+     * @return the stream to write the content to
+     * @throws IOException if the file cannot be created
+     */
+    public static OutputStream create(Path file, int frameSize) throws IOException {
+        return new FrameWriter(file, frameSize);
+    }
+
+    /**
+     * @param file a file created by {@link #create(Path, int)}
+     * @return the number of content bytes
+     * @throws IOException if the file cannot be read or is not a compressed log
+     */
+    public static long length(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return Trailer.read(channel).contentLength;
+        }
+    }
+
+    /**
+     * Copies a range of the content.
+     *
+     * @param file   a file created by {@link #create(Path, int)}
+     * @param offset first content byte to copy
+     * @param length maximum number of bytes to copy, -1 for the rest of the content
+     * @param out    where the bytes are written
+     * @return the number of bytes copied, less than length at the end of the content
+     * @throws IOException if the file cannot be read, is damaged or writing fails
+     */
+    public static long read(Path file, long offset, long length, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Trailer trailer = Trailer.read(channel);
+            long end = length < 0 ? trailer.contentLength : Math.min(trailer.contentLength, offset + length);
+            if (offset >= end) {
+                return 0;
+            }
+            int firstFrame = (int) (offset / trailer.frameSize);
+            int lastFrame = (int) ((end - 1) / trailer.frameSize);
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, trailer.tableOffset,
+                    (long) trailer.frameCount * Long.BYTES);
+            long mapStart = table.getLong(firstFrame * Long.BYTES);
+            long mapEnd = frameEnd(table, lastFrame, trailer);
+            MappedByteBuffer frames = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+
+            byte[] content = new byte[trailer.frameSize];
+            Inflater inflater = new Inflater();
+            try {
+                long copied = 0;
+                for (int frame = firstFrame; frame <= lastFrame; frame++) {
+                    long frameStart = table.getLong(frame * Long.BYTES);
+                    ByteBuffer compressed = frames.slice((int) (frameStart - mapStart),
+                            (int) (frameEnd(table, frame, trailer) - frameStart));
+                    int inflated = inflate(inflater, compressed, content);
+                    long contentStart = (long) frame * trailer.frameSize;
+                    int from = (int) Math.max(0, offset - contentStart);
+                    int to = (int) Math.min(inflated, end - contentStart);
+                    out.write(content, from, to - from);
+                    copied += to - from;
+                }
+                return copied;
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private static long frameEnd(ByteBuffer table, int frame, Trailer trailer) {
+        return frame + 1 < trailer.frameCount ? table.getLong((frame + 1) * Long.BYTES) : trailer.tableOffset;
+    }
+
+    private static int inflate(Inflater inflater, ByteBuffer compressed, byte[] content) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        int inflated = 0;
+        try {
+            while (!inflater.finished() && inflated < content.length) {
+                int n = inflater.inflate(content, inflated, content.length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated frame in compressed log");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged frame in compressed log", e);
+        }
+        return inflated;
+    }
+
+    private record Trailer(long tableOffset, long contentLength, int frameSize, int frameCount) {
+        static Trailer read(FileChannel channel) throws IOException {
+            long size = channel.size();
+            if (size < MAGIC.length + TRAILER_SIZE) {
+                throw new IOException("Not a compressed log");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(TRAILER_SIZE);
+            channel.read(buffer, size - TRAILER_SIZE);
+            buffer.flip();
+            Trailer trailer = new Trailer(buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt());
+            if (buffer.getInt() != TRAILER_MAGIC || trailer.frameSize <= 0
+                    || trailer.tableOffset + (long) trailer.frameCount * Long.BYTES != size - TRAILER_SIZE) {
+                throw new IOException("Not a compressed log");
+            }
+            return trailer;
+        }
+    }
+
+    /**
+     * Buffers one frame of content and deflates it when it is full.
+     */
+    private static final class FrameWriter extends OutputStream {
+        private final OutputStream out;
+        private final byte[] frame;
+        private final byte[] compressed;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final List<Long> frameOffsets = new ArrayList<>();
+        private int buffered;
+        private long position;
+        private long contentLength;
+        private boolean closed;
+
+        FrameWriter(Path file, int frameSize) throws IOException {
+            if (frameSize <= 0) {
+                throw new IllegalArgumentException("frameSize must be positive");
+            }
+            this.out = new BufferedOutputStream(Files.newOutputStream(file));
+            this.frame = new byte[frameSize];
+            this.compressed = new byte[frameSize / 2 + 64];
+            out.write(MAGIC);
+            position = MAGIC.length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            frame[buffered++] = (byte) b;
+            if (buffered == frame.length) {
+                writeFrame();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, frame.length - buffered);
+                System.arraycopy(b, off, frame, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+                if (buffered == frame.length) {
+                    writeFrame();
+                }
+            }
+        }
+
+        private void writeFrame() throws IOException {
+            frameOffsets.add(position);
+            deflater.reset();
+            deflater.setInput(frame, 0, buffered);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(compressed);
+                out.write(compressed, 0, n);
+                position += n;
+            }
+            contentLength += buffered;
+            buffered = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (buffered > 0) {
+                    writeFrame();
+                }
+                long tableOffset = position;
+                ByteBuffer tail = ByteBuffer.allocate(frameOffsets.size() * Long.BYTES + TRAILER_SIZE);
+                for (long offset : frameOffsets) {
+                    tail.putLong(offset);
+                }
+                tail.putLong(tableOffset).putLong(contentLength).putInt(frame.length).putInt(frameOffsets.size())
+                        .putInt(TRAILER_MAGIC);
+                out.write(tail.array());
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+    }
+}
@@ -1,22 +1,60 @@
 package ci;
 
+import java.nio.file.Path;
+import java.time.Duration;
+
 // ci/DefaultCommandExecutorFactory.java
 
 /**
  * Factory for creating CommandExecutor instances.
  * This implementation creates ProcessCommandExecutor instances, 
  * which is the production way of executing commands.
+ * When a log file is given, a StreamingCommandExecutor is created instead,
+ * which writes the output to the file and only keeps its tail in memory.
  * 
  * This can also be used for executing other CI jobs such as running tests.
  * 
  */
 public class DefaultCommandExecutorFactory implements CommandExecutorFactory {
+    private static final int DEFAULT_TAIL_BYTES = 64 * 1024;
+
+    private final int tailBytes;
+    private final Duration timeout;
+
+    public DefaultCommandExecutorFactory() {
+        this(DEFAULT_TAIL_BYTES, ProcessCommandExecutor.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param tailBytes the number of bytes of output kept in memory by streaming executors
+     * @param timeout   maximum wall-clock time of a command, unless another one is given to create
+     */
+    public DefaultCommandExecutorFactory(int tailBytes, Duration timeout) {
+        this.tailBytes = tailBytes;
+        this.timeout = timeout;
+    }
 
     /**
      * Creates a new cmd executor instance.
      */
     @Override
     public CommandExecutor create() {
-        return new ProcessCommandExecutor();
+        return new ProcessCommandExecutor(timeout);
+    }
+
+    /**
+     * Creates a cmd executor streaming its output to a log file.
+     */
+    @Override
+    public CommandExecutor create(Path logFile) {
+        return create(logFile, timeout);
+    }
+
+    /**
+     * Creates a cmd executor streaming its output to a log file, with its own timeout.
+     */
+    @Override
+    public CommandExecutor create(Path logFile, Duration timeout) {
+        return new StreamingCommandExecutor(logFile, tailBytes, timeout);
     }
 }
@@ -1,16 +1,53 @@
 package ci;
 
+import java.nio.file.Path;
+
 /**
  * ExecResult is a simple data class that gathers the result of executing a command.
  * There is no reason for it to be mutable, so we make it final and only provide getters.
+ * When the output was streamed to a log file, the output only holds its tail.
  */
 public final class ExecResult {
     private final int exitCode;
     private final String output;
+    private final Path logFile;
+    private final long outputBytes;
+    private final long wallTimeMillis;
+    private final long cpuTimeMillis;
+    private final boolean timedOut;
 
     public ExecResult(int exitCode, String output) {
+        this(exitCode, output, null, -1);
+    }
+
+    /**
+     * @param exitCode    the exit code of the command
+     * @param output      the output, or its tail if it was streamed to the log file
+     * @param logFile     the file holding the full output, or null
+     * @param outputBytes the size of the full output, -1 if unknown
+     */
+    public ExecResult(int exitCode, String output, Path logFile, long outputBytes) {
+        this(exitCode, output, logFile, outputBytes, -1, -1, false);
+    }
+
+    /**
+     * @param exitCode       the exit code of the command, -1 if it timed out
+     * @param output         the output, or its tail if it was streamed to the log file
+     * @param logFile        the file holding the full output, or null
+     * @param outputBytes    the size of the full output, -1 if unknown
+     * @param wallTimeMillis wall-clock time of the command, -1 if unknown
+     * @param cpuTimeMillis  CPU time of the command and its child processes, -1 if unknown
+     * @param timedOut       true if the command was killed because it ran too long
+     */
+    public ExecResult(int exitCode, String output, Path logFile, long outputBytes, long wallTimeMillis,
+            long cpuTimeMillis, boolean timedOut) {
         this.exitCode = exitCode;
         this.output = output;
+        this.logFile = logFile;
+        this.outputBytes = outputBytes;
+        this.wallTimeMillis = wallTimeMillis;
+        this.cpuTimeMillis = cpuTimeMillis;
+        this.timedOut = timedOut;
     }
 
     int getExitCode() {
@@ -20,4 +57,29 @@ public final class ExecResult {
     String getOutput() {
         return output;
     }
+
+    /** @return the file holding the full output, or null if the output was not streamed */
+    Path getLogFile() {
+        return logFile;
+    }
+
+    /** @return the size of the full output in bytes, -1 if unknown */
+    long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /** @return wall-clock time of the command in milliseconds, -1 if unknown */
+    long getWallTimeMillis() {
+        return wallTimeMillis;
+    }
+
+    /** @return CPU time of the command and its child processes in milliseconds, -1 if unknown */
+    long getCpuTimeMillis() {
+        return cpuTimeMillis;
+    }
+
+    /** @return true if the command was killed because it ran longer than its timeout */
+    boolean isTimedOut() {
+        return timedOut;
+    }
 }
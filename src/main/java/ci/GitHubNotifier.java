@@ -1,17 +1,61 @@
 package ci;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
 
 /**
  * Implementation of the Notifier interface using the GitHub REST API.
  * updates the commit status (success, failure, pending, error).
+ * <p>
+ * All notifiers share one HTTP/2 client, so connections to GitHub are reused between builds.
+ * Updates are posted asynchronously ({@link HttpClient#sendAsync}), one at a time per repository,
+ * commit and context; an update that is still queued behind another one of the same status is
+ * replaced when a newer one arrives, so only the latest state is posted. Failed posts (network
+ * errors, 5xx, rate limits) are retried with exponential backoff, honouring the Retry-After and
+ * X-RateLimit-Reset headers. With a {@link StatusOutbox} the updates not delivered yet are kept
+ * on disk and sent again by {@link #resendPending()} after a restart.
  */
 public class GitHubNotifier implements Notifier {
-    private final HttpClient client = HttpClient.newHttpClient(); // Used to send request to Github rest api
+    /** Context of the statuses posted by this server. */
+    public static final String CONTEXT = "group-17-ci";
+
+    private static final URI DEFAULT_API_URL = URI.create("https://api.github.com");
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofSeconds(1);
+    // Waits requested by GitHub beyond this are cut short, the status would be stale anyway
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(2);
+
+    private static HttpClient sharedClient;
+
+    private final HttpClient client; // Used to send request to Github rest api
     private final String token;
+    private final URI apiUrl;
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final StatusOutbox outbox;
+    // Updates waiting for the update of the same status being posted, guarded by this
+    private final Map<String, Update> queued = new HashMap<>();
+    // Statuses with an update being posted, guarded by this
+    private final Set<String> posting = new HashSet<>();
+
     /**
      * Creates a new GitHubNotifier.
      *
@@ -19,37 +63,206 @@ public class GitHubNotifier implements Notifier {
      * @throws IllegalArgumentException If the token is null or blank.
      */
     public GitHubNotifier(String token) {
+        this(token, DEFAULT_API_URL, sharedClient(), DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF);
+    }
+
+    /**
+     * Creates a notifier for a GitHub API at another address, e.g. GitHub Enterprise or a test server.
+     *
+     * @param token          The GitHub Personal Access Token (PAT) with repo:status permissions.
+     * @param apiUrl         base URL of the API, e.g. https://api.github.com
+     * @param client         the HTTP client to use
+     * @param maxAttempts    how often a status is posted before giving up
+     * @param initialBackoff wait before the first retry, doubled for every further retry
+     * @throws IllegalArgumentException If the token is null or blank.
+     */
+    public GitHubNotifier(String token, URI apiUrl, HttpClient client, int maxAttempts, Duration initialBackoff) {
+        this(token, apiUrl, client, maxAttempts, initialBackoff, null);
+    }
+
+    /**
+     * Creates a notifier that keeps the updates it has not delivered yet in an outbox.
+     *
+     * @param token          The GitHub Personal Access Token (PAT) with repo:status permissions.
+     * @param apiUrl         base URL of the API, e.g. https://api.github.com
+     * @param client         the HTTP client to use
+     * @param maxAttempts    how often a status is posted before giving up
+     * @param initialBackoff wait before the first retry, doubled for every further retry
+     * @param outbox         where pending updates are kept, null to keep them in memory only
+     * @throws IllegalArgumentException If the token is null or blank.
+     */
+    public GitHubNotifier(String token, URI apiUrl, HttpClient client, int maxAttempts, Duration initialBackoff,
+            StatusOutbox outbox) {
         // If no token we stop
         if (token == null || token.isBlank()) {
             throw new IllegalArgumentException("Missing GITHUB_TOKEN environment variable");
         }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
         this.token = token;
+        this.apiUrl = apiUrl;
+        this.client = client;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.outbox = outbox;
+    }
+
+    /**
+     * @return the HTTP client shared by all notifiers
+     */
+    static synchronized HttpClient sharedClient() {
+        if (sharedClient == null) {
+            sharedClient = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .build();
+        }
+        return sharedClient;
     }
 
     /**
      * Sends a POST request to update the GitHub commit status.
+     * Waits until the update, or a newer update of the same status that replaced it, is posted.
      * * @param owner       The GitHub account owner.
      * @param repo        The repository name.
      * @param sha         The commit SHA ID.
      * @param state       The result (success, failure, or pending).
      * @param description A short summary of the result.
-     * @throws Exception  If the HTTP request fails.
+     * @throws Exception  If the HTTP request fails after all retries.
      */
     @Override
     public void setStatus(String owner, String repo, String sha,
                           String state, String description) throws Exception {
+        try {
+            setStatusAsync(owner, repo, sha, state, description).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    /**
+     * Queues an update without waiting for it.
+     *
+     * @return completed when the update, or a newer update of the same status that replaced it, is posted
+     */
+    @Override
+    public CompletableFuture<Void> setStatusAsync(String owner, String repo, String sha, String state,
+            String description) {
+        long outboxId = -1;
+        if (outbox != null) {
+            try {
+                outboxId = outbox.add(owner, repo, sha, state, description).id();
+            } catch (IOException e) {
+                System.err.println("Failed to store status in the outbox: " + e.getMessage());
+            }
+        }
+        return enqueue(new Update(owner, repo, sha, state, description, outboxId, new CompletableFuture<>()));
+    }
+
+    /**
+     * Sends the updates left in the outbox by a previous run, call once at startup.
+     *
+     * @return number of updates queued
+     */
+    public int resendPending() {
+        if (outbox == null) {
+            return 0;
+        }
+        List<StatusOutbox.Status> pending = outbox.pending();
+        for (StatusOutbox.Status status : pending) {
+            enqueue(new Update(status.owner(), status.repo(), status.sha(), status.state(), status.description(),
+                    status.id(), new CompletableFuture<>()));
+        }
+        return pending.size();
+    }
+
+    /**
+     * Posts an update now, or queues it behind the update of the same status being posted,
+     * replacing an update queued there before.
+     */
+    private CompletableFuture<Void> enqueue(Update update) {
+        synchronized (this) {
+            if (posting.contains(update.key())) {
+                Update replaced = queued.put(update.key(), update);
+                if (replaced != null) {
+                    // Whoever waits for the replaced update learns the outcome of the newer one
+                    update.done().whenComplete((result, error) -> {
+                        if (error == null) {
+                            replaced.done().complete(null);
+                        } else {
+                            replaced.done().completeExceptionally(error);
+                        }
+                    });
+                    forget(replaced);
+                }
+                return update.done();
+            }
+            posting.add(update.key());
+        }
+        post(update);
+        return update.done();
+    }
+
+    /**
+     * Posts an update, then the update queued behind it, if any.
+     */
+    private void post(Update update) {
+        attempt(request(update), 1).whenComplete((result, error) -> {
+            forget(update);
+            if (error == null) {
+                update.done().complete(null);
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                System.err.println("Failed to update status of " + update.key() + ": " + cause.getMessage());
+                update.done().completeExceptionally(cause);
+            }
+            Update next;
+            synchronized (this) {
+                next = queued.remove(update.key());
+                if (next == null) {
+                    posting.remove(update.key());
+                }
+            }
+            if (next != null) {
+                post(next);
+            }
+        });
+    }
+
+    /**
+     * @return number of updates waiting for an update of the same status to be posted
+     */
+    synchronized int getQueuedCount() {
+        return queued.size();
+    }
+
+    private void forget(Update update) {
+        if (outbox != null && update.outboxId() >= 0) {
+            try {
+                outbox.remove(update.outboxId());
+            } catch (IOException e) {
+                System.err.println("Failed to update the status outbox: " + e.getMessage());
+            }
+        }
+    }
+
+    private HttpRequest request(Update update) {
         // Create the URL based one repo owner, name comit
-        String url = "https://api.github.com/repos/" + owner + "/" + repo + "/statuses/" + sha;
-        
+        String base = apiUrl.toString().endsWith("/") ? apiUrl.toString() : apiUrl + "/";
+        URI url = URI.create(base + "repos/" + update.owner() + "/" + update.repo() + "/statuses/" + update.sha());
+
         // Json payload controls pass fail pending
-        String json = "{"
-                + "\"state\":\"" + state + "\","
-                + "\"context\":\"group-17-ci\","
-                + "\"description\":\"" + description + "\""
-                + "}";
-        // Build the HTTP request 
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(URI.create(url))
+        String json = new JSONObject()
+                .put("state", update.state())
+                .put("context", CONTEXT)
+                .put("description", update.description())
+                .toString();
+        // Build the HTTP request
+        return HttpRequest.newBuilder()
+                .uri(url)
+                .timeout(Duration.ofSeconds(30))
                 // Authentication, attach the token to the header
                 .header("Authorization", "token " + token)
                 // Content type, tell github we are sending json
@@ -58,12 +271,76 @@ public class GitHubNotifier implements Notifier {
                 // Post to create/update status
                 .POST(HttpRequest.BodyPublishers.ofString(json))
                 .build();
-        // Send request and wait for respone 
-        HttpResponse<String> resp = client.send(req, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Sends a request, retrying failures that may go away after a delay. No thread waits in between.
+     */
+    private CompletableFuture<Void> attempt(HttpRequest req, int attempt) {
+        Duration backoff = initialBackoff.multipliedBy(1L << Math.min(attempt - 1, 20));
+        return client.sendAsync(req, HttpResponse.BodyHandlers.ofString())
+                .handle((resp, error) -> {
+                    if (error != null) {
+                        if (attempt >= maxAttempts) {
+                            return CompletableFuture.<Void>failedFuture(error);
+                        }
+                        return retryAfter(req, attempt, backoff);
+                    }
+                    int status = resp.statusCode();
+                    if (status >= 200 && status < 300) {
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    if (!isRetryable(resp) || attempt >= maxAttempts) {
+                        return CompletableFuture.<Void>failedFuture(new RuntimeException(
+                                "GitHub status update failed: " + status + " body=" + resp.body()));
+                    }
+                    return retryAfter(req, attempt, retryDelay(resp.headers(), backoff));
+                })
+                .thenCompose(next -> next);
+    }
+
+    private CompletableFuture<Void> retryAfter(HttpRequest req, int attempt, Duration delay) {
+        Executor delayed = CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS);
+        return CompletableFuture.supplyAsync(() -> attempt + 1, delayed).thenCompose(next -> attempt(req, next));
+    }
+
+    /**
+     * Server errors and rate limits are retried, other client errors would fail again.
+     */
+    private static boolean isRetryable(HttpResponse<String> resp) {
+        int status = resp.statusCode();
+        return status >= 500 || status == 429
+                || (status == 403 && (resp.headers().firstValue("Retry-After").isPresent()
+                        || "0".equals(resp.headers().firstValue("X-RateLimit-Remaining").orElse(null))));
+    }
 
-        if (resp.statusCode() < 200 || resp.statusCode() >= 300) {
-            throw new RuntimeException("GitHub status update failed: "
-                    + resp.statusCode() + " body=" + resp.body());
+    /**
+     * The wait requested by GitHub, or the exponential backoff if it did not ask for one.
+     */
+    static Duration retryDelay(HttpHeaders headers, Duration backoff) {
+        Duration delay = backoff;
+        Optional<String> retryAfter = headers.firstValue("Retry-After");
+        Optional<String> reset = headers.firstValue("X-RateLimit-Reset");
+        try {
+            if (retryAfter.isPresent()) {
+                delay = Duration.ofSeconds(Long.parseLong(retryAfter.get().trim()));
+            } else if (reset.isPresent() && "0".equals(headers.firstValue("X-RateLimit-Remaining").orElse(null))) {
+                long resetAtMillis = Long.parseLong(reset.get().trim()) * 1000;
+                delay = Duration.ofMillis(Math.max(0, resetAtMillis - System.currentTimeMillis()));
+            }
+        } catch (NumberFormatException e) {
+            // E.g. an HTTP date in Retry-After, fall back to the backoff
+        }
+        return delay.compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : delay;
+    }
+
+    /**
+     * A status update waiting to be sent.
+     */
+    private record Update(String owner, String repo, String sha, String state, String description, long outboxId,
+            CompletableFuture<Void> done) {
+        String key() {
+            return owner + "/" + repo + "@" + sha + "#" + CONTEXT;
         }
     }
 }
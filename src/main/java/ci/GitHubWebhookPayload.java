@@ -1,11 +1,16 @@
 package ci;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.json.JSONObject;
 
 /**
  * Parses GitHub webhook push event payloads. 
  * Takes a json string, extracts URL (where to clone), Branch (what to check out) and SHA which commit ID
  * It parses the raw JSON into java objects to use
+ * The server uses {@link #parse(InputStream, boolean)}, which reads only the needed fields straight
+ * from the request body instead of building the whole JSON tree.
  */
 public class GitHubWebhookPayload {
     private final String ref;
@@ -33,6 +38,30 @@ public class GitHubWebhookPayload {
         JSONObject ownerObj = repository.getJSONObject("owner");
         this.login = ownerObj.getString("login");
     }
+    GitHubWebhookPayload(String ref, String after, String cloneUrl, String login, String repositoryName) {
+        this.ref = ref;
+        this.after = after;
+        this.cloneUrl = cloneUrl;
+        this.login = login;
+        this.repositoryName = repositoryName;
+    }
+
+    /**
+     * Parses a push event payload while it is read from the request body.
+     *
+     * @param body        the request body
+     * @param formEncoded true for application/x-www-form-urlencoded bodies with the JSON in the
+     *                    {@code payload} field, false for application/json; a body starting with
+     *                    {@code &#123;} is taken as JSON either way
+     * @return the payload, or null if the body is empty
+     * @throws org.json.JSONException if the payload is malformed, a field is missing or a form has no
+     *                                payload field
+     * @throws IOException            if reading the body fails
+     */
+    public static GitHubWebhookPayload parse(InputStream body, boolean formEncoded) throws IOException {
+        return WebhookPayloadParser.parse(body, formEncoded);
+    }
+
     /**
      * Gets the full reference string (e.g., "refs/heads/main").
      *
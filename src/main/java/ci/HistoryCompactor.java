@@ -0,0 +1,166 @@
+package ci;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Applies a {@link RetentionPolicy} to the build history in the background.
+ * Expired builds are removed from the index first, so they disappear from the build list,
+ * then their records are deleted or moved into a zip bundle in the archive directory.
+ * Neither {@link BuildHistory#createBuild} nor readers of the history wait for a run.
+ */
+public class HistoryCompactor {
+    private final BuildHistory history;
+    private final RetentionPolicy policy;
+    private final Path archiveDirectory;
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong buildsRemoved = new AtomicLong();
+    private final AtomicLong buildsArchived = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param history          the history to compact
+     * @param policy           which builds to keep
+     * @param archiveDirectory where bundles of archived records are written, if the policy archives
+     */
+    public HistoryCompactor(BuildHistory history, RetentionPolicy policy, Path archiveDirectory) {
+        this.history = history;
+        this.policy = policy;
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    /**
+     * Runs the compactor now and then periodically on a background thread.
+     *
+     * @param interval time between the end of a run and the start of the next one
+     */
+    public synchronized void start(Duration interval) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ci-history-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                // Retried on the next run
+                System.err.println("History compaction failed: " + e.getMessage());
+            }
+        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background runs, a running compaction is finished.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Removes the builds expired by the policy.
+     *
+     * @return the number of builds removed
+     * @throws IOException if the index cannot be updated or the archive cannot be written
+     */
+    public synchronized int compact() throws IOException {
+        runs.incrementAndGet();
+        List<String> expired = policy.selectExpired(history.indexedBuilds(), System.currentTimeMillis(),
+                build -> recordSize(build.buildId()));
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        long archivedBytes = 0;
+        if (policy.archive()) {
+            // Records are only deleted once they are safely in the archive
+            archivedBytes = archive(expired);
+            buildsArchived.addAndGet(expired.size());
+        }
+        long freed = history.deleteBuilds(expired);
+        buildsRemoved.addAndGet(expired.size());
+        bytesReclaimed.addAndGet(Math.max(0, freed - archivedBytes));
+        System.out.println("History compaction removed " + expired.size() + " builds, reclaimed "
+                + Math.max(0, freed - archivedBytes) + " bytes");
+        return expired.size();
+    }
+
+    /**
+     * Writes the records into a new zip bundle.
+     *
+     * @return the size of the bundle
+     */
+    private long archive(List<String> buildNames) throws IOException {
+        Files.createDirectories(archiveDirectory);
+        String name = "builds-" + Instant.now().toString().replace(":", "-") + ".zip";
+        Path partial = archiveDirectory.resolve(name + ".tmp");
+        try (OutputStream file = Files.newOutputStream(partial); ZipOutputStream zip = new ZipOutputStream(file)) {
+            for (String buildName : buildNames) {
+                Path record = history.recordFile(buildName);
+                if (record == null) {
+                    continue;
+                }
+                String fileName = record.getFileName().toString();
+                // Compressed records would not get smaller
+                zip.setLevel(fileName.endsWith(".log") ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+                zip.putNextEntry(new ZipEntry(fileName));
+                Files.copy(record, zip);
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Path bundle = archiveDirectory.resolve(name);
+        Files.move(partial, bundle, StandardCopyOption.ATOMIC_MOVE);
+        return Files.size(bundle);
+    }
+
+    private long recordSize(String buildName) {
+        Path record = history.recordFile(buildName);
+        try {
+            return record == null ? 0 : Files.size(record);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /** @return number of compaction runs */
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /** @return number of builds removed from the history */
+    public long getBuildsRemoved() {
+        return buildsRemoved.get();
+    }
+
+    /** @return number of removed builds that were archived */
+    public long getBuildsArchived() {
+        return buildsArchived.get();
+    }
+
+    /** @return bytes freed by deleting records, less the size of the archives written */
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+}
@@ -0,0 +1,300 @@
+package ci;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Follows the output of a build while it runs.
+ * The log of a build is its compile output followed by its test output. Offsets are byte
+ * positions in that log, so a viewer can resume where it stopped. Each viewer only reads
+ * the bytes it has not seen yet from the log files on disk, no viewer re-reads the whole log.
+ * Once the build is finished the rest of the log is served from the build record.
+ * Each viewer of a running build holds a thread while it follows the build, so the number of
+ * viewers following running builds at the same time is limited.
+ */
+public class LogTailer {
+    /** Default limit of viewers following running builds at the same time. */
+    public static final int DEFAULT_MAX_FOLLOWERS = 16;
+    private static final int CHUNK_SIZE = 8192;
+    private static final String COMPILE_MARKER = "-----Compile Log-----:\n";
+    private static final String TEST_MARKER = "\n-----Test Log-----:\n";
+
+    private final BuildHistory history;
+    private final long pollMillis;
+    private final int maxFollowers;
+    private final Semaphore followers;
+
+    /**
+     * Receives the log, chunk by chunk.
+     */
+    public interface ChunkListener {
+        /**
+         * @param data       the bytes of the chunk, ends with a newline unless a line is longer than a chunk
+         * @param length     number of bytes of data to use
+         * @param nextOffset the offset to resume from after this chunk
+         * @throws IOException if the viewer went away, this stops following the build
+         */
+        void onChunk(byte[] data, int length, long nextOffset) throws IOException;
+    }
+
+    /**
+     * Thrown when a running build is to be followed while the maximum number of viewers follow running builds.
+     */
+    public static final class TooManyFollowersException extends IOException {
+        TooManyFollowersException(int maxFollowers) {
+            super("Already " + maxFollowers + " viewers follow running builds");
+        }
+    }
+
+    /**
+     * @param history    where the logs and records of the builds are
+     * @param pollMillis how often to look for new output of a running build
+     */
+    public LogTailer(BuildHistory history, long pollMillis) {
+        this(history, pollMillis, DEFAULT_MAX_FOLLOWERS);
+    }
+
+    /**
+     * @param history      where the logs and records of the builds are
+     * @param pollMillis   how often to look for new output of a running build
+     * @param maxFollowers how many viewers may follow running builds at the same time
+     * @throws IllegalArgumentException if maxFollowers is less than 1
+     */
+    public LogTailer(BuildHistory history, long pollMillis, int maxFollowers) {
+        if (maxFollowers < 1) {
+            throw new IllegalArgumentException("maxFollowers must be at least 1");
+        }
+        this.history = history;
+        this.pollMillis = pollMillis;
+        this.maxFollowers = maxFollowers;
+        this.followers = new Semaphore(maxFollowers);
+    }
+
+    /**
+     * @param buildId the build id
+     * @return true if the build is running or finished
+     */
+    public boolean exists(String buildId) {
+        return history.isValidBuildId(buildId)
+                && (Files.isDirectory(history.logDirectory(buildId)) || history.hasBuild(buildId));
+    }
+
+    /**
+     * Sends the log of a build from an offset until the build is finished, or until its logs are
+     * deleted without a record being stored.
+     *
+     * @param buildId  the build id
+     * @param offset   where to start in the log
+     * @param listener receives the chunks
+     * @return the offset after the last chunk sent
+     * @throws TooManyFollowersException if the build is running and the maximum number of viewers follow
+     *                                   running builds, nothing was sent then
+     * @throws IOException               if the listener or reading the log fails
+     * @throws InterruptedException      if interrupted while waiting for new output
+     */
+    public long follow(String buildId, long offset, ChunkListener listener) throws IOException, InterruptedException {
+        Path logDirectory = history.logDirectory(buildId);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        // Kept open, the files stay readable when the finished build deletes them
+        RandomAccessFile compileLog = null;
+        RandomAccessFile testLog = null;
+        boolean following = false;
+        try {
+            while (true) {
+                boolean finished = history.hasBuild(buildId);
+                // A build that ended without a record, e.g. by an error or superseded, only deletes its logs;
+                // the record is stored before the logs are deleted, so look for it once more
+                boolean ended = !finished && !Files.isDirectory(logDirectory) && !history.hasBuild(buildId);
+                if (compileLog == null) {
+                    compileLog = open(logDirectory.resolve("compile.log"));
+                }
+                if (testLog == null) {
+                    testLog = open(logDirectory.resolve("test.log"));
+                }
+                if (compileLog == null && finished) {
+                    // Not followed while running, serve what is in the record
+                    return sendFromRecord(buildId, offset, listener);
+                }
+                if (compileLog == null && ended) {
+                    return offset;
+                }
+                if (!following && !finished && !ended) {
+                    if (!followers.tryAcquire()) {
+                        throw new TooManyFollowersException(maxFollowers);
+                    }
+                    following = true;
+                }
+                // The compile log is complete once the test log exists
+                offset = send(compileLog, testLog, offset, chunk, listener, finished || ended);
+                if (finished || ended) {
+                    return offset;
+                }
+                Thread.sleep(pollMillis);
+            }
+        } finally {
+            if (following) {
+                followers.release();
+            }
+            close(compileLog);
+            close(testLog);
+        }
+    }
+
+    /**
+     * Sends everything available from the open log files.
+     */
+    private static long send(RandomAccessFile compileLog, RandomAccessFile testLog, long offset, byte[] chunk,
+            ChunkListener listener, boolean finished) throws IOException {
+        if (compileLog == null) {
+            return offset;
+        }
+        long compileLength = compileLog.length();
+        offset = sendFile(compileLog, offset, 0, chunk, listener, finished || testLog != null);
+        if (testLog != null && offset >= compileLength) {
+            offset = sendFile(testLog, offset, compileLength, chunk, listener, finished);
+        }
+        return offset;
+    }
+
+    /**
+     * Sends the bytes of one file, which starts at the given position of the whole log.
+     * Unless the file is complete a trailing partial line is kept for the next call.
+     */
+    private static long sendFile(RandomAccessFile file, long offset, long fileStart, byte[] chunk,
+            ChunkListener listener, boolean complete) throws IOException {
+        long length = file.length();
+        while (offset - fileStart < length) {
+            file.seek(offset - fileStart);
+            int read = file.read(chunk, 0, (int) Math.min(chunk.length, length - (offset - fileStart)));
+            if (read <= 0) {
+                break;
+            }
+            int send = read;
+            boolean lastBytes = offset - fileStart + read >= length;
+            if (!(complete && lastBytes)) {
+                int lastNewline = lastIndexOf(chunk, read, (byte) '\n');
+                if (lastNewline >= 0) {
+                    send = lastNewline + 1;
+                } else if (read < chunk.length) {
+                    // A partial line, wait for the rest of it
+                    break;
+                }
+            }
+            offset += send;
+            listener.onChunk(chunk, send, offset);
+        }
+        return offset;
+    }
+
+    private long sendFromRecord(String buildId, long offset, ChunkListener listener) throws IOException {
+        BuildIndex.Entry entry = history.getBuildInfo(buildId);
+        if (entry != null && entry.compileLength() >= 0 && entry.testLength() >= 0) {
+            // Only the requested part of the logs is read from the record
+            ChunkStream out = new ChunkStream(listener, offset);
+            if (offset < entry.compileLength()) {
+                history.readBuild(buildId, entry.compileOffset() + offset, entry.compileLength() - offset, out);
+            }
+            long testFrom = Math.max(0, offset - entry.compileLength());
+            if (testFrom < entry.testLength()) {
+                history.readBuild(buildId, entry.testOffset() + testFrom, entry.testLength() - testFrom, out);
+            }
+            out.flush();
+            return Math.max(offset, entry.compileLength() + entry.testLength());
+        }
+        // Record from before the index, find the logs by their markers
+        String record = history.getBuild(buildId);
+        int compileStart = record.indexOf(COMPILE_MARKER);
+        int testStart = record.indexOf(TEST_MARKER, compileStart);
+        if (compileStart < 0 || testStart < 0) {
+            return offset;
+        }
+        String testLog = record.substring(testStart + TEST_MARKER.length());
+        // The record ends the test log with an extra newline
+        String log = record.substring(compileStart + COMPILE_MARKER.length(), testStart)
+                + (testLog.endsWith("\n") ? testLog.substring(0, testLog.length() - 1) : testLog);
+        byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+        for (long position = offset; position < bytes.length; position += CHUNK_SIZE) {
+            int length = (int) Math.min(CHUNK_SIZE, bytes.length - position);
+            byte[] data = new byte[length];
+            System.arraycopy(bytes, (int) position, data, 0, length);
+            listener.onChunk(data, length, position + length);
+        }
+        return Math.max(offset, bytes.length);
+    }
+
+    /**
+     * Passes the bytes written to it on to a listener in chunks of at most {@link #CHUNK_SIZE}.
+     */
+    private static final class ChunkStream extends OutputStream {
+        private final ChunkListener listener;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int buffered;
+        private long offset;
+
+        ChunkStream(ChunkListener listener, long offset) {
+            this.listener = listener;
+            this.offset = offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - buffered);
+                System.arraycopy(b, off, chunk, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+                if (buffered == chunk.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffered > 0) {
+                offset += buffered;
+                listener.onChunk(chunk, buffered, offset);
+                buffered = 0;
+            }
+        }
+    }
+
+    private static int lastIndexOf(byte[] bytes, int length, byte value) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static RandomAccessFile open(Path file) {
+        try {
+            return Files.exists(file) ? new RandomAccessFile(file.toFile(), "r") : null;
+        } catch (IOException e) {
+            // Deleted in between, the build just finished
+            return null;
+        }
+    }
+
+    private static void close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Only read from, nothing to lose
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Local Maven repository shared by all builds.
+ * <p>
+ * Builds never write to the shared repository: each build gets an overlay as its own local
+ * repository, with the shared one chained behind it as a read-only tail
+ * ({@code -Dmaven.repo.local.tail}, Maven 3.9 or later). Maven reads artifacts from the tail
+ * and downloads missing ones into the overlay. When the build is done the new artifacts of the
+ * overlay are moved into the shared repository one file at a time with atomic renames, so
+ * concurrent builds never see a partially written artifact.
+ * <p>
+ * After a successful build the set of poms and commands of the workspace is remembered as
+ * resolved. A later build with the same poms and commands has everything it needs in the shared
+ * repository and runs with {@code --offline}. If an offline build fails it is forgotten again, so
+ * the next build resolves online.
+ */
+public class MavenRepoCache {
+    private static final String SHARD_SUFFIX = ".shard-";
+
+    private final Path repository;
+    private final Path overlays;
+    private final Path resolved;
+    private final boolean offline;
+
+    /**
+     * Creates the cache. The repository left in the directory by a previous run is reused.
+     *
+     * @param baseDirectory the directory holding the shared repository and the overlays
+     * @param offline       whether builds whose dependencies were resolved before run offline
+     * @throws IOException if the directories cannot be created
+     */
+    public MavenRepoCache(Path baseDirectory, boolean offline) throws IOException {
+        this.repository = Files.createDirectories(baseDirectory.resolve("repository"));
+        this.overlays = Files.createDirectories(baseDirectory.resolve("overlays"));
+        this.resolved = Files.createDirectories(baseDirectory.resolve("resolved"));
+        this.offline = offline;
+    }
+
+    /**
+     * The local repository of one build.
+     */
+    public static final class Overlay {
+        private final Path directory;
+        private final String key;
+        private final boolean offline;
+        // Read-only repositories behind the overlay, searched in order
+        private final List<Path> tail;
+
+        Overlay(Path directory, String key, boolean offline, List<Path> tail) {
+            this.directory = directory;
+            this.key = key;
+            this.offline = offline;
+            this.tail = tail;
+        }
+
+        /** @return the directory the build downloads into */
+        public Path getDirectory() {
+            return directory;
+        }
+
+        /**
+         * An overlay of its own for a test shard running at the same time as the others, with the
+         * overlay of the build and the shared repository behind it. It is merged when the overlay
+         * of the build is closed.
+         *
+         * @param index the index of the shard
+         * @return the overlay of the shard
+         */
+        public Overlay shard(int index) {
+            List<Path> shardTail = new ArrayList<>(tail.size() + 1);
+            shardTail.add(directory);
+            shardTail.addAll(tail);
+            return new Overlay(directory.resolveSibling(directory.getFileName() + SHARD_SUFFIX + index), key, offline,
+                    shardTail);
+        }
+
+        /** @return true if the build runs with {@code --offline} */
+        public boolean isOffline() {
+            return offline;
+        }
+    }
+
+    /**
+     * @return the shared repository
+     */
+    public Path getRepository() {
+        return repository;
+    }
+
+    /**
+     * Creates the overlay of a build. It must be given back with {@link #close(Overlay, boolean)}.
+     *
+     * @param name      unique name of the build, e.g. its workspace name
+     * @param workspace the checked out commit, its poms decide whether the build can run offline
+     * @param commands  the Maven commands the build runs
+     * @return the overlay
+     * @throws IOException if the overlay cannot be created
+     */
+    public Overlay open(String name, Path workspace, List<List<String>> commands) throws IOException {
+        Path directory = overlays.resolve(name);
+        deleteRecursively(directory);
+        for (Path shard : shardDirectories(directory)) {
+            deleteRecursively(shard);
+        }
+        Files.createDirectories(directory);
+        String key = resolutionKey(workspace, commands);
+        return new Overlay(directory, key, offline && Files.exists(resolved.resolve(key)), List.of(repository));
+    }
+
+    /**
+     * Adds the local repository arguments of the overlay to a Maven command. Commands that do not
+     * run Maven ({@code mvn} or {@code mvnw}) are returned unchanged.
+     *
+     * @param command the command, e.g. {@code [mvn, test, -q]}
+     * @param overlay the overlay of the build
+     * @return the command with the arguments after the executable
+     */
+    public List<String> apply(List<String> command, Overlay overlay) {
+        if (command.isEmpty() || !isMaven(command.get(0))) {
+            return command;
+        }
+        List<String> arguments = new ArrayList<>(command.size() + 3);
+        arguments.add(command.get(0));
+        arguments.add("-Dmaven.repo.local=" + overlay.directory);
+        arguments.add("-Dmaven.repo.local.tail="
+                + String.join(",", overlay.tail.stream().map(Path::toString).toList()));
+        if (overlay.offline) {
+            arguments.add("--offline");
+        }
+        arguments.addAll(command.subList(1, command.size()));
+        return arguments;
+    }
+
+    private static boolean isMaven(String executable) {
+        String name = Path.of(executable).getFileName().toString();
+        return name.equals("mvn") || name.equals("mvnw") || name.equals("mvnd") || name.equals("mvn.cmd")
+                || name.equals("mvnw.cmd");
+    }
+
+    /**
+     * Moves the new artifacts of the overlay into the shared repository and deletes the overlay.
+     * Artifacts of failed builds are kept too, downloads do not depend on the build result.
+     *
+     * @param overlay   the overlay of the build
+     * @param succeeded whether the build succeeded, only then its dependencies count as resolved
+     */
+    public void close(Overlay overlay, boolean succeeded) {
+        List<Path> shards = List.of();
+        try {
+            shards = shardDirectories(overlay.directory);
+            merge(overlay.directory);
+            for (Path shard : shards) {
+                merge(shard);
+            }
+            if (succeeded) {
+                Files.writeString(resolved.resolve(overlay.key), "");
+            } else if (overlay.offline) {
+                // Something was missing after all, resolve online next time
+                Files.deleteIfExists(resolved.resolve(overlay.key));
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to merge Maven overlay " + overlay.directory + ": " + e.getMessage());
+        } finally {
+            deleteRecursively(overlay.directory);
+            for (Path shard : shards) {
+                deleteRecursively(shard);
+            }
+        }
+    }
+
+    /**
+     * @return the overlays of the test shards of a build overlay, see {@link Overlay#shard(int)}
+     */
+    private static List<Path> shardDirectories(Path overlay) throws IOException {
+        String prefix = overlay.getFileName() + SHARD_SUFFIX;
+        try (Stream<Path> paths = Files.list(overlay.getParent())) {
+            return paths.filter(path -> path.getFileName().toString().startsWith(prefix)).toList();
+        }
+    }
+
+    private void merge(Path overlay) throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(overlay)) {
+            files = paths.filter(Files::isRegularFile).filter(MavenRepoCache::isShareable).toList();
+        }
+        for (Path file : files) {
+            Path target = repository.resolve(overlay.relativize(file).toString());
+            boolean replace = isMutable(file);
+            // Released artifacts never change
+            if (Files.exists(target) && !replace) {
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                if (replace) {
+                    Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (FileAlreadyExistsException e) {
+                // Merged by a concurrent build meanwhile
+            }
+        }
+    }
+
+    /**
+     * Metadata, snapshots and the record of where artifacts came from change over time, a newer
+     * download replaces them.
+     */
+    private static boolean isMutable(Path file) {
+        String name = file.getFileName().toString();
+        Path version = file.getParent();
+        return name.startsWith("maven-metadata") || name.equals("_remote.repositories")
+                || version != null && version.getFileName().toString().endsWith("-SNAPSHOT");
+    }
+
+    /**
+     * Failed download markers and resolver state belong to the build that wrote them.
+     */
+    private static boolean isShareable(Path file) {
+        String name = file.getFileName().toString();
+        return !name.endsWith(".lastUpdated") && !name.equals("resolver-status.properties")
+                && !name.endsWith(".part") && !name.endsWith(".lock");
+    }
+
+    /**
+     * Hashes the commands and every pom of the workspace, outside of build output and git data.
+     */
+    static String resolutionKey(Path workspace, List<List<String>> commands) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        for (List<String> command : commands) {
+            digest.update(String.join(" ", command).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        List<Path> poms = new ArrayList<>();
+        Files.walkFileTree(workspace, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                String name = dir.getFileName().toString();
+                return name.equals(".git") || name.equals("target") ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (file.getFileName().toString().equals("pom.xml")) {
+                    poms.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        poms.sort(null);
+        for (Path pom : poms) {
+            digest.update(workspace.relativize(pom).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(pom));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to delete Maven overlay " + dir + ": " + e.getMessage());
+        }
+    }
+}
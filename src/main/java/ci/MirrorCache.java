@@ -0,0 +1,343 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent cache of bare mirrors, one per clone URL.
+ * Instead of cloning the full history for every build, the mirror is fetched incrementally
+ * and each build gets a workspace created with {@code git worktree add}, which shares the
+ * objects of the mirror. Mirrors that are not used by a running build are evicted in
+ * least recently used order when the cache grows above its disk budget.
+ */
+public class MirrorCache {
+    private static final String EVICTED_PREFIX = ".evicted-";
+
+    private final CommandExecutorFactory factory;
+    private final Path baseDirectory;
+    private final long budgetBytes;
+    // Known mirrors in access order (least recently used first), guarded by this
+    private final LinkedHashMap<String, Mirror> mirrors = new LinkedHashMap<>(16, 0.75f, true);
+    // Workspaces handed out and the mirror they belong to, guarded by this
+    private final Map<Path, Mirror> workspaces = new HashMap<>();
+    // What the checkout of each workspace fetched, guarded by this
+    private final Map<Path, Fetch> fetches = new HashMap<>();
+
+    /**
+     * Creates a mirror cache. Mirrors left in the directory by a previous run are reused.
+     *
+     * @param factory       the factory to create command executors for git
+     * @param baseDirectory the directory holding the mirrors
+     * @param budgetBytes   disk budget of all mirrors together
+     * @throws IOException if the directory cannot be created or read
+     */
+    public MirrorCache(CommandExecutorFactory factory, Path baseDirectory, long budgetBytes) throws IOException {
+        this.factory = factory;
+        // git runs in other directories, a relative mirror.dir would be resolved against them
+        this.baseDirectory = baseDirectory.toAbsolutePath();
+        this.budgetBytes = budgetBytes;
+        Files.createDirectories(this.baseDirectory);
+        loadExistingMirrors();
+    }
+
+    /**
+     * State of a single mirror.
+     */
+    private static final class Mirror {
+        private final String key;
+        private final Path directory;
+        // Serializes fetches and worktree creation in the same repository
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users;
+        private long sizeBytes;
+
+        Mirror(String key, Path directory) {
+            this.key = key;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * What a checkout fetched into its mirror.
+     *
+     * @param bytes       size of the objects fetched, all objects of a new mirror
+     * @param mirrorBytes size of all objects of the mirror, about what a full clone downloads
+     */
+    public record Fetch(long bytes, long mirrorBytes) {
+    }
+
+    /**
+     * Updates (or creates) the mirror of a repository and checks out a commit in a new workspace.
+     * The workspace must be given back with {@link #release(Path)} once it has been deleted.
+     *
+     * @param url       the clone URL of the repository
+     * @param sha       the commit to check out
+     * @param workspace the directory to create the workspace in, must not exist
+     * @return the combined output of the git commands and the exit code of the first failing one
+     * @throws IOException          if the git process cannot be started
+     * @throws InterruptedException if a git process is interrupted
+     */
+    public ExecResult checkout(String url, String sha, Path workspace) throws IOException, InterruptedException {
+        Mirror mirror = acquire(url, workspace);
+        try {
+            return fetchAndAddWorktree(mirror, url, sha, workspace);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // No workspace to give back, e.g. a superseded build was interrupted, the mirror must not stay pinned
+            release(workspace);
+            throw e;
+        }
+    }
+
+    private ExecResult fetchAndAddWorktree(Mirror mirror, String url, String sha, Path workspace)
+            throws IOException, InterruptedException {
+        CommandExecutor executor = factory.create();
+        StringBuilder output = new StringBuilder();
+        mirror.lock.lock();
+        try {
+            ExecResult update;
+            long before = 0;
+            if (Files.exists(mirror.directory)) {
+                // Drop worktrees of deleted workspaces, then fetch only what is new
+                run(executor, List.of("git", "worktree", "prune"), mirror.directory, output);
+                before = objectBytes(executor, mirror.directory);
+                update = run(executor, List.of("git", "fetch", "--prune", "origin"), mirror.directory, output);
+            } else {
+                update = run(executor, List.of("git", "clone", "--mirror", url, mirror.directory.toString()),
+                        baseDirectory, output);
+                if (update.getExitCode() != 0 && Files.exists(mirror.directory)) {
+                    // Do not keep a half cloned mirror around, the next build would try to fetch into it
+                    deleteRecursively(mirror.directory);
+                }
+            }
+            if (update.getExitCode() != 0) {
+                return new ExecResult(update.getExitCode(), output.toString());
+            }
+            ExecResult worktree = run(executor,
+                    List.of("git", "worktree", "add", "--detach", workspace.toString(), sha),
+                    mirror.directory, output);
+            long after = objectBytes(executor, mirror.directory);
+            if (after >= 0) {
+                // The size the budget is checked against, no need to walk the mirror on release
+                synchronized (this) {
+                    mirror.sizeBytes = after;
+                    if (before >= 0) {
+                        fetches.put(workspace, new Fetch(Math.max(0, after - before), after));
+                    }
+                }
+            }
+            return new ExecResult(worktree.getExitCode(), output.toString());
+        } finally {
+            mirror.lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a workspace created by {@link #checkout(String, String, Path)} as no longer used,
+     * so its mirror may be evicted. Evicts mirrors if the cache is over budget.
+     *
+     * @param workspace the workspace directory
+     */
+    public void release(Path workspace) {
+        List<Path> evicted;
+        synchronized (this) {
+            fetches.remove(workspace);
+            Mirror mirror = workspaces.remove(workspace);
+            if (mirror == null) {
+                return;
+            }
+            mirror.users--;
+            evicted = evictOverBudget();
+        }
+        // Deleting gigabytes takes a while, builds can check out from other mirrors meanwhile
+        for (Path directory : evicted) {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * @param workspace a workspace created by {@link #checkout(String, String, Path)}
+     * @return what its checkout fetched, null if unknown
+     */
+    public synchronized Fetch getFetch(Path workspace) {
+        return fetches.get(workspace);
+    }
+
+    /** @return the total size of all mirrors in bytes, as of their last use */
+    public synchronized long getSizeBytes() {
+        return mirrors.values().stream().mapToLong(m -> m.sizeBytes).sum();
+    }
+
+    /**
+     * @param url the clone URL of a repository
+     * @return the directory of the mirror of that repository
+     */
+    public Path mirrorDirectory(String url) {
+        return baseDirectory.resolve(directoryName(url));
+    }
+
+    private synchronized Mirror acquire(String url, Path workspace) {
+        String key = directoryName(url);
+        Mirror mirror = mirrors.computeIfAbsent(key, k -> new Mirror(k, baseDirectory.resolve(k)));
+        mirror.users++;
+        workspaces.put(workspace, mirror);
+        return mirror;
+    }
+
+    /**
+     * Removes unused mirrors, least recently used first, until the cache is within its budget. Their
+     * directories are only renamed, so that a new mirror of the repository can be cloned right away.
+     *
+     * @return the renamed directories, to be deleted by the caller without holding the lock
+     */
+    private List<Path> evictOverBudget() {
+        List<Path> evicted = new ArrayList<>();
+        long total = getSizeBytes();
+        Iterator<Mirror> leastRecentlyUsed = mirrors.values().iterator();
+        while (total > budgetBytes && leastRecentlyUsed.hasNext()) {
+            Mirror mirror = leastRecentlyUsed.next();
+            if (mirror.users > 0) {
+                continue;
+            }
+            Path renamed = baseDirectory.resolve(EVICTED_PREFIX + mirror.key + "-" + System.nanoTime());
+            try {
+                if (Files.exists(mirror.directory)) {
+                    Files.move(mirror.directory, renamed);
+                    evicted.add(renamed);
+                }
+            } catch (IOException e) {
+                System.err.println("Warning: Failed to evict mirror " + mirror.directory + ": " + e.getMessage());
+                continue;
+            }
+            total -= mirror.sizeBytes;
+            leastRecentlyUsed.remove();
+        }
+        return evicted;
+    }
+
+    private void loadExistingMirrors() throws IOException {
+        List<Path> existing;
+        try (var paths = Files.list(baseDirectory)) {
+            existing = paths.filter(Files::isDirectory)
+                    // Oldest first so the access order matches the last use before the restart
+                    .sorted(Comparator.comparingLong(MirrorCache::lastModified))
+                    .toList();
+        }
+        for (Path dir : existing) {
+            if (dir.getFileName().toString().startsWith(EVICTED_PREFIX)) {
+                // Evicted but not deleted before the restart
+                deleteRecursively(dir);
+                continue;
+            }
+            Mirror mirror = new Mirror(dir.getFileName().toString(), dir);
+            mirror.sizeBytes = sizeOf(dir);
+            mirrors.put(mirror.key, mirror);
+        }
+    }
+
+    private static ExecResult run(CommandExecutor executor, List<String> command, Path workDir,
+            StringBuilder output) throws IOException, InterruptedException {
+        ExecResult result = executor.execute(command, workDir);
+        output.append(result.getOutput());
+        return result;
+    }
+
+    /**
+     * Sizes the objects of a repository with {@code git count-objects}, which only reads the sizes of
+     * the pack files.
+     *
+     * @return the size in bytes, -1 if git cannot tell
+     */
+    private static long objectBytes(CommandExecutor executor, Path repository)
+            throws IOException, InterruptedException {
+        ExecResult counted = executor.execute(List.of("git", "count-objects", "-v"), repository);
+        if (counted.getExitCode() != 0 || counted.getOutput() == null) {
+            return -1;
+        }
+        long kibibytes = 0;
+        boolean found = false;
+        for (String line : counted.getOutput().split("\n")) {
+            String[] field = line.split(":", 2);
+            if (field.length == 2 && (field[0].trim().equals("size") || field[0].trim().equals("size-pack"))) {
+                try {
+                    kibibytes += Long.parseLong(field[1].trim());
+                    found = true;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return found ? kibibytes * 1024 : -1;
+    }
+
+    /**
+     * Maps a clone URL to a readable, unique directory name, e.g. "owner-repo-1a2b3c4d.git".
+     */
+    static String directoryName(String url) {
+        String trimmed = url.endsWith(".git") ? url.substring(0, url.length() - 4) : url;
+        String[] parts = trimmed.split("[/:]");
+        String readable = parts.length >= 2 ? parts[parts.length - 2] + "-" + parts[parts.length - 1] : trimmed;
+        readable = readable.replaceAll("[^A-Za-z0-9._-]", "_");
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 4; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return readable + "-" + hex + ".git";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long sizeOf(Path dir) {
+        if (!Files.exists(dir)) {
+            return 0;
+        }
+        try (var paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> {
+                try {
+                    return Files.size(path);
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static boolean deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return true;
+        }
+        try (var paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to evict mirror " + dir + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -1,9 +1,27 @@
 package ci;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Interface for sending build status notifications.
  */
 public interface Notifier {
 
     void setStatus(String owner, String repo, String sha, String state, String description) throws Exception;
+
+    /**
+     * Sends a status without waiting for it to be delivered.
+     * The default implementation sends it synchronously, notifiers talking to a remote service override it.
+     *
+     * @return completed once the status is delivered, or exceptionally if it could not be
+     */
+    default CompletableFuture<Void> setStatusAsync(String owner, String repo, String sha, String state,
+            String description) {
+        try {
+            setStatus(owner, repo, sha, state, description);
+            return CompletableFuture.completedFuture(null);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
@@ -1,29 +1,76 @@
 package ci;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
 /**
  * Factory for creating Notifier instances.
  * Returns GitHubNotifier if GITHUB_TOKEN is set, otherwise MockNotifier for local testing.
  */
 public class NotifierFactory {
+    // Default outbox file, in a directory of its own in the build history like the other side data
+    static final String OUTBOX_FILE = "notifier/status-outbox.jsonl";
 
+    /**
+     * Creates a notifier based on environment variables.
+     *
+     * @return A GitHubNotifier if GITHUB_TOKEN is set, otherwise a MockNotifier.
+     */
     public static Notifier create() {
-        /**
-     * Creates a Notifier based on environment variables.
+        return create(System.getenv("GITHUB_TOKEN"));
+    }
+
+    /**
+     * Creates the notifier of a server with the settings {@code github.api.url},
+     * {@code github.retry.attempts}, {@code github.retry.backoff.ms}, {@code github.outbox.file} and
+     * {@code github.outbox.max}. Updates left in the outbox by the previous run are sent again.
+     * Each call creates a new notifier, only the HTTP client is shared.
      *
+     * @param config           the server configuration
+     * @param historyDirectory the build history directory, holds the outbox by default
      * @return A GitHubNotifier if GITHUB_TOKEN is set, otherwise a MockNotifier.
      */
-        String token = System.getenv("GITHUB_TOKEN");
-        if (token != null && !token.isBlank()) {
-            return new GitHubNotifier(token);
+    public static Notifier create(CiConfig config, Path historyDirectory) {
+        return create(System.getenv("GITHUB_TOKEN"), config, historyDirectory);
+    }
+
+    static Notifier create(String token, CiConfig config, Path historyDirectory) {
+        if (token == null || token.isBlank()) {
+            return create(null);
         }
-        System.out.println("GITHUB_TOKEN not set, using MockNotifier");
-        return new MockNotifier();
+        StatusOutbox outbox = null;
+        try {
+            String file = config.getString("github.outbox.file", null);
+            Path outboxFile = file != null ? Path.of(file) : historyDirectory.resolve(OUTBOX_FILE);
+            if (outboxFile.getParent() != null) {
+                Files.createDirectories(outboxFile.getParent());
+            }
+            outbox = new StatusOutbox(outboxFile, config.getInt("github.outbox.max", 1000));
+        } catch (IOException e) {
+            System.err.println("Status outbox unavailable, statuses are kept in memory only: " + e.getMessage());
+        }
+        GitHubNotifier notifier = new GitHubNotifier(token,
+                URI.create(config.getString("github.api.url", "https://api.github.com")),
+                GitHubNotifier.sharedClient(), config.getInt("github.retry.attempts", 5),
+                Duration.ofMillis(config.getLong("github.retry.backoff.ms", 1000)), outbox);
+        notifier.resendPending();
+        return notifier;
     }
 
+    /**
+     * Creates a notifier with the default settings.
+     *
+     * @param token The GitHub token, null or blank for a MockNotifier.
+     * @return A GitHubNotifier if the token is set, otherwise a MockNotifier.
+     */
     public static Notifier create(String token) {
         if (token != null && !token.isBlank()) {
             return new GitHubNotifier(token);
         }
+        System.out.println("GITHUB_TOKEN not set, using MockNotifier");
         return new MockNotifier();
     }
 }
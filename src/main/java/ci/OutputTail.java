@@ -0,0 +1,67 @@
+package ci;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Ring buffer keeping the last bytes written to it.
+ * Used to hold the end of a build log in memory while the full log goes to disk,
+ * so the memory used per build does not depend on the size of the log.
+ */
+final class OutputTail {
+    private final byte[] buffer;
+    private int next;
+    private long written;
+
+    /**
+     * @param capacity the number of bytes to keep
+     */
+    OutputTail(int capacity) {
+        this.buffer = new byte[Math.max(1, capacity)];
+    }
+
+    /**
+     * Appends bytes, overwriting the oldest ones when the buffer is full.
+     */
+    void write(byte[] bytes, int offset, int length) {
+        // Only the last capacity bytes can survive
+        if (length > buffer.length) {
+            offset += length - buffer.length;
+            written += length - buffer.length;
+            length = buffer.length;
+        }
+        int first = Math.min(length, buffer.length - next);
+        System.arraycopy(bytes, offset, buffer, next, first);
+        System.arraycopy(bytes, offset + first, buffer, 0, length - first);
+        next = (next + length) % buffer.length;
+        written += length;
+    }
+
+    /** @return number of bytes written in total */
+    long getWritten() {
+        return written;
+    }
+
+    /** @return true if older bytes were overwritten */
+    boolean isTruncated() {
+        return written > buffer.length;
+    }
+
+    /**
+     * @return the kept bytes decoded as UTF-8, without a partial character at the start
+     */
+    @Override
+    public String toString() {
+        int size = (int) Math.min(written, buffer.length);
+        byte[] bytes = new byte[size];
+        int start = isTruncated() ? next : 0;
+        int first = Math.min(size, buffer.length - start);
+        System.arraycopy(buffer, start, bytes, 0, first);
+        System.arraycopy(buffer, 0, bytes, first, size - first);
+        int skip = 0;
+        // Skip UTF-8 continuation bytes of a character cut by the ring buffer
+        while (isTruncated() && skip < size && (bytes[skip] & 0xC0) == 0x80) {
+            skip++;
+        }
+        return new String(bytes, skip, size - skip, StandardCharsets.UTF_8);
+    }
+}
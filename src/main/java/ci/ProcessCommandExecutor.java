@@ -1,16 +1,32 @@
 package ci;
 import java.util.List;
 import java.nio.file.Path;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.TimeUnit;
+import java.time.Duration;
 
 // ci/ProcessCommandExecutor.java
 /**
  * Executes a command in a workDir, in a subprocess using ProcessBuilder.
+ * The whole output is kept in memory, use StreamingCommandExecutor for large outputs.
  * 
  */
 final class ProcessCommandExecutor implements CommandExecutor { 
+    static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(5);
+
+    private final Duration timeout;
+
+    ProcessCommandExecutor() {
+        this(DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout maximum wall-clock time before the process tree is destroyed
+     */
+    ProcessCommandExecutor(Duration timeout) {
+        this.timeout = timeout;
+    }
 
     /**
      *  Runs a cmd in the given dir, and captures the result of the execution.
@@ -22,24 +38,16 @@ final class ProcessCommandExecutor implements CommandExecutor {
      */
     @Override
     public ExecResult execute(List<String> command, Path workDir) throws IOException, InterruptedException {
-        // use ProcessBuilder to execute the command.
-        ProcessBuilder builder = new ProcessBuilder(command);
-        // use the working directory specified by workDir
-        builder.directory(workDir.toFile());
-        // redirect the error stream to the output stream, so we can capture all output in one place.
-        builder.redirectErrorStream(true);
-        // start the process and capture the output.
-        Process process = builder.start();
-        // read the output of the process. We use UTF-8 encoding to convert the bytes to a string.
-        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
-        // wait for the process to finish, but we also set a timeout of 5 minutes to avoid hanging indefinitely.
-        boolean finished = process.waitFor(5, TimeUnit.MINUTES);
-        if (!finished) {
-            process.destroyForcibly();
-            return new ExecResult(-1, "Process timed out. Output:\n" + output);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        // the pump thread writes the output, ByteArrayOutputStream is synchronized
+        ProcessRunner.Outcome outcome = ProcessRunner.run(command, workDir, timeout, buffer::write);
+        // We use UTF-8 encoding to convert the bytes to a string.
+        String output = buffer.toString(StandardCharsets.UTF_8);
+        if (outcome.isTimedOut()) {
+            output = "Process timed out after " + timeout.toSeconds() + "s. Output:\n" + output;
         }
-        int exitCode = process.exitValue();
-        return new ExecResult(exitCode, output);
+        return new ExecResult(outcome.getExitCode(), output, null, buffer.size(),
+                outcome.getWallTimeMillis(), outcome.getCpuTimeMillis(), outcome.isTimedOut());
     }
 
 }
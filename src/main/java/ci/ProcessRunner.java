@@ -0,0 +1,246 @@
+package ci;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// ci/ProcessRunner.java
+/**
+ * Runs a subprocess with an asynchronous output pump and a wall-clock timeout.
+ * The output is read by a separate thread, so waiting for the process is never blocked
+ * by a pipe that stays open. On timeout (or interrupt) the whole process tree is destroyed,
+ * including descendants that were seen while the process ran.
+ * Shared by the executors, which only decide where the output goes.
+ */
+final class ProcessRunner {
+    private static final int CHUNK_SIZE = 8192;
+    private static final long SAMPLE_INTERVAL_MILLIS = 200;
+    private static final long PUMP_GRACE_MILLIS = 2000;
+
+    private ProcessRunner() {
+    }
+
+    /**
+     * Receives the output of the process, called from the pump thread.
+     */
+    interface OutputSink {
+        void write(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    /**
+     * What happened to a process.
+     */
+    static final class Outcome {
+        private final int exitCode;
+        private final boolean timedOut;
+        private final boolean outputComplete;
+        private final long wallTimeMillis;
+        private final long cpuTimeMillis;
+
+        Outcome(int exitCode, boolean timedOut, boolean outputComplete, long wallTimeMillis, long cpuTimeMillis) {
+            this.exitCode = exitCode;
+            this.timedOut = timedOut;
+            this.outputComplete = outputComplete;
+            this.wallTimeMillis = wallTimeMillis;
+            this.cpuTimeMillis = cpuTimeMillis;
+        }
+
+        /** @return the exit code, -1 if the process timed out */
+        int getExitCode() {
+            return exitCode;
+        }
+
+        boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /** @return false if the output pipe was still held open (e.g. by an orphaned grandchild) */
+        boolean isOutputComplete() {
+            return outputComplete;
+        }
+
+        long getWallTimeMillis() {
+            return wallTimeMillis;
+        }
+
+        /**
+         * @return CPU time of the process and its descendants as of the last sample, a lower bound: what
+         *         they used after it is not counted
+         */
+        long getCpuTimeMillis() {
+            return cpuTimeMillis;
+        }
+    }
+
+    /**
+     * Runs a command and waits for it at most the given time.
+     *
+     * @param command the cmd to execute
+     * @param workDir target dir to execute the cmd in
+     * @param timeout maximum wall-clock time before the process tree is destroyed
+     * @param sink    receives the combined stdout/stderr
+     * @return the outcome of the process
+     * @throws IOException          if the process cannot be started
+     * @throws InterruptedException if interrupted while waiting, the process tree is destroyed first
+     */
+    static Outcome run(List<String> command, Path workDir, Duration timeout, OutputSink sink)
+            throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(workDir.toFile());
+        // redirect the error stream to the output stream, so we can capture all output in one place.
+        builder.redirectErrorStream(true);
+        long start = System.nanoTime();
+        Process process = builder.start();
+
+        Thread pump = new Thread(() -> pump(process.getInputStream(), sink), "ci-output-pump-" + process.pid());
+        // Never keep the JVM alive because an orphaned grandchild holds the pipe
+        pump.setDaemon(true);
+        pump.start();
+
+        CpuSampler cpu = new CpuSampler(process);
+        long deadline = start + timeout.toNanos();
+        boolean timedOut = false;
+        try {
+            while (!process.waitFor(Math.min(SAMPLE_INTERVAL_MILLIS, remainingMillis(deadline)), TimeUnit.MILLISECONDS)) {
+                cpu.sample();
+                if (System.nanoTime() >= deadline) {
+                    timedOut = true;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The build was cancelled, do not leave the process tree running
+            cpu.destroyTree();
+            throw e;
+        }
+        if (timedOut) {
+            cpu.destroyTree();
+            process.waitFor(PUMP_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        long wallTimeMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // The pipe closes when every process holding it has exited
+        pump.join(PUMP_GRACE_MILLIS);
+        if (pump.isAlive()) {
+            cpu.destroyTree();
+            pump.join(PUMP_GRACE_MILLIS);
+        }
+        // Descendants that outlive the process, e.g. a forked JVM still shutting down
+        cpu.sampleDescendants();
+        int exitCode = timedOut || process.isAlive() ? -1 : process.exitValue();
+        return new Outcome(exitCode, timedOut, !pump.isAlive(), wallTimeMillis, cpu.totalMillis());
+    }
+
+    private static void pump(InputStream in, OutputSink sink) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (in) {
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                sink.write(chunk, 0, read);
+            }
+        } catch (IOException e) {
+            // Pipe closed or sink closed after a timeout, the output collected so far is kept
+        }
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(1, (deadline - System.nanoTime()) / 1_000_000);
+    }
+
+    /**
+     * Samples the CPU time of a process and all its descendants.
+     * Remembers every descendant seen, so orphaned ones can still be destroyed.
+     * On Linux each sample also reads the CPU time of the children every process of the tree has
+     * waited for ({@code /proc/<pid>/stat}), so descendants that ran only between two samples, e.g.
+     * short compiler runs or forked test JVMs, are counted as well.
+     */
+    private static final class CpuSampler {
+        // USER_HZ, the unit of the times in /proc/<pid>/stat
+        private static final long TICKS_PER_SECOND = 100;
+
+        private final Process process;
+        private final Map<Long, ProcessHandle> seen = new HashMap<>();
+        private final Map<Long, Long> cpuMillisByPid = new HashMap<>();
+        // Largest CPU time of the whole tree read from /proc, -1 if unavailable
+        private long treeMillis = -1;
+
+        CpuSampler(Process process) {
+            this.process = process;
+            sample();
+        }
+
+        void sample() {
+            List<ProcessHandle> tree = new ArrayList<>();
+            tree.add(process.toHandle());
+            process.descendants().forEach(tree::add);
+            tree.forEach(this::record);
+            // The processes of the tree at this moment plus the children they reaped, nothing counted twice
+            long total = 0;
+            for (ProcessHandle handle : tree) {
+                long millis = procCpuMillis(handle.pid());
+                if (millis < 0) {
+                    return;
+                }
+                total += millis;
+            }
+            treeMillis = Math.max(treeMillis, total);
+        }
+
+        void sampleDescendants() {
+            process.descendants().forEach(this::record);
+        }
+
+        private void record(ProcessHandle handle) {
+            seen.put(handle.pid(), handle);
+            handle.info().totalCpuDuration()
+                    .ifPresent(cpu -> cpuMillisByPid.merge(handle.pid(), cpu.toMillis(), Math::max));
+        }
+
+        long totalMillis() {
+            return Math.max(treeMillis, cpuMillisByPid.values().stream().mapToLong(Long::longValue).sum());
+        }
+
+        /**
+         * @return user and system time of a process and of the children it waited for, -1 if unknown
+         */
+        private static long procCpuMillis(long pid) {
+            String stat;
+            try {
+                stat = Files.readString(Path.of("/proc", String.valueOf(pid), "stat"));
+            } catch (IOException | RuntimeException e) {
+                // Not Linux, or the process just exited
+                return -1;
+            }
+            // The command name in parentheses may contain spaces, the fields after it do not
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+            if (fields.length < 15) {
+                return -1;
+            }
+            try {
+                // utime, stime, cutime and cstime are fields 14 to 17, the state (field 3) is the first here
+                long ticks = 0;
+                for (int i = 11; i <= 14; i++) {
+                    ticks += Long.parseLong(fields[i]);
+                }
+                return ticks * 1000 / TICKS_PER_SECOND;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        void destroyTree() {
+            List<ProcessHandle> descendants = process.descendants().toList();
+            // The process goes first, a shell outliving its child would report the kill in the log
+            process.destroyForcibly();
+            descendants.forEach(ProcessHandle::destroyForcibly);
+            seen.values().forEach(ProcessHandle::destroyForcibly);
+        }
+    }
+}
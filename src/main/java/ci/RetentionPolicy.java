@@ -0,0 +1,88 @@
+package ci;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+/**
+ * Which builds of the history to keep. A limit of 0 disables it; a build is removed when any
+ * enabled limit expires it.
+ *
+ * @param keepPerBranch  number of newest builds kept per repository and branch
+ * @param maxAge         builds that finished longer ago are removed
+ * @param maxTotalBytes  the oldest builds are removed until the records fit in this
+ * @param archive        true to move removed records into an archive instead of deleting them
+ */
+public record RetentionPolicy(int keepPerBranch, Duration maxAge, long maxTotalBytes, boolean archive) {
+
+    /**
+     * Reads the policy from {@code retention.keep.per.branch}, {@code retention.max.age.days},
+     * {@code retention.max.total.mb} and {@code retention.archive}. All limits are off by default.
+     *
+     * @param config the server configuration
+     * @return the policy
+     */
+    public static RetentionPolicy fromConfig(CiConfig config) {
+        return new RetentionPolicy(config.getInt("retention.keep.per.branch", 0),
+                Duration.ofDays(config.getLong("retention.max.age.days", 0)),
+                config.getLong("retention.max.total.mb", 0) * 1024 * 1024,
+                config.getBoolean("retention.archive", false));
+    }
+
+    /** @return true if any limit is set */
+    public boolean isEnabled() {
+        return keepPerBranch > 0 || !maxAge.isZero() || maxTotalBytes > 0;
+    }
+
+    /**
+     * Selects the builds to remove.
+     *
+     * @param builds  the builds, oldest first
+     * @param now     the current time in epoch millis
+     * @param sizeOf  size of the record of a build in bytes
+     * @return ids of the builds to remove, oldest first
+     */
+    public List<String> selectExpired(List<BuildIndex.Entry> builds, long now,
+            ToLongFunction<BuildIndex.Entry> sizeOf) {
+        Set<String> expired = new LinkedHashSet<>();
+        if (keepPerBranch > 0) {
+            Map<String, Integer> kept = new HashMap<>();
+            for (int i = builds.size() - 1; i >= 0; i--) {
+                BuildIndex.Entry build = builds.get(i);
+                if (kept.merge(build.repository() + ":" + build.branch(), 1, Integer::sum) > keepPerBranch) {
+                    expired.add(build.buildId());
+                }
+            }
+        }
+        if (!maxAge.isZero()) {
+            long oldest = now - maxAge.toMillis();
+            for (BuildIndex.Entry build : builds) {
+                if (build.finishedAt() < oldest) {
+                    expired.add(build.buildId());
+                }
+            }
+        }
+        if (maxTotalBytes > 0) {
+            long total = 0;
+            for (BuildIndex.Entry build : builds) {
+                if (!expired.contains(build.buildId())) {
+                    total += sizeOf.applyAsLong(build);
+                }
+            }
+            for (BuildIndex.Entry build : builds) {
+                if (total <= maxTotalBytes) {
+                    break;
+                }
+                if (expired.add(build.buildId())) {
+                    total -= sizeOf.applyAsLong(build);
+                }
+            }
+        }
+        // In the order of the builds
+        return builds.stream().map(BuildIndex.Entry::buildId).filter(expired::contains).toList();
+    }
+}
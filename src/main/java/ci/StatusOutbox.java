@@ -0,0 +1,168 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Commit status updates that have not been delivered to GitHub yet, kept on disk so they are
+ * sent after a restart. The file is a journal with one JSON object per line: an "add" line per
+ * update and a "done" line once it is delivered (or given up). It is rewritten with only the
+ * pending updates when it is opened and whenever it holds many more lines than pending updates.
+ * <p>
+ * The outbox is bounded: when it is full the oldest pending update is dropped.
+ */
+public class StatusOutbox {
+    private final Path file;
+    private final int capacity;
+    // Pending updates by id, oldest first
+    private final Map<Long, Status> pending = new LinkedHashMap<>();
+    private long nextId;
+    private int journalLines;
+
+    /**
+     * A status update waiting to be delivered.
+     *
+     * @param id          id in the outbox
+     * @param owner       repository owner
+     * @param repo        repository name
+     * @param sha         commit SHA
+     * @param state       status state
+     * @param description status description
+     */
+    public record Status(long id, String owner, String repo, String sha, String state, String description) {
+    }
+
+    /**
+     * Opens the outbox, loading the updates left pending by a previous run.
+     *
+     * @param file     the journal file, created if it does not exist
+     * @param capacity maximum number of pending updates
+     * @throws IOException if the journal cannot be read or rewritten
+     */
+    public StatusOutbox(Path file, int capacity) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.file = file;
+        this.capacity = capacity;
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                load(line);
+            }
+        }
+        while (pending.size() > capacity) {
+            // Not journaled, the journal is rewritten next
+            dropOldest(false);
+        }
+        rewrite();
+    }
+
+    private void load(String line) {
+        try {
+            JSONObject json = new JSONObject(line);
+            long id = json.getLong("id");
+            nextId = Math.max(nextId, id + 1);
+            if (json.getString("op").equals("add")) {
+                pending.put(id, new Status(id, json.getString("owner"), json.getString("repo"),
+                        json.getString("sha"), json.getString("state"), json.getString("description")));
+            } else {
+                pending.remove(id);
+            }
+        } catch (JSONException e) {
+            // A line cut short by a crash, the update it described is lost
+        }
+    }
+
+    /**
+     * Adds an update.
+     *
+     * @return the pending update with its id
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized Status add(String owner, String repo, String sha, String state, String description)
+            throws IOException {
+        if (pending.size() >= capacity) {
+            dropOldest(true);
+        }
+        Status status = new Status(nextId++, owner, repo, sha, state, description);
+        append(addLine(status));
+        pending.put(status.id(), status);
+        return status;
+    }
+
+    /**
+     * Marks an update as delivered or given up. Unknown ids are ignored.
+     *
+     * @param id id of the update
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized void remove(long id) throws IOException {
+        if (pending.remove(id) == null) {
+            return;
+        }
+        append(new JSONObject().put("op", "done").put("id", id));
+        if (journalLines > 4 * pending.size() + 100) {
+            rewrite();
+        }
+    }
+
+    /**
+     * @return the pending updates, oldest first
+     */
+    public synchronized List<Status> pending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    private void dropOldest(boolean journal) throws IOException {
+        Iterator<Status> oldest = pending.values().iterator();
+        Status dropped = oldest.next();
+        oldest.remove();
+        System.err.println("Status outbox full, dropping " + dropped.state() + " status of " + dropped.sha());
+        if (journal) {
+            append(new JSONObject().put("op", "done").put("id", dropped.id()));
+        }
+    }
+
+    private static JSONObject addLine(Status status) {
+        return new JSONObject()
+                .put("op", "add")
+                .put("id", status.id())
+                .put("owner", status.owner())
+                .put("repo", status.repo())
+                .put("sha", status.sha())
+                .put("state", status.state())
+                .put("description", status.description());
+    }
+
+    private void append(JSONObject entry) throws IOException {
+        Files.writeString(file, entry + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        journalLines++;
+    }
+
+    /**
+     * Replaces the journal with one "add" line per pending update.
+     */
+    private void rewrite() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Status status : pending.values()) {
+            lines.append(addLine(status)).append('\n');
+        }
+        Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(rewritten, lines, StandardCharsets.UTF_8);
+        Files.move(rewritten, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        journalLines = pending.size();
+    }
+}
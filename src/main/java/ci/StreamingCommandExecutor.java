@@ -0,0 +1,99 @@
+package ci;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+
+// ci/StreamingCommandExecutor.java
+/**
+ * Executes a command in a subprocess and streams its output to a log file.
+ * Only the end of the output (the tail) is kept in memory and returned in the ExecResult,
+ * so a command producing hundreds of MB of output uses a constant amount of memory.
+ */
+final class StreamingCommandExecutor implements CommandExecutor {
+    private final Path logFile;
+    private final int tailBytes;
+    private final Duration timeout;
+
+    /**
+     * @param logFile   the file the output is appended to
+     * @param tailBytes the number of bytes of output kept in memory
+     * @param timeout   maximum wall-clock time before the process tree is destroyed
+     */
+    StreamingCommandExecutor(Path logFile, int tailBytes, Duration timeout) {
+        this.logFile = logFile;
+        this.tailBytes = tailBytes;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Runs a cmd in the given dir, appends its output to the log file and keeps the tail in memory.
+     * @param command the cmd to execute
+     * @param workDir target dir to execute the cmd in
+     * @return the context of the execution, with the tail of the output and the log file
+     * @throws IOException if the process cannot be started or the log cannot be written
+     * @throws InterruptedException if interrupted while waiting for the process
+     */
+    @Override
+    public ExecResult execute(List<String> command, Path workDir) throws IOException, InterruptedException {
+        LogSink sink = new LogSink(Files.newOutputStream(logFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), new OutputTail(tailBytes));
+        ProcessRunner.Outcome outcome;
+        try {
+            outcome = ProcessRunner.run(command, workDir, timeout, sink);
+        } finally {
+            sink.close();
+        }
+
+        String output = sink.tailText();
+        if (outcome.isTimedOut()) {
+            output = "Process timed out after " + timeout.toSeconds() + "s. Output:\n" + output;
+        }
+        return new ExecResult(outcome.getExitCode(), output, logFile, sink.written(),
+                outcome.getWallTimeMillis(), outcome.getCpuTimeMillis(), outcome.isTimedOut());
+    }
+
+    /**
+     * Writes the output to the log file and the tail. Closed once the process is done,
+     * later writes of a pump blocked by an orphaned grandchild are dropped.
+     */
+    private final class LogSink implements ProcessRunner.OutputSink {
+        private final OutputStream log;
+        private final OutputTail tail;
+        private boolean closed;
+
+        LogSink(OutputStream log, OutputTail tail) {
+            this.log = log;
+            this.tail = tail;
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("log closed");
+            }
+            log.write(bytes, offset, length);
+            tail.write(bytes, offset, length);
+        }
+
+        synchronized void close() throws IOException {
+            closed = true;
+            log.close();
+        }
+
+        synchronized long written() {
+            return tail.getWritten();
+        }
+
+        synchronized String tailText() {
+            if (!tail.isTruncated()) {
+                return tail.toString();
+            }
+            return "[... output truncated, full log in " + logFile + "]\n" + tail;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the test classes affected by the files changed since an earlier commit.
+ * <p>
+ * The dependency index is built from the Java sources of the checked out commit, so it is never
+ * out of date: a type depends on every type whose simple name occurs in its source, in any module.
+ * This over-approximates the real dependencies, which only ever selects too many tests. A test
+ * class is selected if it depends on a changed type, directly or through other types.
+ * All tests run when a change is not a Java source that still exists, e.g. a pom, a resource or a
+ * deleted class, since its effect cannot be traced.
+ */
+public final class TestImpact {
+    private static final Pattern TYPE_NAME = Pattern.compile("\\b[A-Z][A-Za-z0-9_$]*\\b");
+    private static final Pattern TEST_CLASS = Pattern.compile("Test[^.]*|.*Test|.*Tests|.*TestCase");
+    private static final String MAIN_ROOT = "src/main/java/";
+    private static final String TEST_ROOT = "src/test/java/";
+
+    private TestImpact() {
+    }
+
+    /**
+     * The tests to run.
+     *
+     * @param full        true to run all tests
+     * @param testClasses the selected test classes when not {@code full}, possibly none
+     * @param reason      why all tests run, or what the selection is based on
+     */
+    public record Selection(boolean full, List<String> testClasses, String reason) {
+
+        static Selection all(String reason) {
+            return new Selection(true, List.of(), reason);
+        }
+
+        /** @return a one line description for the build record */
+        public String describe() {
+            return full ? "all tests (" + reason + ")"
+                    : testClasses.size() + " affected test classes (" + reason + ")";
+        }
+    }
+
+    /**
+     * Lists the files changed between two commits of a workspace.
+     *
+     * @param git       runs git in the workspace
+     * @param workspace the checked out repository
+     * @param base      the earlier commit
+     * @param head      the checked out commit
+     * @return the paths of the changed files, relative to the workspace, or null if git cannot
+     *         compare the commits, e.g. because the base is not in a shallow clone
+     * @throws IOException          if git cannot be started
+     * @throws InterruptedException if interrupted while git runs
+     */
+    public static List<String> changedFiles(CommandExecutor git, Path workspace, String base, String head)
+            throws IOException, InterruptedException {
+        ExecResult diff = git.execute(List.of("git", "diff", "--name-only", "--no-renames", base, head), workspace);
+        if (diff.getExitCode() != 0) {
+            return null;
+        }
+        return diff.getOutput().lines().map(String::trim).filter(line -> !line.isEmpty()).toList();
+    }
+
+    /**
+     * Selects the test classes affected by changed files.
+     *
+     * @param workspace    the checked out commit
+     * @param changedFiles paths relative to the workspace, as listed by {@link #changedFiles}
+     * @return the selection
+     * @throws IOException if the sources cannot be read
+     */
+    public static Selection select(Path workspace, List<String> changedFiles) throws IOException {
+        Set<String> changedTypes = new HashSet<>();
+        for (String file : changedFiles) {
+            String type = typeName(file);
+            if (type == null) {
+                return Selection.all("changed " + file);
+            }
+            if (!Files.exists(workspace.resolve(file))) {
+                return Selection.all("deleted " + file);
+            }
+            changedTypes.add(type);
+        }
+
+        Map<String, Path> sources = sources(workspace);
+        Map<String, List<String>> typesBySimpleName = new HashMap<>();
+        for (String type : sources.keySet()) {
+            typesBySimpleName.computeIfAbsent(simpleName(type), n -> new ArrayList<>()).add(type);
+        }
+        // Reverse dependencies: type -> types whose source mentions it
+        Map<String, Set<String>> dependents = new HashMap<>();
+        for (Map.Entry<String, Path> source : sources.entrySet()) {
+            Matcher names = TYPE_NAME.matcher(Files.readString(source.getValue(), StandardCharsets.UTF_8));
+            Set<String> seen = new HashSet<>();
+            while (names.find()) {
+                if (seen.add(names.group())) {
+                    for (String type : typesBySimpleName.getOrDefault(names.group(), List.of())) {
+                        dependents.computeIfAbsent(type, t -> new HashSet<>()).add(source.getKey());
+                    }
+                }
+            }
+        }
+
+        Set<String> affected = new HashSet<>(changedTypes);
+        Deque<String> pending = new ArrayDeque<>(changedTypes);
+        while (!pending.isEmpty()) {
+            for (String dependent : dependents.getOrDefault(pending.pop(), Set.of())) {
+                if (affected.add(dependent)) {
+                    pending.push(dependent);
+                }
+            }
+        }
+        TreeSet<String> tests = new TreeSet<>();
+        for (String type : affected) {
+            Path source = sources.get(type);
+            if (source != null && isTestSource(workspace.relativize(source).toString())
+                    && TEST_CLASS.matcher(simpleName(type)).matches()) {
+                tests.add(type);
+            }
+        }
+        return new Selection(false, new ArrayList<>(tests), changedFiles.size() + " changed files");
+    }
+
+    /**
+     * @return the type of a Java source under a source root, null for any other file
+     */
+    static String typeName(String file) {
+        String path = file.replace('\\', '/');
+        if (!path.endsWith(".java")) {
+            return null;
+        }
+        for (String root : List.of(MAIN_ROOT, TEST_ROOT)) {
+            int start = path.indexOf(root);
+            if (start == 0 || start > 0 && path.charAt(start - 1) == '/') {
+                String relative = path.substring(start + root.length(), path.length() - ".java".length());
+                return relative.replace('/', '.');
+            }
+        }
+        return null;
+    }
+
+    private static boolean isTestSource(String file) {
+        String path = file.replace('\\', '/');
+        return path.startsWith(TEST_ROOT) || path.contains("/" + TEST_ROOT);
+    }
+
+    private static String simpleName(String type) {
+        return type.substring(type.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return every Java source under a source root of the workspace, by type name
+     */
+    private static Map<String, Path> sources(Path workspace) throws IOException {
+        Map<String, Path> sources = new HashMap<>();
+        Files.walkFileTree(workspace, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                String name = dir.getFileName().toString();
+                return name.equals(".git") || name.equals("target") ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String type = typeName(workspace.relativize(file).toString());
+                if (type != null) {
+                    sources.put(type, file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return sources;
+    }
+}
@@ -0,0 +1,218 @@
+package ci;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The outcome and duration of each test method, read from the Surefire reports of a workspace and
+ * stored with the build in a compact form: one "class, method, outcome, milliseconds" line per test.
+ */
+public final class TestReport {
+
+    private TestReport() {
+    }
+
+    /**
+     * Outcome of a test, from the best to the worst.
+     */
+    public enum Outcome {
+        PASSED('P'), SKIPPED('S'), FLAKY('K'), FAILED('F'), ERROR('E');
+
+        private final char code;
+
+        Outcome(char code) {
+            this.code = code;
+        }
+
+        static Outcome fromCode(char code) {
+            for (Outcome outcome : values()) {
+                if (outcome.code == code) {
+                    return outcome;
+                }
+            }
+            throw new IllegalArgumentException("Unknown test outcome " + code);
+        }
+
+        /** @return true for a failure or an error */
+        public boolean isFailure() {
+            return this == FAILED || this == ERROR;
+        }
+    }
+
+    /**
+     * One test method.
+     *
+     * @param className the test class
+     * @param name      the test method, or the display name of a parameterized test
+     * @param outcome   failed or error also if the test failed its reruns, flaky if it passed a rerun
+     * @param millis    its duration, 0 if the report has none
+     */
+    public record TestCase(String className, String name, Outcome outcome, long millis) {
+    }
+
+    /**
+     * Reads the tests of every {@code TEST-*.xml} report in the {@code target/surefire-reports} of the
+     * workspace that was written since a point in time. The reports are streamed, a report cut short
+     * (e.g. by a killed fork) gives the tests before the cut.
+     *
+     * @param sourceDir the workspace
+     * @param since     epoch milliseconds, older reports are left out, e.g. those of a previous build
+     * @return the tests in report order, empty if the workspace does not exist
+     * @throws IOException if a report cannot be read
+     */
+    public static List<TestCase> parseReports(Path sourceDir, long since) throws IOException {
+        List<TestCase> cases = new ArrayList<>();
+        if (!Files.isDirectory(sourceDir)) {
+            return cases;
+        }
+        for (Path report : TestShards.reports(sourceDir)) {
+            if (Files.getLastModifiedTime(report).toMillis() < since) {
+                continue;
+            }
+            try (InputStream in = Files.newInputStream(report)) {
+                XMLStreamReader xml = TestShards.XML.createXMLStreamReader(in);
+                try {
+                    readCases(xml, cases);
+                } finally {
+                    xml.close();
+                }
+            } catch (XMLStreamException e) {
+                // Keep the tests before the damage
+            }
+        }
+        return cases;
+    }
+
+    private static void readCases(XMLStreamReader xml, List<TestCase> cases) throws XMLStreamException {
+        String suite = null;
+        String className = null;
+        String name = null;
+        long millis = 0;
+        Outcome outcome = Outcome.PASSED;
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String element = xml.getLocalName();
+                if (element.equals("testsuite")) {
+                    suite = xml.getAttributeValue(null, "name");
+                } else if (element.equals("testcase")) {
+                    className = xml.getAttributeValue(null, "classname");
+                    name = xml.getAttributeValue(null, "name");
+                    millis = millis(xml.getAttributeValue(null, "time"));
+                    outcome = Outcome.PASSED;
+                } else if (name != null) {
+                    outcome = worse(outcome, element);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("testcase")
+                    && name != null) {
+                cases.add(new TestCase(className != null ? className : suite != null ? suite : "", name, outcome,
+                        millis));
+                name = null;
+            }
+        }
+    }
+
+    /**
+     * Applies a child element of a test case, e.g. {@code <failure>}, to its outcome.
+     * Surefire writes {@code flakyFailure} for runs failed before a passing rerun, and
+     * {@code rerunFailure} next to the {@code failure} of a test that failed all its reruns.
+     */
+    private static Outcome worse(Outcome outcome, String element) {
+        Outcome child = switch (element) {
+            case "failure" -> Outcome.FAILED;
+            case "error" -> Outcome.ERROR;
+            case "skipped" -> Outcome.SKIPPED;
+            case "flakyFailure", "flakyError" -> Outcome.FLAKY;
+            default -> outcome;
+        };
+        return child.compareTo(outcome) > 0 ? child : outcome;
+    }
+
+    private static long millis(String seconds) {
+        if (seconds == null) {
+            return 0;
+        }
+        try {
+            return Math.round(Double.parseDouble(seconds.replace(",", "")) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes tests in the stored form, one tab separated line per test.
+     *
+     * @param cases the tests
+     * @param out   where the lines are written, not closed
+     * @throws IOException if the lines cannot be written
+     */
+    public static void write(List<TestCase> cases, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        for (TestCase test : cases) {
+            writer.write(clean(test.className()) + '\t' + clean(test.name()) + '\t' + test.outcome().code + '\t'
+                    + test.millis() + '\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads tests stored with {@link #write(List, OutputStream)}, damaged lines are skipped.
+     *
+     * @param in the stored lines
+     * @return the tests
+     * @throws IOException if the lines cannot be read
+     */
+    public static List<TestCase> read(InputStream in) throws IOException {
+        List<TestCase> cases = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] columns = line.split("\t", -1);
+            if (columns.length != 4 || columns[2].length() != 1) {
+                continue;
+            }
+            try {
+                cases.add(new TestCase(columns[0], columns[1], Outcome.fromCode(columns[2].charAt(0)),
+                        Long.parseLong(columns[3])));
+            } catch (IllegalArgumentException e) {
+                // Skip damaged lines
+            }
+        }
+        return cases;
+    }
+
+    /**
+     * Display names of parameterized tests may hold any character, the stored form has no tabs or line breaks.
+     */
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * @param cases the tests
+     * @return a one line summary, e.g. "12 passed, 1 failed, 0 errors, 2 skipped, 1 flaky"
+     */
+    public static String summary(List<TestCase> cases) {
+        int[] counts = new int[Outcome.values().length];
+        for (TestCase test : cases) {
+            counts[test.outcome().ordinal()]++;
+        }
+        return counts[Outcome.PASSED.ordinal()] + " passed, " + counts[Outcome.FAILED.ordinal()] + " failed, "
+                + counts[Outcome.ERROR.ordinal()] + " errors, " + counts[Outcome.SKIPPED.ordinal()] + " skipped, "
+                + counts[Outcome.FLAKY.ordinal()] + " flaky";
+    }
+}
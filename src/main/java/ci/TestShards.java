@@ -0,0 +1,172 @@
+package ci;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Finds the test classes of a workspace and splits them into shards of about equal duration,
+ * for {@link CiTest}.
+ */
+final class TestShards {
+    // The classes Surefire runs by default
+    private static final Pattern TEST_FILE = Pattern.compile("(Test[^/]*|[^/]*Test|[^/]*Tests|[^/]*TestCase)\\.java");
+    // Used for classes that never ran, e.g. new ones
+    private static final long UNKNOWN_MILLIS = 1000;
+    static final XMLInputFactory XML = XMLInputFactory.newFactory();
+
+    static {
+        // Reports come from the built repository, never resolve entities or DTDs of them
+        XML.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private TestShards() {
+    }
+
+    /**
+     * Finds the test classes Surefire runs by default, in every {@code src/test/java} of the workspace.
+     *
+     * @param sourceDir the workspace
+     * @return the fully qualified class names, sorted
+     * @throws IOException if the workspace cannot be read
+     */
+    static List<String> discover(Path sourceDir) throws IOException {
+        TreeSet<String> classes = new TreeSet<>();
+        Files.walkFileTree(sourceDir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                String name = dir.getFileName().toString();
+                return name.equals(".git") || name.equals("target") ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String path = sourceDir.relativize(file).toString().replace('\\', '/');
+                int root = path.indexOf("src/test/java/");
+                if (root >= 0 && (root == 0 || path.charAt(root - 1) == '/')
+                        && TEST_FILE.matcher(file.getFileName().toString()).matches()) {
+                    String relative = path.substring(root + "src/test/java/".length());
+                    classes.add(relative.substring(0, relative.length() - ".java".length()).replace('/', '.'));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return new ArrayList<>(classes);
+    }
+
+    /**
+     * Splits classes into shards of about equal total duration: the longest classes first, each into
+     * the shard that is shortest so far. Classes without a known duration count as the median of the
+     * known ones.
+     *
+     * @param classes   the test classes
+     * @param durations known durations in milliseconds by class
+     * @param shards    the maximum number of shards
+     * @return the non-empty shards
+     */
+    static List<List<String>> balance(List<String> classes, Map<String, Long> durations, int shards) {
+        long[] known = classes.stream().filter(durations::containsKey).mapToLong(durations::get).sorted().toArray();
+        long unknown = known.length == 0 ? UNKNOWN_MILLIS : known[known.length / 2];
+        List<String> longestFirst = new ArrayList<>(classes);
+        longestFirst.sort(Comparator.comparingLong((String c) -> durations.getOrDefault(c, unknown)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+
+        int count = Math.min(shards, classes.size());
+        List<List<String>> result = new ArrayList<>(count);
+        long[] totals = new long[count];
+        for (int i = 0; i < count; i++) {
+            result.add(new ArrayList<>());
+        }
+        for (String testClass : longestFirst) {
+            int shortest = 0;
+            for (int i = 1; i < count; i++) {
+                if (totals[i] < totals[shortest]) {
+                    shortest = i;
+                }
+            }
+            result.get(shortest).add(testClass);
+            totals[shortest] += durations.getOrDefault(testClass, unknown);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the duration of each test class from the Surefire reports of the workspace written since
+     * a point in time.
+     *
+     * @param sourceDir the workspace
+     * @param since     epoch milliseconds, older reports are left out, e.g. those of a previous build
+     * @return duration in milliseconds by class name, empty if there are no reports
+     * @throws IOException if a report cannot be read
+     */
+    static Map<String, Long> readDurations(Path sourceDir, long since) throws IOException {
+        Map<String, Long> durations = new HashMap<>();
+        for (Path report : reports(sourceDir)) {
+            if (Files.getLastModifiedTime(report).toMillis() < since) {
+                continue;
+            }
+            try (InputStream in = Files.newInputStream(report)) {
+                XMLStreamReader xml = XML.createXMLStreamReader(in);
+                try {
+                    // Only the root element is read, it holds the class and its total time
+                    xml.nextTag();
+                    String name = xml.getAttributeValue(null, "name");
+                    String time = xml.getAttributeValue(null, "time");
+                    if (name != null && time != null) {
+                        durations.put(name, Math.round(Double.parseDouble(time.replace(",", "")) * 1000));
+                    }
+                } finally {
+                    xml.close();
+                }
+            } catch (XMLStreamException | NumberFormatException e) {
+                // E.g. a report cut short by a killed fork, the class is timed again by its next run
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * @return the {@code TEST-*.xml} files in every {@code target/surefire-reports} of the workspace
+     */
+    static List<Path> reports(Path sourceDir) throws IOException {
+        List<Path> reports = new ArrayList<>();
+        Files.walkFileTree(sourceDir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                String name = dir.getFileName().toString();
+                if (name.equals("target")) {
+                    // Only the reports of the module, not its classes
+                    Path surefire = dir.resolve("surefire-reports");
+                    if (Files.isDirectory(surefire)) {
+                        try (var files = Files.list(surefire)) {
+                            files.filter(file -> file.getFileName().toString().startsWith("TEST-")
+                                    && file.getFileName().toString().endsWith(".xml")).forEach(reports::add);
+                        }
+                    }
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return name.equals(".git") || name.equals("src") ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+        });
+        reports.sort(null);
+        return reports;
+    }
+}
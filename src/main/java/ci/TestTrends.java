@@ -0,0 +1,170 @@
+package ci;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The slowest and the flaky tests over the recent builds, computed from the stored test results
+ * ({@link BuildHistory#getTestResults(String)}) and served at {@code /builds/tests}.
+ * <p>
+ * A test is flaky when it passed only on a rerun, or when it both passed and failed in builds
+ * of the same commit.
+ */
+public final class TestTrends {
+
+    private TestTrends() {
+    }
+
+    /**
+     * The tests of one build.
+     *
+     * @param commitSha the built commit
+     * @param cases     the tests of the build
+     */
+    public record Run(String commitSha, List<TestReport.TestCase> cases) {
+    }
+
+    /**
+     * Durations of a test over the builds it ran in, in milliseconds.
+     *
+     * @param runs number of builds the test ran in, skipped runs are not counted
+     */
+    public record SlowTest(String className, String name, int runs, long p50Millis, long maxMillis) {
+    }
+
+    /**
+     * A test that did not give the same outcome for the same code.
+     *
+     * @param runs          number of builds the test ran in
+     * @param failures      number of those in which it failed
+     * @param flakyRuns     number of those in which it passed only on a rerun
+     * @param flakyCommits  number of commits it both passed and failed on
+     */
+    public record FlakyTest(String className, String name, int runs, int failures, int flakyRuns, int flakyCommits) {
+    }
+
+    /**
+     * @param builds  number of builds with test results
+     * @param slowest the slowest tests, slowest median first
+     * @param flaky   the flaky tests, the most often flaky first
+     */
+    public record Trends(int builds, List<SlowTest> slowest, List<FlakyTest> flaky) {
+    }
+
+    /**
+     * Loads the test results of the newest builds.
+     *
+     * @param history where the builds are stored
+     * @param filter  the builds to look at, e.g. those of one repository
+     * @param builds  maximum number of builds to look at
+     * @return the builds with test results, newest first
+     * @throws IOException if results cannot be read
+     */
+    public static List<Run> load(BuildHistory history, BuildIndex.Filter filter, int builds) throws IOException {
+        List<Run> runs = new ArrayList<>();
+        for (BuildIndex.Entry entry : history.queryBuilds(filter, -1, builds).entries()) {
+            List<TestReport.TestCase> cases = history.getTestResults(entry.buildId());
+            if (!cases.isEmpty()) {
+                runs.add(new Run(entry.commitSha(), cases));
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Computes the slowest and the flaky tests.
+     *
+     * @param runs  the builds to look at
+     * @param limit maximum number of slowest tests
+     * @return the trends
+     */
+    public static Trends compute(List<Run> runs, int limit) {
+        // Keyed by class and method, tab never occurs in the stored names
+        Map<String, List<Long>> durations = new HashMap<>();
+        Map<String, int[]> counts = new LinkedHashMap<>();
+        Map<String, Set<String>> passedOn = new HashMap<>();
+        Map<String, Set<String>> failedOn = new HashMap<>();
+        for (Run run : runs) {
+            for (TestReport.TestCase test : run.cases()) {
+                if (test.outcome() == TestReport.Outcome.SKIPPED) {
+                    continue;
+                }
+                String key = test.className() + "\t" + test.name();
+                durations.computeIfAbsent(key, k -> new ArrayList<>()).add(test.millis());
+                // Runs, failures and runs that passed on a rerun
+                int[] count = counts.computeIfAbsent(key, k -> new int[3]);
+                count[0]++;
+                if (test.outcome().isFailure()) {
+                    count[1]++;
+                    failedOn.computeIfAbsent(key, k -> new HashSet<>()).add(run.commitSha());
+                } else {
+                    passedOn.computeIfAbsent(key, k -> new HashSet<>()).add(run.commitSha());
+                }
+                if (test.outcome() == TestReport.Outcome.FLAKY) {
+                    count[2]++;
+                }
+            }
+        }
+
+        List<SlowTest> slowest = new ArrayList<>(durations.size());
+        for (Map.Entry<String, List<Long>> test : durations.entrySet()) {
+            long[] sorted = test.getValue().stream().mapToLong(Long::longValue).sorted().toArray();
+            String[] name = test.getKey().split("\t", 2);
+            slowest.add(new SlowTest(name[0], name[1], sorted.length, BuildStats.percentile(sorted, sorted.length, 0.5),
+                    sorted[sorted.length - 1]));
+        }
+        slowest.sort(Comparator.comparingLong(SlowTest::p50Millis).reversed()
+                .thenComparing(SlowTest::className).thenComparing(SlowTest::name));
+
+        List<FlakyTest> flaky = new ArrayList<>();
+        for (Map.Entry<String, int[]> test : counts.entrySet()) {
+            Set<String> both = new HashSet<>(passedOn.getOrDefault(test.getKey(), Set.of()));
+            both.retainAll(failedOn.getOrDefault(test.getKey(), Set.of()));
+            int[] count = test.getValue();
+            if (count[2] > 0 || !both.isEmpty()) {
+                String[] name = test.getKey().split("\t", 2);
+                flaky.add(new FlakyTest(name[0], name[1], count[0], count[1], count[2], both.size()));
+            }
+        }
+        flaky.sort(Comparator.comparingInt((FlakyTest t) -> t.flakyRuns() + t.flakyCommits()).reversed()
+                .thenComparing(FlakyTest::className).thenComparing(FlakyTest::name));
+        return new Trends(runs.size(), slowest.subList(0, Math.min(limit, slowest.size())), flaky);
+    }
+
+    /**
+     * Writes the trends as HTML tables, durations in seconds.
+     *
+     * @param out    where the HTML is written
+     * @param trends the trends to show
+     */
+    public static void render(PrintWriter out, Trends trends) {
+        out.println("<h1>Tests of the last " + trends.builds() + " builds with test results</h1>");
+        out.println("<h2>Slowest tests</h2>");
+        out.println("<table><tr><th>Class</th><th>Test</th><th>Runs</th><th>p50</th><th>Max</th></tr>");
+        for (SlowTest test : trends.slowest()) {
+            out.println("<tr><td>" + BuildListPage.escapeHtml(test.className()) + "</td><td>"
+                    + BuildListPage.escapeHtml(test.name()) + "</td><td>" + test.runs() + "</td><td>"
+                    + BuildStats.seconds(test.p50Millis()) + "</td><td>" + BuildStats.seconds(test.maxMillis())
+                    + "</td></tr>");
+        }
+        out.println("</table>");
+        out.println("<h2>Flaky tests</h2>");
+        out.println("<table><tr><th>Class</th><th>Test</th><th>Runs</th><th>Failures</th>"
+                + "<th>Passed on rerun</th><th>Commits with both outcomes</th></tr>");
+        for (FlakyTest test : trends.flaky()) {
+            out.println("<tr><td>" + BuildListPage.escapeHtml(test.className()) + "</td><td>"
+                    + BuildListPage.escapeHtml(test.name()) + "</td><td>" + test.runs() + "</td><td>"
+                    + test.failures() + "</td><td>" + test.flakyRuns() + "</td><td>" + test.flakyCommits()
+                    + "</td></tr>");
+        }
+        out.println("</table>");
+    }
+}
@@ -0,0 +1,422 @@
+package ci;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * Pull parser for push event payloads, reading straight from the request body.
+ * Only {@code ref}, {@code after} and {@code repository.clone_url/name/owner.login} are kept;
+ * every other value is skipped without being built, and reading stops as soon as all fields
+ * are found (GitHub sends them before the list of commits).
+ */
+final class WebhookPayloadParser {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private String ref;
+    private String after;
+    private String cloneUrl;
+    private String repositoryName;
+    private String login;
+
+    private WebhookPayloadParser(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Parses a payload.
+     *
+     * @param body        the request body
+     * @param formEncoded true if the body is application/x-www-form-urlencoded with the JSON in the
+     *                    {@code payload} field, false if the body is the JSON itself; a body starting
+     *                    with {@code &#123;} is taken as JSON either way
+     * @return the payload, or null if the body is empty
+     * @throws JSONException if the payload is malformed, a field is missing or a form has no payload field
+     * @throws IOException   if reading the body fails
+     */
+    static GitHubWebhookPayload parse(InputStream body, boolean formEncoded) throws IOException {
+        InputStream json = body;
+        if (formEncoded) {
+            PushbackInputStream peek = new PushbackInputStream(body, 1);
+            int first;
+            do {
+                first = peek.read();
+            } while (first == ' ' || first == '\t' || first == '\r' || first == '\n');
+            if (first < 0) {
+                return null;
+            }
+            peek.unread(first);
+            // Senders without a content type, e.g. scripts, post the JSON itself
+            json = first == '{' ? peek : FormFieldInputStream.open(peek, "payload");
+            if (json == null) {
+                throw new JSONException("Form body has no payload field");
+            }
+        }
+        WebhookPayloadParser parser = new WebhookPayloadParser(new InputStreamReader(json, StandardCharsets.UTF_8));
+        try {
+            return parser.parsePayload();
+        } catch (IllegalArgumentException e) {
+            // Malformed form encoding
+            throw new JSONException("Malformed payload: " + e.getMessage());
+        }
+    }
+
+    private GitHubWebhookPayload parsePayload() throws IOException {
+        if (skipWhitespace() < 0) {
+            return null;
+        }
+        expect('{');
+        if (!nextMember()) {
+            throw missingField();
+        }
+        do {
+            String key = readString();
+            expect(':');
+            switch (key) {
+                case "ref" -> ref = first(ref, readStringValue(key));
+                case "after" -> after = first(after, readStringValue(key));
+                case "repository" -> parseRepository();
+                default -> skipValue();
+            }
+            if (isComplete()) {
+                // The rest of the payload (mostly commits) is not needed
+                return new GitHubWebhookPayload(ref, after, cloneUrl, login, repositoryName);
+            }
+        } while (nextMember());
+        throw missingField();
+    }
+
+    private void parseRepository() throws IOException {
+        skipWhitespace();
+        expect('{');
+        if (!nextMember()) {
+            return;
+        }
+        do {
+            String key = readString();
+            expect(':');
+            switch (key) {
+                case "clone_url" -> cloneUrl = first(cloneUrl, readStringValue(key));
+                case "name" -> repositoryName = first(repositoryName, readStringValue(key));
+                case "owner" -> parseOwner();
+                default -> skipValue();
+            }
+        } while (nextMember());
+    }
+
+    private void parseOwner() throws IOException {
+        skipWhitespace();
+        expect('{');
+        if (!nextMember()) {
+            return;
+        }
+        do {
+            String key = readString();
+            expect(':');
+            if (key.equals("login")) {
+                login = first(login, readStringValue(key));
+            } else {
+                skipValue();
+            }
+        } while (nextMember());
+    }
+
+    private boolean isComplete() {
+        return ref != null && after != null && cloneUrl != null && repositoryName != null && login != null;
+    }
+
+    private JSONException missingField() {
+        return new JSONException("Payload is missing one of ref, after, repository.clone_url, "
+                + "repository.name and repository.owner.login");
+    }
+
+    /**
+     * Keeps the first occurrence of a duplicated key.
+     */
+    private static String first(String current, String value) {
+        return current != null ? current : value;
+    }
+
+    /**
+     * Moves to the next member of an object.
+     *
+     * @return true if there is a member (positioned at its key), false at the closing brace
+     */
+    private boolean nextMember() throws IOException {
+        int c = skipWhitespace();
+        if (c == ',') {
+            position++;
+            c = skipWhitespace();
+        }
+        if (c == '}') {
+            position++;
+            return false;
+        }
+        if (c != '"') {
+            throw syntaxError("Expected a key");
+        }
+        return true;
+    }
+
+    private String readStringValue(String key) throws IOException {
+        if (skipWhitespace() != '"') {
+            throw new JSONException("Expected a string for " + key);
+        }
+        return readString();
+    }
+
+    /**
+     * Reads a string, positioned at its opening quote.
+     */
+    private String readString() throws IOException {
+        skipWhitespace();
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            int c = next();
+            if (c < 0) {
+                throw syntaxError("Unterminated string");
+            }
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\') {
+                int escaped = next();
+                switch (escaped) {
+                    case '"', '\\', '/' -> value.append((char) escaped);
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'n' -> value.append('\n');
+                    case 'r' -> value.append('\r');
+                    case 't' -> value.append('\t');
+                    case 'u' -> value.append(readUnicodeEscape());
+                    default -> throw syntaxError("Invalid escape");
+                }
+            } else {
+                value.append((char) c);
+            }
+        }
+    }
+
+    private char readUnicodeEscape() throws IOException {
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(next(), 16);
+            if (digit < 0) {
+                throw syntaxError("Invalid unicode escape");
+            }
+            code = code * 16 + digit;
+        }
+        return (char) code;
+    }
+
+    /**
+     * Skips a value of any type, nested objects and arrays included, without building it.
+     */
+    private void skipValue() throws IOException {
+        int c = skipWhitespace();
+        if (c == '"') {
+            position++;
+            skipStringBody();
+            return;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = next();
+                switch (c) {
+                    case -1 -> throw syntaxError("Unterminated value");
+                    case '{', '[' -> depth++;
+                    case '}', ']' -> depth--;
+                    case '"' -> skipStringBody();
+                    default -> {
+                    }
+                }
+            } while (depth > 0);
+            return;
+        }
+        // Number, true, false or null
+        int length = 0;
+        while ((c = peek()) >= 0 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            position++;
+            length++;
+        }
+        if (length == 0) {
+            throw syntaxError("Expected a value");
+        }
+    }
+
+    /**
+     * Skips the rest of a string after its opening quote.
+     */
+    private void skipStringBody() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            char c = buffer[position++];
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                if (next() < 0) {
+                    throw syntaxError("Unterminated string");
+                }
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (next() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    /**
+     * @return the next non-whitespace character without consuming it, -1 at the end
+     */
+    private int skipWhitespace() throws IOException {
+        int c;
+        while ((c = peek()) >= 0 && Character.isWhitespace(c)) {
+            position++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private int next() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " in payload");
+    }
+
+    /**
+     * The decoded value of one field of an application/x-www-form-urlencoded body,
+     * decoded while it is read.
+     */
+    private static final class FormFieldInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] raw = new byte[BUFFER_SIZE];
+        private int rawPosition;
+        private int rawLimit;
+        private boolean ended;
+
+        private FormFieldInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Skips to the value of a field.
+         *
+         * @return the value, null if the body has no such field
+         */
+        static InputStream open(InputStream body, String name) throws IOException {
+            FormFieldInputStream field = new FormFieldInputStream(body);
+            while (true) {
+                StringBuilder key = new StringBuilder();
+                int c;
+                while ((c = field.nextRaw()) >= 0 && c != '=' && c != '&') {
+                    key.append((char) c);
+                }
+                if (c == '=' && key.toString().equals(name)) {
+                    return field;
+                }
+                // Another field, skip its value
+                while (c >= 0 && c != '&') {
+                    c = field.nextRaw();
+                }
+                if (c < 0) {
+                    return null;
+                }
+            }
+        }
+
+        private int nextRaw() throws IOException {
+            if (rawPosition == rawLimit) {
+                rawLimit = in.read(raw, 0, raw.length);
+                rawPosition = 0;
+                if (rawLimit <= 0) {
+                    rawLimit = 0;
+                    return -1;
+                }
+            }
+            return raw[rawPosition++] & 0xff;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (ended) {
+                return -1;
+            }
+            int c = nextRaw();
+            switch (c) {
+                case -1, '&' -> {
+                    ended = true;
+                    return -1;
+                }
+                case '+' -> {
+                    return ' ';
+                }
+                case '%' -> {
+                    int high = Character.digit(nextRaw(), 16);
+                    int low = Character.digit(nextRaw(), 16);
+                    if (high < 0 || low < 0) {
+                        throw new IllegalArgumentException("Invalid escape in form data");
+                    }
+                    return high * 16 + low;
+                }
+                default -> {
+                    return c;
+                }
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int count = 0;
+            // Only what is buffered, like a socket stream, so the reader does not decode far ahead
+            while (count < len && (count == 0 || rawPosition < rawLimit)) {
+                int c = read();
+                if (c < 0) {
+                    break;
+                }
+                b[off + count++] = (byte) c;
+            }
+            return count == 0 ? -1 : count;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package ci;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Workspaces kept between builds, one per repository and branch, so the build output in
+ * {@code target/} stays and Maven only compiles what changed.
+ * <p>
+ * A kept workspace is moved to the next commit with {@code git fetch}, {@code git checkout --force}
+ * and {@code git clean}, which removes every untracked file except {@code target/} directories;
+ * the Surefire reports of the previous build are deleted. A workspace is used by one build at a
+ * time, a concurrent build of the same branch gets a fresh clone instead. Workspaces not used by a
+ * build are evicted in least recently used order when there are more than {@code maxWorkspaces}
+ * or they grow above the disk budget.
+ */
+public class WorkspacePool {
+    private static final String EVICTED_PREFIX = ".evicted-";
+
+    private final CommandExecutorFactory factory;
+    private final Path baseDirectory;
+    private final int maxWorkspaces;
+    private final long budgetBytes;
+    // Known workspaces in access order (least recently used first), guarded by this
+    private final LinkedHashMap<String, Workspace> workspaces = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Creates the pool. Workspaces left in the directory by a previous run are reused.
+     *
+     * @param factory       the factory to create command executors for git
+     * @param baseDirectory the directory holding the workspaces
+     * @param maxWorkspaces number of workspaces kept at most
+     * @param budgetBytes   disk budget of all workspaces together
+     * @throws IOException if the directory cannot be created or read
+     */
+    public WorkspacePool(CommandExecutorFactory factory, Path baseDirectory, int maxWorkspaces, long budgetBytes)
+            throws IOException {
+        this.factory = factory;
+        this.baseDirectory = baseDirectory;
+        this.maxWorkspaces = maxWorkspaces;
+        this.budgetBytes = budgetBytes;
+        Files.createDirectories(baseDirectory);
+        loadExistingWorkspaces();
+    }
+
+    /**
+     * State of a single workspace.
+     */
+    private static final class Workspace {
+        private final String key;
+        private final Path directory;
+        // Set while a build uses the workspace, guarded by the pool
+        private boolean inUse;
+        private long sizeBytes;
+
+        Workspace(String key, Path directory) {
+            this.key = key;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * Takes the workspace of a branch for a build. It must be given back with {@link #release(Path)}.
+     *
+     * @param url    the clone URL of the repository
+     * @param branch the branch
+     * @return the workspace directory, possibly not created yet, or null if another build uses it
+     */
+    public synchronized Path acquire(String url, String branch) {
+        String key = directoryName(url, branch);
+        Workspace workspace = workspaces.computeIfAbsent(key, k -> new Workspace(k, baseDirectory.resolve(k)));
+        if (workspace.inUse) {
+            return null;
+        }
+        workspace.inUse = true;
+        return workspace.directory;
+    }
+
+    /**
+     * Moves a workspace from {@link #acquire(String, String)} to a commit, cloning it first if it is new.
+     * A workspace that cannot be updated, e.g. after a build was killed during a checkout, is cloned again.
+     *
+     * @param url       the clone URL of the repository
+     * @param branch    the branch to clone
+     * @param sha       the commit to check out
+     * @param workspace the workspace directory
+     * @return the combined output of the git commands and the exit code of the first failing one
+     * @throws IOException          if the git process cannot be started or the workspace cannot be deleted
+     * @throws InterruptedException if a git process is interrupted
+     */
+    public ExecResult checkout(String url, String branch, String sha, Path workspace)
+            throws IOException, InterruptedException {
+        CommandExecutor executor = factory.create();
+        StringBuilder output = new StringBuilder();
+        if (Files.isDirectory(workspace.resolve(".git"))) {
+            ExecResult update = runAll(executor, List.of(
+                    List.of("git", "fetch", "origin", sha),
+                    List.of("git", "checkout", "--force", "--detach", sha),
+                    // Build output stays for incremental compilation, everything else untracked goes
+                    List.of("git", "clean", "-ffdx", "-e", "target/")), workspace, output);
+            if (update.getExitCode() == 0) {
+                deleteReports(workspace);
+                return new ExecResult(0, output.toString());
+            }
+            output.append("Workspace could not be updated, cloning it again\n");
+        }
+        deleteRecursively(workspace);
+        Files.createDirectories(baseDirectory);
+        ExecResult clone = runAll(executor, List.of(
+                List.of("git", "clone", "--branch", branch, "--single-branch", url, workspace.getFileName().toString())),
+                baseDirectory, output);
+        if (clone.getExitCode() != 0) {
+            return new ExecResult(clone.getExitCode(), output.toString());
+        }
+        ExecResult checkout = runAll(executor, List.of(List.of("git", "checkout", "--force", "--detach", sha)),
+                workspace, output);
+        return new ExecResult(checkout.getExitCode(), output.toString());
+    }
+
+    /**
+     * Gives a workspace back after a build and evicts workspaces over the limits.
+     *
+     * @param workspace the workspace directory
+     * @return false if the directory is not a workspace of the pool
+     */
+    public boolean release(Path workspace) {
+        Workspace released = null;
+        synchronized (this) {
+            for (Workspace candidate : workspaces.values()) {
+                if (candidate.directory.equals(workspace)) {
+                    released = candidate;
+                    break;
+                }
+            }
+        }
+        // Every build gives its directory back here, only the workspaces of the pool are measured; the
+        // workspace stays in use while it is measured without the lock, so it is neither taken nor evicted
+        if (released == null) {
+            return false;
+        }
+        long size = sizeOf(workspace);
+        List<Path> evicted;
+        synchronized (this) {
+            released.inUse = false;
+            released.sizeBytes = size;
+            evicted = evictOverLimits();
+        }
+        // Deleting gigabytes takes a while, builds can take other workspaces meanwhile
+        for (Path directory : evicted) {
+            deleteRecursively(directory);
+        }
+        return true;
+    }
+
+    /** @return the number of workspaces kept */
+    public synchronized int getWorkspaceCount() {
+        return workspaces.size();
+    }
+
+    /** @return the total size of all workspaces in bytes, as of their last use */
+    public synchronized long getSizeBytes() {
+        return workspaces.values().stream().mapToLong(w -> w.sizeBytes).sum();
+    }
+
+    /**
+     * Forgets the least recently used workspaces over the limits. Their directories are renamed
+     * so a new workspace of the same branch can be cloned while they are deleted.
+     *
+     * @return the renamed directories to delete
+     */
+    private List<Path> evictOverLimits() {
+        List<Path> evicted = new ArrayList<>();
+        long total = getSizeBytes();
+        int count = workspaces.size();
+        Iterator<Workspace> leastRecentlyUsed = workspaces.values().iterator();
+        while ((count > maxWorkspaces || total > budgetBytes) && leastRecentlyUsed.hasNext()) {
+            Workspace workspace = leastRecentlyUsed.next();
+            if (workspace.inUse) {
+                continue;
+            }
+            Path renamed = baseDirectory.resolve(EVICTED_PREFIX + workspace.key + "-" + System.nanoTime());
+            try {
+                if (Files.exists(workspace.directory)) {
+                    Files.move(workspace.directory, renamed);
+                    evicted.add(renamed);
+                }
+            } catch (IOException e) {
+                System.err.println("Warning: Failed to evict workspace " + workspace.directory + ": " + e.getMessage());
+                continue;
+            }
+            total -= workspace.sizeBytes;
+            count--;
+            leastRecentlyUsed.remove();
+        }
+        return evicted;
+    }
+
+    private void loadExistingWorkspaces() throws IOException {
+        List<Path> existing;
+        try (var paths = Files.list(baseDirectory)) {
+            existing = paths.filter(Files::isDirectory)
+                    // Oldest first so the access order matches the last use before the restart
+                    .sorted(Comparator.comparingLong(WorkspacePool::lastModified))
+                    .toList();
+        }
+        for (Path dir : existing) {
+            if (dir.getFileName().toString().startsWith(EVICTED_PREFIX)) {
+                // Evicted but not deleted before the restart
+                deleteRecursively(dir);
+                continue;
+            }
+            Workspace workspace = new Workspace(dir.getFileName().toString(), dir);
+            workspace.sizeBytes = sizeOf(dir);
+            workspaces.put(workspace.key, workspace);
+        }
+    }
+
+    /**
+     * Maps a repository and branch to a readable, unique directory name, e.g. "owner-repo-1a2b3c4d-main-3343b2".
+     */
+    static String directoryName(String url, String branch) {
+        String repository = MirrorCache.directoryName(url);
+        return repository.substring(0, repository.length() - ".git".length()) + "-"
+                + branch.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(branch.hashCode());
+    }
+
+    private static ExecResult runAll(CommandExecutor executor, List<List<String>> commands, Path workDir,
+            StringBuilder output) throws IOException, InterruptedException {
+        ExecResult result = new ExecResult(0, "");
+        for (List<String> command : commands) {
+            result = executor.execute(command, workDir);
+            output.append(result.getOutput());
+            if (result.getExitCode() != 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the Surefire reports of the previous build, they would be taken for those of this one.
+     */
+    private static void deleteReports(Path workspace) throws IOException {
+        Files.walkFileTree(workspace, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                String name = dir.getFileName().toString();
+                if (name.equals("target")) {
+                    deleteRecursively(dir.resolve("surefire-reports"));
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return name.equals(".git") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long sizeOf(Path dir) {
+        if (!Files.exists(dir)) {
+            return 0;
+        }
+        try (var paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> {
+                try {
+                    return Files.size(path);
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static boolean deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return true;
+        }
+        try (var paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to delete workspace " + dir + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
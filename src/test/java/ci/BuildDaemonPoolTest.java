@@ -0,0 +1,115 @@
+package ci;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for BuildDaemonPool, with a fake daemon client.
+ */
+public class BuildDaemonPoolTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Last argument of every client command run by the pool itself, e.g. "--status"
+    private final List<String> clientCalls = new ArrayList<>();
+    private int statusExitCode;
+    private BuildDaemonPool pool;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        CommandExecutorFactory factory = () -> (command, workDir) -> {
+            String action = command.get(command.size() - 1);
+            clientCalls.add(action);
+            return new ExecResult(action.equals("--status") ? statusExitCode : 0, "");
+        };
+        pool = new BuildDaemonPool(factory, tempDir.resolve("daemons"), "mvnd", 2, Duration.ofMinutes(10));
+    }
+
+    private static CommandExecutor echo(int exitCode, String output) {
+        return (command, workDir) -> new ExecResult(exitCode, String.join(" ", command) + "\n" + output);
+    }
+
+    @Test
+    void wrap_runsMavenOnDaemonsOfRepository() throws IOException, InterruptedException {
+        BuildDaemonPool.Lease lease = pool.acquire("owner/repo");
+
+        String maven = lease.wrap(echo(0, "")).execute(List.of("mvn", "test", "-q"), tempDir).getOutput();
+        String other = lease.wrap(echo(0, "")).execute(List.of("make", "test"), tempDir).getOutput();
+
+        assertTrue(maven.startsWith("mvnd -Dmvnd.daemonStorage=" + tempDir.resolve("daemons")));
+        assertTrue(maven.contains("-Dmvnd.idleTimeout=600s test -q"));
+        assertTrue(other.startsWith("make test"));
+    }
+
+    /**
+     * Idle daemons are checked before they are reused and recycled after the maximum number of builds.
+     */
+    @Test
+    void acquire_checksAndRecyclesIdleDaemons() throws IOException, InterruptedException {
+        pool.release(pool.acquire("owner/repo"));
+        assertEquals(List.of(), clientCalls);
+
+        pool.release(pool.acquire("owner/repo"));
+        assertEquals(List.of("--status"), clientCalls);
+
+        pool.release(pool.acquire("owner/repo"));
+        assertEquals(List.of("--status", "--stop"), clientCalls);
+
+        statusExitCode = 1;
+        pool.release(pool.acquire("owner/repo"));
+        assertEquals(List.of("--status", "--stop", "--status", "--stop"), clientCalls);
+    }
+
+    /**
+     * Daemons in use are shared without a check, a lost daemon recycles them once idle.
+     */
+    @Test
+    void acquire_inUse_sharesDaemonsAndRecyclesLostOnes() throws IOException, InterruptedException {
+        BuildDaemonPool.Lease first = pool.acquire("owner/repo");
+        BuildDaemonPool.Lease second = pool.acquire("owner/repo");
+        assertEquals(List.of(), clientCalls);
+
+        second.wrap(echo(1, "ERROR: Daemon 1a2b terminated unexpectedly")).execute(List.of("mvn", "test"), tempDir);
+        pool.release(first);
+        pool.release(second);
+        pool.release(pool.acquire("owner/repo"));
+
+        assertEquals(List.of("--stop"), clientCalls);
+    }
+
+    /**
+     * A timed out or interrupted command stops the daemons still running its build, unless another build uses them.
+     */
+    @Test
+    void wrap_timedOutOrInterrupted_stopsDaemons() throws IOException, InterruptedException {
+        CommandExecutor timedOut = (command, workDir) -> new ExecResult(-1, "", null, 0, 0, 0, true);
+        CommandExecutor interrupted = (command, workDir) -> {
+            throw new InterruptedException("superseded");
+        };
+        BuildDaemonPool.Lease lease = pool.acquire("owner/repo");
+
+        lease.wrap(timedOut).execute(List.of("mvn", "test"), tempDir);
+        assertEquals(List.of("--stop"), clientCalls);
+        assertThrows(InterruptedException.class,
+                () -> lease.wrap(interrupted).execute(List.of("mvn", "test"), tempDir));
+        assertEquals(List.of("--stop", "--stop"), clientCalls);
+
+        BuildDaemonPool.Lease shared = pool.acquire("owner/repo");
+        shared.wrap(timedOut).execute(List.of("mvn", "test"), tempDir);
+        assertEquals(List.of("--stop", "--stop"), clientCalls, "another build still uses them");
+        pool.release(lease);
+        pool.release(shared);
+        pool.release(pool.acquire("owner/repo"));
+        assertEquals(List.of("--stop", "--stop", "--stop"), clientCalls);
+    }
+}
@@ -0,0 +1,252 @@
+package ci;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for BuildHistory.
+ */
+public class BuildHistoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private BuildHistory history;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        history = new BuildHistory(tempDir);
+    }
+
+    @Test
+    void createBuild_storesStateAndLogs() throws IOException {
+        String id = history.createBuild("abc1234def", "success", "compile ok", "test ok");
+
+        String record = history.getBuild(id);
+        assertTrue(id.startsWith("abc1234-"));
+        assertTrue(record.contains("Commit SHA: abc1234def"));
+        assertTrue(record.contains("State: success"));
+        assertTrue(record.contains("-----Compile Log-----:\ncompile ok\n"));
+        assertTrue(record.contains("-----Test Log-----:\ntest ok\n"));
+    }
+
+    /**
+     * Records created from log files have the same format as the ones created from strings.
+     */
+    @Test
+    void createBuild_fromLogFiles_copiesLogs() throws IOException {
+        String id = history.newBuildId("abc1234def");
+        Path logs = history.createLogDirectory(id);
+        Files.writeString(logs.resolve("compile.log"), "compile ok");
+        Files.writeString(logs.resolve("test.log"), "test ok");
+
+        history.createBuild(id, "abc1234def", "failure", logs.resolve("compile.log"), logs.resolve("test.log"),
+                Map.of("Clone mode", "shallow"));
+        history.deleteLogDirectory(id);
+
+        String record = history.getBuild(id);
+        assertTrue(record.contains("State: failure\nClone mode: shallow\n"));
+        assertTrue(record.contains("-----Compile Log-----:\ncompile ok\n-----Test Log-----:\ntest ok\n"));
+        assertFalse(Files.exists(history.logDirectory(id)));
+    }
+
+    @Test
+    void listBuilds_skipsLogsOfRunningBuilds() throws IOException {
+        String id = history.createBuild("abc1234def", "success", "compile ok", "test ok");
+        history.createLogDirectory(history.newBuildId("fff9999aaa"));
+
+        assertEquals(List.of(id), history.listBuilds());
+    }
+
+    @Test
+    void listBuilds_newestFirst() throws IOException {
+        String first = history.createBuild("aaa1111bbb", "success", "", "");
+        String second = history.createBuild("bbb2222ccc", "failure", "", "");
+
+        assertEquals(List.of(second, first), history.listBuilds());
+    }
+
+    /**
+     * The index stores where the logs are in the record, so they can be read without parsing it.
+     */
+    @Test
+    void createBuild_indexesRecordWithLogOffsets() throws IOException {
+        String id = history.createBuild(history.newBuildId("abc1234def"), "abc1234def", "success",
+                "compile \u00e9", "test ok", Map.of(BuildHistory.REPOSITORY, "owner/repo", BuildHistory.BRANCH, "main",
+                        BuildHistory.STARTED, "2024-01-01T00:00:00Z"));
+
+        BuildIndex.Entry entry = history.getBuildInfo(id);
+        byte[] record = history.getBuild(id).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        assertEquals("owner/repo", entry.repository());
+        assertEquals("main", entry.branch());
+        assertEquals("compile \u00e9", new String(record, (int) entry.compileOffset(), (int) entry.compileLength(),
+                java.nio.charset.StandardCharsets.UTF_8));
+        assertEquals("test ok", new String(record, (int) entry.testOffset(), (int) entry.testLength(),
+                java.nio.charset.StandardCharsets.UTF_8));
+        assertTrue(entry.durationMillis() > 0);
+    }
+
+    @Test
+    void queryBuilds_filtersAndPages() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            history.createBuild(history.newBuildId("abc000" + i + "def"), "abc000" + i + "def",
+                    i % 2 == 0 ? "success" : "failure", "", "", Map.of(BuildHistory.BRANCH, "main"));
+        }
+
+        BuildIndex.Page page = history.queryBuilds(new BuildIndex.Filter(null, "main", "success", null), -1, 2);
+        assertEquals(List.of("abc0004def", "abc0002def"),
+                page.entries().stream().map(BuildIndex.Entry::commitSha).toList());
+        BuildIndex.Page last = history.queryBuilds(new BuildIndex.Filter(null, "main", "success", null),
+                page.next(), 2);
+        assertEquals(List.of("abc0000def"), last.entries().stream().map(BuildIndex.Entry::commitSha).toList());
+        assertEquals(-1, last.next());
+    }
+
+    /**
+     * Histories created before the index existed are indexed when opened.
+     */
+    @Test
+    void constructor_rebuildsMissingIndexFromRecords() throws IOException {
+        String first = history.createBuild("aaa1111bbb", "success", "", "");
+        String second = history.createBuild("bbb2222ccc", "failure", "", "");
+        Files.delete(tempDir.resolve("index.tsv"));
+
+        BuildHistory reopened = new BuildHistory(tempDir);
+
+        assertEquals(List.of(second, first), reopened.listBuilds());
+        assertEquals("failure", reopened.getBuildInfo(second).state());
+        assertFalse(reopened.hasBuild("index.tsv"));
+    }
+
+    @Test
+    void readBuild_copiesRange() throws IOException {
+        String compileLog = "line\n".repeat(50_000);
+        String id = history.createBuild("abc1234def", "success", compileLog, "test ok");
+        String record = history.getBuild(id);
+
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        long copied = history.readBuild(id, 100_000, 20, out);
+
+        assertEquals(20, copied);
+        assertEquals(record.substring(100_000, 100_020), out.toString(java.nio.charset.StandardCharsets.UTF_8));
+        assertEquals(record.length(), history.getBuildLength(id));
+        // Stored compressed
+        assertTrue(Files.size(tempDir.resolve(id + ".log")) < record.length() / 10);
+    }
+
+    /**
+     * Plain text records written before records were compressed are still listed and readable,
+     * other files in the history are no builds.
+     */
+    @Test
+    void legacyTextRecord_isIndexedAndReadable() throws IOException {
+        Files.writeString(tempDir.resolve("abc1234-old.txt"), "Commit SHA: abc1234def\nDate: 2024-01-01T00:00:00Z\n"
+                + "State: success\n-----Compile Log-----:\ncompile ok\n-----Test Log-----:\ntest ok\n");
+        Files.writeString(tempDir.resolve("status-outbox.jsonl"), "{\"id\":1}\n");
+        // Histories of that version had no index either
+        Files.delete(tempDir.resolve("index.tsv"));
+        BuildHistory reopened = new BuildHistory(tempDir);
+
+        assertEquals(List.of("abc1234-old.txt"), reopened.listBuilds());
+        assertTrue(reopened.hasBuild("abc1234-old.txt"));
+        assertFalse(reopened.hasBuild("status-outbox.jsonl"));
+        assertFalse(reopened.hasBuild("index.tsv"));
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        reopened.readBuild("abc1234-old.txt", 7, 6, out);
+        assertEquals("SHA: a", out.toString(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test durations are stored per repository, an update only replaces the classes it holds.
+     */
+    @Test
+    void updateTestDurations_mergesPerRepository() throws IOException {
+        history.updateTestDurations("owner/a", Map.of("p.ATest", 100L, "p.BTest", 200L));
+        history.updateTestDurations("owner/a", Map.of("p.BTest", 300L));
+        history.updateTestDurations("owner/b", Map.of("p.CTest", 400L));
+
+        assertEquals(Map.of("p.ATest", 100L, "p.BTest", 300L), new BuildHistory(tempDir).getTestDurations("owner/a"));
+        assertEquals(Map.of(), history.getTestDurations("owner/c"));
+        assertEquals(0, history.listBuilds().size());
+    }
+
+    /**
+     * Selective test runs are counted per branch until all tests run again.
+     */
+    @Test
+    void countTestRun_countsSelectiveRunsUntilFullRun() throws IOException {
+        history.countTestRun("owner/a", "main", false);
+        history.countTestRun("owner/a", "main", false);
+        history.countTestRun("owner/a", "dev", false);
+        assertEquals(2, new BuildHistory(tempDir).getSelectiveTestRuns("owner/a", "main"));
+
+        history.countTestRun("owner/a", "main", true);
+
+        assertEquals(0, history.getSelectiveTestRuns("owner/a", "main"));
+        assertEquals(1, history.getSelectiveTestRuns("owner/a", "dev"));
+        assertEquals(0, history.getSelectiveTestRuns("owner/b", "dev"));
+    }
+
+    /**
+     * The last full clone of a repository is kept across restarts, an unknown size is left out.
+     */
+    @Test
+    void storeCloneBaseline_replacesPreviousBaseline() throws IOException {
+        history.storeCloneBaseline("owner/a", 2048, 900);
+        history.storeCloneBaseline("owner/a", -1, 700);
+        history.storeCloneBaseline("owner/b", 4096, 1200);
+
+        assertEquals(Map.of("millis", 700L), new BuildHistory(tempDir).getCloneBaseline("owner/a"));
+        assertEquals(Map.of("bytes", 4096L, "millis", 1200L), history.getCloneBaseline("owner/b"));
+        assertEquals(Map.of(), history.getCloneBaseline("owner/c"));
+    }
+
+    /**
+     * Test results are stored per build and deleted with it.
+     */
+    @Test
+    void storeTestResults_readBackAndDeletedWithBuild() throws IOException {
+        String build = history.createBuild("abc123def456789012345678901234567890abcd", "success", "compile", "test");
+        List<TestReport.TestCase> cases = List.of(
+                new TestReport.TestCase("p.ATest", "a", TestReport.Outcome.PASSED, 10),
+                new TestReport.TestCase("p.ATest", "b", TestReport.Outcome.FAILED, 20));
+
+        history.storeTestResults(build, cases);
+
+        assertEquals(cases, new BuildHistory(tempDir).getTestResults(build));
+        assertEquals(List.of(), history.getTestResults("other"));
+        history.deleteBuilds(List.of(build));
+        assertEquals(List.of(), history.getTestResults(build));
+    }
+
+    /**
+     * A cached result refers to a successful build until that build is deleted.
+     */
+    @Test
+    void findCachedResult_forgetsDeletedBuilds() throws IOException {
+        String build = history.createBuild("abc123def456789012345678901234567890abcd", "success", "compile", "test");
+        history.cacheResult("0123abcd", build);
+
+        assertEquals(build, new BuildHistory(tempDir).findCachedResult("0123abcd").buildId());
+        assertNull(history.findCachedResult("4567"));
+        history.deleteBuilds(List.of(build));
+        assertNull(history.findCachedResult("0123abcd"));
+        assertThrows(IllegalArgumentException.class, () -> history.findCachedResult("../index.tsv"));
+    }
+
+    @Test
+    void readBuild_unknownBuild_throws() {
+        assertThrows(java.nio.file.NoSuchFileException.class,
+                () -> history.readBuild("../secret", 0, -1, new java.io.ByteArrayOutputStream()));
+        assertFalse(history.hasBuild("index.tsv"));
+    }
+}
@@ -0,0 +1,153 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for BuildIndex.
+ */
+public class BuildIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static BuildIndex.Entry entry(int n, String repository, String branch, String state) {
+        String sha = String.format("%07d", n) + "abcdef";
+        return new BuildIndex.Entry(sha.substring(0, 7) + "-" + n + ".txt", sha, repository, branch, state,
+                1000L * n, 1000L * n + 500, 10, 20, 40, 5);
+    }
+
+    private static List<Integer> numbers(BuildIndex.Page page) {
+        return page.entries().stream().map(e -> Integer.parseInt(e.commitSha().substring(0, 7))).toList();
+    }
+
+    @Test
+    void query_pagesNewestFirst() throws IOException {
+        BuildIndex index = new BuildIndex(tempDir.resolve("index.tsv"));
+        List<BuildIndex.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            entries.add(entry(i, "owner/repo", "main", "success"));
+        }
+        index.append(entries);
+
+        BuildIndex.Page first = index.query(BuildIndex.Filter.ALL, -1, 2);
+        BuildIndex.Page second = index.query(BuildIndex.Filter.ALL, first.next(), 2);
+        BuildIndex.Page third = index.query(BuildIndex.Filter.ALL, second.next(), 2);
+
+        assertEquals(List.of(4, 3), numbers(first));
+        assertEquals(List.of(2, 1), numbers(second));
+        assertEquals(List.of(0), numbers(third));
+        assertEquals(-1, third.next());
+    }
+
+    @Test
+    void query_combinesFilters() throws IOException {
+        BuildIndex index = new BuildIndex(tempDir.resolve("index.tsv"));
+        index.append(List.of(
+                entry(0, "owner/a", "main", "success"),
+                entry(1, "owner/b", "main", "success"),
+                entry(2, "owner/a", "dev", "failure"),
+                entry(3, "owner/a", "main", "failure"),
+                entry(4, "owner/a", "main", "success")));
+
+        assertEquals(List.of(4, 3, 0), numbers(index.query(new BuildIndex.Filter("owner/a", "main", null, null), -1, 10)));
+        assertEquals(List.of(3, 2), numbers(index.query(new BuildIndex.Filter("owner/a", null, "failure", null), -1, 10)));
+        assertEquals(List.of(1), numbers(index.query(new BuildIndex.Filter(null, null, null, "0000001abc"), -1, 10)));
+        assertEquals(List.of(2), numbers(index.query(new BuildIndex.Filter("", "dev", "", ""), -1, 10)));
+        assertTrue(index.query(new BuildIndex.Filter("owner/c", null, null, null), -1, 10).entries().isEmpty());
+    }
+
+    /**
+     * Short SHA prefixes are not in the posting lists and are matched against every build.
+     */
+    @Test
+    void query_matchesShortShaPrefix() throws IOException {
+        BuildIndex index = new BuildIndex(tempDir.resolve("index.tsv"));
+        index.append(List.of(entry(12, "owner/a", "main", "success"), entry(20, "owner/a", "main", "success")));
+
+        assertEquals(List.of(12), numbers(index.query(new BuildIndex.Filter(null, null, null, "000001"), -1, 10)));
+    }
+
+    @Test
+    void reopen_keepsEntriesAndSkipsDamagedLines() throws IOException {
+        Path file = tempDir.resolve("index.tsv");
+        BuildIndex index = new BuildIndex(file);
+        BuildIndex.Entry stored = entry(1, "owner/a", "main", "success");
+        index.append(List.of(stored));
+        // E.g. a line cut short by a crash while it was appended
+        Files.writeString(file, "broken\tline\n", StandardOpenOption.APPEND);
+
+        BuildIndex reopened = new BuildIndex(file);
+
+        assertEquals(1, reopened.size());
+        assertEquals(stored, reopened.get(stored.buildId()));
+        assertEquals(500, reopened.get(stored.buildId()).durationMillis());
+    }
+
+    /**
+     * Stage timings are stored in the index, lines written before they were are read without them.
+     */
+    @Test
+    void reopen_keepsTimingsAndReadsLinesWithoutThem() throws IOException {
+        Path file = tempDir.resolve("index.tsv");
+        BuildIndex index = new BuildIndex(file);
+        BuildIndex.Timings timings = new BuildIndex.Timings(5, 100, 2000, 3000, 40, 60);
+        BuildIndex.Entry timed = new BuildIndex.Entry("timed.txt", "1111111abcdef", "owner/a", "main", "success",
+                1000, 6000, 10, 20, 40, 5, timings);
+        index.append(List.of(timed));
+        Files.writeString(file, "old.txt\t2222222abcdef\towner/a\tmain\tfailure\t1000\t2000\t10\t20\t40\t5\n",
+                StandardOpenOption.APPEND);
+
+        BuildIndex reopened = new BuildIndex(file);
+
+        assertEquals(timings, reopened.get("timed.txt").timings());
+        assertEquals(BuildIndex.Timings.UNKNOWN, reopened.get("old.txt").timings());
+    }
+
+    @Test
+    void remove_hidesBuildsAndPersists() throws IOException {
+        Path file = tempDir.resolve("index.tsv");
+        BuildIndex index = new BuildIndex(file);
+        List<BuildIndex.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            entries.add(entry(i, "owner/a", "main", "success"));
+        }
+        index.append(entries);
+
+        index.remove(List.of(entries.get(1).buildId(), "unknown"));
+
+        assertEquals(List.of(3, 2, 0), numbers(index.query(BuildIndex.Filter.ALL, -1, 10)));
+        assertEquals(List.of(3, 2, 0), numbers(index.query(new BuildIndex.Filter("owner/a", null, null, null), -1, 10)));
+        assertNull(index.get(entries.get(1).buildId()));
+        assertEquals(3, new BuildIndex(file).size());
+    }
+
+    /**
+     * Once most lines are tombstones the file only keeps the remaining builds.
+     */
+    @Test
+    void remove_rewritesMostlyRemovedIndex() throws IOException {
+        Path file = tempDir.resolve("index.tsv");
+        BuildIndex index = new BuildIndex(file);
+        List<BuildIndex.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            entries.add(entry(i, "owner/a", "main", "success"));
+        }
+        index.append(entries);
+
+        index.remove(List.of(entries.get(0).buildId(), entries.get(1).buildId(), entries.get(2).buildId()));
+
+        assertEquals(1, Files.readAllLines(file).size());
+        assertEquals(List.of(3), numbers(index.query(BuildIndex.Filter.ALL, -1, 10)));
+        assertEquals(entries.get(3), index.get(entries.get(3).buildId()));
+    }
+}
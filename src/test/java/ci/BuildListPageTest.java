@@ -0,0 +1,62 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for BuildListPage.
+ */
+public class BuildListPageTest {
+
+    private static String render(BuildIndex.Page page, BuildIndex.Filter filter) {
+        StringWriter html = new StringWriter();
+        BuildListPage.render(new PrintWriter(html), page, filter, 2);
+        return html.toString();
+    }
+
+    /**
+     * Each build is a row linking to its record, with the duration in seconds.
+     */
+    @Test
+    void render_writesOneRowPerBuild() {
+        BuildIndex.Entry entry = new BuildIndex.Entry("abc1234-1", "abc1234def", "owner/repo", "main", "success",
+                1000, 4500, 0, 0, 0, 0);
+
+        String html = render(new BuildIndex.Page(List.of(entry), -1), BuildIndex.Filter.ALL);
+
+        assertTrue(html.contains("<tr><td><a href=\"/builds/abc1234-1\">abc1234-1</a></td><td>owner/repo</td>"
+                + "<td>main</td><td>success</td><td>1970-01-01T00:00:04.500Z</td><td>3 s</td></tr>"));
+        assertFalse(html.contains("Older"));
+    }
+
+    /**
+     * Values from webhooks are escaped, and the link to older builds keeps the filter.
+     */
+    @Test
+    void render_escapesValuesAndKeepsFilterInOlderLink() {
+        BuildIndex.Entry entry = new BuildIndex.Entry("abc1234-1", "abc1234def", "owner/repo", "<b>&\"x\"", "failure",
+                0, 1000, 0, 0, 0, 0);
+
+        String html = render(new BuildIndex.Page(List.of(entry), 7),
+                new BuildIndex.Filter("owner/repo", null, "failure", null));
+
+        assertTrue(html.contains("<td>&lt;b&gt;&amp;&quot;x&quot;</td>"));
+        assertTrue(html.contains("<a href=\"/builds?before=7&amp;size=2&amp;repo=owner%2Frepo&amp;state=failure\">"
+                + "Older</a>"));
+    }
+
+    /**
+     * Text without special characters is returned as is.
+     */
+    @Test
+    void escapeHtml_returnsSameInstanceWhenNothingToEscape() {
+        String text = "owner/repo";
+        assertSame(text, BuildListPage.escapeHtml(text));
+        assertEquals("a&lt;b", BuildListPage.escapeHtml("a<b"));
+    }
+}
@@ -0,0 +1,413 @@
+package ci;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for BuildPipeline using mock executors and a MockNotifier.
+ */
+public class BuildPipelineTest {
+
+    @TempDir
+    Path tempDir;
+
+    private MockNotifier notifier;
+    private BuildHistory history;
+
+    // Executor that fails every command containing the given word
+    static class ScriptedExecutor implements CommandExecutor {
+        private final String failOn;
+
+        ScriptedExecutor(String failOn) {
+            this.failOn = failOn;
+        }
+
+        @Override
+        public ExecResult execute(List<String> command, Path workDir) {
+            if (failOn != null && command.contains(failOn)) {
+                return new ExecResult(1, failOn + " failed");
+            }
+            return new ExecResult(0, String.join(" ", command) + " ok");
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        notifier = new MockNotifier();
+        history = new BuildHistory(tempDir.resolve("history"));
+    }
+
+    private BuildPipeline pipeline(String failOn) {
+        CommandExecutorFactory factory = () -> new ScriptedExecutor(failOn);
+        return new BuildPipeline(history, notifier, factory, new CiClone(factory, tempDir.resolve("builds")),
+                new CiConfig(new Properties()));
+    }
+
+    private BuildJob job() {
+        String sha = "abc123def456789012345678901234567890abcd";
+        return new BuildJob(history.newBuildId(sha), "owner", "repo", "main", sha,
+                "https://github.com/owner/repo.git");
+    }
+
+    @Test
+    void run_successfulBuild_setsPendingThenSuccess() throws IOException {
+        BuildJob job = job();
+
+        pipeline(null).run(job);
+
+        assertEquals(2, notifier.getCalls().size());
+        assertEquals("pending", notifier.getCalls().get(0).state());
+        assertEquals("success", notifier.getLastCall().state());
+        assertEquals(List.of(job.getBuildId()), history.listBuilds());
+        assertTrue(history.getBuild(job.getBuildId()).contains("State: success"));
+        assertTrue(history.getBuild(job.getBuildId()).contains("Clone mode: full"));
+    }
+
+    @Test
+    void run_repositoryWithShallowMode_usesShallowClone() throws IOException {
+        List<List<String>> commands = new ArrayList<>();
+        CommandExecutorFactory factory = () -> (command, workDir) -> {
+            commands.add(command);
+            return new ExecResult(0, "ok");
+        };
+        Properties settings = new Properties();
+        settings.setProperty("repo.owner/repo.clone.mode", "shallow");
+        settings.setProperty("repo.owner/repo.clone.sparse.paths", "src/, pom.xml");
+        BuildPipeline pipeline = new BuildPipeline(history, notifier, factory,
+                new CiClone(factory, tempDir.resolve("builds")), new CiConfig(settings));
+        BuildJob job = job();
+
+        pipeline.run(job);
+
+        assertTrue(commands.contains(List.of("git", "fetch", "--depth", "1", "origin", job.getSha())));
+        assertTrue(commands.contains(List.of("git", "sparse-checkout", "set", "--no-cone", "src/", "pom.xml")));
+        assertTrue(history.getBuild(job.getBuildId()).contains("Clone mode: shallow"));
+    }
+
+    /**
+     * The savings of a shallow clone are measured against the last full clone, also one made before a restart.
+     */
+    @Test
+    void run_shallowCloneAfterFullClone_recordsSavings() throws IOException {
+        CommandExecutorFactory slowClone = () -> (command, workDir) -> {
+            if (command.contains("clone")) {
+                Thread.sleep(50);
+            }
+            return new ExecResult(0, "ok");
+        };
+        new BuildPipeline(history, notifier, slowClone, new CiClone(slowClone, tempDir.resolve("builds")),
+                new CiConfig(new Properties())).run(job());
+        Properties settings = new Properties();
+        settings.setProperty("clone.mode", "shallow");
+        CommandExecutorFactory factory = () -> new ScriptedExecutor(null);
+        BuildPipeline restarted = new BuildPipeline(new BuildHistory(tempDir.resolve("history")), notifier, factory,
+                new CiClone(factory, tempDir.resolve("builds")), new CiConfig(settings));
+        BuildJob job = job();
+
+        restarted.run(job);
+
+        assertTrue(history.getCloneBaseline("owner/repo").get("millis") >= 50);
+        String record = history.getBuild(job.getBuildId());
+        assertTrue(record.contains("Clone mode: shallow"), record);
+        assertTrue(record.contains("Clone time saved ms: "), record);
+    }
+
+    /**
+     * A newer push that arrives after the final status was sent does not keep the record from being stored.
+     */
+    @Test
+    void run_supersededAfterFinalStatus_storesRecord() throws IOException {
+        // Writes through an interruptible channel fail on an interrupted thread
+        BuildHistory history = new BuildHistory(tempDir.resolve("interruptible")) {
+            @Override
+            public String createBuild(String buildName, String commitSha, String state, Path compileLog,
+                    Path testLog, Map<String, String> details) throws IOException {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new ClosedByInterruptException();
+                }
+                return super.createBuild(buildName, commitSha, state, compileLog, testLog, details);
+            }
+        };
+        String commit = "abc123def456789012345678901234567890abcd";
+        BuildJob job = new BuildJob(history.newBuildId(commit), "owner", "repo", "main", commit,
+                "https://github.com/owner/repo.git");
+        Notifier superseding = (owner, repo, sha, state, description) -> {
+            notifier.setStatus(owner, repo, sha, state, description);
+            if (state.equals("success")) {
+                job.supersede("fedcba9876543210fedcba9876543210fedcba98");
+            }
+        };
+        CommandExecutorFactory factory = () -> new ScriptedExecutor(null);
+        BuildPipeline pipeline = new BuildPipeline(history, superseding, factory,
+                new CiClone(factory, tempDir.resolve("builds")), new CiConfig(new Properties()));
+
+        job.start();
+        pipeline.run(job);
+
+        assertTrue(Thread.interrupted(), "the interrupt is kept for the caller");
+        assertEquals("success", notifier.getLastCall().state());
+        assertTrue(history.getBuild(job.getBuildId()).contains("State: success"));
+    }
+
+    /**
+     * A finished build is counted by state, with its stage durations and exit codes.
+     */
+    @Test
+    void run_testsFail_recordsMetrics() throws IOException {
+        CiMetrics metrics = new CiMetrics();
+        CommandExecutorFactory factory = () -> new ScriptedExecutor("test");
+        BuildPipeline pipeline = new BuildPipeline(history, notifier, factory,
+                new CiClone(factory, tempDir.resolve("builds")), new CiConfig(new Properties()), metrics);
+
+        pipeline.run(job());
+
+        assertEquals(1, metrics.counter("ci_builds_total", "", "state", "failure").get());
+        assertEquals(1, metrics.counter("ci_stage_exit_total", "", "stage", "compile", "code", "0").get());
+        assertEquals(1, metrics.counter("ci_stage_exit_total", "", "stage", "test", "code", "1").get());
+        assertEquals(1, metrics.histogram("ci_stage_duration_seconds", "", CiMetrics.DURATION_BUCKETS,
+                "stage", "test").getCount());
+        assertEquals(1, metrics.histogram("ci_queue_wait_seconds", "", CiMetrics.DURATION_BUCKETS).getCount());
+        assertEquals(2, metrics.counter("ci_status_updates_total", "", "result", "sent").get());
+    }
+
+    /**
+     * The record and the index hold the time of each stage, the workspace is deleted before they are written.
+     */
+    @Test
+    void run_successfulBuild_storesStageTimings() throws IOException {
+        BuildJob job = job();
+
+        pipeline(null).run(job);
+
+        String record = history.getBuild(job.getBuildId());
+        assertTrue(record.contains("Queue time ms: "));
+        assertTrue(record.contains("Clone time ms: "));
+        assertTrue(record.contains("Cleanup time ms: "));
+        BuildIndex.Timings timings = history.getBuildInfo(job.getBuildId()).timings();
+        assertTrue(timings.queueMillis() >= 0);
+        assertTrue(timings.compileMillis() >= 0);
+        assertTrue(timings.testMillis() >= 0);
+        assertTrue(timings.notifyMillis() >= 0);
+        assertTrue(timings.cleanupMillis() >= 0);
+    }
+
+    /**
+     * With impact selection the first build runs all tests, the next compares with it and notes why
+     * it still runs all tests.
+     */
+    @Test
+    void run_testImpactEnabled_recordsSelection() throws IOException {
+        List<List<String>> commands = new ArrayList<>();
+        CommandExecutorFactory factory = () -> (command, workDir) -> {
+            commands.add(command);
+            return new ExecResult(0, command.contains("diff") ? "pom.xml\n" : "ok");
+        };
+        Properties settings = new Properties();
+        settings.setProperty("repo.owner/repo.test.impact.enabled", "true");
+        BuildPipeline pipeline = new BuildPipeline(history, notifier, factory,
+                new CiClone(factory, tempDir.resolve("builds")), new CiConfig(settings));
+        BuildJob first = job();
+        String sha = "def456def456789012345678901234567890abcd";
+        BuildJob second = new BuildJob(history.newBuildId(sha), "owner", "repo", "main", sha,
+                "https://github.com/owner/repo.git");
+
+        pipeline.run(first);
+        pipeline.run(second);
+
+        assertTrue(history.getBuild(first.getBuildId())
+                .contains("Test selection: all tests (no successful build of the branch)"));
+        String record = history.getBuild(second.getBuildId());
+        assertTrue(record.contains("Test selection base: " + first.getSha()));
+        assertTrue(record.contains("Test selection: all tests (changed pom.xml)"));
+        assertTrue(commands.contains(List.of("git", "diff", "--name-only", "--no-renames", first.getSha(), sha)));
+        assertEquals(0, history.getSelectiveTestRuns("owner/repo", "main"));
+    }
+
+    /**
+     * A commit with the tree of a passed build reuses its result, other commands build again.
+     */
+    @Test
+    void run_samePassedTree_reusesResultWithoutBuilding() throws IOException {
+        List<List<String>> commands = new ArrayList<>();
+        CommandExecutorFactory factory = () -> (command, workDir) -> {
+            commands.add(command);
+            return new ExecResult(0, command.contains("rev-parse") ? "4b825dc642cb6eb9a060e54bf8d69288fbee4904\n" : "ok");
+        };
+        Properties settings = new Properties();
+        CiClone ciClone = new CiClone(factory, tempDir.resolve("builds"));
+        BuildPipeline pipeline = new BuildPipeline(history, notifier, factory, ciClone, new CiConfig(settings));
+        BuildJob first = job();
+        String sha = "def456def456789012345678901234567890abcd";
+        BuildJob copy = new BuildJob(history.newBuildId(sha), "owner", "repo", "copy", sha,
+                "https://github.com/owner/repo.git");
+
+        pipeline.run(first);
+        commands.clear();
+        pipeline.run(copy);
+
+        assertEquals("success", notifier.getLastCall().state());
+        assertEquals("Same tree passed in build " + first.getBuildId(), notifier.getLastCall().description());
+        assertFalse(commands.contains(List.of("mvn", "compile", "-q")));
+        assertTrue(history.getBuild(copy.getBuildId()).contains("Cached result of: " + first.getBuildId()));
+
+        settings.setProperty("test.command", "mvn verify -q");
+        BuildJob changed = new BuildJob(history.newBuildId(sha), "owner", "repo", "copy", sha,
+                "https://github.com/owner/repo.git");
+        pipeline.run(changed);
+
+        assertTrue(commands.contains(List.of("mvn", "verify", "-q")));
+        assertEquals("Build and tests passed", notifier.getLastCall().description());
+    }
+
+    /**
+     * A build that ran only the affected tests does not stand for the whole suite of its tree.
+     */
+    @Test
+    void run_selectiveTestRun_isNotCached() throws IOException {
+        String[] tree = {"4b825dc642cb6eb9a060e54bf8d69288fbee4904"};
+        CommandExecutorFactory factory = () -> (command, workDir) -> {
+            if (command.contains("clone")) {
+                Path source = workDir.resolve(command.get(command.size() - 1)).resolve("src/main/java/a/A.java");
+                Files.createDirectories(source.getParent());
+                Files.writeString(source, "package a; class A { }");
+            }
+            return new ExecResult(0, command.contains("rev-parse") ? tree[0] + "\n"
+                    : command.contains("diff") ? "src/main/java/a/A.java\n" : "ok");
+        };
+        Properties settings = new Properties();
+        settings.setProperty("test.impact.enabled", "true");
+        BuildPipeline pipeline = new BuildPipeline(history, notifier, factory,
+                new CiClone(factory, tempDir.resolve("builds")), new CiConfig(settings));
+        String sha = "def456def456789012345678901234567890abcd";
+
+        pipeline.run(job());
+        tree[0] = "1111111111111111111111111111111111111111";
+        BuildJob selective = new BuildJob(history.newBuildId(sha), "owner", "repo", "main", sha,
+                "https://github.com/owner/repo.git");
+        pipeline.run(selective);
+        pipeline.run(new BuildJob(history.newBuildId(sha), "owner", "repo", "main", sha,
+                "https://github.com/owner/repo.git"));
+
+        assertTrue(history.getBuild(selective.getBuildId()).contains("Test selection: 0 affected test classes"));
+        assertEquals("Build and tests passed", notifier.getLastCall().description());
+    }
+
+    /**
+     * A build of a sparse checkout does not stand for the whole tree.
+     */
+    @Test
+    void run_sparseCheckout_isNotCached() throws IOException {
+        CommandExecutorFactory factory = () -> (command, workDir) ->
+                new ExecResult(0, command.contains("rev-parse") ? "4b825dc642cb6eb9a060e54bf8d69288fbee4904\n" : "ok");
+        Properties settings = new Properties();
+        settings.setProperty("clone.mode", "shallow");
+        settings.setProperty("clone.sparse.paths", "src/");
+        BuildPipeline pipeline = new BuildPipeline(history, notifier, factory,
+                new CiClone(factory, tempDir.resolve("builds")), new CiConfig(settings));
+        String sha = "def456def456789012345678901234567890abcd";
+
+        pipeline.run(job());
+        pipeline.run(new BuildJob(history.newBuildId(sha), "owner", "repo", "copy", sha,
+                "https://github.com/owner/repo.git"));
+
+        assertEquals("Build and tests passed", notifier.getLastCall().description());
+    }
+
+    @Test
+    void run_compileFails_reportsFailureAndSkipsTests() throws IOException {
+        BuildJob job = job();
+
+        pipeline("compile").run(job);
+
+        assertEquals("failure", notifier.getLastCall().state());
+        assertEquals("Compilation failed", notifier.getLastCall().description());
+        String record = history.getBuild(job.getBuildId());
+        assertTrue(record.contains("compile failed"));
+        assertTrue(record.contains("Tests not run"));
+    }
+
+    @Test
+    void run_testsFail_reportsFailure() throws IOException {
+        BuildJob job = job();
+
+        pipeline("test").run(job);
+
+        assertEquals("Tests failed", notifier.getLastCall().description());
+        assertTrue(history.getBuild(job.getBuildId()).contains("State: failure"));
+    }
+
+    /**
+     * In single mode the repository's build command runs once and a compile failure is still reported as such.
+     */
+    @Test
+    void run_singleMode_runsOneCommandAndReportsFailedPhase() throws IOException {
+        List<List<String>> commands = new ArrayList<>();
+        CommandExecutorFactory factory = () -> (command, workDir) -> {
+            commands.add(command);
+            if (command.get(0).equals("mvn")) {
+                return new ExecResult(1, "[ERROR] Failed to execute goal "
+                        + "org.apache.maven.plugins:maven-compiler-plugin:3.11.0:compile (default-compile)");
+            }
+            return new ExecResult(0, "ok");
+        };
+        Properties settings = new Properties();
+        settings.setProperty("repo.owner/repo.build.mode", "single");
+        settings.setProperty("repo.owner/repo.build.command", "mvn -B verify");
+        BuildPipeline pipeline = new BuildPipeline(history, notifier, factory,
+                new CiClone(factory, tempDir.resolve("builds")), new CiConfig(settings));
+        BuildJob job = job();
+
+        pipeline.run(job);
+
+        assertEquals(List.of(List.of("mvn", "-B", "verify")),
+                commands.stream().filter(c -> c.get(0).equals("mvn")).toList());
+        assertEquals("Compilation failed", notifier.getLastCall().description());
+        String record = history.getBuild(job.getBuildId());
+        assertTrue(record.contains("Failed phase: compile"));
+        assertTrue(record.contains("maven-compiler-plugin"));
+        assertTrue(record.contains("Tests not run, compilation failed"));
+    }
+
+    @Test
+    void run_supersededJob_reportsErrorWithoutBuilding() throws IOException {
+        BuildJob job = job();
+        job.supersede("fff9999000000000000000000000000000000000");
+        List<List<String>> commands = new ArrayList<>();
+        CommandExecutorFactory factory = () -> (command, workDir) -> {
+            commands.add(command);
+            return new ExecResult(0, "ok");
+        };
+        BuildPipeline pipeline = new BuildPipeline(history, notifier, factory,
+                new CiClone(factory, tempDir.resolve("builds")), new CiConfig(new Properties()));
+
+        pipeline.run(job);
+
+        assertTrue(commands.isEmpty());
+        assertEquals(1, notifier.getCalls().size());
+        assertEquals("error", notifier.getLastCall().state());
+        assertEquals("Superseded by fff9999", notifier.getLastCall().description());
+        assertTrue(history.getBuild(job.getBuildId()).contains("State: superseded"));
+    }
+
+    @Test
+    void run_cloneFails_reportsFailure() throws IOException {
+        BuildJob job = job();
+
+        pipeline("clone").run(job);
+
+        assertEquals("Clone failed", notifier.getLastCall().description());
+        assertTrue(history.getBuild(job.getBuildId()).contains("clone failed"));
+    }
+}
@@ -0,0 +1,209 @@
+package ci;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for BuildQueue.
+ */
+public class BuildQueueTest {
+
+    private BuildQueue queue;
+
+    // Runner that blocks every build until released
+    static class BlockingRunner implements BuildRunner {
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final List<String> ran = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void run(BuildJob job) {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ran.add(job.getBuildId());
+        }
+    }
+
+    // Each job gets its own branch so that jobs are not coalesced
+    private static BuildJob job(String id) {
+        return job(id, id);
+    }
+
+    private static BuildJob job(String id, String branch) {
+        return new BuildJob(id, "owner", "repo", branch, id + "-sha", "https://github.com/owner/repo.git");
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (queue != null) {
+            queue.shutdown(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void offer_runsJobOnWorker() throws InterruptedException {
+        BlockingRunner runner = new BlockingRunner();
+        runner.release.countDown();
+        queue = new BuildQueue(runner, 1, 1);
+
+        assertTrue(queue.offer(job("build-1")));
+
+        assertTrue(queue.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(List.of("build-1"), runner.ran);
+    }
+
+    /**
+     * With one worker busy and a queue depth of one, the third job must be rejected.
+     */
+    @Test
+    void offer_queueFull_returnsFalse() throws InterruptedException {
+        BlockingRunner runner = new BlockingRunner();
+        queue = new BuildQueue(runner, 1, 1);
+
+        assertTrue(queue.offer(job("running")));
+        assertTrue(runner.started.await(10, TimeUnit.SECONDS));
+        assertTrue(queue.offer(job("queued")));
+        assertFalse(queue.offer(job("rejected")));
+        assertEquals(1, queue.getQueuedCount());
+        assertEquals(1, queue.getActiveCount());
+
+        runner.release.countDown();
+        assertTrue(queue.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(List.of("running", "queued"), runner.ran);
+    }
+
+    @Test
+    void offer_crashingBuild_keepsWorkerAlive() throws InterruptedException {
+        List<String> ran = new CopyOnWriteArrayList<>();
+        queue = new BuildQueue(job -> {
+            ran.add(job.getBuildId());
+            throw new IllegalStateException("boom");
+        }, 1, 5);
+
+        assertTrue(queue.offer(job("first")));
+        assertTrue(queue.offer(job("second")));
+
+        assertTrue(queue.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(List.of("first", "second"), ran);
+    }
+
+    /**
+     * A queued job is removed when a newer push to the same branch arrives,
+     * and the runner is called with the superseded job so it can report it.
+     */
+    @Test
+    void offer_sameBranchWhileQueued_dropsOlderJob() throws InterruptedException {
+        BlockingRunner runner = new BlockingRunner();
+        queue = new BuildQueue(runner, 1, 1);
+
+        assertTrue(queue.offer(job("running")));
+        assertTrue(runner.started.await(10, TimeUnit.SECONDS));
+        BuildJob older = job("older", "feature");
+        BuildJob newer = job("newer", "feature");
+        assertTrue(queue.offer(older));
+        // The queue is full, but the newer push replaces the older one
+        assertTrue(queue.offer(newer));
+
+        assertTrue(older.isSuperseded());
+        assertEquals("newer-sha", older.getSupersededBy());
+        assertFalse(newer.isSuperseded());
+        assertEquals(1, queue.getQueuedCount());
+
+        runner.release.countDown();
+        assertTrue(queue.shutdown(10, TimeUnit.SECONDS));
+        assertTrue(runner.ran.containsAll(List.of("running", "older", "newer")));
+        assertEquals(3, runner.ran.size());
+    }
+
+    /**
+     * A running job is interrupted when a newer push to the same branch arrives.
+     */
+    @Test
+    void offer_sameBranchWhileRunning_interruptsOlderJob() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        queue = new BuildQueue(job -> {
+            if (job.getBuildId().equals("older")) {
+                started.countDown();
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        }, 2, 1);
+
+        BuildJob older = job("older", "main");
+        assertTrue(queue.offer(older));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(queue.offer(job("newer", "main")));
+
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertTrue(older.isSuperseded());
+    }
+
+    /**
+     * A job that is finishing, i.e. writing its record, is marked superseded but not interrupted.
+     */
+    @Test
+    void offer_sameBranchWhileFinishing_doesNotInterruptOlderJob() throws InterruptedException {
+        CountDownLatch finishing = new CountDownLatch(1);
+        CountDownLatch superseded = new CountDownLatch(1);
+        List<Boolean> interrupted = new CopyOnWriteArrayList<>();
+        queue = new BuildQueue(job -> {
+            if (job.getBuildId().equals("older")) {
+                job.finish();
+                finishing.countDown();
+                try {
+                    superseded.await(10, TimeUnit.SECONDS);
+                    interrupted.add(false);
+                } catch (InterruptedException e) {
+                    interrupted.add(true);
+                }
+            }
+        }, 2, 1);
+
+        BuildJob older = job("older", "main");
+        assertTrue(queue.offer(older));
+        assertTrue(finishing.await(10, TimeUnit.SECONDS));
+        assertTrue(queue.offer(job("newer", "main")));
+        superseded.countDown();
+
+        assertTrue(queue.shutdown(10, TimeUnit.SECONDS));
+        assertTrue(older.isSuperseded());
+        assertEquals(List.of(false), interrupted);
+    }
+
+    @Test
+    void offer_differentBranches_areNotCoalesced() throws InterruptedException {
+        BlockingRunner runner = new BlockingRunner();
+        runner.release.countDown();
+        queue = new BuildQueue(runner, 1, 5);
+
+        BuildJob main = job("a", "main");
+        BuildJob feature = job("b", "feature");
+        assertTrue(queue.offer(main));
+        assertTrue(queue.offer(feature));
+
+        assertTrue(queue.shutdown(10, TimeUnit.SECONDS));
+        assertFalse(main.isSuperseded());
+        assertFalse(feature.isSuperseded());
+    }
+
+    @Test
+    void constructor_invalidSizes_throwsException() {
+        assertThrows(IllegalArgumentException.class, () -> new BuildQueue(job -> { }, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new BuildQueue(job -> { }, 1, 0));
+    }
+}
@@ -0,0 +1,68 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for BuildStats.
+ */
+public class BuildStatsTest {
+
+    private static BuildIndex.Entry entry(int n, String branch, String state, long finishedAt, long testMillis) {
+        return new BuildIndex.Entry("build-" + n + ".txt", "abc" + n, "owner/repo", branch, state,
+                finishedAt - 10_000, finishedAt, 0, 0, 0, 0, new BuildIndex.Timings(1, 2, 3, testMillis, 4, 5));
+    }
+
+    /**
+     * Percentiles use the nearest rank, per repository and branch, of the builds in the window.
+     */
+    @Test
+    void compute_groupsByBranchWithinWindow() {
+        List<BuildIndex.Entry> entries = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            entries.add(entry(i, "main", "success", 100_000 + i, i * 1000L));
+        }
+        entries.add(entry(21, "dev", "failure", 100_000, 7000));
+        // Outside the window and superseded builds are left out
+        entries.add(entry(22, "dev", "failure", 50_000, 9000));
+        entries.add(entry(23, "dev", "superseded", 100_000, 9000));
+
+        List<BuildStats.Summary> summaries = BuildStats.compute(entries, 90_000);
+
+        assertEquals(2, summaries.size());
+        BuildStats.Summary dev = summaries.get(0);
+        BuildStats.Summary main = summaries.get(1);
+        assertEquals("dev", dev.branch());
+        assertEquals(1, dev.builds());
+        assertEquals(new BuildStats.Percentiles(1, 7000, 7000), dev.stages().get(BuildStats.STAGES.indexOf("Test")));
+        assertEquals(20, main.builds());
+        assertEquals(new BuildStats.Percentiles(20, 10_000, 19_000),
+                main.stages().get(BuildStats.STAGES.indexOf("Test")));
+        assertEquals(10_000, main.stages().get(BuildStats.STAGES.indexOf("Total")).p50());
+    }
+
+    /**
+     * Builds recorded without timings count towards the total but not the stages.
+     */
+    @Test
+    void compute_buildsWithoutTimings_leaveStagesEmpty() {
+        BuildIndex.Entry old = new BuildIndex.Entry("old.txt", "abc", "owner/repo", "main", "success",
+                1000, 3000, 0, 0, 0, 0);
+
+        BuildStats.Summary summary = BuildStats.compute(List.of(old), 0).get(0);
+
+        assertEquals(new BuildStats.Percentiles(1, 2000, 2000), summary.stages().get(0));
+        assertEquals(new BuildStats.Percentiles(0, -1, -1), summary.stages().get(BuildStats.STAGES.indexOf("Clone")));
+
+        StringWriter html = new StringWriter();
+        BuildStats.render(new PrintWriter(html), List.of(summary), Duration.ofDays(7));
+        assertTrue(html.toString().contains("<td>owner/repo</td><td>main</td><td>1</td><td>2.0 s</td><td>2.0 s</td>"));
+    }
+}
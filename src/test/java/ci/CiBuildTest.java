@@ -0,0 +1,59 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for CiBuild.
+ */
+public class CiBuildTest {
+    @TempDir
+    Path tempDir;
+
+    private CiBuild.BuildResult build(int exitCode, String output) throws IOException, InterruptedException {
+        return new CiBuild(() -> (command, workDir) -> new ExecResult(exitCode, output),
+                List.of("mvn", "test", "-q"), tempDir).build();
+    }
+
+    @Test
+    void build_success_hasNoFailedPhase() throws IOException, InterruptedException {
+        CiBuild.BuildResult result = build(0, "ok");
+
+        assertTrue(result.isSuccess());
+        assertNull(result.getFailedPhase());
+    }
+
+    /**
+     * The plugin of the failed Maven goal tells the phase, test compilation counts as compilation.
+     */
+    @Test
+    void build_failedGoal_namesPhase() throws IOException, InterruptedException {
+        assertEquals(CiBuild.Phase.COMPILE, build(1, "[ERROR] Failed to execute goal "
+                + "org.apache.maven.plugins:maven-compiler-plugin:3.11.0:testCompile (default-testCompile) on project x\n"
+                + "[ERROR] -> [Help 1]").getFailedPhase());
+        assertEquals(CiBuild.Phase.TEST, build(1, "[ERROR] Failed to execute goal "
+                + "org.apache.maven.plugins:maven-surefire-plugin:3.2.2:test (default-test) on project x")
+                .getFailedPhase());
+        assertEquals(CiBuild.Phase.COMPILE, build(1, "[ERROR] COMPILATION ERROR :").getFailedPhase());
+    }
+
+    /**
+     * Without a named goal, the tests failed if surefire wrote a report.
+     */
+    @Test
+    void build_unknownFailure_usesSurefireReports() throws IOException, InterruptedException {
+        assertEquals(CiBuild.Phase.COMPILE, build(1, "killed").getFailedPhase());
+
+        Path reports = Files.createDirectories(tempDir.resolve("target/surefire-reports"));
+        Files.writeString(reports.resolve("TEST-ci.ATest.xml"), "<testsuite/>");
+
+        assertEquals(CiBuild.Phase.TEST, build(1, "killed").getFailedPhase());
+    }
+}
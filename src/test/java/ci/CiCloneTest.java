@@ -83,7 +83,7 @@ public class CiCloneTest {
 
         assertTrue(result.isSuccess());
         List<List<String>> commands = mockFactory.getExecutor().getExecutedCommands();
-        assertEquals(2, commands.size());
+        assertEquals(3, commands.size());
 
         // Verify clone command
         List<String> cloneCmd = commands.get(0);
@@ -94,6 +94,23 @@ public class CiCloneTest {
         assertEquals(List.of("git", "checkout", sha), checkoutCmd);
     }
 
+    /**
+     * The tree of the checked out commit is read after the checkout, output that is no object name is ignored.
+     */
+    @Test
+    void gitCloneAndCheckout_readsTreeHash() throws IOException, InterruptedException {
+        String tree = "4b825dc642cb6eb9a060e54bf8d69288fbee4904";
+        mockFactory.getExecutor().setResultToReturn(new ExecResult(0, tree + "\n"));
+
+        CiClone.CloneResult result = ciClone.gitCloneAndCheckout("https://github.com/owner/repo.git", "main", "abc123");
+        mockFactory.getExecutor().setResultToReturn(new ExecResult(0, "success"));
+        CiClone.CloneResult unknown = ciClone.gitCloneAndCheckout("https://github.com/owner/repo.git", "main", "abc123");
+
+        assertEquals(tree, result.getTreeHash());
+        assertEquals(List.of("git", "rev-parse", "HEAD^{tree}"), mockFactory.getExecutor().getExecutedCommands().get(2));
+        assertNull(unknown.getTreeHash());
+    }
+
     @Test
     void gitCloneAndCheckout_cloneRunsInBaseDirectory() throws IOException, InterruptedException {
         String url = "https://github.com/owner/repo.git";
@@ -140,6 +157,117 @@ public class CiCloneTest {
         assertEquals(testDirectory.resolve(sha), result.getClonedDirectory());
     }
 
+    @Test
+    void gitCloneAndCheckout_withMirrorCache_addsWorktreeInsteadOfCloning() throws IOException, InterruptedException {
+        String url = "https://github.com/owner/repo.git";
+        MirrorCache cache = new MirrorCache(mockFactory, testDirectory.resolve("mirrors"), Long.MAX_VALUE);
+        CiClone mirrored = new CiClone(mockFactory, testDirectory, cache);
+
+        CiClone.CloneResult result = mirrored.gitCloneAndCheckout(url, "main", "abc123", "build-1");
+
+        assertTrue(result.isSuccess());
+        List<List<String>> commands = mockFactory.getExecutor().getExecutedCommands();
+        assertEquals(List.of("git", "clone", "--mirror", url, cache.mirrorDirectory(url).toString()), commands.get(0));
+        assertEquals(List.of("git", "worktree", "add", "--detach",
+                testDirectory.resolve("build-1").toAbsolutePath().toString(), "abc123"), commands.get(1));
+        assertEquals(cache.mirrorDirectory(url), mockFactory.getExecutor().getExecutedPaths().get(1));
+    }
+
+    @Test
+    void gitCloneAndCheckout_shallowMode_fetchesOnlyTheCommit() throws IOException, InterruptedException {
+        String url = "https://github.com/owner/repo.git";
+
+        CiClone.CloneResult result = ciClone.gitCloneAndCheckout(url, "main", "abc123", "build-1",
+                CloneMode.SHALLOW, List.of());
+
+        assertTrue(result.isSuccess());
+        assertEquals(CloneMode.SHALLOW, result.getMode());
+        List<List<String>> commands = mockFactory.getExecutor().getExecutedCommands();
+        assertEquals(List.of(
+                List.of("git", "init", "-q", "build-1"),
+                List.of("git", "remote", "add", "origin", url),
+                List.of("git", "fetch", "--depth", "1", "origin", "abc123"),
+                List.of("git", "checkout", "--detach", "FETCH_HEAD"),
+                List.of("git", "rev-parse", "HEAD^{tree}")), commands);
+        assertEquals(testDirectory, mockFactory.getExecutor().getExecutedPaths().get(0));
+        assertEquals(testDirectory.resolve("build-1"), mockFactory.getExecutor().getExecutedPaths().get(3));
+    }
+
+    @Test
+    void gitCloneAndCheckout_partialModeWithSparsePaths_filtersBlobsAndSetsSparseCheckout()
+            throws IOException, InterruptedException {
+        String url = "https://github.com/owner/repo.git";
+
+        ciClone.gitCloneAndCheckout(url, "main", "abc123", "build-1", CloneMode.PARTIAL, List.of("src/", "pom.xml"));
+
+        List<List<String>> commands = mockFactory.getExecutor().getExecutedCommands();
+        assertEquals(List.of(
+                List.of("git", "clone", "--filter=blob:none", "--no-checkout", "--branch", "main",
+                        "--single-branch", url, "build-1"),
+                List.of("git", "sparse-checkout", "set", "--no-cone", "src/", "pom.xml"),
+                List.of("git", "checkout", "abc123"),
+                List.of("git", "rev-parse", "HEAD^{tree}")), commands);
+    }
+
+    @Test
+    void gitCloneAndCheckout_mirrorModeWithoutCache_fallsBackToFullClone() throws IOException, InterruptedException {
+        CiClone.CloneResult result = ciClone.gitCloneAndCheckout("https://github.com/owner/repo.git", "main",
+                "abc123", "build-1", CloneMode.MIRROR, List.of());
+
+        assertEquals(CloneMode.FULL, result.getMode());
+        assertEquals("clone", mockFactory.getExecutor().getExecutedCommands().get(0).get(1));
+    }
+
+    /**
+     * A pooled build clones into the kept workspace of the branch, which cleanup gives back instead of deleting;
+     * a concurrent build of the branch gets a full clone.
+     */
+    @Test
+    void gitCloneAndCheckout_pooledMode_usesKeptWorkspaceOfBranch() throws IOException, InterruptedException {
+        String url = "https://github.com/owner/repo.git";
+        WorkspacePool pool = new WorkspacePool(mockFactory, testDirectory.resolve("pool"), 10, Long.MAX_VALUE);
+        CiClone pooledClone = new CiClone(mockFactory, testDirectory, null, pool);
+
+        CiClone.CloneResult first = pooledClone.gitCloneAndCheckout(url, "main", "abc123", "build-1",
+                CloneMode.POOLED, List.of());
+        CiClone.CloneResult concurrent = pooledClone.gitCloneAndCheckout(url, "main", "def456", "build-2",
+                CloneMode.POOLED, List.of());
+
+        assertEquals(CloneMode.POOLED, first.getMode());
+        assertEquals(testDirectory.resolve("pool").resolve(WorkspacePool.directoryName(url, "main")),
+                first.getClonedDirectory());
+        assertEquals(CloneMode.FULL, concurrent.getMode());
+        Files.createDirectories(first.getClonedDirectory());
+        pooledClone.cleanup(first.getClonedDirectory());
+        assertTrue(Files.exists(first.getClonedDirectory()));
+        assertEquals(first.getClonedDirectory(), pool.acquire(url, "main"));
+    }
+
+    /**
+     * An interrupted checkout, e.g. of a superseded build, gives the pooled workspace back.
+     */
+    @Test
+    void gitCloneAndCheckout_pooledCheckoutInterrupted_releasesWorkspace() throws IOException {
+        String url = "https://github.com/owner/repo.git";
+        CommandExecutorFactory interrupted = () -> (command, workDir) -> {
+            throw new InterruptedException("superseded");
+        };
+        WorkspacePool pool = new WorkspacePool(interrupted, testDirectory.resolve("pool"), 10, Long.MAX_VALUE);
+        CiClone pooledClone = new CiClone(interrupted, testDirectory, null, pool);
+
+        assertThrows(InterruptedException.class, () -> pooledClone.gitCloneAndCheckout(url, "main", "abc123",
+                "build-1", CloneMode.POOLED, List.of()));
+
+        assertEquals(testDirectory.resolve("pool").resolve(WorkspacePool.directoryName(url, "main")),
+                pool.acquire(url, "main"));
+    }
+
+    @Test
+    void cloneMode_parse_ignoresCase() {
+        assertEquals(CloneMode.PARTIAL, CloneMode.parse(" Partial "));
+        assertThrows(IllegalArgumentException.class, () -> CloneMode.parse("deep"));
+    }
+
     @Test
     void cleanup_removesDirectory() throws IOException {
         Path dirToClean = testDirectory.resolve("to-clean");
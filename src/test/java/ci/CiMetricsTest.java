@@ -0,0 +1,111 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for CiMetrics.
+ */
+public class CiMetricsTest {
+
+    private static String text(CiMetrics metrics) throws IOException {
+        StringBuilder out = new StringBuilder();
+        metrics.writeTo(out);
+        return out.toString();
+    }
+
+    /**
+     * The same name and labels return the same counter, other labels a new series.
+     */
+    @Test
+    void counter_isSharedPerLabelSet() throws IOException {
+        CiMetrics metrics = new CiMetrics();
+        metrics.counter("ci_builds_total", "Finished builds", "state", "success").inc();
+        metrics.counter("ci_builds_total", "Finished builds", "state", "success").add(2);
+        metrics.counter("ci_builds_total", "Finished builds", "state", "failure").inc();
+
+        assertEquals("""
+                # HELP ci_builds_total Finished builds
+                # TYPE ci_builds_total counter
+                ci_builds_total{state="failure"} 1
+                ci_builds_total{state="success"} 3
+                """, text(metrics));
+    }
+
+    /**
+     * Buckets are written cumulatively, with +Inf, the sum and the count.
+     */
+    @Test
+    void histogram_writesCumulativeBuckets() throws IOException {
+        CiMetrics metrics = new CiMetrics();
+        CiMetrics.Histogram histogram = metrics.histogram("ci_stage_duration_seconds", "Stage durations",
+                new double[] {1, 5}, "stage", "test");
+        histogram.observe(0.5);
+        histogram.observe(1);
+        histogram.observeMillis(3000);
+        histogram.observe(7);
+
+        assertEquals("""
+                # HELP ci_stage_duration_seconds Stage durations
+                # TYPE ci_stage_duration_seconds histogram
+                ci_stage_duration_seconds_bucket{stage="test",le="1"} 2
+                ci_stage_duration_seconds_bucket{stage="test",le="5"} 3
+                ci_stage_duration_seconds_bucket{stage="test",le="+Inf"} 4
+                ci_stage_duration_seconds_sum{stage="test"} 11.5
+                ci_stage_duration_seconds_count{stage="test"} 4
+                """, text(metrics));
+    }
+
+    /**
+     * Gauges are read when written, label values are escaped.
+     */
+    @Test
+    void gauge_isReadWhenWritten() throws IOException {
+        CiMetrics metrics = new CiMetrics();
+        long[] depth = {3};
+        metrics.gauge("ci_queue_depth", "Queued builds", () -> depth[0], "repo", "a\"b");
+        depth[0] = 5;
+
+        assertTrue(text(metrics).contains("ci_queue_depth{repo=\"a\\\"b\"} 5\n"));
+    }
+
+    /**
+     * A name cannot be used for two types of metrics.
+     */
+    @Test
+    void counter_nameOfHistogram_throws() {
+        CiMetrics metrics = new CiMetrics();
+        metrics.histogram("ci_x", "x", CiMetrics.DURATION_BUCKETS);
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("ci_x", "x"));
+    }
+
+    /**
+     * Concurrent increments are not lost.
+     */
+    @Test
+    void counter_concurrentIncrements_areAllCounted() throws InterruptedException {
+        CiMetrics metrics = new CiMetrics();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    metrics.counter("ci_webhooks_total", "Webhooks", "result", "accepted").inc();
+                    metrics.histogram("ci_queue_wait_seconds", "Wait", CiMetrics.DURATION_BUCKETS).observe(0.1);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80_000, metrics.counter("ci_webhooks_total", "Webhooks", "result", "accepted").get());
+        assertEquals(80_000, metrics.histogram("ci_queue_wait_seconds", "Wait", CiMetrics.DURATION_BUCKETS).getCount());
+    }
+}
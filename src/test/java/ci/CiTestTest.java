@@ -7,8 +7,13 @@ import org.junit.jupiter.api.io.TempDir;
 import ci.*;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class CiTestTest {
     @TempDir
@@ -78,4 +83,118 @@ public class CiTestTest {
         }
     }
 
+    /**
+     * Sharded tests are compiled once, every shard runs a part of the classes, and the shard logs
+     * are merged into the test log with the exit code of the first failing shard.
+     */
+    @Test
+    void testCiTestSharded() throws IOException, InterruptedException {
+        for (String name : List.of("ATest", "BTest", "CTest")) {
+            Path file = tempDir.resolve("src/test/java/p/" + name + ".java");
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "");
+        }
+        Path log = tempDir.resolve("test.log");
+        List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+        CommandExecutorFactory factory = new CommandExecutorFactory() {
+            @Override
+            public CommandExecutor create() {
+                return create(log);
+            }
+
+            @Override
+            public CommandExecutor create(Path logFile) {
+                return (command, workDir) -> {
+                    commands.add(command);
+                    String output = String.join(" ", command) + "\n";
+                    Files.writeString(logFile, output, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    int exitCode = command.get(command.size() - 1).contains("p.CTest") ? 1 : 0;
+                    return new ExecResult(exitCode, output, logFile, output.length());
+                };
+            }
+        };
+        CiTest.Sharding sharding = new CiTest.Sharding(2, List.of("mvn", "test-compile"),
+                List.of(List.of("mvn", "surefire:test"), List.of("mvn", "surefire:test")),
+                Map.of("p.ATest", 5000L, "p.BTest", 1000L, "p.CTest", 1000L), log);
+
+        CiTest.TestResult result = new CiTest(factory, List.of("mvn", "test"), tempDir, sharding).runTests();
+
+        assertEquals(List.of("mvn", "test-compile"), commands.get(0));
+        assertTrue(commands.contains(List.of("mvn", "surefire:test", "-Dtest=p.ATest")));
+        assertTrue(commands.contains(List.of("mvn", "surefire:test", "-Dtest=p.BTest,p.CTest")));
+        assertEquals(List.of(0, 1), result.getShardExitCodes());
+        assertEquals(1, result.getExitCode());
+        assertEquals(log, result.getLogFile());
+        String merged = Files.readString(log);
+        assertTrue(merged.startsWith("mvn test-compile\n"));
+        assertTrue(merged.contains("[shard 2] mvn surefire:test -Dtest=p.BTest,p.CTest\n"));
+        assertTrue(merged.contains("----- Shard 2/2: 2 test classes, exit code 1 -----\n"));
+        assertFalse(Files.exists(tempDir.resolve("test.log.shard-1")));
+    }
+
+    /**
+     * The output of a shard shows up in the test log while the shard is still running.
+     */
+    @Test
+    void testCiTestSharded_copiesShardOutputWhileRunning() throws IOException, InterruptedException {
+        for (String name : List.of("ATest", "BTest")) {
+            Path file = tempDir.resolve("src/test/java/p/" + name + ".java");
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "");
+        }
+        Path log = tempDir.resolve("test.log");
+        List<Boolean> seenLive = Collections.synchronizedList(new ArrayList<>());
+        CommandExecutorFactory factory = new CommandExecutorFactory() {
+            @Override
+            public CommandExecutor create() {
+                return create(log);
+            }
+
+            @Override
+            public CommandExecutor create(Path logFile) {
+                return (command, workDir) -> {
+                    String test = command.get(command.size() - 1);
+                    Files.writeString(logFile, "running " + test + "\n", StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND);
+                    boolean seen = logFile.equals(log);
+                    for (int i = 0; i < 100 && !seen; i++) {
+                        Thread.sleep(50);
+                        seen = Files.readString(log).contains("] running " + test + "\n");
+                    }
+                    seenLive.add(seen);
+                    return new ExecResult(0, "running " + test + "\n", logFile, 0);
+                };
+            }
+        };
+        CiTest.Sharding sharding = new CiTest.Sharding(2, List.of("mvn", "test-compile"),
+                List.of(List.of("mvn", "surefire:test"), List.of("mvn", "surefire:test")), Map.of(), log);
+
+        CiTest.TestResult result = new CiTest(factory, List.of("mvn", "test"), tempDir, sharding).runTests();
+
+        assertEquals(0, result.getExitCode());
+        assertEquals(List.of(true, true, true), seenLive);
+        assertTrue(Files.readString(log).contains("[shard 1] running -Dtest=p."));
+    }
+
+    /**
+     * Selected test classes are passed to the test command, without any nothing runs.
+     */
+    @Test
+    void testCiTestSelectedClasses() throws IOException, InterruptedException {
+        List<List<String>> commands = new ArrayList<>();
+        CommandExecutorFactory factory = () -> (command, workDir) -> {
+            commands.add(command);
+            return new ExecResult(0, "ok");
+        };
+
+        CiTest.TestResult selected = new CiTest(factory, List.of("mvn", "test"), tempDir, null,
+                List.of("p.ATest", "p.BTest")).runTests();
+        CiTest.TestResult none = new CiTest(factory, List.of("mvn", "test"), tempDir, null, List.of()).runTests();
+
+        assertEquals(List.of(List.of("mvn", "test", "-Dtest=p.ATest,p.BTest",
+                "-Dsurefire.failIfNoSpecifiedTests=false")), commands);
+        assertTrue(selected.isSuccess());
+        assertTrue(none.isSuccess());
+        assertEquals("No test classes selected, no tests run\n", none.getOutput());
+    }
 }
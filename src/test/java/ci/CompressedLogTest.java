@@ -0,0 +1,78 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for CompressedLog.
+ */
+public class CompressedLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path write(byte[] content, int frameSize) throws IOException {
+        Path file = tempDir.resolve("log");
+        try (OutputStream out = CompressedLog.create(file, frameSize)) {
+            // Written in uneven pieces, so writes cross frame boundaries
+            for (int i = 0; i < content.length; i += 37) {
+                out.write(content, i, Math.min(37, content.length - i));
+            }
+        }
+        return file;
+    }
+
+    private static byte[] read(Path file, long offset, long length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedLog.read(file, offset, length, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void read_returnsRangesAcrossFrames() throws IOException {
+        byte[] content = new byte[10_000];
+        new Random(1).nextBytes(content);
+        Path file = write(content, 1000);
+
+        assertEquals(content.length, CompressedLog.length(file));
+        assertArrayEquals(content, read(file, 0, -1));
+        assertArrayEquals(Arrays.copyOfRange(content, 990, 2010), read(file, 990, 1020));
+        assertArrayEquals(Arrays.copyOfRange(content, 9_500, 10_000), read(file, 9_500, 5_000));
+        assertEquals(0, read(file, 10_000, 10).length);
+    }
+
+    @Test
+    void create_compressesRepetitiveLogs() throws IOException {
+        byte[] content = "[INFO] Building module\n".repeat(10_000).getBytes();
+        Path file = write(content, CompressedLog.DEFAULT_FRAME_SIZE);
+
+        assertTrue(Files.size(file) < content.length / 20);
+        assertArrayEquals(content, read(file, 0, -1));
+    }
+
+    @Test
+    void emptyContent() throws IOException {
+        Path file = write(new byte[0], 1000);
+
+        assertEquals(0, CompressedLog.length(file));
+        assertEquals(0, read(file, 0, -1).length);
+    }
+
+    @Test
+    void read_rejectsOtherFiles() throws IOException {
+        Path file = tempDir.resolve("plain.txt");
+        Files.writeString(file, "Commit SHA: abc\nState: success\n".repeat(10));
+
+        assertThrows(IOException.class, () -> CompressedLog.length(file));
+    }
+}
@@ -0,0 +1,211 @@
+package ci;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests GitHubNotifier against a local stub of the GitHub statuses API.
+ */
+public class GitHubNotifierTest {
+
+    /** A response of the stub, with extra headers. */
+    private record Reply(int status, Map<String, String> headers) {
+    }
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private final List<String> paths = new CopyOnWriteArrayList<>();
+    private final List<JSONObject> bodies = new CopyOnWriteArrayList<>();
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+    // Replies to give, 201 when empty
+    private final LinkedBlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+    private volatile CountDownLatch requestArrived = new CountDownLatch(0);
+    private volatile CountDownLatch release = new CountDownLatch(0);
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                bodies.add(new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8)));
+            }
+            paths.add(exchange.getRequestURI().getPath());
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            requestArrived.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Reply reply = replies.poll();
+            if (reply == null) {
+                reply = new Reply(201, Map.of());
+            }
+            reply.headers().forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(reply.status(), body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        // Requests are handled concurrently, like GitHub does
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        release.countDown();
+        server.stop(0);
+    }
+
+    private GitHubNotifier notifier(int maxAttempts) {
+        URI api = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/api/v3");
+        return new GitHubNotifier("secret", api, HttpClient.newHttpClient(), maxAttempts, Duration.ofMillis(10));
+    }
+
+    @Test
+    void setStatus_postsStatus() throws Exception {
+        notifier(3).setStatus("owner", "repo", "abc123", "success", "Build \"passed\"");
+
+        assertEquals(List.of("/api/v3/repos/owner/repo/statuses/abc123"), paths);
+        assertEquals("token secret", authorizations.get(0));
+        assertEquals("success", bodies.get(0).getString("state"));
+        assertEquals("Build \"passed\"", bodies.get(0).getString("description"));
+        assertEquals(GitHubNotifier.CONTEXT, bodies.get(0).getString("context"));
+    }
+
+    @Test
+    void setStatus_retriesServerErrors() throws Exception {
+        replies.add(new Reply(502, Map.of()));
+        replies.add(new Reply(503, Map.of()));
+
+        notifier(3).setStatus("owner", "repo", "abc123", "pending", "Build started");
+
+        assertEquals(3, paths.size());
+    }
+
+    @Test
+    void setStatus_givesUpAfterMaxAttempts() {
+        replies.add(new Reply(500, Map.of()));
+        replies.add(new Reply(500, Map.of()));
+
+        Exception e = assertThrows(RuntimeException.class,
+                () -> notifier(2).setStatus("owner", "repo", "abc123", "pending", "Build started"));
+
+        assertTrue(e.getMessage().contains("500"));
+        assertEquals(2, paths.size());
+    }
+
+    /**
+     * Client errors other than rate limits would fail again, they are not retried.
+     */
+    @Test
+    void setStatus_doesNotRetryClientErrors() {
+        replies.add(new Reply(422, Map.of()));
+
+        assertThrows(RuntimeException.class,
+                () -> notifier(3).setStatus("owner", "repo", "abc123", "pending", "Build started"));
+        assertEquals(1, paths.size());
+    }
+
+    @Test
+    void setStatus_waitsForRetryAfter() throws Exception {
+        replies.add(new Reply(429, Map.of("Retry-After", "1")));
+
+        long start = System.nanoTime();
+        notifier(2).setStatus("owner", "repo", "abc123", "pending", "Build started");
+
+        assertEquals(2, paths.size());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    void retryDelay_usesRateLimitReset() {
+        long resetIn = System.currentTimeMillis() / 1000 + 30;
+        var headers = java.net.http.HttpHeaders.of(
+                Map.of("X-RateLimit-Remaining", List.of("0"), "X-RateLimit-Reset", List.of(String.valueOf(resetIn))),
+                (name, value) -> true);
+
+        Duration delay = GitHubNotifier.retryDelay(headers, Duration.ofSeconds(1));
+
+        assertTrue(delay.getSeconds() >= 28 && delay.getSeconds() <= 30, delay.toString());
+    }
+
+    /**
+     * Updates of the same status queued while an earlier one is posted are coalesced,
+     * only the latest one is posted. Other statuses are posted meanwhile.
+     */
+    @Test
+    void setStatusAsync_coalescesQueuedUpdates() throws Exception {
+        GitHubNotifier notifier = notifier(3);
+        requestArrived = new CountDownLatch(2);
+        release = new CountDownLatch(1);
+
+        CompletableFuture<Void> pending = notifier.setStatusAsync("owner", "repo", "abc123", "pending", "Build started");
+        CompletableFuture<Void> other = notifier.setStatusAsync("owner", "repo", "def456", "pending", "Build started");
+        assertTrue(requestArrived.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> compiled = notifier.setStatusAsync("owner", "repo", "abc123", "pending", "Compiled");
+        CompletableFuture<Void> passed = notifier.setStatusAsync("owner", "repo", "abc123", "success", "Build passed");
+        assertEquals(1, notifier.getQueuedCount());
+        assertFalse(pending.isDone());
+        release.countDown();
+
+        CompletableFuture.allOf(pending, compiled, other, passed).get(5, TimeUnit.SECONDS);
+        assertEquals(3, paths.size());
+        assertEquals("success", bodies.get(2).getString("state"));
+        assertEquals("/api/v3/repos/owner/repo/statuses/abc123", paths.get(2));
+    }
+
+    /**
+     * Updates that were not delivered before a restart are sent from the outbox.
+     */
+    @Test
+    void resendPending_sendsUpdatesLeftInOutbox() throws Exception {
+        Path file = tempDir.resolve("outbox.jsonl");
+        StatusOutbox previousRun = new StatusOutbox(file, 10);
+        previousRun.add("owner", "repo", "abc123", "success", "Build passed");
+        URI api = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+        StatusOutbox outbox = new StatusOutbox(file, 10);
+        GitHubNotifier notifier = new GitHubNotifier("secret", api, HttpClient.newHttpClient(), 3,
+                Duration.ofMillis(10), outbox);
+
+        assertEquals(1, notifier.resendPending());
+        notifier.setStatus("owner", "repo", "def456", "pending", "Build started");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!outbox.pending().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(outbox.pending().isEmpty());
+        assertTrue(new StatusOutbox(file, 10).pending().isEmpty());
+        assertEquals(2, paths.size());
+        assertTrue(paths.contains("/repos/owner/repo/statuses/abc123"));
+    }
+}
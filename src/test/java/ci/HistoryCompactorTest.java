@@ -0,0 +1,84 @@
+package ci;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for HistoryCompactor.
+ */
+public class HistoryCompactorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private BuildHistory history;
+    private final List<String> builds = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        history = new BuildHistory(tempDir.resolve("history"));
+        for (int i = 0; i < 4; i++) {
+            String sha = "abc000" + i + "def";
+            builds.add(history.createBuild(history.newBuildId(sha), sha, "success", "compile " + i, "test " + i,
+                    Map.of(BuildHistory.REPOSITORY, "owner/repo", BuildHistory.BRANCH, "main")));
+        }
+    }
+
+    @Test
+    void compact_deletesExpiredBuilds() throws IOException {
+        HistoryCompactor compactor = new HistoryCompactor(history,
+                new RetentionPolicy(2, Duration.ZERO, 0, false), tempDir.resolve("archive"));
+
+        assertEquals(2, compactor.compact());
+
+        assertEquals(List.of(builds.get(3), builds.get(2)), history.listBuilds());
+        assertFalse(history.hasBuild(builds.get(0)));
+        assertTrue(compactor.getBytesReclaimed() > 0);
+        assertEquals(2, compactor.getBuildsRemoved());
+        assertFalse(Files.exists(tempDir.resolve("archive")));
+        // Nothing left to do
+        assertEquals(0, compactor.compact());
+    }
+
+    @Test
+    void compact_archivesExpiredBuilds() throws IOException {
+        HistoryCompactor compactor = new HistoryCompactor(history,
+                new RetentionPolicy(3, Duration.ZERO, 0, true), tempDir.resolve("archive"));
+
+        compactor.compact();
+
+        List<Path> bundles;
+        try (var paths = Files.list(tempDir.resolve("archive"))) {
+            bundles = paths.toList();
+        }
+        assertEquals(1, bundles.size());
+        try (ZipFile zip = new ZipFile(bundles.get(0).toFile())) {
+            assertNotNull(zip.getEntry(builds.get(0) + ".log"));
+        }
+        assertEquals(1, compactor.getBuildsArchived());
+        assertFalse(history.hasBuild(builds.get(0)));
+    }
+
+    /**
+     * Removals are kept in the index, they do not come back when the server restarts.
+     */
+    @Test
+    void compact_survivesRestart() throws IOException {
+        new HistoryCompactor(history, new RetentionPolicy(1, Duration.ZERO, 0, false), tempDir.resolve("archive"))
+                .compact();
+
+        assertEquals(List.of(builds.get(3)), new BuildHistory(tempDir.resolve("history")).listBuilds());
+    }
+}
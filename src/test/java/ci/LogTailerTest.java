@@ -0,0 +1,220 @@
+package ci;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for LogTailer.
+ */
+public class LogTailerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private BuildHistory history;
+    private LogTailer tailer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        history = new BuildHistory(tempDir);
+        tailer = new LogTailer(history, 20);
+    }
+
+    private static void append(Path file, String text) throws IOException {
+        Files.writeString(file, text, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Follows a build from start to end while its logs are written, like the pipeline does.
+     */
+    @Test
+    void follow_runningBuild_streamsCompileThenTestOutput() throws Exception {
+        String id = history.newBuildId("abc1234def");
+        Path logs = history.createLogDirectory(id);
+        append(logs.resolve("compile.log"), "compiling\n");
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread viewer = new Thread(() -> {
+            try {
+                tailer.follow(id, 0, (data, length, next) -> received.write(data, 0, length));
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        viewer.start();
+
+        Thread.sleep(100);
+        append(logs.resolve("compile.log"), "compiled\n");
+        Thread.sleep(100);
+        append(logs.resolve("test.log"), "testing\npartial");
+        Thread.sleep(100);
+        append(logs.resolve("test.log"), " line\n");
+        history.createBuild(id, "abc1234def", "success", logs.resolve("compile.log"), logs.resolve("test.log"),
+                Map.of());
+        history.deleteLogDirectory(id);
+
+        viewer.join(10_000);
+        assertFalse(viewer.isAlive());
+        assertNull(error.get());
+        assertEquals("compiling\ncompiled\ntesting\npartial line\n", received.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * In build.mode=single all output goes to the test log, it is shown while the build runs.
+     */
+    @Test
+    void follow_singleModeBuild_streamsTestLogWhileRunning() throws Exception {
+        String id = history.newBuildId("abc1234def");
+        Path logs = history.createLogDirectory(id);
+        Files.writeString(logs.resolve("compile.log"), BuildPipeline.SINGLE_COMPILE_LOG);
+        append(logs.resolve("test.log"), "compiling\n");
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread viewer = new Thread(() -> {
+            try {
+                tailer.follow(id, 0, (data, length, next) -> {
+                    synchronized (received) {
+                        received.write(data, 0, length);
+                    }
+                });
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        viewer.start();
+        append(logs.resolve("test.log"), "testing\n");
+        String live = "";
+        for (int i = 0; i < 100 && !live.endsWith("testing\n"); i++) {
+            Thread.sleep(20);
+            synchronized (received) {
+                live = received.toString(StandardCharsets.UTF_8);
+            }
+        }
+        assertEquals(BuildPipeline.SINGLE_COMPILE_LOG + "compiling\ntesting\n", live, "before the build ends");
+
+        history.createBuild(id, "abc1234def", "success", logs.resolve("compile.log"), logs.resolve("test.log"),
+                Map.of());
+        history.deleteLogDirectory(id);
+        viewer.join(10_000);
+        assertFalse(viewer.isAlive());
+        assertNull(error.get());
+    }
+
+    /**
+     * A build that ends without a record, e.g. by an error, stops the viewer once its logs are deleted.
+     */
+    @Test
+    void follow_buildEndsWithoutRecord_stopsWhenLogsAreDeleted() throws Exception {
+        String id = history.newBuildId("abc1234def");
+        Path logs = history.createLogDirectory(id);
+        append(logs.resolve("compile.log"), "compiling\npartial");
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread viewer = new Thread(() -> {
+            try {
+                tailer.follow(id, 0, (data, length, next) -> received.write(data, 0, length));
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        viewer.start();
+        Thread.sleep(100);
+        history.deleteLogDirectory(id);
+
+        viewer.join(10_000);
+        assertFalse(viewer.isAlive());
+        assertNull(error.get());
+        assertEquals("compiling\npartial", received.toString(StandardCharsets.UTF_8));
+        assertFalse(history.hasBuild(id));
+    }
+
+    /**
+     * Above the limit a running build is not followed, finished builds are still served.
+     */
+    @Test
+    void follow_tooManyFollowers_refusesRunningBuild() throws Exception {
+        LogTailer limited = new LogTailer(history, 20, 1);
+        String id = history.newBuildId("abc1234def");
+        Path logs = history.createLogDirectory(id);
+        append(logs.resolve("compile.log"), "compiling\n");
+        CountDownLatch following = new CountDownLatch(1);
+        Thread viewer = new Thread(() -> {
+            try {
+                limited.follow(id, 0, (data, length, next) -> following.countDown());
+            } catch (Exception e) {
+                // Stopped by the end of the build
+            }
+        });
+        viewer.start();
+        assertTrue(following.await(10, TimeUnit.SECONDS));
+
+        List<Long> refused = new ArrayList<>();
+        assertThrows(LogTailer.TooManyFollowersException.class,
+                () -> limited.follow(id, 0, (data, length, next) -> refused.add(next)));
+        String finished = history.createBuild("abc1234def", "success", "compile ok\n", "test ok\n");
+        assertEquals("compile ok\ntest ok\n".length(), limited.follow(finished, 0, (data, length, next) -> { }));
+        assertTrue(refused.isEmpty());
+
+        history.deleteLogDirectory(id);
+        viewer.join(10_000);
+        assertFalse(viewer.isAlive());
+        String next = history.newBuildId("def1234abc");
+        append(history.createLogDirectory(next).resolve("compile.log"), "compiling\n");
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread nextViewer = new Thread(() -> {
+            try {
+                limited.follow(next, 0, (data, length, offset) -> history.deleteLogDirectory(next));
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        nextViewer.start();
+        nextViewer.join(10_000);
+        assertFalse(nextViewer.isAlive());
+        assertNull(error.get(), "the first viewer gave its place back");
+    }
+
+    @Test
+    void follow_finishedBuild_servesLogFromRecordAtOffset() throws Exception {
+        String id = history.createBuild("abc1234def", "failure", "compile ok\n", "test failed\n");
+        List<Long> offsets = new ArrayList<>();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        long end = tailer.follow(id, "compile ok\n".length(), (data, length, next) -> {
+            received.write(data, 0, length);
+            offsets.add(next);
+        });
+
+        assertEquals("test failed\n", received.toString(StandardCharsets.UTF_8));
+        assertEquals("compile ok\ntest failed\n".length(), end);
+        assertEquals(List.of(end), offsets);
+    }
+
+    @Test
+    void exists_unknownOrInvalidBuild_returnsFalse() throws IOException {
+        String id = history.createBuild("abc1234def", "success", "ok", "ok");
+
+        assertTrue(tailer.exists(id));
+        assertFalse(tailer.exists("missing.txt"));
+        assertFalse(tailer.exists("../secret"));
+    }
+}
@@ -0,0 +1,125 @@
+package ci;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for MavenRepoCache.
+ */
+public class MavenRepoCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private MavenRepoCache cache;
+    private Path workspace;
+    private final List<List<String>> commands = List.of(List.of("mvn", "test", "-q"));
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cache = new MavenRepoCache(tempDir.resolve("cache"), true);
+        workspace = Files.createDirectories(tempDir.resolve("workspace"));
+        Files.writeString(workspace.resolve("pom.xml"), "<project>a</project>");
+    }
+
+    @Test
+    void apply_addsRepositoriesToMavenCommandsOnly() throws IOException {
+        MavenRepoCache.Overlay overlay = cache.open("build-1", workspace, commands);
+
+        List<String> command = cache.apply(List.of("mvn", "test", "-q"), overlay);
+
+        assertEquals(List.of("mvn", "-Dmaven.repo.local=" + overlay.getDirectory(),
+                "-Dmaven.repo.local.tail=" + cache.getRepository(), "test", "-q"), command);
+        assertEquals(List.of("make", "test"), cache.apply(List.of("make", "test"), overlay));
+    }
+
+    /**
+     * Test shards download into overlays of their own, merged with the overlay of the build.
+     */
+    @Test
+    void shard_ownOverlayMergedOnClose() throws IOException {
+        MavenRepoCache.Overlay overlay = cache.open("build-1", workspace, commands);
+        MavenRepoCache.Overlay shard = overlay.shard(1);
+
+        assertEquals(List.of("mvn", "-Dmaven.repo.local=" + tempDir.resolve("cache/overlays/build-1.shard-1"),
+                "-Dmaven.repo.local.tail=" + overlay.getDirectory() + "," + cache.getRepository(), "test"),
+                cache.apply(List.of("mvn", "test"), shard));
+
+        Path downloaded = Files.createDirectories(shard.getDirectory().resolve("org/surefire/3.0"));
+        Files.writeString(downloaded.resolve("surefire-junit-platform-3.0.jar"), "provider");
+        cache.close(overlay, true);
+
+        assertEquals("provider", Files.readString(
+                cache.getRepository().resolve("org/surefire/3.0/surefire-junit-platform-3.0.jar")));
+        assertFalse(Files.exists(shard.getDirectory()));
+    }
+
+    /**
+     * New artifacts are moved into the shared repository, existing ones and failed download markers are not.
+     */
+    @Test
+    void close_mergesNewArtifactsAndDeletesOverlay() throws IOException {
+        Path shared = Files.createDirectories(cache.getRepository().resolve("org/x/1.0"));
+        Files.writeString(shared.resolve("x-1.0.jar"), "shared");
+        MavenRepoCache.Overlay overlay = cache.open("build-1", workspace, commands);
+        Path downloaded = Files.createDirectories(overlay.getDirectory().resolve("org/x/1.0"));
+        Files.writeString(downloaded.resolve("x-1.0.jar"), "overlay");
+        Files.writeString(downloaded.resolve("x-1.0.pom"), "pom");
+        Files.writeString(downloaded.resolve("x-1.0.jar.lastUpdated"), "failed");
+
+        cache.close(overlay, false);
+
+        assertEquals("shared", Files.readString(shared.resolve("x-1.0.jar")));
+        assertEquals("pom", Files.readString(shared.resolve("x-1.0.pom")));
+        assertFalse(Files.exists(shared.resolve("x-1.0.jar.lastUpdated")));
+        assertFalse(Files.exists(overlay.getDirectory()));
+    }
+
+    /**
+     * Snapshots change, a newer download replaces the one in the shared repository.
+     */
+    @Test
+    void close_updatedSnapshot_replacesSharedOne() throws IOException {
+        Path shared = Files.createDirectories(cache.getRepository().resolve("org/x/1.1-SNAPSHOT"));
+        Files.writeString(shared.resolve("x-1.1-SNAPSHOT.jar"), "old");
+        Files.writeString(shared.resolve("_remote.repositories"), "old");
+        MavenRepoCache.Overlay overlay = cache.open("build-1", workspace, commands);
+        Path downloaded = Files.createDirectories(overlay.getDirectory().resolve("org/x/1.1-SNAPSHOT"));
+        Files.writeString(downloaded.resolve("x-1.1-SNAPSHOT.jar"), "new");
+        Files.writeString(downloaded.resolve("_remote.repositories"), "new");
+
+        cache.close(overlay, true);
+
+        assertEquals("new", Files.readString(shared.resolve("x-1.1-SNAPSHOT.jar")));
+        assertEquals("new", Files.readString(shared.resolve("_remote.repositories")));
+    }
+
+    /**
+     * After a successful build the same poms run offline, until an offline build fails or a pom changes.
+     */
+    @Test
+    void open_resolvedBefore_runsOffline() throws IOException {
+        MavenRepoCache.Overlay first = cache.open("build-1", workspace, commands);
+        assertFalse(first.isOffline());
+        cache.close(first, true);
+
+        MavenRepoCache.Overlay second = cache.open("build-2", workspace, commands);
+        assertTrue(second.isOffline());
+        assertTrue(cache.apply(commands.get(0), second).contains("--offline"));
+        cache.close(second, false);
+
+        assertFalse(cache.open("build-3", workspace, commands).isOffline());
+
+        cache.close(cache.open("build-4", workspace, commands), true);
+        Files.writeString(workspace.resolve("pom.xml"), "<project>b</project>");
+        assertFalse(cache.open("build-5", workspace, commands).isOffline());
+    }
+}
@@ -0,0 +1,184 @@
+package ci;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for MirrorCache against a local repository (file:// clone URL).
+ */
+public class MirrorCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path origin;
+    private String url;
+    private final CommandExecutor git = new ProcessCommandExecutor();
+
+    @BeforeEach
+    void setUp() throws IOException, InterruptedException {
+        Assumptions.assumeTrue(git.execute(List.of("git", "--version"), tempDir).getExitCode() == 0,
+                "git not available on PATH");
+        origin = tempDir.resolve("origin");
+        Files.createDirectories(origin);
+        run(origin, "git", "init", "-q", "-b", "main");
+        url = origin.toUri().toString();
+    }
+
+    private String run(Path dir, String... command) throws IOException, InterruptedException {
+        ExecResult result = git.execute(List.of(command), dir);
+        assertEquals(0, result.getExitCode(), result.getOutput());
+        return result.getOutput().trim();
+    }
+
+    private String commit(String file, String content) throws IOException, InterruptedException {
+        Files.writeString(origin.resolve(file), content);
+        run(origin, "git", "add", file);
+        run(origin, "git", "-c", "user.name=ci", "-c", "user.email=ci@example.com", "commit", "-q", "-m", file);
+        return run(origin, "git", "rev-parse", "HEAD");
+    }
+
+    @Test
+    void checkout_createsWorkspaceAtCommit() throws IOException, InterruptedException {
+        String first = commit("a.txt", "one");
+        MirrorCache cache = new MirrorCache(new DefaultCommandExecutorFactory(), tempDir.resolve("mirrors"), Long.MAX_VALUE);
+
+        Path workspace = tempDir.resolve("ws1");
+        ExecResult result = cache.checkout(url, first, workspace);
+
+        assertEquals(0, result.getExitCode(), result.getOutput());
+        assertEquals("one", Files.readString(workspace.resolve("a.txt")));
+        assertTrue(Files.isDirectory(cache.mirrorDirectory(url)));
+    }
+
+    /**
+     * The second checkout fetches the new commit into the existing mirror.
+     */
+    @Test
+    void checkout_fetchesNewCommitsIntoExistingMirror() throws IOException, InterruptedException {
+        String first = commit("a.txt", "one");
+        MirrorCache cache = new MirrorCache(new DefaultCommandExecutorFactory(), tempDir.resolve("mirrors"), Long.MAX_VALUE);
+        Path ws1 = tempDir.resolve("ws1");
+        assertEquals(0, cache.checkout(url, first, ws1).getExitCode());
+        new CiClone(new DefaultCommandExecutorFactory(), tempDir, cache).cleanup(ws1);
+
+        String second = commit("a.txt", "two");
+        Path ws2 = tempDir.resolve("ws2");
+        ExecResult result = cache.checkout(url, second, ws2);
+
+        assertEquals(0, result.getExitCode(), result.getOutput());
+        assertEquals("two", Files.readString(ws2.resolve("a.txt")));
+    }
+
+    /**
+     * A new mirror fetches all of its objects, the next checkout only the new ones; released workspaces are
+     * forgotten.
+     */
+    @Test
+    void getFetch_measuresObjectsFetchedIntoMirror() throws IOException, InterruptedException {
+        String first = commit("a.txt", "one");
+        MirrorCache cache = new MirrorCache(new DefaultCommandExecutorFactory(), tempDir.resolve("mirrors"), Long.MAX_VALUE);
+        Path ws1 = tempDir.resolve("ws1");
+        assertEquals(0, cache.checkout(url, first, ws1).getExitCode());
+        MirrorCache.Fetch created = cache.getFetch(ws1);
+        assertNotNull(created);
+        assertEquals(created.mirrorBytes(), created.bytes());
+
+        Path ws2 = tempDir.resolve("ws2");
+        assertEquals(0, cache.checkout(url, first, ws2).getExitCode());
+        MirrorCache.Fetch unchanged = cache.getFetch(ws2);
+        new CiClone(new DefaultCommandExecutorFactory(), tempDir, cache).cleanup(ws1);
+
+        assertEquals(0, unchanged.bytes());
+        assertEquals(created.mirrorBytes(), unchanged.mirrorBytes());
+        assertNull(cache.getFetch(ws1));
+    }
+
+    @Test
+    void release_overBudget_evictsUnusedMirror() throws IOException, InterruptedException {
+        String first = commit("a.txt", "one");
+        MirrorCache cache = new MirrorCache(new DefaultCommandExecutorFactory(), tempDir.resolve("mirrors"), 0);
+        CiClone ciClone = new CiClone(new DefaultCommandExecutorFactory(), tempDir.resolve("builds"), cache);
+
+        CiClone.CloneResult clone = ciClone.gitCloneAndCheckout(url, "main", first, "build-1");
+        assertTrue(clone.isSuccess(), clone.getOutput());
+        // In use, must not be evicted; sized by git after the checkout
+        assertTrue(Files.isDirectory(cache.mirrorDirectory(url)));
+        assertTrue(cache.getSizeBytes() > 0);
+
+        ciClone.cleanup(clone.getClonedDirectory());
+
+        assertFalse(Files.exists(cache.mirrorDirectory(url)));
+        assertEquals(0, cache.getSizeBytes());
+        try (var left = Files.list(tempDir.resolve("mirrors"))) {
+            assertTrue(left.findAny().isEmpty(), "evicted mirrors are deleted");
+        }
+    }
+
+    /**
+     * A checkout that is interrupted, e.g. of a superseded build, does not keep the mirror from being evicted.
+     */
+    @Test
+    void checkout_interrupted_releasesMirror() throws IOException {
+        Path mirrors = tempDir.resolve("mirrors");
+        String remote = "https://github.com/owner/repo.git";
+        Path mirror = mirrors.resolve(MirrorCache.directoryName(remote));
+        Files.createDirectories(mirror);
+        Files.writeString(mirror.resolve("packed-refs"), "refs");
+        MirrorCache cache = new MirrorCache(() -> (command, workDir) -> {
+            throw new InterruptedException("superseded");
+        }, mirrors, 0);
+
+        assertThrows(InterruptedException.class, () -> cache.checkout(remote, "abc123", tempDir.resolve("ws1")));
+
+        assertFalse(Files.exists(mirror));
+    }
+
+    /**
+     * A relative mirror directory is not resolved against the directory git runs in.
+     */
+    @Test
+    void checkout_relativeMirrorDirectory_clonesIntoIt() throws IOException, InterruptedException {
+        String first = commit("a.txt", "one");
+        Path relative = Path.of("").toAbsolutePath().relativize(tempDir.resolve("mirrors"));
+        MirrorCache cache = new MirrorCache(new DefaultCommandExecutorFactory(), relative, Long.MAX_VALUE);
+
+        ExecResult result = cache.checkout(url, first, tempDir.resolve("ws1"));
+
+        assertEquals(0, result.getExitCode(), result.getOutput());
+        assertTrue(Files.isDirectory(tempDir.resolve("mirrors").resolve(MirrorCache.directoryName(url))));
+    }
+
+    @Test
+    void constructor_reusesMirrorsFromPreviousRun() throws IOException, InterruptedException {
+        String first = commit("a.txt", "one");
+        Path mirrors = tempDir.resolve("mirrors");
+        MirrorCache cache = new MirrorCache(new DefaultCommandExecutorFactory(), mirrors, Long.MAX_VALUE);
+        Path ws1 = tempDir.resolve("ws1");
+        assertEquals(0, cache.checkout(url, first, ws1).getExitCode());
+        cache.release(ws1);
+        Files.createDirectories(mirrors.resolve(".evicted-old.git-1/objects"));
+
+        MirrorCache restarted = new MirrorCache(new DefaultCommandExecutorFactory(), mirrors, Long.MAX_VALUE);
+
+        assertTrue(restarted.getSizeBytes() > 0);
+        assertFalse(Files.exists(mirrors.resolve(".evicted-old.git-1")), "evicted before the restart");
+    }
+
+    @Test
+    void directoryName_isStablePerUrl() {
+        String name = MirrorCache.directoryName("https://github.com/owner/repo.git");
+        assertEquals(name, MirrorCache.directoryName("https://github.com/owner/repo.git"));
+        assertTrue(name.startsWith("owner-repo-"));
+        assertNotEquals(name, MirrorCache.directoryName("https://github.com/other/repo.git"));
+    }
+}
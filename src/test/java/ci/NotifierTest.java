@@ -1,6 +1,12 @@
 package ci;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -52,6 +58,25 @@ public class NotifierTest {
         assertInstanceOf(MockNotifier.class, notifier2);
     }
 
+    /**
+     * Every server gets a notifier of its own, with its outbox in the history directory unless configured.
+     */
+    @Test
+    void notifierFactory_givenConfig_createsNotifierPerServer(@TempDir Path tempDir) throws IOException {
+        Properties settings = new Properties();
+        settings.setProperty("github.outbox.file", tempDir.resolve("outbox.jsonl").toString());
+
+        Notifier first = NotifierFactory.create("valid-token", new CiConfig(new Properties()), tempDir.resolve("a"));
+        Notifier second = NotifierFactory.create("valid-token", new CiConfig(settings), tempDir.resolve("b"));
+
+        assertInstanceOf(GitHubNotifier.class, first);
+        assertNotSame(first, second);
+        assertTrue(Files.exists(tempDir.resolve("a").resolve(NotifierFactory.OUTBOX_FILE)));
+        assertTrue(Files.exists(tempDir.resolve("outbox.jsonl")));
+        assertFalse(Files.exists(tempDir.resolve("b").resolve(NotifierFactory.OUTBOX_FILE)));
+        assertInstanceOf(MockNotifier.class, NotifierFactory.create(null, new CiConfig(settings), tempDir));
+    }
+
     @Test
     void gitHubNotifier_nullToken_throwsException() {
         assertThrows(IllegalArgumentException.class, () -> new GitHubNotifier(null));
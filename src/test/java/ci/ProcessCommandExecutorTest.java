@@ -0,0 +1,133 @@
+package ci;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the timeouts and process tree handling of the executors (ProcessRunner).
+ */
+public class ProcessCommandExecutorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private boolean isShAvailable() {
+        try {
+            return new ProcessCommandExecutor().execute(List.of("sh", "-c", "true"), tempDir).getExitCode() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    @Test
+    void execute_capturesOutputExitCodeAndTimes() throws IOException, InterruptedException {
+        Assumptions.assumeTrue(isShAvailable(), "sh not available");
+
+        ExecResult result = new ProcessCommandExecutor().execute(List.of("sh", "-c", "echo out; echo err >&2; exit 2"),
+                tempDir);
+
+        assertEquals(2, result.getExitCode());
+        assertEquals("out\nerr\n", result.getOutput());
+        assertFalse(result.isTimedOut());
+        assertTrue(result.getWallTimeMillis() >= 0);
+        assertTrue(result.getCpuTimeMillis() >= 0);
+    }
+
+    /**
+     * Many short busy children, each ending between two samples, must still be counted.
+     */
+    @Test
+    void execute_shortLivedChildren_countsTheirCpuTime() throws IOException, InterruptedException {
+        Assumptions.assumeTrue(isShAvailable(), "sh not available");
+        Assumptions.assumeTrue(Files.exists(Path.of("/proc/self/stat")), "no /proc");
+        String child = "i=0; while [ $i -lt 3000 ]; do i=$((i+1)); done";
+
+        ExecResult result = new ProcessCommandExecutor(Duration.ofMinutes(1)).execute(List.of("sh", "-c",
+                "n=0; while [ $n -lt 100 ]; do sh -c '" + child + "'; n=$((n+1)); done"), tempDir);
+
+        assertEquals(0, result.getExitCode());
+        assertTrue(result.getWallTimeMillis() >= 200, "took " + result.getWallTimeMillis() + " ms");
+        assertTrue(result.getCpuTimeMillis() >= result.getWallTimeMillis() / 4,
+                "cpu " + result.getCpuTimeMillis() + " ms of " + result.getWallTimeMillis() + " ms");
+    }
+
+    /**
+     * A hung command must be killed when the timeout expires, not when it ends on its own.
+     */
+    @Test
+    void execute_hungProcess_isKilledAtTimeout() throws IOException, InterruptedException {
+        Assumptions.assumeTrue(isShAvailable(), "sh not available");
+        long start = System.nanoTime();
+
+        ExecResult result = new ProcessCommandExecutor(Duration.ofSeconds(1))
+                .execute(List.of("sh", "-c", "echo started; sleep 60"), tempDir);
+
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis < 20_000, "took " + elapsedMillis + " ms");
+        assertEquals(-1, result.getExitCode());
+        assertTrue(result.isTimedOut());
+        assertTrue(result.getOutput().contains("timed out"));
+        assertTrue(result.getOutput().contains("started"));
+    }
+
+    /**
+     * A background grandchild keeps the output pipe open after the command exits.
+     * The executor must not wait for it.
+     */
+    @Test
+    void execute_grandchildHoldingPipe_doesNotBlock() throws IOException, InterruptedException {
+        Assumptions.assumeTrue(isShAvailable(), "sh not available");
+        long start = System.nanoTime();
+
+        ExecResult result = new ProcessCommandExecutor(Duration.ofMinutes(1))
+                .execute(List.of("sh", "-c", "sleep 60 & echo done"), tempDir);
+
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis < 20_000, "took " + elapsedMillis + " ms");
+        assertEquals(0, result.getExitCode());
+        assertTrue(result.getOutput().contains("done"));
+    }
+
+    @Test
+    void streamingExecute_hungProcess_isKilledAndLogKept() throws IOException, InterruptedException {
+        Assumptions.assumeTrue(isShAvailable(), "sh not available");
+        Path log = tempDir.resolve("test.log");
+
+        ExecResult result = new StreamingCommandExecutor(log, 1024, Duration.ofSeconds(1))
+                .execute(List.of("sh", "-c", "echo started; sleep 60"), tempDir);
+
+        assertTrue(result.isTimedOut());
+        assertEquals("started\n", Files.readString(log));
+    }
+
+    @Test
+    void execute_interrupted_killsProcess() throws InterruptedException {
+        Assumptions.assumeTrue(isShAvailable(), "sh not available");
+        Thread caller = Thread.currentThread();
+        Thread interrupter = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                return;
+            }
+            caller.interrupt();
+        });
+        interrupter.start();
+        long start = System.nanoTime();
+
+        assertThrows(InterruptedException.class, () -> new ProcessCommandExecutor(Duration.ofMinutes(1))
+                .execute(List.of("sh", "-c", "sleep 60"), tempDir));
+
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 20_000);
+        interrupter.join();
+    }
+}
@@ -0,0 +1,69 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for RetentionPolicy.
+ */
+public class RetentionPolicyTest {
+
+    private static BuildIndex.Entry build(String id, String branch, long finishedAt) {
+        return new BuildIndex.Entry(id, "abc1234def", "owner/repo", branch, "success", -1, finishedAt,
+                0, 0, 0, 0);
+    }
+
+    private static final List<BuildIndex.Entry> BUILDS = List.of(
+            build("a1", "main", 1_000),
+            build("b1", "dev", 2_000),
+            build("a2", "main", 3_000),
+            build("a3", "main", 4_000),
+            build("b2", "dev", 5_000));
+
+    @Test
+    void keepPerBranch_removesOlderBuildsOfEachBranch() {
+        RetentionPolicy policy = new RetentionPolicy(1, Duration.ZERO, 0, false);
+
+        assertEquals(List.of("a1", "b1", "a2"), policy.selectExpired(BUILDS, 10_000, b -> 100));
+    }
+
+    @Test
+    void maxAge_removesOldBuilds() {
+        RetentionPolicy policy = new RetentionPolicy(0, Duration.ofSeconds(7), 0, false);
+
+        assertEquals(List.of("a1", "b1"), policy.selectExpired(BUILDS, 10_000, b -> 100));
+    }
+
+    @Test
+    void maxTotalBytes_removesOldestUntilUnderLimit() {
+        RetentionPolicy policy = new RetentionPolicy(0, Duration.ZERO, 250, false);
+
+        assertEquals(List.of("a1", "b1", "a2"), policy.selectExpired(BUILDS, 10_000, b -> 100));
+    }
+
+    /**
+     * Builds already removed by another limit do not count against the size limit.
+     */
+    @Test
+    void limitsCombine() {
+        RetentionPolicy policy = new RetentionPolicy(2, Duration.ZERO, 150, false);
+
+        assertEquals(List.of("a1", "b1", "a2", "a3"), policy.selectExpired(BUILDS, 10_000, b -> 100));
+    }
+
+    @Test
+    void fromConfig_disabledByDefault() {
+        assertFalse(RetentionPolicy.fromConfig(new CiConfig(new Properties())).isEnabled());
+        Properties properties = new Properties();
+        properties.setProperty("retention.max.total.mb", "2");
+        RetentionPolicy policy = RetentionPolicy.fromConfig(new CiConfig(properties));
+        assertTrue(policy.isEnabled());
+        assertEquals(2 * 1024 * 1024, policy.maxTotalBytes());
+        assertTrue(policy.selectExpired(BUILDS, 10_000, b -> 100).isEmpty());
+    }
+}
@@ -0,0 +1,70 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for StatusOutbox.
+ */
+public class StatusOutboxTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static List<String> states(StatusOutbox outbox) {
+        return outbox.pending().stream().map(StatusOutbox.Status::state).toList();
+    }
+
+    @Test
+    void pendingUpdates_surviveRestart() throws IOException {
+        Path file = tempDir.resolve("outbox.jsonl");
+        StatusOutbox outbox = new StatusOutbox(file, 10);
+        StatusOutbox.Status pending = outbox.add("owner", "repo", "abc123", "pending", "Build started");
+        outbox.add("owner", "repo", "abc123", "success", "Build \"passed\"\n");
+        outbox.remove(pending.id());
+
+        StatusOutbox reopened = new StatusOutbox(file, 10);
+
+        assertEquals(List.of("success"), states(reopened));
+        assertEquals("Build \"passed\"\n", reopened.pending().get(0).description());
+        // Ids are not reused
+        assertTrue(reopened.add("owner", "repo", "def456", "pending", "x").id() > reopened.pending().get(0).id());
+    }
+
+    @Test
+    void add_dropsOldestWhenFull() throws IOException {
+        Path file = tempDir.resolve("outbox.jsonl");
+        StatusOutbox outbox = new StatusOutbox(file, 2);
+        outbox.add("owner", "repo", "a", "pending", "1");
+        outbox.add("owner", "repo", "b", "pending", "2");
+        outbox.add("owner", "repo", "c", "success", "3");
+
+        assertEquals(List.of("b", "c"), outbox.pending().stream().map(StatusOutbox.Status::sha).toList());
+        assertEquals(List.of("b", "c"),
+                new StatusOutbox(file, 2).pending().stream().map(StatusOutbox.Status::sha).toList());
+    }
+
+    /**
+     * A journal line cut short by a crash is skipped, the rest of the outbox is kept.
+     */
+    @Test
+    void open_skipsDamagedLine() throws IOException {
+        Path file = tempDir.resolve("outbox.jsonl");
+        new StatusOutbox(file, 10).add("owner", "repo", "abc123", "failure", "Tests failed");
+        Files.writeString(file, "{\"op\":\"add\",\"id\":", StandardOpenOption.APPEND);
+
+        StatusOutbox reopened = new StatusOutbox(file, 10);
+
+        assertEquals(List.of("failure"), states(reopened));
+        // Rewritten without the damaged line
+        assertEquals(1, Files.readAllLines(file).size());
+    }
+}
@@ -0,0 +1,96 @@
+package ci;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for StreamingCommandExecutor and its OutputTail ring buffer.
+ */
+public class StreamingCommandExecutorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private boolean isShAvailable() {
+        try {
+            return new ProcessCommandExecutor().execute(List.of("sh", "-c", "true"), tempDir).getExitCode() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A command printing 1 MB must end up completely in the log file, while only the tail is kept in memory.
+     */
+    @Test
+    void execute_largeOutput_streamsToLogAndKeepsTail() throws IOException, InterruptedException {
+        Assumptions.assumeTrue(isShAvailable(), "sh not available");
+        Path log = tempDir.resolve("test.log");
+        StreamingCommandExecutor executor = new StreamingCommandExecutor(log, 1024, Duration.ofMinutes(1));
+
+        ExecResult result = executor.execute(
+                List.of("sh", "-c", "i=0; while [ $i -lt 20000 ]; do echo \"line $i padded to fifty bytes.............\"; i=$((i+1)); done"),
+                tempDir);
+
+        assertEquals(0, result.getExitCode());
+        assertEquals(log, result.getLogFile());
+        assertEquals(Files.size(log), result.getOutputBytes());
+        assertTrue(Files.size(log) > 900_000);
+        assertTrue(result.getOutput().length() < 1024 + 200);
+        assertTrue(result.getOutput().contains("output truncated"));
+        assertTrue(result.getOutput().contains("line 19999 padded"));
+    }
+
+    @Test
+    void execute_smallOutput_returnsAllOfIt() throws IOException, InterruptedException {
+        Assumptions.assumeTrue(isShAvailable(), "sh not available");
+        Path log = tempDir.resolve("compile.log");
+
+        ExecResult result = new StreamingCommandExecutor(log, 1024, Duration.ofMinutes(1))
+                .execute(List.of("sh", "-c", "echo hello; exit 3"), tempDir);
+
+        assertEquals(3, result.getExitCode());
+        assertEquals("hello\n", result.getOutput());
+        assertEquals("hello\n", Files.readString(log));
+    }
+
+    @Test
+    void outputTail_keepsLastBytes() {
+        OutputTail tail = new OutputTail(5);
+        byte[] bytes = "abcdefgh".getBytes(StandardCharsets.UTF_8);
+
+        tail.write(bytes, 0, 3);
+        assertEquals("abc", tail.toString());
+        assertFalse(tail.isTruncated());
+
+        tail.write(bytes, 3, 5);
+        assertEquals("defgh", tail.toString());
+        assertTrue(tail.isTruncated());
+        assertEquals(8, tail.getWritten());
+
+        tail.write("0123456789".getBytes(StandardCharsets.UTF_8), 0, 10);
+        assertEquals("56789", tail.toString());
+        assertEquals(18, tail.getWritten());
+    }
+
+    @Test
+    void outputTail_dropsCutMultibyteCharacter() {
+        OutputTail tail = new OutputTail(4);
+        byte[] bytes = "x\u00e9123".getBytes(StandardCharsets.UTF_8);
+
+        // The accented character is two bytes, the ring keeps only its second byte
+        tail.write(bytes, 0, bytes.length);
+
+        assertEquals("123", tail.toString());
+    }
+}
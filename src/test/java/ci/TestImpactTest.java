@@ -0,0 +1,95 @@
+package ci;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for TestImpact.
+ */
+public class TestImpactTest {
+
+    @TempDir
+    Path tempDir;
+
+    private void write(String path, String content) throws IOException {
+        Path file = tempDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        write("core/src/main/java/a/Parser.java", "package a; public class Parser { }");
+        write("core/src/main/java/a/Lexer.java", "package a; public class Lexer { }");
+        write("app/src/main/java/b/App.java", "package b; import a.Parser; class App { Parser p; }");
+        write("core/src/test/java/a/ParserTest.java", "package a; class ParserTest { Parser p; }");
+        write("core/src/test/java/a/LexerTest.java", "package a; class LexerTest { Lexer l; Fixtures f; }");
+        write("core/src/test/java/a/Fixtures.java", "package a; class Fixtures { }");
+        write("app/src/test/java/b/AppTest.java", "package b; class AppTest { App app; }");
+    }
+
+    /**
+     * A changed class selects the tests using it, also through other classes and modules.
+     */
+    @Test
+    void select_changedClass_selectsDependentTests() throws IOException {
+        TestImpact.Selection selection = TestImpact.select(tempDir, List.of("core/src/main/java/a/Parser.java"));
+
+        assertFalse(selection.full());
+        assertEquals(List.of("a.ParserTest", "b.AppTest"), selection.testClasses());
+        assertEquals("2 affected test classes (1 changed files)", selection.describe());
+    }
+
+    /**
+     * A changed test helper selects the tests using it, but is no test itself.
+     */
+    @Test
+    void select_changedTestHelper_selectsTestsUsingIt() throws IOException {
+        TestImpact.Selection selection = TestImpact.select(tempDir, List.of("core/src/test/java/a/Fixtures.java"));
+
+        assertEquals(List.of("a.LexerTest"), selection.testClasses());
+    }
+
+    /**
+     * Changes whose effect cannot be traced run all tests.
+     */
+    @Test
+    void select_untraceableChange_selectsAll() throws IOException {
+        TestImpact.Selection pom = TestImpact.select(tempDir, List.of("core/src/main/java/a/Lexer.java", "pom.xml"));
+        TestImpact.Selection deleted = TestImpact.select(tempDir, List.of("core/src/main/java/a/Gone.java"));
+
+        assertTrue(pom.full());
+        assertEquals("all tests (changed pom.xml)", pom.describe());
+        assertTrue(deleted.full());
+    }
+
+    @Test
+    void typeName_onlyForSourcesUnderSourceRoots() {
+        assertEquals("a.b.C", TestImpact.typeName("m/src/main/java/a/b/C.java"));
+        assertEquals("C", TestImpact.typeName("src/test/java/C.java"));
+        assertNull(TestImpact.typeName("msrc/main/java/C.java"));
+        assertNull(TestImpact.typeName("src/main/resources/C.java"));
+        assertNull(TestImpact.typeName("src/main/java/a/C.kt"));
+    }
+
+    /**
+     * The changed files are listed by git, null if the commits cannot be compared.
+     */
+    @Test
+    void changedFiles_listsDiffOrNullOnFailure() throws IOException, InterruptedException {
+        CommandExecutor git = (command, workDir) -> command.contains("missing")
+                ? new ExecResult(128, "fatal: bad object missing")
+                : new ExecResult(0, "pom.xml\nsrc/main/java/a/A.java\n");
+
+        assertEquals(List.of("pom.xml", "src/main/java/a/A.java"), TestImpact.changedFiles(git, tempDir, "base", "head"));
+        assertNull(TestImpact.changedFiles(git, tempDir, "missing", "head"));
+    }
+}
@@ -0,0 +1,99 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for TestReport.
+ */
+public class TestReportTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path write(String path, String content) throws IOException {
+        Path file = tempDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        return file;
+    }
+
+    /**
+     * Every test case gets its outcome from its child elements, a rerun that passed makes it flaky.
+     */
+    @Test
+    void parseReports_readsOutcomeAndDurationOfEachTest() throws IOException {
+        write("target/surefire-reports/TEST-p.ATest.xml", """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <testsuite name="p.ATest" time="1.5" tests="5">
+                  <properties><property name="java.version" value="17"/></properties>
+                  <testcase name="passes" classname="p.ATest" time="0.25"/>
+                  <testcase name="fails" classname="p.ATest" time="1,000.5">
+                    <failure message="expected">stack</failure>
+                    <rerunFailure message="expected">stack</rerunFailure>
+                    <system-out>output</system-out>
+                  </testcase>
+                  <testcase name="breaks" classname="p.ATest" time="0.1"><error type="NPE"/></testcase>
+                  <testcase name="ignored" classname="p.ATest" time="0"><skipped/></testcase>
+                  <testcase name="wobbles" classname="p.ATest" time="0.3"><flakyFailure/></testcase>
+                </testsuite>
+                """);
+        write("core/target/surefire-reports/TEST-q.BTest.xml",
+                "<testsuite name=\"q.BTest\"><testcase name=\"[1] a\"/></testsuite>");
+
+        List<TestReport.TestCase> cases = TestReport.parseReports(tempDir, 0);
+
+        assertEquals(List.of(
+                new TestReport.TestCase("q.BTest", "[1] a", TestReport.Outcome.PASSED, 0),
+                new TestReport.TestCase("p.ATest", "passes", TestReport.Outcome.PASSED, 250),
+                new TestReport.TestCase("p.ATest", "fails", TestReport.Outcome.FAILED, 1000500),
+                new TestReport.TestCase("p.ATest", "breaks", TestReport.Outcome.ERROR, 100),
+                new TestReport.TestCase("p.ATest", "ignored", TestReport.Outcome.SKIPPED, 0),
+                new TestReport.TestCase("p.ATest", "wobbles", TestReport.Outcome.FLAKY, 300)), cases);
+        assertEquals("2 passed, 1 failed, 1 errors, 1 skipped, 1 flaky", TestReport.summary(cases));
+    }
+
+    /**
+     * Reports of earlier runs are left out, a damaged report gives the tests before the damage.
+     */
+    @Test
+    void parseReports_skipsOldReportsAndKeepsTestsOfDamagedOnes() throws IOException {
+        Path old = write("target/surefire-reports/TEST-p.OldTest.xml",
+                "<testsuite><testcase name=\"old\" classname=\"p.OldTest\"/></testsuite>");
+        Files.setLastModifiedTime(old, FileTime.fromMillis(1000));
+        write("target/surefire-reports/TEST-p.CutTest.xml",
+                "<testsuite><testcase name=\"first\" classname=\"p.CutTest\"/><testcase name=\"sec");
+
+        List<TestReport.TestCase> cases = TestReport.parseReports(tempDir, 2000);
+
+        assertEquals(List.of(new TestReport.TestCase("p.CutTest", "first", TestReport.Outcome.PASSED, 0)), cases);
+    }
+
+    /**
+     * The stored form reads back the same tests, tabs and line breaks in names become spaces.
+     */
+    @Test
+    void writeAndRead_roundTrip() throws IOException {
+        List<TestReport.TestCase> cases = List.of(
+                new TestReport.TestCase("p.ATest", "passes", TestReport.Outcome.PASSED, 12),
+                new TestReport.TestCase("p.ATest", "[1]\ta\nb", TestReport.Outcome.FLAKY, 3));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        TestReport.write(cases, out);
+        byte[] damaged = (out + "p.ATest\tbroken\tX\t1\n").getBytes();
+
+        assertEquals(List.of(cases.get(0),
+                new TestReport.TestCase("p.ATest", "[1] a b", TestReport.Outcome.FLAKY, 3)),
+                TestReport.read(new ByteArrayInputStream(damaged)));
+    }
+}
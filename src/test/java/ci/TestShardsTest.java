@@ -0,0 +1,73 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for TestShards.
+ */
+public class TestShardsTest {
+
+    @TempDir
+    Path tempDir;
+
+    private void write(String path, String content) throws IOException {
+        Path file = tempDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    /**
+     * Test classes are found by Surefire's default names in every module, build output is skipped.
+     */
+    @Test
+    void discover_findsDefaultTestClassesOfAllModules() throws IOException {
+        write("src/test/java/a/FooTest.java", "");
+        write("src/test/java/a/Helper.java", "");
+        write("src/main/java/a/MainTest.java", "");
+        write("core/src/test/java/b/TestBar.java", "");
+        write("core/src/test/java/b/BazTests.java", "");
+        write("core/target/src/test/java/c/CopiedTest.java", "");
+
+        assertEquals(List.of("a.FooTest", "b.BazTests", "b.TestBar"), TestShards.discover(tempDir));
+    }
+
+    /**
+     * The longest classes are spread first, unknown classes count as the median known duration.
+     */
+    @Test
+    void balance_spreadsLongestClassesFirst() {
+        Map<String, Long> durations = Map.of("A", 9000L, "B", 5000L, "C", 4000L, "D", 1000L);
+
+        List<List<String>> shards = TestShards.balance(List.of("A", "B", "C", "D", "E"), durations, 2);
+
+        assertEquals(List.of(List.of("A", "C"), List.of("B", "E", "D")), shards);
+        assertEquals(1, TestShards.balance(List.of("A"), durations, 4).size());
+    }
+
+    /**
+     * Durations are read from the root element of each report, broken and older reports are skipped.
+     */
+    @Test
+    void readDurations_readsTimeOfEachReport() throws IOException {
+        write("old/target/surefire-reports/TEST-c.OldTest.xml", "<testsuite name=\"c.OldTest\" time=\"3\"/>");
+        Files.setLastModifiedTime(tempDir.resolve("old/target/surefire-reports/TEST-c.OldTest.xml"),
+                FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        write("target/surefire-reports/TEST-a.FooTest.xml",
+                "<?xml version=\"1.0\"?><testsuite name=\"a.FooTest\" time=\"1.5\" tests=\"2\"><testcase/></testsuite>");
+        write("core/target/surefire-reports/TEST-b.BarTest.xml", "<testsuite name=\"b.BarTest\" time=\"1,200.25\"/>");
+        write("core/target/surefire-reports/TEST-b.Broken.xml", "<testsuite name=");
+        write("core/target/surefire-reports/b.BarTest.txt", "Tests run: 1");
+
+        assertEquals(Map.of("a.FooTest", 1500L, "b.BarTest", 1_200_250L), TestShards.readDurations(tempDir, System.currentTimeMillis() - 30_000));
+    }
+}
@@ -0,0 +1,56 @@
+package ci;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for TestTrends.
+ */
+public class TestTrendsTest {
+
+    private static TestReport.TestCase test(String name, TestReport.Outcome outcome, long millis) {
+        return new TestReport.TestCase("p.ATest", name, outcome, millis);
+    }
+
+    /**
+     * Tests are ranked by median duration; a test is flaky if it passed on a rerun or both passed
+     * and failed on one commit, failing on different commits is not flaky.
+     */
+    @Test
+    void compute_ranksSlowestAndFindsFlakyTests() {
+        List<TestTrends.Run> runs = List.of(
+                new TestTrends.Run("c2", List.of(test("slow", TestReport.Outcome.PASSED, 900),
+                        test("fast", TestReport.Outcome.PASSED, 10), test("rerun", TestReport.Outcome.FLAKY, 50),
+                        test("broken", TestReport.Outcome.FAILED, 5))),
+                new TestTrends.Run("c1", List.of(test("slow", TestReport.Outcome.PASSED, 100),
+                        test("fast", TestReport.Outcome.FAILED, 20), test("broken", TestReport.Outcome.PASSED, 5),
+                        test("ignored", TestReport.Outcome.SKIPPED, 0))),
+                new TestTrends.Run("c1", List.of(test("slow", TestReport.Outcome.PASSED, 500),
+                        test("fast", TestReport.Outcome.PASSED, 30))));
+
+        TestTrends.Trends trends = TestTrends.compute(runs, 2);
+
+        assertEquals(3, trends.builds());
+        assertEquals(List.of(new TestTrends.SlowTest("p.ATest", "slow", 3, 500, 900),
+                new TestTrends.SlowTest("p.ATest", "rerun", 1, 50, 50)), trends.slowest());
+        assertEquals(List.of(new TestTrends.FlakyTest("p.ATest", "fast", 3, 1, 0, 1),
+                new TestTrends.FlakyTest("p.ATest", "rerun", 1, 0, 1, 0)), trends.flaky());
+    }
+
+    @Test
+    void render_escapesNames() {
+        StringWriter html = new StringWriter();
+        TestTrends.Trends trends = TestTrends.compute(List.of(
+                new TestTrends.Run("c1", List.of(test("<b>", TestReport.Outcome.FLAKY, 1500)))), 10);
+
+        TestTrends.render(new PrintWriter(html), trends);
+
+        assertTrue(html.toString().contains("<td>&lt;b&gt;</td><td>1</td><td>1.5 s</td><td>1.5 s</td>"));
+        assertFalse(html.toString().contains("<b>"));
+    }
+}
@@ -3,6 +3,11 @@ package ci;
 import org.json.JSONException;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -113,4 +118,92 @@ public class WebhookPayloadTest {
 
         assertThrows(JSONException.class, () -> new GitHubWebhookPayload(missingAfter));
     }
+
+    private static GitHubWebhookPayload parseStream(String body, boolean formEncoded) throws IOException {
+        return GitHubWebhookPayload.parse(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), formEncoded);
+    }
+
+    /**
+     * The streaming parser skips values it does not need, whatever their type, and reads
+     * the fields in any order.
+     */
+    @Test
+    void parseStream_skipsOtherValues() throws IOException {
+        String payload = """
+            {
+                "created": false, "forced": true, "base_ref": null, "size": 1.5e3,
+                "commits": [{"id": "x", "message": "fix \\"}\\" [brackets]", "added": ["a", {"b": []}]}],
+                "after": "abc123def456789012345678901234567890abcd",
+                "repository": {
+                    "owner": {"name": "The \\u00c9 Octocat", "login": "octocat"},
+                    "topics": [],
+                    "clone_url": "https://github.com/octocat/Hello-World.git",
+                    "name": "Hello-World"
+                },
+                "ref": "refs/heads/feature/\\u00e9"
+            }
+            """;
+
+        GitHubWebhookPayload parsed = parseStream(payload, false);
+
+        assertEquals("refs/heads/feature/\u00e9", parsed.getRef());
+        assertEquals("feature/\u00e9", parsed.getBranch());
+        assertEquals("abc123def456789012345678901234567890abcd", parsed.getAfter());
+        assertEquals("https://github.com/octocat/Hello-World.git", parsed.getCloneUrl());
+        assertEquals("octocat", parsed.getLogin());
+        assertEquals("Hello-World", parsed.getRepositoryName());
+    }
+
+    /**
+     * Reading stops once all fields are found, the (possibly huge) rest is never parsed.
+     */
+    @Test
+    void parseStream_stopsAfterNeededFields() throws IOException {
+        String payload = "{\"ref\":\"refs/heads/main\",\"after\":\"abc\",\"repository\":{\"name\":\"r\","
+                + "\"clone_url\":\"u\",\"owner\":{\"login\":\"o\"}},\"commits\":[" + "{},".repeat(100_000);
+
+        assertEquals("o", parseStream(payload, false).getLogin());
+    }
+
+    @Test
+    void parseStream_formEncoded() throws IOException {
+        String json = "{\"ref\":\"refs/heads/a+b\",\"after\":\"abc\",\"repository\":{\"name\":\"r\","
+                + "\"clone_url\":\"https://x/y.git\",\"owner\":{\"login\":\"o\u00e9\"}}}";
+        String body = "other=1&payload=" + URLEncoder.encode(json, StandardCharsets.UTF_8) + "&more=2";
+
+        GitHubWebhookPayload parsed = parseStream(body, true);
+
+        assertEquals("a+b", parsed.getBranch());
+        assertEquals("https://x/y.git", parsed.getCloneUrl());
+        assertEquals("o\u00e9", parsed.getLogin());
+    }
+
+    /**
+     * A JSON body without a JSON content type is still parsed, a form without a payload field is rejected.
+     */
+    @Test
+    void parseStream_formEncodedWithoutPayloadField() throws IOException {
+        String json = " {\"ref\":\"refs/heads/main\",\"after\":\"abc\",\"repository\":{\"name\":\"r\","
+                + "\"clone_url\":\"u\",\"owner\":{\"login\":\"o\"}}}";
+
+        assertEquals("o", parseStream(json, true).getLogin());
+        assertThrows(JSONException.class, () -> parseStream("other=1&more=2", true));
+    }
+
+    @Test
+    void parseStream_emptyBody_returnsNull() throws IOException {
+        assertNull(parseStream("", false));
+        assertNull(parseStream("  \n", false));
+        assertNull(parseStream("", true));
+    }
+
+    @Test
+    void parseStream_malformed_throwsJsonException() {
+        assertThrows(JSONException.class, () -> parseStream("not valid json", false));
+        assertThrows(JSONException.class, () -> parseStream("{\"ref\": \"refs/heads/main\"", false));
+        assertThrows(JSONException.class, () -> parseStream("{\"ref\": 42}", false));
+        assertThrows(JSONException.class, () -> parseStream("payload=%zz", true));
+        assertThrows(JSONException.class,
+                () -> parseStream("{\"ref\":\"refs/heads/main\",\"repository\":{\"name\":\"r\"}}", false));
+    }
 }
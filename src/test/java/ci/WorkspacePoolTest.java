@@ -0,0 +1,177 @@
+package ci;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for WorkspacePool against a local repository (file:// clone URL).
+ */
+public class WorkspacePoolTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path origin;
+    private String url;
+    private final CommandExecutor git = new ProcessCommandExecutor();
+
+    @BeforeEach
+    void setUp() throws IOException, InterruptedException {
+        Assumptions.assumeTrue(git.execute(List.of("git", "--version"), tempDir).getExitCode() == 0,
+                "git not available on PATH");
+        origin = tempDir.resolve("origin");
+        Files.createDirectories(origin);
+        run(origin, "git", "init", "-q", "-b", "main");
+        url = origin.toUri().toString();
+    }
+
+    private String run(Path dir, String... command) throws IOException, InterruptedException {
+        ExecResult result = git.execute(List.of(command), dir);
+        assertEquals(0, result.getExitCode(), result.getOutput());
+        return result.getOutput().trim();
+    }
+
+    private String commit(String file, String content) throws IOException, InterruptedException {
+        Files.writeString(origin.resolve(file), content);
+        run(origin, "git", "add", file);
+        run(origin, "git", "-c", "user.name=ci", "-c", "user.email=ci@example.com", "commit", "-q", "-m", file);
+        return run(origin, "git", "rev-parse", "HEAD");
+    }
+
+    private WorkspacePool pool(int maxWorkspaces, long budgetBytes) throws IOException {
+        return new WorkspacePool(new DefaultCommandExecutorFactory(), tempDir.resolve("workspaces"), maxWorkspaces,
+                budgetBytes);
+    }
+
+    /**
+     * The next build of the branch gets the same workspace at the new commit, with the build output
+     * kept and untracked sources and old test reports removed.
+     */
+    @Test
+    void checkout_reusedWorkspaceKeepsTargetOnly() throws IOException, InterruptedException {
+        String first = commit("a.txt", "one");
+        WorkspacePool pool = pool(10, Long.MAX_VALUE);
+        Path workspace = pool.acquire(url, "main");
+        assertEquals(0, pool.checkout(url, "main", first, workspace).getExitCode());
+        Files.createDirectories(workspace.resolve("target/classes"));
+        Files.createDirectories(workspace.resolve("target/surefire-reports"));
+        Files.writeString(workspace.resolve("target/classes/A.class"), "compiled");
+        Files.writeString(workspace.resolve("target/surefire-reports/TEST-A.xml"), "<testsuite/>");
+        Files.writeString(workspace.resolve("Generated.java"), "untracked");
+        Files.writeString(workspace.resolve("a.txt"), "modified");
+        assertTrue(pool.release(workspace));
+
+        String second = commit("a.txt", "two");
+        Path reused = pool.acquire(url, "main");
+        ExecResult result = pool.checkout(url, "main", second, reused);
+
+        assertEquals(0, result.getExitCode(), result.getOutput());
+        assertEquals(workspace, reused);
+        assertEquals("two", Files.readString(reused.resolve("a.txt")));
+        assertTrue(Files.exists(reused.resolve("target/classes/A.class")));
+        assertFalse(Files.exists(reused.resolve("target/surefire-reports")));
+        assertFalse(Files.exists(reused.resolve("Generated.java")));
+    }
+
+    /**
+     * A workspace whose git directory is broken is cloned again.
+     */
+    @Test
+    void checkout_brokenWorkspaceIsClonedAgain() throws IOException, InterruptedException {
+        String first = commit("a.txt", "one");
+        WorkspacePool pool = pool(10, Long.MAX_VALUE);
+        Path workspace = pool.acquire(url, "main");
+        Files.createDirectories(workspace.resolve(".git"));
+
+        ExecResult result = pool.checkout(url, "main", first, workspace);
+
+        assertEquals(0, result.getExitCode(), result.getOutput());
+        assertTrue(result.getOutput().contains("cloning it again"));
+        assertEquals("one", Files.readString(workspace.resolve("a.txt")));
+    }
+
+    /**
+     * A workspace is used by one build at a time.
+     */
+    @Test
+    void acquire_workspaceInUse_returnsNull() throws IOException {
+        WorkspacePool pool = pool(10, Long.MAX_VALUE);
+        Path workspace = pool.acquire(url, "main");
+
+        assertNull(pool.acquire(url, "main"));
+        assertNotNull(pool.acquire(url, "feature"));
+        assertTrue(pool.release(workspace));
+        assertEquals(workspace, pool.acquire(url, "main"));
+        assertFalse(pool.release(tempDir.resolve("elsewhere")));
+    }
+
+    /**
+     * Over the limits the least recently used workspaces are evicted, those in use are kept.
+     */
+    @Test
+    void release_overLimits_evictsLeastRecentlyUsed() throws IOException, InterruptedException {
+        String first = commit("a.txt", "one");
+        WorkspacePool pool = pool(2, Long.MAX_VALUE);
+        Path main = pool.acquire(url, "main");
+        Path feature = pool.acquire(url, "feature");
+        Path fix = pool.acquire(url, "fix");
+        for (Path workspace : List.of(main, feature, fix)) {
+            assertEquals(0, pool.checkout(url, "main", first, workspace).getExitCode());
+        }
+        pool.release(feature);
+        pool.release(main);
+        assertEquals(2, pool.getWorkspaceCount(), "the one in use is kept");
+        assertFalse(Files.exists(feature));
+
+        pool.release(fix);
+        pool.release(pool.acquire(url, "main"));
+        pool.release(pool.acquire(url, "feature"));
+
+        assertEquals(2, pool.getWorkspaceCount());
+        assertFalse(Files.exists(fix));
+        assertTrue(Files.exists(main));
+        try (var left = Files.list(tempDir.resolve("workspaces"))) {
+            assertTrue(left.noneMatch(dir -> dir.getFileName().toString().startsWith(".evicted-")),
+                    "evicted workspaces are deleted");
+        }
+
+        WorkspacePool small = pool(10, 1);
+        Path only = small.acquire(url, "main");
+        assertTrue(small.release(only));
+        assertEquals(0, small.getWorkspaceCount(), "over the budget");
+    }
+
+    /**
+     * Workspaces left by a previous run are used again, those evicted but not deleted yet are deleted.
+     */
+    @Test
+    void constructor_loadsExistingWorkspaces() throws IOException {
+        Files.createDirectories(tempDir.resolve("workspaces").resolve(WorkspacePool.directoryName(url, "main")));
+        Files.createDirectories(tempDir.resolve("workspaces/.evicted-old-1/target"));
+
+        WorkspacePool pool = pool(10, Long.MAX_VALUE);
+
+        assertEquals(1, pool.getWorkspaceCount());
+        assertFalse(Files.exists(tempDir.resolve("workspaces/.evicted-old-1")));
+        assertEquals(tempDir.resolve("workspaces").resolve(WorkspacePool.directoryName(url, "main")),
+                pool.acquire(url, "main"));
+    }
+
+    @Test
+    void directoryName_readableAndUniquePerBranch() {
+        String name = WorkspacePool.directoryName("https://github.com/owner/repo.git", "feature/x");
+
+        assertTrue(name.startsWith("owner-repo-"), name);
+        assertTrue(name.contains("-feature_x-"), name);
+        assertNotEquals(name, WorkspacePool.directoryName("https://github.com/owner/repo.git", "feature_x"));
+    }
+}